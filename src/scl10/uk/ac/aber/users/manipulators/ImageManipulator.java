@@ -1,13 +1,17 @@
 package scl10.uk.ac.aber.users.manipulators;
 
-import java.awt.Color;
 import java.awt.Dimension;
-import java.awt.Graphics;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
-import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 import javax.imageio.ImageIO;
 
@@ -20,7 +24,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import lombok.NonNull;
-import scl10.uk.ac.aber.users.readers.ImageReader;
+import scl10.uk.ac.aber.users.pyramids.TiledImageStore;
 
 /**
  * A class used applying pixel manipulation functions to bufferedImages.
@@ -34,6 +38,58 @@ public final class ImageManipulator
 	 */
 	private static final Logger LOGGER = LoggerFactory.getLogger(ImageManipulatorTest.class);
 
+	/**
+	 * The weight of the red channel when working out a pixel's luminance.
+	 */
+	public static final float RED_LUMINANCE_WEIGHT = 0.299F;
+
+	/**
+	 * The weight of the green channel when working out a pixel's luminance.
+	 */
+	public static final float GREEN_LUMINANCE_WEIGHT = 0.587F;
+
+	/**
+	 * The weight of the blue channel when working out a pixel's luminance.
+	 */
+	public static final float BLUE_LUMINANCE_WEIGHT = 0.114F;
+
+	/**
+	 * The number of fractional bits of the whole number luminance weights
+	 */
+	private static final int LUMINANCE_SHIFT = 14;
+
+	/**
+	 * The luminance weights as whole numbers, for working out rounded grey
+	 * values without floating point.
+	 */
+	private static final int RED_LUMINANCE_FIXED = Math.round(RED_LUMINANCE_WEIGHT * (1 << LUMINANCE_SHIFT));
+
+	/**
+	 * The green luminance weight as a whole number
+	 */
+	private static final int GREEN_LUMINANCE_FIXED = Math.round(GREEN_LUMINANCE_WEIGHT * (1 << LUMINANCE_SHIFT));
+
+	/**
+	 * The blue luminance weight as a whole number
+	 */
+	private static final int BLUE_LUMINANCE_FIXED = Math.round(BLUE_LUMINANCE_WEIGHT * (1 << LUMINANCE_SHIFT));
+
+	/**
+	 * Odd constant the pixels are multiplied by when they're hashed
+	 */
+	private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+	/**
+	 * Odd constant the hash is scrambled by after each long is mixed in
+	 */
+	private static final long HASH_SCRAMBLER = 0xC2B2AE3D27D4EB4FL;
+
+	/**
+	 * Images with fewer pixels than this are converted on the calling thread,
+	 * as splitting them up costs more than it saves.
+	 */
+	private static final int PARALLEL_PIXEL_THRESHOLD = 1 << 16;
+
 	/**
 	 * Loads openCV
 	 */
@@ -61,27 +117,105 @@ public final class ImageManipulator
 	public static BufferedImage downsample(@NonNull final BufferedImage img)
 	{
 		/*
-		 * Convert the image into an OpenCV matrix
+		 * Create the new smaller size which is half both the width and height
+		 * of the original
 		 */
-		Mat matrix = convertImageToMatrix(img);
+		Size smallerSize = new Size(Math.floor(img.getWidth() / 2.0D), Math.floor(img.getHeight() / 2.0D));
+
+		return downsample(img, smallerSize);
+	}
 
+	/**
+	 * Downsamples a given image to a given size.
+	 * 
+	 * @param img
+	 *            The image that is to be downsampled. Cannot be null.
+	 * @param smallerSize
+	 *            The desired size of the image. cannot be null.
+	 *            <p>
+	 *            <strong> The new size MUST be within 1 of half of the image's
+	 *            width and within 1 of half of the image's height. </strong>
+	 * @return A downsampled version of the image.
+	 */
+	public static BufferedImage downsample(@NonNull final BufferedImage img, @NonNull final Size smallerSize)
+	{
 		/*
-		 * Create the new smaller size which is half both the width and height
-		 * of the original
+		 * The matrices are only needed for the conversion so are borrowed
+		 * from the shared pool
 		 */
-		Size smallerSize = new Size(Math.floor(matrix.width() / 2.0D), Math.floor(matrix.height() / 2.0D));
+		try (MatPool.Scope scope = MatPool.getShared().openScope())
+		{
+			Mat matrix = convertImageToMatrix(img, scope.acquire(img.getHeight(), img.getWidth(), getMatrixType(img)));
+			Mat destination = scope.acquire((int) smallerSize.height, (int) smallerSize.width, matrix.type());
+
+			return convertMatrixToImage(downsample(matrix, smallerSize, destination));
+		}
+	}
 
+	/**
+	 * Downsamples a given matrix by half in both the width and height, without
+	 * converting it to or from an image.
+	 * 
+	 * @param matrix
+	 *            The matrix that is to be downsampled. Cannot be null.
+	 * @return A new downsampled matrix.
+	 */
+	public static Mat downsample(@NonNull final Mat matrix)
+	{
+		return downsample(matrix, new Size(Math.floor(matrix.width() / 2.0D), Math.floor(matrix.height() / 2.0D)));
+	}
+
+	/**
+	 * Downsamples a given matrix to a given size, without converting it to or
+	 * from an image.
+	 * 
+	 * @param matrix
+	 *            The matrix that is to be downsampled. Cannot be null.
+	 * @param smallerSize
+	 *            The desired size of the matrix. cannot be null.
+	 *            <p>
+	 *            <strong> The new size MUST be within 1 of half of the
+	 *            matrix's width and within 1 of half of the matrix's height.
+	 *            </strong>
+	 * @return A new downsampled matrix, which the caller should release.
+	 */
+	public static Mat downsample(@NonNull final Mat matrix, @NonNull final Size smallerSize)
+	{
 		/*
 		 * Create a destination where the downsampled matrix will be stored
 		 */
 		Mat destination = new Mat((int) smallerSize.height, (int) smallerSize.width, matrix.type());
 
+		return downsample(matrix, smallerSize, destination);
+	}
+
+	/**
+	 * Downsamples a given matrix to a given size into an existing matrix, so
+	 * the destination can be reused.
+	 * 
+	 * @param matrix
+	 *            The matrix that is to be downsampled. Cannot be null.
+	 * @param smallerSize
+	 *            The desired size of the matrix. cannot be null.
+	 *            <p>
+	 *            <strong> The new size MUST be within 1 of half of the
+	 *            matrix's width and within 1 of half of the matrix's height.
+	 *            </strong>
+	 * @param destination
+	 *            Where the downsampled matrix is stored. It is only
+	 *            reallocated if it is not already the smaller size and the
+	 *            matrix's type. Cannot be null.
+	 * @return The destination.
+	 */
+	public static Mat downsample(@NonNull final Mat matrix, @NonNull final Size smallerSize,
+			@NonNull final Mat destination)
+	{
 		/*
 		 * Perform the downsampling
 		 */
 		Imgproc.pyrDown(matrix, destination, smallerSize);
 
-		return convertMatrixToImage(destination);
+		return destination;
 	}
 
 	/**
@@ -100,22 +234,64 @@ public final class ImageManipulator
 	 */
 	public static BufferedImage upsample(@NonNull final BufferedImage img, @NonNull final Size newSize)
 	{
-		/*
-		 * Convert the image into an OpenCV matrix
-		 */
-		Mat matrix = convertImageToMatrix(img);
+		try (MatPool.Scope scope = MatPool.getShared().openScope())
+		{
+			Mat matrix = convertImageToMatrix(img, scope.acquire(img.getHeight(), img.getWidth(), getMatrixType(img)));
+			Mat destination = scope.acquire((int) newSize.height, (int) newSize.width, matrix.type());
 
+			return convertMatrixToImage(upsample(matrix, newSize, destination));
+		}
+	}
+
+	/**
+	 * Upsamples a given matrix to a given size, without converting it to or
+	 * from an image.
+	 * 
+	 * @param matrix
+	 *            The matrix that is to be upsampled. cannot be null.
+	 * @param newSize
+	 *            The desired size of the matrix. cannot be null.
+	 *            <p>
+	 *            <strong> The new size MUST be the matrix's (width * 2) +/- 1
+	 *            and the matrix's (height * 2) +/- 1. </strong>
+	 * @return A new upsampled matrix, which the caller should release.
+	 */
+	public static Mat upsample(@NonNull final Mat matrix, @NonNull final Size newSize)
+	{
 		/*
 		 * Create a destination where the upsampled matrix will be stored
 		 */
 		Mat destination = new Mat((int) newSize.height, (int) newSize.width, matrix.type());
 
+		return upsample(matrix, newSize, destination);
+	}
+
+	/**
+	 * Upsamples a given matrix to a given size into an existing matrix, so the
+	 * destination can be reused.
+	 * 
+	 * @param matrix
+	 *            The matrix that is to be upsampled. cannot be null.
+	 * @param newSize
+	 *            The desired size of the matrix. cannot be null.
+	 *            <p>
+	 *            <strong> The new size MUST be the matrix's (width * 2) +/- 1
+	 *            and the matrix's (height * 2) +/- 1. </strong>
+	 * @param destination
+	 *            Where the upsampled matrix is stored. It is only reallocated
+	 *            if it is not already the new size and the matrix's type.
+	 *            cannot be null.
+	 * @return The destination.
+	 */
+	public static Mat upsample(@NonNull final Mat matrix, @NonNull final Size newSize,
+			@NonNull final Mat destination)
+	{
 		/*
 		 * Perform the upsampling
 		 */
 		Imgproc.pyrUp(matrix, destination, newSize);
 
-		return convertMatrixToImage(destination);
+		return destination;
 	}
 
 	/**
@@ -131,33 +307,41 @@ public final class ImageManipulator
 	public static BufferedImage flipImage(@NonNull final BufferedImage imageToFlip, final int flipDirection)
 	{
 		/*
-		 * Convert the input image into a matrix
+		 * Convert the input image into a matrix, flip it in place and convert
+		 * it back to an image
 		 */
-		Mat source = convertImageToMatrix(imageToFlip);
-
-		/*
-		 * The result of the flip will be sorted into a destination matrix so
-		 * for now just set it as the source to ensure that the size and type is
-		 * correct.
-		 */
-		Mat destination = source;
+		try (MatPool.Scope scope = MatPool.getShared().openScope())
+		{
+			Mat matrix = convertImageToMatrix(imageToFlip,
+					scope.acquire(imageToFlip.getHeight(), imageToFlip.getWidth(), getMatrixType(imageToFlip)));
+			Core.flip(matrix, matrix, flipDirection);
 
-		/*
-		 * Perform the flip
-		 */
-		Core.flip(source, destination, flipDirection);
+			return convertMatrixToImage(matrix);
+		}
+	}
 
-		/*
-		 * Convert back to an image
-		 */
-		return convertMatrixToImage(destination);
+	/**
+	 * Flips a given matrix across a given axis, without converting it to or
+	 * from an image.
+	 * 
+	 * @param matrixToFlip
+	 *            The matrix to be flipped. cannot be null.
+	 * @param flipDirection
+	 *            The axis of the matrix that is going to be flipped on, either
+	 *            -1, 0 or 1.
+	 * @return A new flipped matrix, which the caller should release.
+	 */
+	public static Mat flipMatrix(@NonNull final Mat matrixToFlip, final int flipDirection)
+	{
+		Mat destination = new Mat();
+		Core.flip(matrixToFlip, destination, flipDirection);
+		return destination;
 	}
 
 	/**
 	 * Converts a colour image to a greyscale image. Should the image already be
-	 * greyscale then it is simply returned. Code was modified from <a href=
-	 * "http://stackoverflow.com/questions/20076290/determine-whether-an-image-is-grayscale-in-java">
-	 * here. </a>
+	 * greyscale then it is simply returned. Each grey value is the pixel's
+	 * luminance, see {@link #convertToLuminance(BufferedImage)}.
 	 * 
 	 * @param imageToConvert
 	 *            The colour image that is to become a greysacle image. Cannot
@@ -168,16 +352,11 @@ public final class ImageManipulator
 	{
 		/*
 		 * Start by checking if the image is already greyscale. If so, then
-		 * return it.
+		 * return it. The colour components are counted rather than the
+		 * raster's elements, as images packed into ints only have 1 element
+		 * per pixel but are still colour.
 		 */
-		Raster raster = imageToConvert.getRaster();
-
-		/*
-		 * Determine the number of elements within the raster of the image. 1
-		 * element means greyscale [0-255] and 3 elements means colour [RGB].
-		 */
-		int elem = raster.getNumDataElements();
-		if (elem == 1)
+		if (imageToConvert.getColorModel().getNumColorComponents() == 1)
 		{
 			return imageToConvert;
 		}
@@ -186,28 +365,132 @@ public final class ImageManipulator
 		 * Create a new image in a greyscale format the same size as the image
 		 * to convert.
 		 */
-		BufferedImage greyImage = new BufferedImage(imageToConvert.getWidth(), imageToConvert.getHeight(),
-				BufferedImage.TYPE_BYTE_GRAY);
-
-		/*
-		 * get the graphics from the
-		 */
-		Graphics g = greyImage.getGraphics();
+		int width = imageToConvert.getWidth();
+		int height = imageToConvert.getHeight();
+		BufferedImage greyImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
 
 		/*
-		 * Draw the original image into the greyscale image's graphic
+		 * Write the rounded luminance of each pixel straight into the grey
+		 * image's buffer, using the whole number weights.
 		 */
-		g.drawImage(imageToConvert, 0, 0, null);
+		byte[] colourPixels = getPackedBGRPixels(imageToConvert);
+		byte[] greyPixels = ((DataBufferByte) greyImage.getRaster().getDataBuffer()).getData();
+		final int half = 1 << (LUMINANCE_SHIFT - 1);
 
-		/*
-		 * Tells the GIGO collector that this graphics object can be disposed of
-		 * now.
-		 */
-		g.dispose();
+		forEachRow(width, height, y ->
+		{
+			for (int i = y * width, j = i * 3; i < (y + 1) * width; i++, j += 3)
+			{
+				greyPixels[i] = (byte) ((RED_LUMINANCE_FIXED * (colourPixels[j + 2] & 0xFF)
+						+ GREEN_LUMINANCE_FIXED * (colourPixels[j + 1] & 0xFF)
+						+ BLUE_LUMINANCE_FIXED * (colourPixels[j] & 0xFF) + half) >> LUMINANCE_SHIFT);
+			}
+		});
 
 		return greyImage;
 	}
 
+	/**
+	 * Get the luminance of each pixel of an image, between 0 - 255, row by
+	 * row. The luminance is the standard weighted sum of the red, green and
+	 * blue values. The pixels of a greyscale image are already luminance
+	 * values, so they are used as they are.
+	 * <p>
+	 * This is the one place grey values are worked out, for both the training
+	 * data and the artificial neural networks' inputs.
+	 * 
+	 * @param image
+	 *            The image. cannot be null.
+	 * @return The luminance of each pixel, ordered row by row.
+	 */
+	public static float[] convertToLuminance(@NonNull final BufferedImage image)
+	{
+		if (isPackedGrey(image))
+		{
+			return convertToLuminance(((DataBufferByte) image.getRaster().getDataBuffer()).getData(),
+					image.getWidth(), image.getHeight(), 1);
+		}
+
+		return convertToLuminance(getPackedBGRPixels(image), image.getWidth(), image.getHeight(), 3);
+	}
+
+	/**
+	 * Get the luminance of each pixel of an image's bytes, between 0 - 255,
+	 * row by row. See {@link #convertToLuminance(BufferedImage)}.
+	 * 
+	 * @param pixels
+	 *            The grey or BGR bytes of the image, row by row. cannot be
+	 *            null.
+	 * @param width
+	 *            The width of the image.
+	 * @param height
+	 *            The height of the image.
+	 * @param channels
+	 *            The number of bytes of each pixel. 1 for grey or 3 for BGR.
+	 * @return The luminance of each pixel, ordered row by row.
+	 */
+	static float[] convertToLuminance(@NonNull final byte[] pixels, final int width, final int height,
+			final int channels)
+	{
+		float[] luminance = new float[width * height];
+
+		if (channels == 1)
+		{
+			for (int i = 0; i < luminance.length; i++)
+			{
+				luminance[i] = pixels[i] & 0xFF;
+			}
+			return luminance;
+		}
+
+		forEachRow(width, height, y ->
+		{
+			for (int i = y * width; i < (y + 1) * width; i++)
+			{
+				luminance[i] = luminance(pixels, i * 3);
+			}
+		});
+
+		return luminance;
+	}
+
+	/**
+	 * Works out the luminance of a single BGR pixel.
+	 * 
+	 * @param bgrPixels
+	 *            The BGR bytes of an image.
+	 * @param index
+	 *            The position of the pixel's blue byte.
+	 * @return The luminance of the pixel, between 0 - 255.
+	 */
+	private static float luminance(final byte[] bgrPixels, final int index)
+	{
+		return RED_LUMINANCE_WEIGHT * (bgrPixels[index + 2] & 0xFF)
+				+ GREEN_LUMINANCE_WEIGHT * (bgrPixels[index + 1] & 0xFF)
+				+ BLUE_LUMINANCE_WEIGHT * (bgrPixels[index] & 0xFF);
+	}
+
+	/**
+	 * Runs an action for every row of an image. The rows of large images are
+	 * run in parallel, so each row's action must only write to its own row.
+	 * 
+	 * @param width
+	 *            The width of the image.
+	 * @param height
+	 *            The height of the image.
+	 * @param rowAction
+	 *            The action, given the row. cannot be null.
+	 */
+	private static void forEachRow(final int width, final int height, @NonNull final IntConsumer rowAction)
+	{
+		IntStream rows = IntStream.range(0, height);
+		if ((long) width * height >= PARALLEL_PIXEL_THRESHOLD)
+		{
+			rows = rows.parallel();
+		}
+		rows.forEach(rowAction);
+	}
+
 	/**
 	 * Writes a buffered image out to a given file that is saved as a JPG.
 	 * 
@@ -236,35 +519,127 @@ public final class ImageManipulator
 	 * <a href=
 	 * "http://stackoverflow.com/questions/14958643/converting-bufferedimage-to-mat-in-opencv/15339157">
 	 * here. </a>
+	 * <p>
+	 * Grey images become single channel matrices. Any other image becomes a
+	 * three channel BGR matrix.
 	 * 
 	 * @param img
 	 *            The image to be converted into an open CV matrix. Can not be
 	 *            null.
 	 * @return The matrix equivalent of the input buffered image.
 	 */
-	private static Mat convertImageToMatrix(@NonNull final BufferedImage img)
+	public static Mat convertImageToMatrix(@NonNull final BufferedImage img)
+	{
+		return convertImageToMatrix(img, new Mat());
+	}
+
+	/**
+	 * Converts a BufferedImage into an existing open CV matrix object, so the
+	 * matrix can be reused. See {@link #convertImageToMatrix(BufferedImage)}.
+	 * 
+	 * @param img
+	 *            The image to be converted into an open CV matrix. Can not be
+	 *            null.
+	 * @param destination
+	 *            The matrix the image is stored in. It is only reallocated if
+	 *            it is not already the image's size and
+	 *            {@link #getMatrixType(BufferedImage) type}. Can not be null.
+	 * @return The destination.
+	 */
+	public static Mat convertImageToMatrix(@NonNull final BufferedImage img, @NonNull final Mat destination)
 	{
 		/*
-		 * Get the pixel from the image
+		 * Make sure the matrix is the height and width of the image
 		 */
-		byte[] pixels = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+		destination.create(img.getHeight(), img.getWidth(), getMatrixType(img));
 
 		/*
-		 * Create the matrix object the height and width of the matrix
+		 * Grey images are copied straight from their single byte per pixel
+		 * buffer
 		 */
-		Mat m = new Mat(img.getHeight(), img.getWidth(), CvType.CV_8UC3);
+		if (isPackedGrey(img))
+		{
+			destination.put(0, 0, ((DataBufferByte) img.getRaster().getDataBuffer()).getData());
+			return destination;
+		}
 
 		/*
 		 * put the values of the pixels into the matrix starting at position
-		 * [0,0]
+		 * [0,0]. The image's own buffer is used when it is already BGR bytes.
 		 */
-		m.put(0, 0, pixels);
+		destination.put(0, 0, getPackedBGRPixels(img));
+
+		return destination;
+	}
+
+	/**
+	 * Get the type of matrix an image is converted into. Grey images are
+	 * single channel matrices. Any other image is a three channel BGR matrix.
+	 * 
+	 * @param img
+	 *            The image. Can not be null.
+	 * @return Either CvType.CV_8UC1 or CvType.CV_8UC3.
+	 */
+	public static int getMatrixType(@NonNull final BufferedImage img)
+	{
+		return isPackedGrey(img) ? CvType.CV_8UC1 : CvType.CV_8UC3;
+	}
+
+	/**
+	 * Works out a 64 bit hash of an image's pixels, so images with the same
+	 * pixels can be recognised without comparing them. Grey images are hashed
+	 * from their grey bytes and any other image from its BGR bytes, the same
+	 * bytes it is converted into a matrix from. The pixels are read 8 bytes at
+	 * a time.
+	 * 
+	 * @param img
+	 *            The image. Can not be null.
+	 * @return The hash of the image's pixels.
+	 */
+	public static long hashPixels(@NonNull final BufferedImage img)
+	{
+		byte[] pixels = isPackedGrey(img) ? ((DataBufferByte) img.getRaster().getDataBuffer()).getData()
+				: getPackedBGRPixels(img);
+
+		long hash = pixels.length * HASH_MULTIPLIER;
+
+		/*
+		 * Mix in the pixels a long at a time, then whatever bytes are left
+		 */
+		LongBuffer words = ByteBuffer.wrap(pixels).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+		while (words.hasRemaining())
+		{
+			hash = Long.rotateLeft(hash ^ words.get() * HASH_MULTIPLIER, 31) * HASH_SCRAMBLER;
+		}
+
+		for (int i = pixels.length & ~7; i < pixels.length; i++)
+		{
+			hash = Long.rotateLeft(hash ^ (pixels[i] & 0xFF) * HASH_MULTIPLIER, 31) * HASH_SCRAMBLER;
+		}
 
 		/*
-		 * return the matrix once the pixel values has been assigned to position
-		 * within the matrix.
+		 * Spread the last bytes through the whole hash
 		 */
-		return m;
+		hash ^= hash >>> 33;
+		hash *= HASH_SCRAMBLER;
+		return hash ^ (hash >>> 29);
+	}
+
+	/**
+	 * Checks whether an image is a grey image with one byte per pixel, row
+	 * after row with no gaps.
+	 * 
+	 * @param image
+	 *            The image to be checked. cannot be null.
+	 * @return true if the image's buffer can be used directly as a single
+	 *         channel matrix.
+	 */
+	static boolean isPackedGrey(@NonNull final BufferedImage image)
+	{
+		WritableRaster raster = image.getRaster();
+		return image.getType() == BufferedImage.TYPE_BYTE_GRAY && raster.getSampleModelTranslateX() == 0
+				&& raster.getSampleModelTranslateY() == 0 && raster.getDataBuffer().getOffset() == 0
+				&& raster.getDataBuffer().getSize() == image.getWidth() * image.getHeight();
 	}
 
 	/**
@@ -281,56 +656,125 @@ public final class ImageManipulator
 	public static BufferedImage createAveragedColouredImageFromImage(@NonNull final BufferedImage img)
 	{
 		/*
-		 * Set up some values to accumulate the rgb of the image
+		 * Work out the average colour
 		 */
-		int red = 0;
-		int green = 0;
-		int blue = 0;
+		int averageRGB = getAverageRGB(img);
 
 		/*
-		 * Determine the average RGB of the image.
+		 * Create a new image that will be an average colour of the original
+		 * image
 		 */
-		for (int i = 0; i < img.getHeight(); i++)
-		{
-			for (int j = 0; j < img.getWidth(); j++)
-			{
-				Color currentPixelColor = new Color(img.getRGB(j, i));
-				red += currentPixelColor.getRed();
-				blue += currentPixelColor.getBlue();
-				green += currentPixelColor.getGreen();
-			}
-		}
+		BufferedImage averageColoredImage = new BufferedImage(img.getWidth(), img.getHeight(),
+				BufferedImage.TYPE_3BYTE_BGR);
 
 		/*
-		 * Determine the size of the image so we can divide each colour channel
-		 * to get an average
+		 * Set the average colour within the average coloured image.
 		 */
-		int imageSize = img.getHeight() * img.getWidth();
+		fillPackedBGR(((DataBufferByte) averageColoredImage.getRaster().getDataBuffer()).getData(), averageRGB);
 
-		/*
-		 * Work out the average colour
-		 */
-		Color averageColor = new Color(red / imageSize, green / imageSize, blue / imageSize);
+		return averageColoredImage;
+	}
+
+	/**
+	 * Determines the average colour of an image. Each channel is summed in a
+	 * long so large images do not overflow, and the average of each channel is
+	 * rounded down.
+	 * 
+	 * @param img
+	 *            The image thats average pixel colour is required. Can not be
+	 *            null.
+	 * @return The average colour as packed RGB.
+	 */
+	static int getAverageRGB(@NonNull final BufferedImage img)
+	{
+		if (isPackedBGR(img))
+		{
+			byte[] averagePixel = getAveragePixel(((DataBufferByte) img.getRaster().getDataBuffer()).getData(), 3);
+			return (averagePixel[2] & 0xFF) << 16 | (averagePixel[1] & 0xFF) << 8 | averagePixel[0] & 0xFF;
+		}
 
 		/*
-		 * Create a new image that will be an average colour of the original
-		 * image
+		 * Set up some values to accumulate the rgb of the image
 		 */
-		BufferedImage averageColoredImage = new BufferedImage(img.getWidth(), img.getHeight(),
-				BufferedImage.TYPE_3BYTE_BGR);
+		long red = 0;
+		long green = 0;
+		long blue = 0;
 
 		/*
-		 * Set the average colour within the average coloured image.
+		 * Read the image a row at a time rather than a pixel at a time
 		 */
+		int width = img.getWidth();
+		int[] row = new int[width];
 		for (int i = 0; i < img.getHeight(); i++)
 		{
-			for (int j = 0; j < img.getWidth(); j++)
+			img.getRGB(0, i, width, 1, row, 0, width);
+			for (int j = 0; j < width; j++)
 			{
-				averageColoredImage.setRGB(j, i, averageColor.getRGB());
+				red += (row[j] >> 16) & 0xFF;
+				green += (row[j] >> 8) & 0xFF;
+				blue += row[j] & 0xFF;
 			}
 		}
 
-		return averageColoredImage;
+		long imageSize = (long) img.getHeight() * width;
+		return (int) (red / imageSize) << 16 | (int) (green / imageSize) << 8 | (int) (blue / imageSize);
+	}
+
+	/**
+	 * Determines the average of each channel of an image's pixel bytes,
+	 * summed in longs and rounded down.
+	 * 
+	 * @param pixels
+	 *            The bytes of the image, a pixel after another. cannot be
+	 *            null.
+	 * @param channels
+	 *            The number of bytes of each pixel.
+	 * @return The average pixel, in the same channel order as the image.
+	 */
+	private static byte[] getAveragePixel(@NonNull final byte[] pixels, final int channels)
+	{
+		long[] sums = new long[channels];
+		for (int k = 0; k < pixels.length; k = k + channels)
+		{
+			for (int c = 0; c < channels; c++)
+			{
+				sums[c] += pixels[k + c] & 0xFF;
+			}
+		}
+
+		long imageSize = Math.max(1, pixels.length / channels);
+		byte[] averagePixel = new byte[channels];
+		for (int c = 0; c < channels; c++)
+		{
+			averagePixel[c] = (byte) (sums[c] / imageSize);
+		}
+		return averagePixel;
+	}
+
+	/**
+	 * Fills BGR bytes with a single colour. The first pixel is set and then
+	 * copied in ever doubling blocks rather than set a pixel at a time.
+	 * 
+	 * @param pixels
+	 *            The BGR bytes to be filled. cannot be null.
+	 * @param rgb
+	 *            The colour as packed RGB.
+	 */
+	private static void fillPackedBGR(@NonNull final byte[] pixels, final int rgb)
+	{
+		if (pixels.length < 3)
+		{
+			return;
+		}
+
+		pixels[0] = (byte) rgb;
+		pixels[1] = (byte) (rgb >> 8);
+		pixels[2] = (byte) (rgb >> 16);
+
+		for (int filled = 3; filled < pixels.length; filled = filled * 2)
+		{
+			System.arraycopy(pixels, 0, pixels, filled, Math.min(filled, pixels.length - filled));
+		}
 	}
 
 	/**
@@ -343,28 +787,14 @@ public final class ImageManipulator
 	 *            null.
 	 * @return The buffered image equivalent of the input matrix
 	 */
-	private static BufferedImage convertMatrixToImage(@NonNull final Mat matrix)
+	public static BufferedImage convertMatrixToImage(@NonNull final Mat matrix)
 	{
 		/*
-		 * Set the size of the image buffer to be the matrix's size
-		 */
-		int bufferSize = matrix.width() * matrix.height() * matrix.channels();
-
-		/*
-		 * Create the byte array the size of the buffer
-		 */
-		byte[] b = new byte[bufferSize];
-
-		/*
-		 * Get all of the pixel from the matrix starting from position [0,0] and
-		 * write them to the byte array b.
+		 * Create the new image the size of the matrix. Single channel
+		 * matrices become grey images.
 		 */
-		matrix.get(0, 0, b);
-
-		/*
-		 * Create the new image the size of the matrix
-		 */
-		BufferedImage image = new BufferedImage(matrix.width(), matrix.height(), BufferedImage.TYPE_3BYTE_BGR);
+		int imageType = matrix.channels() == 1 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR;
+		BufferedImage image = new BufferedImage(matrix.width(), matrix.height(), imageType);
 
 		/*
 		 * get the target pixels from the image as a byte array
@@ -372,9 +802,10 @@ public final class ImageManipulator
 		byte[] targetPixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
 
 		/*
-		 * Copy the matrix values from b into the buffered image's target pixels
+		 * Get all of the pixel from the matrix starting from position [0,0]
+		 * straight into the image's pixels.
 		 */
-		System.arraycopy(b, 0, targetPixels, 0, b.length);
+		matrix.get(0, 0, targetPixels);
 
 		/*
 		 * once set return the buffered image
@@ -397,9 +828,193 @@ public final class ImageManipulator
 	 *            be null.
 	 * @return A registered image with both of the functions applied to the
 	 *         input image
+	 * @see #applyWarpFunctionToImage(BufferedImage, double[][], double[][],
+	 *      BufferedImage)
 	 */
 	public static BufferedImage applyWarpFunctionToImage(@NonNull final BufferedImage image,
 			@NonNull final double[][] xwarp, @NonNull final double[][] ywarp)
+	{
+		return applyWarpFunctionToImage(image, xwarp, ywarp,
+				new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR));
+	}
+
+	/**
+	 * Applies a given x and y pixel shift to an image, writing the warped
+	 * image into a given destination so the same destination can be reused at
+	 * each pyramid level. The pixels are copied straight between the images'
+	 * byte buffers, with the rows split across the common fork join pool.
+	 * 
+	 * @param image
+	 *            The image to be warped. cannot be null.
+	 * @param xwarp
+	 *            2D x warp which is going to be applied to the image. Can not
+	 *            be null.
+	 * @param ywarp
+	 *            2D y warp which is going to be applied to the image. Can not
+	 *            be null.
+	 * @param destination
+	 *            A {@link BufferedImage#TYPE_3BYTE_BGR} image the same size as
+	 *            the image which the warped image is written into. Can not be
+	 *            the image itself. cannot be null.
+	 * @return The destination, with both of the functions applied to the
+	 *         input image
+	 */
+	public static BufferedImage applyWarpFunctionToImage(@NonNull final BufferedImage image,
+			@NonNull final double[][] xwarp, @NonNull final double[][] ywarp,
+			@NonNull final BufferedImage destination)
+	{
+		checkWarpSizes(image, xwarp, ywarp);
+
+		if (destination == image || image.getWidth() != destination.getWidth()
+				|| image.getHeight() != destination.getHeight()
+				|| !isPackedBGR(destination))
+		{
+			throw new IllegalArgumentException(
+					"The destination must be a separate TYPE_3BYTE_BGR image the same size as the image.");
+		}
+
+		/*
+		 * Warp the pixels of the image as BGR bytes, row by row, straight into
+		 * the destination's buffer
+		 */
+		warpPixels(getPackedBGRPixels(image), ((DataBufferByte) destination.getRaster().getDataBuffer()).getData(),
+				image.getWidth(), image.getHeight(), 3, xwarp, ywarp);
+
+		return destination;
+	}
+
+	/**
+	 * Applies a given x and y pixel shift to a matrix, in the same way as
+	 * {@link #applyWarpFunctionToImage(BufferedImage, double[][], double[][], BufferedImage)}
+	 * but without converting to or from an image.
+	 * 
+	 * @param matrix
+	 *            A single or three channel 8 bit matrix to be warped. cannot be
+	 *            null.
+	 * @param xwarp
+	 *            2D x warp the same size as the matrix. Can not be null.
+	 * @param ywarp
+	 *            2D y warp the same size as the matrix. Can not be null.
+	 * @param destination
+	 *            The matrix the warped matrix is written into. It is
+	 *            reallocated if it is not the same size and type as the
+	 *            matrix. Can not be the matrix itself. cannot be null.
+	 * @return The destination, with both of the functions applied to the
+	 *         matrix
+	 */
+	public static Mat applyWarpFunctionToMatrix(@NonNull final Mat matrix, @NonNull final double[][] xwarp,
+			@NonNull final double[][] ywarp, @NonNull final Mat destination)
+	{
+		if (matrix.type() != CvType.CV_8UC1 && matrix.type() != CvType.CV_8UC3)
+		{
+			throw new IllegalArgumentException("Only 8 bit single or three channel matrices can be warped.");
+		}
+
+		if (matrix.width() != xwarp[0].length || matrix.height() != xwarp.length || xwarp.length != ywarp.length
+				|| xwarp[0].length != ywarp[0].length)
+		{
+			throw new IllegalArgumentException("Matrix and warp sizes are not the same. Warp can not be applied. ");
+		}
+
+		if (destination == matrix)
+		{
+			throw new IllegalArgumentException("The destination must be a separate matrix.");
+		}
+
+		int channels = matrix.channels();
+		byte[] sourcePixels = new byte[(int) matrix.total() * channels];
+		byte[] warpedPixels = new byte[sourcePixels.length];
+		matrix.get(0, 0, sourcePixels);
+
+		warpPixels(sourcePixels, warpedPixels, matrix.width(), matrix.height(), channels, xwarp, ywarp);
+
+		destination.create(matrix.rows(), matrix.cols(), matrix.type());
+		destination.put(0, 0, warpedPixels);
+		return destination;
+	}
+
+	/**
+	 * The warp kernel shared by the image and matrix warps. Reads and writes
+	 * the pixel bytes directly, with the rows split across the common fork
+	 * join pool.
+	 * 
+	 * @param sourcePixels
+	 *            The pixels to be warped, row by row.
+	 * @param warpedPixels
+	 *            The array the warped pixels are written into.
+	 * @param width
+	 *            The width of the image.
+	 * @param height
+	 *            The height of the image.
+	 * @param channels
+	 *            The number of bytes of each pixel.
+	 * @param xwarp
+	 *            2D x warp.
+	 * @param ywarp
+	 *            2D y warp.
+	 */
+	private static void warpPixels(final byte[] sourcePixels, final byte[] warpedPixels, final int width,
+			final int height, final int channels, final double[][] xwarp, final double[][] ywarp)
+	{
+		/*
+		 * Pixels with nothing to show are set to the average colour of the
+		 * image. This ensures that if pixels are shifted and there is nothing
+		 * to show, then at least the images average pixel colour is shown as
+		 * opposed to black which is the bufferedImages default colour. This
+		 * helps to keep the image as a (slightly) true representation. Black
+		 * might never occur in the original image at all so there is the
+		 * possibility that large areas of the warped image might not be an
+		 * actual representation if left as the default.
+		 */
+		final byte[] averagePixel = getAveragePixel(sourcePixels, channels);
+
+		/*
+		 * Apply the warp to each row in parallel. Each row only writes to its
+		 * own part of the destination.
+		 */
+		IntStream.range(0, height).parallel().forEach(i ->
+		{
+			double[] xwarpRow = xwarp[i];
+			double[] ywarpRow = ywarp[i];
+			int warpedIndex = i * width * channels;
+
+			for (int j = 0; j < width; j++, warpedIndex += channels)
+			{
+				double shiftedRow = i + xwarpRow[j];
+				double shiftedColumn = j + ywarpRow[j];
+
+				/*
+				 * Ensure we're still reading from a position within the image.
+				 * The first row and column are within the image too.
+				 */
+				if (shiftedRow >= 0 && shiftedColumn >= 0 && (int) shiftedRow < height
+						&& (int) shiftedColumn < width)
+				{
+					int sourceIndex = ((int) shiftedRow * width + (int) shiftedColumn) * channels;
+					System.arraycopy(sourcePixels, sourceIndex, warpedPixels, warpedIndex, channels);
+				} else
+				{
+					System.arraycopy(averagePixel, 0, warpedPixels, warpedIndex, channels);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Ensures that an image and the x and y warps to be applied to it are all
+	 * the same size.
+	 * 
+	 * @param image
+	 *            The image the warps are to be applied to. cannot be null.
+	 * @param xwarp
+	 *            2D x warp. Can not be null.
+	 * @param ywarp
+	 *            2D y warp. Can not be null.
+	 * @throws IllegalArgumentException
+	 *             If the sizes are not all the same.
+	 */
+	static void checkWarpSizes(@NonNull final BufferedImage image, @NonNull final double[][] xwarp,
+			@NonNull final double[][] ywarp)
 	{
 		/*
 		 * Create temporary dimensions for the image, the xwarp and the ywarp
@@ -417,54 +1032,128 @@ public final class ImageManipulator
 		{
 			throw new IllegalArgumentException("Image and warp sizes are not the same. Warp can not be applied. ");
 		}
+	}
+
+	/**
+	 * Checks whether an image's pixels are held as BGR bytes, row after row
+	 * with no gaps, so they can be read and written straight from its buffer.
+	 * 
+	 * @param image
+	 *            The image to be checked. cannot be null.
+	 * @return true if the image's buffer can be used directly.
+	 */
+	private static boolean isPackedBGR(@NonNull final BufferedImage image)
+	{
+		if (image.getType() != BufferedImage.TYPE_3BYTE_BGR)
+		{
+			return false;
+		}
 
 		/*
-		 * Set the warped image as an average of the current image. This ensures
-		 * that if pixels are shifted and there is nothing to show, then at
-		 * least the images average pixel colour is shown as opposed to black
-		 * which is the bufferedImages default colour. This helps to keep the
-		 * image as a (slightly) true representation. Black might never occur in
-		 * the original image at all so there is the possibility that large
-		 * areas of the warped image might not be an actual representation if
-		 * left as the default.
+		 * Sub images share their parent's buffer so have to be ruled out
 		 */
-		BufferedImage warpedImage = createAveragedColouredImageFromImage(image);
+		WritableRaster raster = image.getRaster();
+		return raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+				&& raster.getDataBuffer().getOffset() == 0
+				&& raster.getDataBuffer().getSize() == image.getWidth() * image.getHeight() * 3;
+	}
+
+	/**
+	 * Get an image's pixels as BGR bytes, row by row. The image's own buffer
+	 * is returned if it is already in that form, otherwise the pixels are
+	 * converted a row at a time.
+	 * 
+	 * @param image
+	 *            The image. cannot be null.
+	 * @return The BGR bytes of the image.
+	 */
+	static byte[] getPackedBGRPixels(@NonNull final BufferedImage image)
+	{
+		if (isPackedBGR(image))
+		{
+			return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		}
+
+		int width = image.getWidth();
+		byte[] pixels = new byte[width * image.getHeight() * 3];
+		int[] row = new int[width];
+
+		for (int y = 0; y < image.getHeight(); y++)
+		{
+			image.getRGB(0, y, width, 1, row, 0, width);
+			for (int x = 0, i = y * width * 3; x < width; x++, i += 3)
+			{
+				pixels[i] = (byte) row[x];
+				pixels[i + 1] = (byte) (row[x] >> 8);
+				pixels[i + 2] = (byte) (row[x] >> 16);
+			}
+		}
+		return pixels;
+	}
+
+	/**
+	 * Applies a given x and y pixel shift to a region of a level of a tiled
+	 * image store, in the same way as
+	 * {@link #applyWarpFunctionToImage(BufferedImage, double[][], double[][])}
+	 * but without the whole image on the heap. Only the tiles the shifted
+	 * pixels are read from are paged in.
+	 *
+	 * @param store
+	 *            The store holding the image. cannot be null.
+	 * @param level
+	 *            The level of the store the warp is applied to.
+	 * @param region
+	 *            The region of the level the warp covers. cannot be null.
+	 * @param xwarp
+	 *            2D x warp the size of the region. Can not be null.
+	 * @param ywarp
+	 *            2D y warp the size of the region. Can not be null.
+	 * @return The warped region, the size of the region.
+	 */
+	public static BufferedImage applyWarpFunctionToRegion(@NonNull final TiledImageStore store, final int level,
+			@NonNull final Rectangle region, @NonNull final double[][] xwarp, @NonNull final double[][] ywarp)
+	{
+		Dimension xWarpDim = new Dimension(xwarp[0].length, xwarp.length);
+		Dimension yWarpDim = new Dimension(ywarp[0].length, ywarp.length);
+
+		if (!region.getSize().equals(xWarpDim) || !yWarpDim.equals(xWarpDim))
+		{
+			throw new IllegalArgumentException("Region and warp sizes are not the same. Warp can not be applied. ");
+		}
+
+		int levelHeight = store.getHeight(level);
+		int levelWidth = store.getWidth(level);
 
 		/*
-		 * Convert the image into a 2D array of pixel values
+		 * Fill the warped region with the average colour of the whole level,
+		 * as the whole image version does.
 		 */
-		double[][] array2DofPixelValuesOfImage = new ImageReader(image).getAs2DArray();
+		BufferedImage warpedImage = new BufferedImage(region.width, region.height, BufferedImage.TYPE_3BYTE_BGR);
+		byte[] warpedData = ((DataBufferByte) warpedImage.getRaster().getDataBuffer()).getData();
+		fillPackedBGR(warpedData, store.getAverageRGB(level));
 
 		/*
-		 * Loop through each pixel and apply the warp
+		 * Loop through each pixel of the region and apply the warp. i and j
+		 * are the row and column within the whole level.
 		 */
-		for (int i = 0; i < warpedImage.getHeight(); i++)
+		for (int row = 0; row < region.height; row++)
 		{
+			int i = region.y + row;
 
-			for (int j = 0; j < warpedImage.getWidth(); j++)
+			for (int column = 0; column < region.width; column++)
 			{
-				/*
-				 * Ensure we're still writing to a position within the new image
-				 */
-				if (((i + xwarp[i][j]) > 0) && (j + ywarp[i][j]) > 0
-						&& ((int) (i + xwarp[i][j]) < warpedImage.getHeight())
-						&& ((int) (j + ywarp[i][j]) < warpedImage.getWidth()))
-				{
+				int j = region.x + column;
+				double shiftedRow = i + xwarp[row][column];
+				double shiftedColumn = j + ywarp[row][column];
 
-					/*
-					 * Find the new rgb pixel value for the current i,j position
-					 */
-					int newRGB = (int) array2DofPixelValuesOfImage[(int) (i + xwarp[i][j])][(int) (j + ywarp[i][j])];
-
-					/*
-					 * Create a new color object from the RGB value
-					 */
-					Color c = new Color(newRGB);
-
-					/*
-					 * Set the new pixel at its position within the image.
-					 */
-					warpedImage.setRGB(j, i, c.getRGB());
+				if (shiftedRow >= 0 && shiftedColumn >= 0 && (int) shiftedRow < levelHeight
+						&& (int) shiftedColumn < levelWidth)
+				{
+					int newRGB = store.getRGB(level, (int) shiftedColumn, (int) shiftedRow);
+					int k = (row * region.width + column) * 3;
+					warpedData[k] = (byte) newRGB;
+					warpedData[k + 1] = (byte) (newRGB >> 8);
+					warpedData[k + 2] = (byte) (newRGB >> 16);
 				}
 			}
 		}
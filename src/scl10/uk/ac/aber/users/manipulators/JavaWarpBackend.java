@@ -0,0 +1,39 @@
+package scl10.uk.ac.aber.users.manipulators;
+
+import java.awt.image.BufferedImage;
+
+import lombok.NonNull;
+
+/**
+ * Applies warps in Java with
+ * {@link ImageManipulator#applyWarpFunctionToImage(BufferedImage, double[][], double[][])}.
+ * Shifted positions are truncated to the pixel they fall in and pixels shifted
+ * from outside of the image are the image's average colour.
+ * 
+ * @author Scott Lockett
+ */
+public final class JavaWarpBackend implements WarpBackend
+{
+
+	@Override
+	public BufferedImage applyWarp(@NonNull final BufferedImage image, @NonNull final double[][] xwarp,
+			@NonNull final double[][] ywarp)
+	{
+		return ImageManipulator.applyWarpFunctionToImage(image, xwarp, ywarp);
+	}
+
+	/**
+	 * Does nothing, as nothing is held between warps.
+	 */
+	@Override
+	public void close()
+	{
+
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Java";
+	}
+}
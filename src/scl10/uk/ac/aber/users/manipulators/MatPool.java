@@ -0,0 +1,481 @@
+package scl10.uk.ac.aber.users.manipulators;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * A pool of OpenCV matrices. A matrix holds its values in native memory which
+ * is only freed when it is released, or when the garbage collector gets around
+ * to finalising it, so matrices that are just left behind build up far beyond
+ * the Java heap.
+ * <p>
+ * Matrices are acquired from the pool and handed back once they are finished
+ * with. A matrix handed back is kept for the next matrix of the same shape, up
+ * to a limit on the bytes kept, and released otherwise. The values of a reused
+ * matrix are whatever was last written to it.
+ * <p>
+ * The pool counts the native bytes of the matrices it has handed out and the
+ * matrices it is keeping, so the native memory of a long run can be watched.
+ * Only weak references are kept to the matrices handed out, so one that is
+ * never handed back can still be garbage collected, and its bytes stop being
+ * counted once it has been.
+ *
+ * @author Scott Lockett
+ */
+public final class MatPool
+{
+
+	/**
+	 * The most bytes of matrices the shared pool keeps for reuse, 256MB.
+	 */
+	public static final long DEFAULT_MAX_POOLED_BYTES = 256L * 1024 * 1024;
+
+	/**
+	 * Loads openCV
+	 */
+	static
+	{
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+	}
+
+	/**
+	 * The pool used by the manipulators for their temporary matrices
+	 */
+	private static final MatPool SHARED = new MatPool(DEFAULT_MAX_POOLED_BYTES);
+
+	/**
+	 * The most bytes of matrices kept for reuse
+	 */
+	@Getter
+	private final long maxPooledBytes;
+
+	/**
+	 * The matrices kept for reuse, by their shape
+	 */
+	private final Map<Shape, Deque<Mat>> pooled = new HashMap<>();
+
+	/**
+	 * The matrices handed out, by the address of their native matrix
+	 */
+	private final Map<Long, Acquired> acquired = new HashMap<>();
+
+	/**
+	 * The matrices handed out which were garbage collected without being
+	 * handed back
+	 */
+	private final ReferenceQueue<Mat> collected = new ReferenceQueue<>();
+
+	/**
+	 * The bytes of the matrices handed out and not yet handed back
+	 */
+	private long liveBytes;
+
+	/**
+	 * The most bytes handed out at any one time
+	 */
+	private long peakLiveBytes;
+
+	/**
+	 * The bytes of the matrices kept for reuse
+	 */
+	private long pooledBytes;
+
+	/**
+	 * The number of matrices allocated by the pool
+	 */
+	private long allocations;
+
+	/**
+	 * The number of matrices handed out again rather than allocated
+	 */
+	private long reuses;
+
+	/**
+	 * Creates a new, empty pool.
+	 *
+	 * @param maxPooledBytes
+	 *            The most bytes of matrices kept for reuse. 0 keeps none, so
+	 *            every matrix is released as soon as it's handed back.
+	 */
+	public MatPool(final long maxPooledBytes)
+	{
+		if (maxPooledBytes < 0)
+		{
+			throw new IllegalArgumentException("The pooled bytes can not be negative. " + maxPooledBytes);
+		}
+
+		this.maxPooledBytes = maxPooledBytes;
+	}
+
+	/**
+	 * Get the pool shared by the manipulators for their temporary matrices.
+	 *
+	 * @return The shared pool.
+	 */
+	public static MatPool getShared()
+	{
+		return SHARED;
+	}
+
+	/**
+	 * Get a matrix of a given shape, reusing one handed back earlier if there
+	 * is one. The matrix must be handed back with {@link #release(Mat)}.
+	 *
+	 * @param rows
+	 *            The number of rows. Must be greater than 0.
+	 * @param cols
+	 *            The number of columns. Must be greater than 0.
+	 * @param type
+	 *            The OpenCV type, e.g. CvType.CV_8UC3.
+	 * @return The matrix.
+	 */
+	public synchronized Mat acquire(final int rows, final int cols, final int type)
+	{
+		if (rows <= 0 || cols <= 0)
+		{
+			throw new IllegalArgumentException("A matrix must have at least one row and column. " + rows + " x "
+					+ cols);
+		}
+
+		forgetCollected();
+
+		Shape shape = new Shape(rows, cols, type);
+		Deque<Mat> matrices = pooled.get(shape);
+
+		Mat matrix;
+		if (matrices != null && !matrices.isEmpty())
+		{
+			matrix = matrices.pop();
+			pooledBytes -= shape.bytes;
+			reuses++;
+		} else
+		{
+			matrix = new Mat(rows, cols, type);
+			allocations++;
+		}
+
+		/*
+		 * A matrix at the same address has been collected and its address
+		 * reused, before its reference was queued
+		 */
+		Acquired previous = acquired.put(matrix.nativeObj, new Acquired(matrix, shape, collected));
+		if (previous != null)
+		{
+			liveBytes -= previous.shape.bytes;
+		}
+
+		liveBytes += shape.bytes;
+		peakLiveBytes = Math.max(peakLiveBytes, liveBytes);
+		return matrix;
+	}
+
+	/**
+	 * Hands a matrix back to the pool. It is kept for reuse if there is room
+	 * and its shape has not been changed, otherwise it's released. The matrix
+	 * must not be used after it's handed back.
+	 *
+	 * @param matrix
+	 *            A matrix acquired from this pool. cannot be null.
+	 */
+	public synchronized void release(@NonNull final Mat matrix)
+	{
+		forgetCollected();
+
+		Acquired entry = acquired.get(matrix.nativeObj);
+		if (entry == null || entry.get() != matrix)
+		{
+			throw new IllegalArgumentException("The matrix was not acquired from this pool.");
+		}
+
+		acquired.remove(matrix.nativeObj);
+		entry.clear();
+
+		Shape shape = entry.shape;
+		liveBytes -= shape.bytes;
+
+		boolean unchanged = matrix.rows() == shape.rows && matrix.cols() == shape.cols
+				&& matrix.type() == shape.type && matrix.isContinuous();
+
+		if (unchanged && pooledBytes + shape.bytes <= maxPooledBytes)
+		{
+			pooled.computeIfAbsent(shape, key -> new ArrayDeque<>()).push(matrix);
+			pooledBytes += shape.bytes;
+		} else
+		{
+			matrix.release();
+		}
+	}
+
+	/**
+	 * Releases every matrix kept for reuse. Matrices handed out are not
+	 * affected.
+	 */
+	public synchronized void clear()
+	{
+		for (Deque<Mat> matrices : pooled.values())
+		{
+			for (Mat matrix : matrices)
+			{
+				matrix.release();
+			}
+		}
+		pooled.clear();
+		pooledBytes = 0;
+	}
+
+	/**
+	 * Opens a scope which hands back every matrix acquired through it when it
+	 * is closed, for use with try-with-resources.
+	 *
+	 * @return The new scope.
+	 */
+	public Scope openScope()
+	{
+		return new Scope();
+	}
+
+	/**
+	 * Get the native bytes of the matrices handed out and not yet handed back.
+	 *
+	 * @return The live bytes.
+	 */
+	public synchronized long getLiveBytes()
+	{
+		forgetCollected();
+		return liveBytes;
+	}
+
+	/**
+	 * Get the most native bytes handed out at any one time.
+	 *
+	 * @return The peak live bytes.
+	 */
+	public synchronized long getPeakLiveBytes()
+	{
+		return peakLiveBytes;
+	}
+
+	/**
+	 * Get the native bytes of the matrices kept for reuse.
+	 *
+	 * @return The pooled bytes.
+	 */
+	public synchronized long getPooledBytes()
+	{
+		return pooledBytes;
+	}
+
+	/**
+	 * Get the number of matrices the pool has allocated.
+	 *
+	 * @return The number of allocations.
+	 */
+	public synchronized long getAllocations()
+	{
+		return allocations;
+	}
+
+	/**
+	 * Get the number of times a matrix was reused rather than allocated.
+	 *
+	 * @return The number of reuses.
+	 */
+	public synchronized long getReuses()
+	{
+		return reuses;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		forgetCollected();
+		return String.format("%.1fMB live (%.1fMB peak), %.1fMB pooled, %d allocated, %d reused",
+				liveBytes / 1048576.0D, peakLiveBytes / 1048576.0D, pooledBytes / 1048576.0D, allocations, reuses);
+	}
+
+	/**
+	 * Stops counting the matrices which were garbage collected without being
+	 * handed back.
+	 */
+	private void forgetCollected()
+	{
+		Reference<? extends Mat> reference;
+		while ((reference = collected.poll()) != null)
+		{
+			Acquired entry = (Acquired) reference;
+
+			/*
+			 * The address may already belong to a newer matrix
+			 */
+			if (acquired.remove(entry.address, entry))
+			{
+				liveBytes -= entry.shape.bytes;
+			}
+		}
+	}
+
+	/**
+	 * Matrices acquired within a block of code, which are all handed back to
+	 * the pool when the block is closed.
+	 */
+	public final class Scope implements AutoCloseable
+	{
+
+		/**
+		 * The matrices acquired through this scope
+		 */
+		private final List<Mat> matrices = new ArrayList<>();
+
+		/**
+		 * Creates a new scope of the enclosing pool.
+		 */
+		private Scope()
+		{
+
+		}
+
+		/**
+		 * Get a matrix of a given shape from the pool, which is handed back when
+		 * the scope is closed. See {@link MatPool#acquire(int, int, int)}.
+		 *
+		 * @param rows
+		 *            The number of rows. Must be greater than 0.
+		 * @param cols
+		 *            The number of columns. Must be greater than 0.
+		 * @param type
+		 *            The OpenCV type, e.g. CvType.CV_8UC3.
+		 * @return The matrix.
+		 */
+		public Mat acquire(final int rows, final int cols, final int type)
+		{
+			Mat matrix = MatPool.this.acquire(rows, cols, type);
+			matrices.add(matrix);
+			return matrix;
+		}
+
+		/**
+		 * Hands every matrix acquired through this scope back to the pool.
+		 */
+		@Override
+		public void close()
+		{
+			for (Mat matrix : matrices)
+			{
+				release(matrix);
+			}
+			matrices.clear();
+		}
+	}
+
+	/**
+	 * A weak reference to a matrix handed out, with the shape it was handed out
+	 * with.
+	 */
+	private static final class Acquired extends WeakReference<Mat>
+	{
+
+		/**
+		 * The address of the native matrix
+		 */
+		private final long address;
+
+		/**
+		 * The shape the matrix was handed out with
+		 */
+		private final Shape shape;
+
+		/**
+		 * Creates a new reference to a matrix handed out.
+		 *
+		 * @param matrix
+		 *            The matrix.
+		 * @param shape
+		 *            The shape it was handed out with.
+		 * @param queue
+		 *            The queue the reference is put on once the matrix is
+		 *            collected.
+		 */
+		Acquired(final Mat matrix, final Shape shape, final ReferenceQueue<Mat> queue)
+		{
+			super(matrix, queue);
+			this.address = matrix.nativeObj;
+			this.shape = shape;
+		}
+	}
+
+	/**
+	 * The rows, columns and type of a matrix, and the bytes it takes up.
+	 */
+	private static final class Shape
+	{
+
+		/**
+		 * The number of rows
+		 */
+		private final int rows;
+
+		/**
+		 * The number of columns
+		 */
+		private final int cols;
+
+		/**
+		 * The OpenCV type
+		 */
+		private final int type;
+
+		/**
+		 * The native bytes of a matrix of this shape
+		 */
+		private final long bytes;
+
+		/**
+		 * Creates a new shape.
+		 *
+		 * @param rows
+		 *            The number of rows.
+		 * @param cols
+		 *            The number of columns.
+		 * @param type
+		 *            The OpenCV type.
+		 */
+		Shape(final int rows, final int cols, final int type)
+		{
+			this.rows = rows;
+			this.cols = cols;
+			this.type = type;
+			this.bytes = (long) rows * cols * CvType.ELEM_SIZE(type);
+		}
+
+		@Override
+		public boolean equals(final Object other)
+		{
+			if (!(other instanceof Shape))
+			{
+				return false;
+			}
+			Shape shape = (Shape) other;
+			return rows == shape.rows && cols == shape.cols && type == shape.type;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (rows * 31 + cols) * 31 + type;
+		}
+	}
+}
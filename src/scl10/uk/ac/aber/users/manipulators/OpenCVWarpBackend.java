@@ -0,0 +1,280 @@
+package scl10.uk.ac.aber.users.manipulators;
+
+import java.awt.image.BufferedImage;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Applies warps natively with OpenCV's remap. The warps are converted into
+ * the float maps remap needs once, and the maps are reused for as long as the
+ * same warps are applied, for example to both images of a pair or to each
+ * channel. The warps are recognised by their arrays, so warps must not be
+ * changed in place between calls. The maps are borrowed from the shared
+ * {@link MatPool} until the backend is closed.
+ * <p>
+ * Unlike the {@link JavaWarpBackend} the shifted positions can be
+ * interpolated, and the pixels shifted from outside of the image can either
+ * be the image's average colour or a reflection of the image.
+ * <p>
+ * With {@link Interpolation#NEAREST} and {@link Border#CONSTANT} the warped
+ * image is the same as the {@link JavaWarpBackend}'s for whole pixel shifts.
+ * Fractional shifts can differ by a pixel, as remap rounds a position to the
+ * nearest pixel where the Java backend truncates it to the pixel it falls in.
+ * A position just above the first row or left of the first column, such as
+ * -0.4, is rounded into the image by remap but is outside the image for the
+ * Java backend.
+ *
+ * @author Scott Lockett
+ */
+public final class OpenCVWarpBackend implements WarpBackend
+{
+
+	/**
+	 * How a shifted position between pixels is turned into a colour.
+	 */
+	public enum Interpolation
+	{
+		/**
+		 * The colour of the nearest pixel
+		 */
+		NEAREST(Imgproc.INTER_NEAREST),
+
+		/**
+		 * Bilinear interpolation of the 2 x 2 nearest pixels
+		 */
+		LINEAR(Imgproc.INTER_LINEAR),
+
+		/**
+		 * Bicubic interpolation of the 4 x 4 nearest pixels
+		 */
+		CUBIC(Imgproc.INTER_CUBIC);
+
+		/**
+		 * The OpenCV interpolation flag
+		 */
+		@Getter
+		private final int flag;
+
+		/**
+		 * Creates a new interpolation.
+		 *
+		 * @param flag
+		 *            The OpenCV interpolation flag.
+		 */
+		Interpolation(final int flag)
+		{
+			this.flag = flag;
+		}
+	}
+
+	/**
+	 * What colour is used for the pixels shifted from outside of the image.
+	 */
+	public enum Border
+	{
+		/**
+		 * The average colour of the image, the same as the
+		 * {@link JavaWarpBackend}
+		 */
+		CONSTANT(Core.BORDER_CONSTANT),
+
+		/**
+		 * A reflection of the image at its edges
+		 */
+		REFLECT(Core.BORDER_REFLECT);
+
+		/**
+		 * The OpenCV border flag
+		 */
+		@Getter
+		private final int flag;
+
+		/**
+		 * Creates a new border.
+		 *
+		 * @param flag
+		 *            The OpenCV border flag.
+		 */
+		Border(final int flag)
+		{
+			this.flag = flag;
+		}
+	}
+
+	/**
+	 * Loads openCV
+	 */
+	static
+	{
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+	}
+
+	/**
+	 * How shifted positions are interpolated
+	 */
+	@Getter
+	private final Interpolation interpolation;
+
+	/**
+	 * What colour is used for pixels shifted from outside of the image
+	 */
+	@Getter
+	private final Border border;
+
+	/**
+	 * The x warp the current maps were made from
+	 */
+	private double[][] mappedXWarp;
+
+	/**
+	 * The y warp the current maps were made from
+	 */
+	private double[][] mappedYWarp;
+
+	/**
+	 * The column each pixel is taken from
+	 */
+	private Mat mapX;
+
+	/**
+	 * The row each pixel is taken from
+	 */
+	private Mat mapY;
+
+	/**
+	 * Creates a new OpenCV warp backend.
+	 *
+	 * @param interpolation
+	 *            How shifted positions are interpolated. cannot be null.
+	 * @param border
+	 *            What colour is used for pixels shifted from outside of the
+	 *            image. cannot be null.
+	 */
+	public OpenCVWarpBackend(@NonNull final Interpolation interpolation, @NonNull final Border border)
+	{
+		this.interpolation = interpolation;
+		this.border = border;
+	}
+
+	@Override
+	public synchronized BufferedImage applyWarp(@NonNull final BufferedImage image, @NonNull final double[][] xwarp,
+			@NonNull final double[][] ywarp)
+	{
+		ImageManipulator.checkWarpSizes(image, xwarp, ywarp);
+
+		/*
+		 * Only convert the warps when they are not the ones already mapped
+		 */
+		if (xwarp != mappedXWarp || ywarp != mappedYWarp)
+		{
+			createMaps(xwarp, ywarp);
+		}
+
+		try (MatPool.Scope scope = MatPool.getShared().openScope())
+		{
+			Mat source = scope.acquire(image.getHeight(), image.getWidth(), CvType.CV_8UC3);
+			source.put(0, 0, ImageManipulator.getPackedBGRPixels(image));
+			Mat destination = scope.acquire(image.getHeight(), image.getWidth(), CvType.CV_8UC3);
+
+			/*
+			 * The constant border is the average colour, truncated the same
+			 * way as the Java backend's average.
+			 */
+			Scalar borderValue = new Scalar(0);
+			if (border == Border.CONSTANT)
+			{
+				Scalar mean = Core.mean(source);
+				borderValue = new Scalar(Math.floor(mean.val[0]), Math.floor(mean.val[1]),
+						Math.floor(mean.val[2]));
+			}
+
+			Imgproc.remap(source, destination, mapX, mapY, interpolation.getFlag(), border.getFlag(), borderValue);
+
+			return ImageManipulator.convertMatrixToImage(destination);
+		}
+	}
+
+	/**
+	 * Converts the warps into remap's maps. Pixel (i, j) of the warped image
+	 * is taken from row i + xwarp[i][j] and column j + ywarp[i][j].
+	 *
+	 * @param xwarp
+	 *            2D x warp.
+	 * @param ywarp
+	 *            2D y warp.
+	 */
+	private void createMaps(final double[][] xwarp, final double[][] ywarp)
+	{
+		int height = xwarp.length;
+		int width = xwarp[0].length;
+
+		float[] columns = new float[height * width];
+		float[] rows = new float[height * width];
+
+		for (int i = 0; i < height; i++)
+		{
+			for (int j = 0; j < width; j++)
+			{
+				columns[i * width + j] = (float) (j + ywarp[i][j]);
+				rows[i * width + j] = (float) (i + xwarp[i][j]);
+			}
+		}
+
+		/*
+		 * Hand back the maps of the previous warps. They're reused if the new
+		 * warps are the same size.
+		 */
+		releaseMaps();
+
+		MatPool pool = MatPool.getShared();
+		mapX = pool.acquire(height, width, CvType.CV_32FC1);
+		mapY = pool.acquire(height, width, CvType.CV_32FC1);
+		mapX.put(0, 0, columns);
+		mapY.put(0, 0, rows);
+
+		mappedXWarp = xwarp;
+		mappedYWarp = ywarp;
+	}
+
+	/**
+	 * Hands the maps of the last warps back to the shared {@link MatPool}. The
+	 * maps are made again if the backend is used after it's closed.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		releaseMaps();
+	}
+
+	/**
+	 * Hands the current maps back to the shared {@link MatPool} and forgets the
+	 * warps they were made from.
+	 */
+	private void releaseMaps()
+	{
+		if (mapX != null)
+		{
+			MatPool pool = MatPool.getShared();
+			pool.release(mapX);
+			pool.release(mapY);
+			mapX = null;
+			mapY = null;
+		}
+
+		mappedXWarp = null;
+		mappedYWarp = null;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "OpenCV " + interpolation + " " + border;
+	}
+}
@@ -3,26 +3,24 @@ package scl10.uk.ac.aber.users.manipulators;
 import java.awt.Dimension;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
-import java.util.HashMap;
+import java.awt.image.DataBufferByte;
 
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import lombok.Getter;
 import lombok.NonNull;
 
 /**
  * A class used to represent an image from which patches can be derived from.
- * This class creates a reflected image on all sides of the original image which
- * can be used to derive patches from. By reflecting at all sides we ensure that
+ * The image is treated as if it were reflected on all sides, so that
  * ArrayOutOfBoundsException wont be thrown if the patch goes off the image's
  * area.
  * <p>
- * <strong> Possible improvement </strong>
- * <p>
- * 
- * Instead of creating an image 3 times as large image and then adding the
- * reflected image to it, if the pixels go into the minus then (x position * -1)
- * or (y position * -1) which will also return the reflected pixel.
- * 
- * e.g. reference position (-5, -5) return pixel 5, 5 which is also a reflection
- * of the original image.
+ * No reflected copy of the image is made. When a patch goes off the image, the
+ * position is mirrored back onto the image as the patch is copied, e.g.
+ * position (-5, -5) returns pixel (4, 4), which is the same pixel a reflected
+ * copy would hold there.
  * 
  * @author Scott Lockett
  *
@@ -30,301 +28,364 @@ import lombok.NonNull;
 public final class PatchedImage
 {
 	/**
-	 * The image from where the patches will be taken from.
+	 * The width of the image the patches will be taken from.
 	 */
-	private final BufferedImage originalImage;
+	@Getter
+	private final int originalWidth;
 
 	/**
-	 * A reflected version of the original image from which the patches will be
-	 * taken from. A reflected Image is used to ensure that if a patch is taken
-	 * from a central pixel and the patch is formed from pixels that are out of
-	 * bounds, then the reflected sides are used.
-	 */
-	private final BufferedImage reflectedImage;
-
-	/*
-	 * Create some string literals as the position we're going to be writing any
-	 * reflected images too.
+	 * The height of the image the patches will be taken from.
 	 */
+	@Getter
+	private final int originalHeight;
 
 	/**
-	 * String literal for "original"
+	 * The number of bytes of each pixel. 1 for greyscale images and 3 for BGR
+	 * images.
 	 */
-	private static final String ORIGINAL = "original";
+	@Getter
+	private final int channels;
 
 	/**
-	 * String literal for "top"
+	 * The pixels of the original image, row by row. Shared with the original
+	 * image where it's already held this way.
 	 */
-	private static final String TOP = "top";
+	private final byte[] pixels;
 
 	/**
-	 * String literal for "bottom"
+	 * The luminance of the original image, row by row. Only worked out the
+	 * first time patches are flattened.
 	 */
-	private static final String BOTTOM = "bottom";
+	private volatile float[] luminance;
 
 	/**
-	 * String literal for "left"
+	 * Creates a new patched image from which patches can be taken from.
+	 * 
+	 * @param image
+	 *            The image from which patches are going to be drawn from. Can
+	 *            not be null.
 	 */
-	private static final String LEFT = "left";
+	public PatchedImage(@NonNull final BufferedImage image)
+	{
+		originalWidth = image.getWidth();
+		originalHeight = image.getHeight();
 
-	/**
-	 * String literal for "right"
-	 */
-	private static final String RIGHT = "right";
+		if (ImageManipulator.isPackedGrey(image))
+		{
+			channels = 1;
+			pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		} else
+		{
+			channels = 3;
+			pixels = ImageManipulator.getPackedBGRPixels(image);
+		}
+	}
 
 	/**
-	 * String literal for "topRight"
+	 * Creates a new patched image from a matrix, such as a level of an image
+	 * pyramid, without converting the matrix to an image first.
+	 * 
+	 * @param matrix
+	 *            The matrix from which patches are going to be drawn from. Must
+	 *            be either CV_8UC1 or CV_8UC3. Can not be null.
 	 */
-	private static final String TOPRIGHT = "topRight";
+	public PatchedImage(@NonNull final Mat matrix)
+	{
+		if (matrix.type() != CvType.CV_8UC1 && matrix.type() != CvType.CV_8UC3)
+		{
+			throw new IllegalArgumentException("Patches can only be taken from 8 bit grey or BGR matrices.");
+		}
 
-	/**
-	 * String literal for "topLeft"
-	 */
-	private static final String TOPLEFT = "topLeft";
+		originalWidth = matrix.width();
+		originalHeight = matrix.height();
+		channels = matrix.channels();
 
-	/**
-	 * String literal for "bottomLeft"
-	 */
-	private static final String BOTTOMLEFT = "bottmLeft";
+		pixels = new byte[originalWidth * originalHeight * channels];
+		matrix.get(0, 0, pixels);
+	}
 
 	/**
-	 * String literal for "bottomRight"
+	 * Mirrors a position back onto the image, repeating the edge pixels the
+	 * same way a flipped copy placed next to the image would. e.g. -1 becomes
+	 * 0 and length becomes length - 1.
+	 * 
+	 * @param index
+	 *            The position, which may be outside of the image.
+	 * @param length
+	 *            The width or height of the image.
+	 * @return The mirrored position, between 0 and length - 1.
 	 */
-	private static final String BOTTOMRIGHT = "bottomRight";
+	public static int mirror(final int index, final int length)
+	{
+		int mirrored = index;
+		while (mirrored < 0 || mirrored >= length)
+		{
+			mirrored = mirrored < 0 ? -1 - mirrored : 2 * length - 1 - mirrored;
+		}
+		return mirrored;
+	}
 
 	/**
-	 * A concatenation of all of the positions.
+	 * Create a patch of a given size from a given central pixel. If the patch
+	 * goes out of the images bounds, then the out of bounds area will be
+	 * replaced with a reflection from the side of the image where the out of
+	 * bounds has occurred. None of the parameter can be null.
+	 * 
+	 * @param centralPixel
+	 *            The central pixel from where the patch will be created from
+	 * @param patchSize
+	 *            The size of the patch
+	 * @return A patch from the original image at the given size. If the patch
+	 *         goes out of the images bounds then the corners are reflected.
 	 */
-	private static final String[] ALL_POSITIONS = new String[] { ORIGINAL, TOP, BOTTOM, LEFT, RIGHT, TOPRIGHT, TOPLEFT,
-			BOTTOMLEFT, BOTTOMRIGHT };
+	public BufferedImage getImagePatchFromCentralPixel(@NonNull final Point centralPixel,
+			@NonNull final Dimension patchSize)
+	{
+		BufferedImage patch = new BufferedImage(patchSize.width, patchSize.height,
+				channels == 1 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR);
+
+		return getImagePatchFromCentralPixel(centralPixel, patchSize, patch);
+	}
 
 	/**
-	 * Creates a new patched image from which patches can be taken from.
+	 * Copies a patch of a given size from a given central pixel into an
+	 * existing image, so one image can be reused for every patch. See
+	 * {@link #getImagePatchFromCentralPixel(Point, Dimension)}.
 	 * 
-	 * @param image
-	 *            The image from which patches are going to be drawn from. Can
-	 *            not be null.
+	 * @param centralPixel
+	 *            The central pixel from where the patch will be created from
+	 * @param patchSize
+	 *            The size of the patch
+	 * @param destination
+	 *            The image the patch is copied into. Must be the patch's size
+	 *            and either TYPE_BYTE_GRAY for greyscale images or
+	 *            TYPE_3BYTE_BGR for colour images.
+	 * @return The destination image holding the patch.
 	 */
-	public PatchedImage(@NonNull final BufferedImage image)
+	public BufferedImage getImagePatchFromCentralPixel(@NonNull final Point centralPixel,
+			@NonNull final Dimension patchSize, @NonNull final BufferedImage destination)
 	{
-		/*
-		 * Save the original image
-		 */
-		originalImage = image;
+		int destinationType = channels == 1 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR;
+		if (destination.getType() != destinationType || destination.getWidth() != patchSize.width
+				|| destination.getHeight() != patchSize.height
+				|| destination.getRaster().getDataBuffer().getSize() != patchSize.width * patchSize.height * channels)
+		{
+			throw new IllegalArgumentException("The destination must be a whole image of the patch's size and type.");
+		}
 
-		/*
-		 * Generate the reflected image
-		 */
-		reflectedImage = reflectImage(originalImage);
+		copyPatchFromCentralPixel(centralPixel.x, centralPixel.y, patchSize.width, patchSize.height,
+				((DataBufferByte) destination.getRaster().getDataBuffer()).getData(), 0);
 
+		return destination;
 	}
 
 	/**
-	 * Creates a reflected image from all sides of the original image. By
-	 * reflecting all of the sides of the image this ensure that if a patch at a
-	 * central pixel is required and the patches start position is off image's
-	 * range, the values are still associated to the image (as opposed to just
-	 * setting it all to black) and will not throw any out of bounds exceptions.
+	 * Copies the pixels of a patch of a given size from a given central pixel
+	 * into a buffer, row by row, with {@link #getChannels()} bytes per pixel.
+	 * If the patch goes out of the images bounds, then the out of bounds area
+	 * is mirrored back onto the image.
 	 * 
-	 * @param imageToReflect
-	 *            The image which is going to be reflected. cannot be null.
-	 * @return An image 3 times as large which holds a reflected version of the
-	 *         original image from all sides.
+	 * @param centralX
+	 *            The column of the central pixel, between 0 and the width.
+	 * @param centralY
+	 *            The row of the central pixel, between 0 and the height.
+	 * @param patchWidth
+	 *            The width of the patch. Must be at least 2.
+	 * @param patchHeight
+	 *            The height of the patch. Must be at least 2.
+	 * @param buffer
+	 *            The buffer the patch is copied into. Can not be null.
+	 * @param offset
+	 *            Where in the buffer the patch starts.
 	 */
-	private BufferedImage reflectImage(@NonNull final BufferedImage imageToReflect)
+	public void copyPatchFromCentralPixel(final int centralX, final int centralY, final int patchWidth,
+			final int patchHeight, @NonNull final byte[] buffer, final int offset)
 	{
 		/*
-		 * Create a new bufferedImage that is three times larger than the
-		 * original image to account for the accumulated mirrored images that
-		 * will be added.
-		 */
-		BufferedImage largerReflectedImage = new BufferedImage(originalImage.getWidth() * 3,
-				originalImage.getHeight() * 3, BufferedImage.TYPE_3BYTE_BGR);
-
-		/*
-		 * Create a hash map in order to reference the position of the image as
-		 * the key and hold the reflected image as the value.
-		 */
-		HashMap<String, BufferedImage> reflectedImages = new HashMap<>();
-
-		/*
-		 * Create a hash map in order to reference the offset where the
-		 * reflected images are going to be drawn. The position again the key
-		 * and the offset is the value.
-		 */
-		HashMap<String, Integer[]> offsets = new HashMap<>();
-
-		/*
-		 * The image that needs reflecting's width and height
-		 */
-		int width = imageToReflect.getWidth();
-		int height = imageToReflect.getHeight();
-
-		/*
-		 * Create an integer array with the offset position between the
-		 * quadrants of the larger image and add them to a hash map. The key is
-		 * their position in the image, and the value is the x and y offset.
-		 */
-		Integer[] originalOffset = new Integer[] { width, height };
-
-		Integer[] topOffset = new Integer[] { width, 0 };
-		Integer[] bottomOffset = new Integer[] { width, height * 2 };
-		Integer[] leftOffset = new Integer[] { 0, height };
-		Integer[] rightOffset = new Integer[] { width * 2, height };
-
-		Integer[] topRightOffset = new Integer[] { width * 2, 0 };
-		Integer[] bottomLeftOffset = new Integer[] { 0, height * 2 };
-		Integer[] topLeftOffset = new Integer[] { 0, 0 };
-		Integer[] bottomRightOffset = new Integer[] { width * 2, height * 2 };
-
-		offsets.put(ORIGINAL, originalOffset);
-
-		offsets.put(TOP, topOffset);
-		offsets.put(BOTTOM, bottomOffset);
-		offsets.put(LEFT, leftOffset);
-		offsets.put(RIGHT, rightOffset);
-
-		offsets.put(TOPLEFT, topLeftOffset);
-		offsets.put(TOPRIGHT, topRightOffset);
-		offsets.put(BOTTOMLEFT, bottomLeftOffset);
-		offsets.put(BOTTOMRIGHT, bottomRightOffset);
-
-		/*
-		 * Add the reflected images to a hash map. Using their position as the
-		 * key and the reflected image as the value.
+		 * Ensure that we're keeping to a position within the original image's
+		 * co-ordinate space, as really the patches shouldn't be aware that
+		 * there is a reflection happening.
 		 */
-		reflectedImages.put(ORIGINAL, originalImage);
-		reflectedImages.put(RIGHT, ImageManipulator.flipImage(originalImage, 1));
-		reflectedImages.put(LEFT, ImageManipulator.flipImage(originalImage, 1));
-		reflectedImages.put(TOP, ImageManipulator.flipImage(originalImage, 0));
-		reflectedImages.put(BOTTOM, ImageManipulator.flipImage(originalImage, 0));
-
-		reflectedImages.put(TOPLEFT, ImageManipulator.flipImage(reflectedImages.get(TOP), 1));
-		reflectedImages.put(TOPRIGHT, ImageManipulator.flipImage(reflectedImages.get(TOP), 1));
-		reflectedImages.put(BOTTOMRIGHT, ImageManipulator.flipImage(reflectedImages.get(BOTTOM), 1));
-		reflectedImages.put(BOTTOMLEFT, ImageManipulator.flipImage(reflectedImages.get(BOTTOM), 1));
+		if (centralX > originalWidth || centralX < 0 || centralY > originalHeight || centralY < 0)
+		{
+			throw new ArrayIndexOutOfBoundsException("Can not reference " + centralX + ", " + centralY);
+		}
 
 		/*
-		 * The offset for each position
+		 * You can't create a patch that's 0 pixels in height or width so check
+		 * for this.
 		 */
-		Integer[] offset;
+		if (patchHeight <= 1 || patchWidth <= 1)
+		{
+			throw new IllegalArgumentException("The patch must be at least 2 pixels by 2 pixels!");
+		}
 
 		/*
-		 * The image for each position
+		 * As we're working off a central pixel move back by half of the
+		 * patch's width and height to find the top left corner.
 		 */
-		BufferedImage reflection;
+		int startX = centralX - (int) Math.round(patchWidth / 2.0D);
+		int startY = centralY - (int) Math.round(patchHeight / 2.0D);
 
-		/*
-		 * For each position, get the image, get the offset and draw the
-		 * reflection into the larger reflected image.
-		 */
-		for (String position : ALL_POSITIONS)
+		int position = offset;
+		for (int row = 0; row < patchHeight; row++)
 		{
-			reflection = reflectedImages.get(position);
-			offset = offsets.get(position);
-			drawSubImageintoImage(largerReflectedImage, reflection, offset);
-		}
+			int rowStart = mirror(startY + row, originalHeight) * originalWidth;
 
-		return largerReflectedImage;
+			for (int column = 0; column < patchWidth; column++)
+			{
+				int source = (rowStart + mirror(startX + column, originalWidth)) * channels;
+				for (int channel = 0; channel < channels; channel++)
+				{
+					buffer[position++] = pixels[source + channel];
+				}
+			}
+		}
 	}
 
 	/**
-	 * Writes a smaller image into a larger image at a given x y offset from the
-	 * original images x, y. None of the parameter can be null.
+	 * Get the luminance of the original image, working it out the first time
+	 * it's asked for.
 	 * 
-	 * @param superImage
-	 *            The larger image which is going to have the smaller image
-	 *            written into.
-	 * @param subImage
-	 *            The smaller image which is going to be written into the larger
-	 *            image.
-	 * @param offset
-	 *            The offset where the start of the image is going to be drawn
-	 *            from.
-	 * @return The superImage with the subImage written into at the position the
-	 *         offset indicated.
+	 * @return The luminance of each pixel, row by row.
 	 */
-	private BufferedImage drawSubImageintoImage(@NonNull final BufferedImage superImage,
-			@NonNull final BufferedImage subImage, @NonNull final Integer[] offset)
+	private float[] getLuminance()
 	{
-		/*
-		 * Loop over the width and height of the image to be drawn
-		 */
-		for (int i = 0; i < subImage.getWidth(); i++)
+		float[] values = luminance;
+		if (values == null)
 		{
-			for (int j = 0; j < subImage.getHeight(); j++)
-			{
-				/*
-				 * Write the reflected image into its designated area by of
-				 * offset
-				 */
-				superImage.setRGB(i + offset[0], j + offset[1], subImage.getRGB(i, j));
-			}
+			values = ImageManipulator.convertToLuminance(pixels, originalWidth, originalHeight, channels);
+			luminance = values;
 		}
+		return values;
+	}
 
-		return superImage;
+	/**
+	 * Get the number of values in each row of a patch matrix, a flattened
+	 * source patch followed by a flattened target patch.
+	 * 
+	 * @param patchSize
+	 *            The width and height of the patches.
+	 * @return The length of each row.
+	 */
+	public static int getPatchMatrixRowLength(final int patchSize)
+	{
+		return patchSize * patchSize * 2;
 	}
 
 	/**
-	 * Create a patch of a given size from a given central pixel. If the patch
-	 * goes out of the images bounds, then the out of bounds area will be
-	 * replaced with a reflection from the side of the image where the out of
-	 * bounds has occurred. None of the parameter can be null.
+	 * Flattens the patches around every pixel of a source and target image
+	 * into a single matrix (im2col). See
+	 * {@link #fillPatchMatrix(PatchedImage, PatchedImage, int, int, int, double[])}.
 	 * 
-	 * @param centralPixel
-	 *            The central pixel from where the patch will be created from
+	 * @param source
+	 *            The source image. cannot be null.
+	 * @param target
+	 *            The target image, the same size as the source. cannot be
+	 *            null.
 	 * @param patchSize
-	 *            The size of the patch
-	 * @return A patch from the original image at the given size. If the patch
-	 *         goes out of the images bounds then the corners are reflected.
+	 *            The width and height of the patches. Must be at least 2.
+	 * @return The matrix, with a row for every pixel.
 	 */
-	public BufferedImage getImagePatchFromCentralPixel(@NonNull final Point centralPixel,
-			@NonNull final Dimension patchSize)
+	public static double[] createPatchMatrix(@NonNull final PatchedImage source, @NonNull final PatchedImage target,
+			final int patchSize)
 	{
-		/*
-		 * Ensure that we're keeping to a position within the original image's
-		 * co-ordinate space, as really the patches shouldn't be aware that
-		 * there is a reflection happening or that the image we're getting the
-		 * patch from is larger than the original image.
-		 */
-		if (centralPixel.getX() > originalImage.getWidth() || centralPixel.getX() < 0)
+		int pixelCount = source.originalWidth * source.originalHeight;
+		double[] matrix = new double[pixelCount * getPatchMatrixRowLength(patchSize)];
+		fillPatchMatrix(source, target, patchSize, 0, pixelCount, matrix);
+		return matrix;
+	}
+
+	/**
+	 * Flattens the patches around a run of pixels of a source and target image
+	 * into rows of a single matrix (im2col), in one pass.
+	 * <p>
+	 * Pixels are numbered row by row, y * width + x. The row of each pixel
+	 * holds the luminance of the square patch of the source image around the
+	 * pixel, flattened column by column, followed by the same patch of the
+	 * target image. This is the same as the patches from
+	 * {@link #getImagePatchFromCentralPixel(Point, Dimension)} flattened by an
+	 * {@link scl10.uk.ac.aber.users.readers.ImageReader}, with the edges
+	 * mirrored in the same way.
+	 * 
+	 * @param source
+	 *            The source image. cannot be null.
+	 * @param target
+	 *            The target image, the same size as the source. cannot be
+	 *            null.
+	 * @param patchSize
+	 *            The width and height of the patches. Must be at least 2.
+	 * @param firstPixel
+	 *            The first pixel flattened.
+	 * @param pixelCount
+	 *            The number of pixels flattened.
+	 * @param matrix
+	 *            The matrix filled from its start, one row of
+	 *            {@link #getPatchMatrixRowLength(int)} values per pixel.
+	 *            cannot be null.
+	 */
+	public static void fillPatchMatrix(@NonNull final PatchedImage source, @NonNull final PatchedImage target,
+			final int patchSize, final int firstPixel, final int pixelCount, @NonNull final double[] matrix)
+	{
+		int width = source.originalWidth;
+		int height = source.originalHeight;
+
+		if (target.originalWidth != width || target.originalHeight != height)
 		{
-			throw new ArrayIndexOutOfBoundsException(
-					"Can not reference " + (int) centralPixel.getX() + ", " + (int) centralPixel.getY());
+			throw new IllegalArgumentException("The source and target images must be the same size.");
 		}
 
-		if (centralPixel.getY() > originalImage.getHeight() || centralPixel.getY() < 0)
+		if (patchSize <= 1)
 		{
-			throw new ArrayIndexOutOfBoundsException(
-					"Can not reference " + (int) centralPixel.getX() + ", " + (int) centralPixel.getY());
+			throw new IllegalArgumentException("The patch must be at least 2 pixels by 2 pixels!");
 		}
 
-		/*
-		 * You can't create a patch that's 0 pixels in height or width so check
-		 * for this.
-		 */
-		if (patchSize.getHeight() <= 1 || patchSize.getWidth() <= 1)
+		if (firstPixel < 0 || pixelCount < 0 || firstPixel + pixelCount > width * height
+				|| matrix.length < pixelCount * getPatchMatrixRowLength(patchSize))
 		{
-			throw new IllegalArgumentException("The patch must be at least 2 pixels by 2 pixels!");
+			throw new IllegalArgumentException("The pixels must be within the image and fit within the matrix.");
 		}
 
+		float[] sourceLuminance = source.getLuminance();
+		float[] targetLuminance = target.getLuminance();
+		int startOffset = (int) Math.round(patchSize / 2.0D);
+
 		/*
-		 * Add the original images width and height to the central pixel's x and
-		 * y to ensure that we're within the original images co-ordinate space
-		 * within the reflected image. Just add the offset essentially.
-		 * 
-		 * As we're working off a central pixel divide the patch's width and
-		 * height in order to move back by half to ensure that we're starting
-		 * the subimage from the 0, 0 point.
-		 * 
-		 * Top left corner is h/2 and w/2
+		 * The mirrored start of each row and column of the current patch
 		 */
-		int startXPosition = (int) (centralPixel.x + originalImage.getWidth() - (Math.round(patchSize.width / 2.0D)));
-		int startYPosition = (int) (centralPixel.y + originalImage.getHeight() - (Math.round(patchSize.height / 2.0D)));
+		int[] rowStarts = new int[patchSize];
+		int[] columns = new int[patchSize];
 
-		return reflectedImage.getSubimage(startXPosition, startYPosition, (int) patchSize.getWidth(),
-				(int) patchSize.getHeight());
+		int position = 0;
+		for (int pixel = firstPixel; pixel < firstPixel + pixelCount; pixel++)
+		{
+			int x = pixel % width;
+			int y = pixel / width;
 
-	}
+			for (int i = 0; i < patchSize; i++)
+			{
+				rowStarts[i] = mirror(y - startOffset + i, height) * width;
+				columns[i] = mirror(x - startOffset + i, width);
+			}
+
+			/*
+			 * Column by column, the order of ImageReader's flat arrays
+			 */
+			for (int column : columns)
+			{
+				for (int rowStart : rowStarts)
+				{
+					matrix[position++] = sourceLuminance[rowStart + column];
+				}
+			}
 
+			for (int column : columns)
+			{
+				for (int rowStart : rowStarts)
+				{
+					matrix[position++] = targetLuminance[rowStart + column];
+				}
+			}
+		}
+	}
 }
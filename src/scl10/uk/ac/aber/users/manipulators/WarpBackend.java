@@ -0,0 +1,43 @@
+package scl10.uk.ac.aber.users.manipulators;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A way of applying an x and y warp to an image. The x warp is the shift of
+ * each pixel's row and the y warp is the shift of each pixel's column, the
+ * same as {@link ImageManipulator#applyWarpFunctionToImage(BufferedImage,
+ * double[][], double[][])}.
+ * <p>
+ * A backend may hold native memory between warps, which is handed back when
+ * it is closed.
+ * 
+ * @author Scott Lockett
+ * @see JavaWarpBackend
+ * @see OpenCVWarpBackend
+ */
+public interface WarpBackend extends AutoCloseable
+{
+
+	/**
+	 * Applies a given x and y pixel shift to an image.
+	 * 
+	 * @param image
+	 *            The image to be warped. cannot be null.
+	 * @param xwarp
+	 *            2D x warp the same size as the image. Can not be null.
+	 * @param ywarp
+	 *            2D y warp the same size as the image. Can not be null.
+	 * @return A new {@link BufferedImage#TYPE_3BYTE_BGR} image with the warp
+	 *         applied.
+	 * @throws IllegalArgumentException
+	 *             If the image and the warps are not all the same size.
+	 */
+	BufferedImage applyWarp(BufferedImage image, double[][] xwarp, double[][] ywarp);
+
+	/**
+	 * Hands back any native memory the backend is holding between warps. The
+	 * backend can still be used after it's closed.
+	 */
+	@Override
+	void close();
+}
@@ -1,10 +1,12 @@
 package scl10.uk.ac.aber.users.manipulators;
 
-import java.awt.Dimension;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
@@ -15,6 +17,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import lombok.NonNull;
+import scl10.uk.ac.aber.users.readers.WarpCodec;
+import scl10.uk.ac.aber.users.readers.WarpFileHeader;
 
 /**
  * A class used for applying warp based operations to a 2d array of doubles.
@@ -56,33 +60,40 @@ public class WarpManipulator
 	public static double[][] downsample(@NonNull final double[][] warp)
 	{
 		/*
-		 * Convert the warp into an OpenCV matrix
+		 * The matrices are only needed for the downsampling so are borrowed
+		 * from the shared pool
 		 */
-		Mat matrix = convertWarpToMatrix(warp);
+		try (MatPool.Scope scope = MatPool.getShared().openScope())
+		{
+			/*
+			 * Convert the warp into an OpenCV matrix
+			 */
+			Mat matrix = convertWarpToMatrix(warp, scope);
 
-		/*
-		 * Create the new smaller size which is half both the width and height
-		 * of the original
-		 */
-		Size smallerSize = new Size(Math.floor(matrix.width() / 2.0D), Math.floor(matrix.height() / 2.0D));
+			/*
+			 * Create the new smaller size which is half both the width and
+			 * height of the original
+			 */
+			Size smallerSize = new Size(Math.floor(matrix.width() / 2.0D), Math.floor(matrix.height() / 2.0D));
 
-		/*
-		 * Create a destination where the downsampled matrix will be stored
-		 */
-		Mat destination = new Mat((int) smallerSize.height, (int) smallerSize.width, matrix.type());
+			/*
+			 * Create a destination where the downsampled matrix will be stored
+			 */
+			Mat destination = scope.acquire((int) smallerSize.height, (int) smallerSize.width, matrix.type());
 
-		/*
-		 * Apply the downsampling
-		 */
-		Imgproc.pyrDown(matrix, destination, smallerSize);
+			/*
+			 * Apply the downsampling
+			 */
+			Imgproc.pyrDown(matrix, destination, smallerSize);
 
-		/*
-		 * multiply each warp values by 0.5 due to the down sampling, the shift
-		 * is halved
-		 */
-		destination = multiplyEachValueInMatByAFactor(destination, 0.5D);
+			/*
+			 * multiply each warp values by 0.5 due to the down sampling, the
+			 * shift is halved
+			 */
+			multiplyEachValueInMatByAFactor(destination, 0.5D);
 
-		return convertMatrixToWarp(destination);
+			return convertMatrixToWarp(destination);
+		}
 	}
 
 	/**
@@ -99,32 +110,108 @@ public class WarpManipulator
 	 */
 	public static double[][] upsample(@NonNull final double[][] warp, @NonNull final Size newSize)
 	{
-		/*
-		 * Convert the warp into an OpenCV matrix
-		 */
-		Mat matrix = convertWarpToMatrix(warp);
+		try (MatPool.Scope scope = MatPool.getShared().openScope())
+		{
+			/*
+			 * Convert the warp into an OpenCV matrix
+			 */
+			Mat matrix = convertWarpToMatrix(warp, scope);
+
+			/*
+			 * Create a destination where the upsampled matrix will be stored
+			 */
+			Mat destination = scope.acquire((int) newSize.height, (int) newSize.width, matrix.type());
+
+			/*
+			 * Apply the upsampeling, which also doubles the shifts
+			 */
+			return convertMatrixToWarp(upsample(matrix, newSize, destination));
+		}
+	}
+
+	/**
+	 * Upsamples an x and a y warp of the same size together, as the two
+	 * channels of a single matrix, so both are upsampled with one native pass.
+	 * The result is the same as upsampling each with
+	 * {@link #upsample(double[][], Size)}.
+	 * 
+	 * @param xwarp
+	 *            The x warp that is to be upsampled. Cannot be null.
+	 * @param ywarp
+	 *            The y warp that is to be upsampled. Must be the same size as
+	 *            the x warp. Cannot be null.
+	 * @param newSize
+	 *            The desired size of the warps. cannot be null.
+	 *            <p>
+	 *            <strong> The new size MUST be the warps' (width * 2) +/- 1
+	 *            and the warps' (height * 2) +/- 1. </strong>
+	 * @return The upsampled x warp at [0] and y warp at [1].
+	 */
+	public static double[][][] upsample(@NonNull final double[][] xwarp, @NonNull final double[][] ywarp,
+			@NonNull final Size newSize)
+	{
+		try (MatPool.Scope scope = MatPool.getShared().openScope())
+		{
+			Mat matrix = convertWarpsToMatrix(xwarp, ywarp,
+					scope.acquire(xwarp.length, xwarp[0].length, CvType.CV_64FC2));
+			Mat destination = scope.acquire((int) newSize.height, (int) newSize.width, CvType.CV_64FC2);
 
+			return convertMatrixToWarps(upsample(matrix, newSize, destination));
+		}
+	}
+
+	/**
+	 * Upsamples a matrix of warp values into a given destination matrix. Each
+	 * channel of the matrix is upsampled as a separate warp, so an x and y warp
+	 * held as the two channels of a matrix are both upsampled in one native
+	 * call and scaled in another.
+	 * 
+	 * @param warps
+	 *            The matrix of warp values to be upsampled. Cannot be null.
+	 * @param newSize
+	 *            The desired size of the warps. cannot be null.
+	 *            <p>
+	 *            <strong> The new size MUST be the warps' (width * 2) +/- 1
+	 *            and the warps' (height * 2) +/- 1. </strong>
+	 * @param destination
+	 *            The matrix the upsampled warps are stored in. Cannot be null.
+	 * @return The destination matrix.
+	 */
+	public static Mat upsample(@NonNull final Mat warps, @NonNull final Size newSize, @NonNull final Mat destination)
+	{
 		/*
-		 * Create a destination where the upsampled matrix will be stored
+		 * Apply the upsampeling
 		 */
-		Mat destination = new Mat((int) (newSize.height), (int) (newSize.width), matrix.type());
+		Imgproc.pyrUp(warps, destination, newSize);
 
 		/*
-		 * Apply the upsampeling
+		 * When the new width is odd, OpenCV fills the last column with a copy
+		 * of the one before it, but only does so correctly for single channel
+		 * matrices. Copy it for every channel so both warps match upsampling
+		 * each on its own.
 		 */
-		Imgproc.pyrUp(matrix, destination, newSize);
+		int width = destination.cols();
+		if (warps.channels() > 1 && width > warps.cols() * 2)
+		{
+			Mat lastColumn = destination.col(width - 1);
+			Mat previousColumn = destination.col(width - 2);
+			previousColumn.copyTo(lastColumn);
+			lastColumn.release();
+			previousColumn.release();
+		}
 
 		/*
 		 * multiply each warp values by 2 due to the up sampling, the shift is
 		 * doubled
 		 */
-		destination = multiplyEachValueInMatByAFactor(destination, 2.0D);
-
-		return convertMatrixToWarp(destination);
+		return multiplyEachValueInMatByAFactor(destination, 2.0D);
 	}
 
 	/**
-	 * Writes a warp 2D array of doubles out to a given file
+	 * Writes a warp 2D array of doubles out to a given file as text. The text
+	 * format is only kept for importing and exporting warps, see
+	 * {@link #writeBinaryWarpFile(File, double[][], int)} for the format the
+	 * application reads quickest.
 	 * 
 	 * @param fileToWriteTo
 	 *            The file which is going to be written to, if the file does not
@@ -192,8 +279,231 @@ public class WarpManipulator
 	}
 
 	/**
-	 * Loops through every values within a single channel matrix and multiplies
-	 * each value by a given factor.
+	 * Writes a warp out to a given file in the binary warp format with each
+	 * value stored as a double.
+	 * 
+	 * @param fileToWriteTo
+	 *            The file which is going to be written to, if the file already
+	 *            exists it will be overwritten. Cannot be null.
+	 * @param warp
+	 *            The warp that holds the values that are going to be written.
+	 *            cannot be null.
+	 * @param level
+	 *            The pyramid level the warp belongs to. 0 is the original size.
+	 * @return true is the file was successfully written to, or false if an
+	 *         exception was thrown during the writing.
+	 * @see WarpFileHeader
+	 */
+	public static boolean writeBinaryWarpFile(@NonNull final File fileToWriteTo, @NonNull final double[][] warp,
+			final int level)
+	{
+		return writeBinaryWarpFile(fileToWriteTo, warp, level, WarpFileHeader.DATA_TYPE_FLOAT64);
+	}
+
+	/**
+	 * Writes a warp out to a given file in the binary warp format.
+	 * 
+	 * @param fileToWriteTo
+	 *            The file which is going to be written to, if the file already
+	 *            exists it will be overwritten. Cannot be null.
+	 * @param warp
+	 *            The warp that holds the values that are going to be written.
+	 *            cannot be null.
+	 * @param level
+	 *            The pyramid level the warp belongs to. 0 is the original size.
+	 * @param dataType
+	 *            The type the values are stored as. Either
+	 *            {@link WarpFileHeader#DATA_TYPE_FLOAT64},
+	 *            {@link WarpFileHeader#DATA_TYPE_FLOAT32} or
+	 *            {@link WarpFileHeader#DATA_TYPE_FLOAT16}.
+	 * @return true is the file was successfully written to, or false if an
+	 *         exception was thrown during the writing.
+	 */
+	public static boolean writeBinaryWarpFile(@NonNull final File fileToWriteTo, @NonNull final double[][] warp,
+			final int level, final byte dataType)
+	{
+		WarpFileHeader header = new WarpFileHeader(dataType, WarpFileHeader.CODEC_RAW, level, warp[0].length,
+				warp.length);
+
+		try (FileChannel channel = FileChannel.open(fileToWriteTo.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			/*
+			 * Write the header on its own, then reuse a single row sized buffer
+			 * for the values so the whole warp is never copied at once.
+			 */
+			ByteBuffer headerBuffer = ByteBuffer.allocate(WarpFileHeader.HEADER_SIZE)
+					.order(WarpFileHeader.BYTE_ORDER);
+			header.write(headerBuffer);
+			headerBuffer.flip();
+			writeFully(channel, headerBuffer);
+
+			ByteBuffer rowBuffer = ByteBuffer.allocateDirect(header.getWidth() * header.getBytesPerValue())
+					.order(WarpFileHeader.BYTE_ORDER);
+
+			for (double[] row : warp)
+			{
+				if (row.length != header.getWidth())
+				{
+					throw new IllegalArgumentException("Every row of the warp must be the same width.");
+				}
+
+				rowBuffer.clear();
+				if (dataType == WarpFileHeader.DATA_TYPE_FLOAT64)
+				{
+					rowBuffer.asDoubleBuffer().put(row);
+				} else if (dataType == WarpFileHeader.DATA_TYPE_FLOAT16)
+				{
+					for (int j = 0; j < row.length; j++)
+					{
+						rowBuffer.putShort(j * Short.BYTES, WarpCodec.encodeFloat16((float) row[j]));
+					}
+				} else
+				{
+					for (int j = 0; j < row.length; j++)
+					{
+						rowBuffer.putFloat(j * Float.BYTES, (float) row[j]);
+					}
+				}
+				writeFully(channel, rowBuffer);
+			}
+
+		} catch (IOException e)
+		{
+			LOGGER.error("An exception was thrown while trying to write to " + fileToWriteTo.getPath(), e);
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Writes a warp out to a given file in the compressed binary warp format.
+	 * The values are stored losslessly as doubles.
+	 * 
+	 * @param fileToWriteTo
+	 *            The file which is going to be written to, if the file already
+	 *            exists it will be overwritten. Cannot be null.
+	 * @param warp
+	 *            The warp that holds the values that are going to be written.
+	 *            cannot be null.
+	 * @param level
+	 *            The pyramid level the warp belongs to. 0 is the original size.
+	 * @return true is the file was successfully written to, or false if an
+	 *         exception was thrown during the writing.
+	 * @see WarpCodec
+	 */
+	public static boolean writeCompressedWarpFile(@NonNull final File fileToWriteTo, @NonNull final double[][] warp,
+			final int level)
+	{
+		return writeCompressedWarpFile(fileToWriteTo, warp, level, WarpFileHeader.DATA_TYPE_FLOAT64);
+	}
+
+	/**
+	 * Writes a warp out to a given file in the compressed binary warp format,
+	 * storing the values as half precision floats if every value is within the
+	 * tolerance of its half precision value. If not, a warning is logged and
+	 * the values are stored losslessly as doubles instead.
+	 * 
+	 * @param fileToWriteTo
+	 *            The file which is going to be written to, if the file already
+	 *            exists it will be overwritten. Cannot be null.
+	 * @param warp
+	 *            The warp that holds the values that are going to be written.
+	 *            cannot be null.
+	 * @param level
+	 *            The pyramid level the warp belongs to. 0 is the original size.
+	 * @param float16Tolerance
+	 *            The largest error allowed for any value when stored as half
+	 *            precision, e.g. {@link WarpCodec#DEFAULT_FLOAT16_TOLERANCE}.
+	 * @return true is the file was successfully written to, or false if an
+	 *         exception was thrown during the writing.
+	 * @see WarpCodec
+	 */
+	public static boolean writeCompressedWarpFile(@NonNull final File fileToWriteTo, @NonNull final double[][] warp,
+			final int level, final double float16Tolerance)
+	{
+		if (WarpCodec.fitsFloat16(warp, float16Tolerance))
+		{
+			return writeCompressedWarpFile(fileToWriteTo, warp, level, WarpFileHeader.DATA_TYPE_FLOAT16);
+		}
+
+		LOGGER.warn(fileToWriteTo.getName() + " can not be stored as half precision within " + float16Tolerance
+				+ ", storing it losslessly instead.");
+		return writeCompressedWarpFile(fileToWriteTo, warp, level, WarpFileHeader.DATA_TYPE_FLOAT64);
+	}
+
+	/**
+	 * Writes a warp out to a given file in the compressed binary warp format
+	 * and reports how well it compressed.
+	 * 
+	 * @param fileToWriteTo
+	 *            The file which is going to be written to, if the file already
+	 *            exists it will be overwritten. Cannot be null.
+	 * @param warp
+	 *            The warp that holds the values that are going to be written.
+	 *            cannot be null.
+	 * @param level
+	 *            The pyramid level the warp belongs to. 0 is the original size.
+	 * @param dataType
+	 *            The type the values are stored as before compressing.
+	 * @return true is the file was successfully written to, or false if an
+	 *         exception was thrown during the writing.
+	 */
+	private static boolean writeCompressedWarpFile(@NonNull final File fileToWriteTo, @NonNull final double[][] warp,
+			final int level, final byte dataType)
+	{
+		WarpFileHeader header = new WarpFileHeader(dataType, WarpFileHeader.CODEC_DELTA_DEFLATE, level,
+				warp[0].length, warp.length);
+
+		long compressedSize;
+		try (FileChannel channel = FileChannel.open(fileToWriteTo.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			ByteBuffer headerBuffer = ByteBuffer.allocate(WarpFileHeader.HEADER_SIZE)
+					.order(WarpFileHeader.BYTE_ORDER);
+			header.write(headerBuffer);
+			headerBuffer.flip();
+			writeFully(channel, headerBuffer);
+
+			compressedSize = WarpCodec.encode(warp, header, channel);
+
+		} catch (IOException e)
+		{
+			LOGGER.error("An exception was thrown while trying to write to " + fileToWriteTo.getPath(), e);
+			return false;
+		}
+
+		long doublesSize = (long) header.getWidth() * header.getHeight() * Double.BYTES;
+		LOGGER.info(String.format("Wrote compressed warp %s. %.1fx smaller than doubles", fileToWriteTo.getName(),
+				doublesSize / (double) Math.max(compressedSize, 1)));
+
+		return true;
+	}
+
+	/**
+	 * Writes all of the remaining bytes in a buffer to a channel.
+	 * 
+	 * @param channel
+	 *            The channel to be written to. Cannot be null.
+	 * @param buffer
+	 *            The buffer to be written out. Cannot be null.
+	 * @throws IOException
+	 *             If the channel can not be written to.
+	 */
+	private static void writeFully(@NonNull final FileChannel channel, @NonNull final ByteBuffer buffer)
+			throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Multiplies every value of every channel within a matrix by a given factor.
+	 * The multiplication is done natively in place with a single call rather
+	 * than getting and putting each value.
 	 * 
 	 * @param matrixToMultiply
 	 *            The matrix that values need multiplying by a factor. Cannot be
@@ -204,58 +514,44 @@ public class WarpManipulator
 	 */
 	private static Mat multiplyEachValueInMatByAFactor(@NonNull final Mat matrixToMultiply, final double factor)
 	{
-		for (int i = 0; i < matrixToMultiply.height(); i++)
-		{
-			for (int k = 0; k < matrixToMultiply.width(); k++)
-			{
-				matrixToMultiply.put(i, k, new double[] { matrixToMultiply.get(i, k)[0] * factor });
-			}
-		}
+		matrixToMultiply.convertTo(matrixToMultiply, matrixToMultiply.type(), factor);
 
 		return matrixToMultiply;
 	}
 
 	/**
-	 * Converts a 2D array of warp values into an openCV Mat object
+	 * Converts a 2D array of warp values into an openCV Mat object borrowed
+	 * from a pool scope.
 	 * 
 	 * @param warp
 	 *            The warp which is to be converted into a mat object. Cannot be
 	 *            null.
+	 * @param scope
+	 *            The scope the matrix is acquired through. Cannot be null.
 	 * @return The warp as a mat object
 	 */
-	private static Mat convertWarpToMatrix(@NonNull final double[][] warp)
+	private static Mat convertWarpToMatrix(@NonNull final double[][] warp, @NonNull final MatPool.Scope scope)
 	{
-		/*
-		 * Create a size of the warp
-		 */
-		Dimension size = new Dimension(warp[0].length, warp.length);
+		int height = warp.length;
+		int width = warp[0].length;
 
 		/*
-		 * Create a new matrix where the warp's values will be store within
+		 * Get a matrix where the warp's values will be store within
 		 */
-		Mat matrix = new Mat(size.height, size.width, CvType.CV_64FC1);
+		Mat matrix = scope.acquire(height, width, CvType.CV_64FC1);
 
 		/*
-		 * Create a flat array which is the the width x the height of the 2D
-		 * warp
+		 * Copy each row of the 2D array into a flat array the size of the
+		 * whole warp
 		 */
-		double[] flatArray = new double[(int) ((int) size.getWidth() * size.getHeight())];
-		int flatArrayPosition = 0;
-
-		/*
-		 * Add each value from the 2D array into the flat array
-		 */
-		for (int i = 0; i < size.getHeight(); i++)
+		double[] flatArray = new double[height * width];
+		for (int i = 0; i < height; i++)
 		{
-			for (int j = 0; j < size.getWidth(); j++)
-			{
-				flatArray[flatArrayPosition] = warp[i][j];
-				flatArrayPosition++;
-			}
+			System.arraycopy(warp[i], 0, flatArray, i * width, width);
 		}
 
 		/*
-		 * Put the flat array values into the matrix
+		 * Put the flat array values into the matrix in one call
 		 */
 		matrix.put(0, 0, flatArray);
 
@@ -272,17 +568,114 @@ public class WarpManipulator
 	 */
 	private static double[][] convertMatrixToWarp(@NonNull final Mat matrix)
 	{
-		double[][] warpArray = new double[matrix.height()][matrix.width()];
+		int height = matrix.height();
+		int width = matrix.width();
+
+		/*
+		 * Get all of the matrix's values in one call, then split them into
+		 * rows
+		 */
+		double[] flatArray = new double[height * width];
+		matrix.get(0, 0, flatArray);
+
+		double[][] warpArray = new double[height][width];
+		for (int i = 0; i < height; i++)
+		{
+			System.arraycopy(flatArray, i * width, warpArray[i], 0, width);
+		}
+
+		return warpArray;
+	}
+
+	/**
+	 * Converts an x and a y warp of the same size into a two channel matrix,
+	 * with the x warp as the first channel and the y warp as the second.
+	 * 
+	 * @param xwarp
+	 *            The x warp. Cannot be null.
+	 * @param ywarp
+	 *            The y warp. Must be the same size as the x warp. Cannot be
+	 *            null.
+	 * @param destination
+	 *            The matrix the warps are stored in. It is made a
+	 *            CvType.CV_64FC2 matrix the size of the warps if it isn't
+	 *            already. Cannot be null.
+	 * @return The destination matrix.
+	 */
+	public static Mat convertWarpsToMatrix(@NonNull final double[][] xwarp, @NonNull final double[][] ywarp,
+			@NonNull final Mat destination)
+	{
+		int height = xwarp.length;
+		int width = xwarp[0].length;
 
-		for (int i = 0; i < matrix.height(); i++)
+		if (ywarp.length != height || ywarp[0].length != width)
 		{
-			for (int j = 0; j < matrix.width(); j++)
+			throw new IllegalArgumentException("The x and y warps must be the same size. " + width + " x " + height
+					+ " and " + ywarp[0].length + " x " + ywarp.length);
+		}
+
+		destination.create(height, width, CvType.CV_64FC2);
+
+		/*
+		 * Interleave the warps so each pixel's x and y shift are next to each
+		 * other, then put them into the matrix in one call
+		 */
+		double[] flatArray = new double[height * width * 2];
+		for (int i = 0; i < height; i++)
+		{
+			double[] xRow = xwarp[i];
+			double[] yRow = ywarp[i];
+			for (int j = 0, k = i * width * 2; j < width; j++, k += 2)
 			{
-				warpArray[i][j] = matrix.get(i, j)[0];
+				flatArray[k] = xRow[j];
+				flatArray[k + 1] = yRow[j];
 			}
 		}
 
-		return warpArray;
+		destination.put(0, 0, flatArray);
+
+		return destination;
+	}
+
+	/**
+	 * Converts a two channel matrix of warp values into an x and a y warp, the
+	 * reverse of {@link #convertWarpsToMatrix(double[][], double[][], Mat)}.
+	 * 
+	 * @param matrix
+	 *            The CvType.CV_64FC2 matrix which is to be converted. Cannot be
+	 *            null.
+	 * @return The x warp at [0] and the y warp at [1].
+	 */
+	public static double[][][] convertMatrixToWarps(@NonNull final Mat matrix)
+	{
+		if (matrix.type() != CvType.CV_64FC2)
+		{
+			throw new IllegalArgumentException("The matrix must be a two channel matrix of doubles.");
+		}
+
+		int height = matrix.height();
+		int width = matrix.width();
+
+		/*
+		 * Get all of the matrix's values in one call, then split them into the
+		 * rows of each warp
+		 */
+		double[] flatArray = new double[height * width * 2];
+		matrix.get(0, 0, flatArray);
+
+		double[][][] warps = new double[2][height][width];
+		for (int i = 0; i < height; i++)
+		{
+			double[] xRow = warps[0][i];
+			double[] yRow = warps[1][i];
+			for (int j = 0, k = i * width * 2; j < width; j++, k += 2)
+			{
+				xRow[j] = flatArray[k];
+				yRow[j] = flatArray[k + 1];
+			}
+		}
+
+		return warps;
 	}
 
 }
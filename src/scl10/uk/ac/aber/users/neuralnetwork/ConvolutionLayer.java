@@ -1,21 +1,18 @@
 package scl10.uk.ac.aber.users.neuralnetwork;
 
-import java.awt.Dimension;
-import java.awt.Point;
 import java.awt.image.BufferedImage;
+import java.util.Random;
 
-import org.apache.commons.lang3.ArrayUtils;
 import org.neuroph.core.data.DataSet;
-import org.neuroph.core.data.DataSetRow;
 import org.neuroph.nnet.MultiLayerPerceptron;
 import org.neuroph.util.TransferFunctionType;
-import org.neuroph.util.data.norm.Normalizer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import lombok.Getter;
 import lombok.NonNull;
+import lombok.Setter;
 import scl10.uk.ac.aber.users.manipulators.PatchedImage;
-import scl10.uk.ac.aber.users.readers.ImageReader;
 
 /**
  * <strong> This class is incomplete </strong>
@@ -37,6 +34,17 @@ class ConvolutionLayer extends FullyConnectedLayer
 	 */
 	private static final int CNN_INPUT_SIZE = 49 * 2;
 
+	/**
+	 * The width and height of each patch
+	 */
+	private static final int PATCH_SIZE = 7;
+
+	/**
+	 * The most pixels whose patches are flattened into the patch matrix at a
+	 * time while calculating. Around 3MB of values.
+	 */
+	private static final int PATCH_MATRIX_BAND_PIXELS = 4096;
+
 	/**
 	 * This hidden layer will be the same size as the input layer.
 	 */
@@ -53,6 +61,38 @@ class ConvolutionLayer extends FullyConnectedLayer
 	 */
 	private static final Logger LOGGER = LoggerFactory.getLogger(ConvolutionLayer.class);
 
+	/**
+	 * The most training rows used per pass over the training data when no
+	 * budget is set. Around 90MB of rows.
+	 */
+	public static final int DEFAULT_ROW_BUDGET = 100000;
+
+	/**
+	 * How the pixels of each training pair are chosen to train with.
+	 */
+	@Getter
+	@Setter
+	private PatchSampler.Strategy samplingStrategy = PatchSampler.Strategy.RESERVOIR;
+
+	/**
+	 * The most training rows used per pass over the training data. Changing
+	 * the budget starts a new reservoir.
+	 */
+	@Getter
+	@Setter
+	private int rowBudget = DEFAULT_ROW_BUDGET;
+
+	/**
+	 * The source of randomness for sampling the training pixels
+	 */
+	private final Random random = new Random();
+
+	/**
+	 * The sample of every training pair's rows kept for
+	 * {@link PatchSampler.Strategy#RESERVOIR}
+	 */
+	private PatchSampler.Reservoir reservoir;
+
 	/**
 	 * Creates a new convolution layer.
 	 */
@@ -101,70 +141,29 @@ class ConvolutionLayer extends FullyConnectedLayer
 			@NonNull final double[][] xWarp, @NonNull final double[][] yWarp)
 	{
 		/*
-		 * Create some new Patched Image objects from which patches can be
-		 * derived from without throwing any array out of bounds exceptions.
+		 * Generate the patches of the pair as they are needed rather than
+		 * holding a row for every pixel.
 		 */
-		PatchedImage sourcePatchedImage = new PatchedImage(source);
-		PatchedImage targetPatchedImage = new PatchedImage(target);
+		PatchSampler sampler = new PatchSampler(source, target, xWarp, yWarp);
 
-		/*
-		 * Create a patch size 7 x 7
-		 */
-		Dimension patchSize = new Dimension(7, 7);
-
-		for (int y = 0; y < source.getHeight(); y++)
+		if (samplingStrategy == PatchSampler.Strategy.RESERVOIR)
 		{
-			for (int x = 0; x < source.getWidth(); x++)
+			/*
+			 * Keep an even sample of every pair trained with so far, in the
+			 * same way all of the pairs' rows used to be kept.
+			 */
+			if (reservoir == null || reservoir.getRowBudget() != rowBudget)
 			{
-				/*
-				 * Create a point from the position we're currently on.
-				 */
-				Point centralPoint = new Point(x, y);
-
-				/*
-				 * Get patches from both the source and target images from the
-				 * central pixel.
-				 */
-				BufferedImage sourcePatch = sourcePatchedImage.getImagePatchFromCentralPixel(centralPoint, patchSize);
-				BufferedImage targetPatch = targetPatchedImage.getImagePatchFromCentralPixel(centralPoint, patchSize);
-
-				/*
-				 * Flatten both the source patch and target patch into flat
-				 * arrays.
-				 */
-				double[] flatSourcePatch = new ImageReader(sourcePatch).getAsFlatArray();
-				double[] flatTargetPatch = new ImageReader(targetPatch).getAsFlatArray();
-
-				/*
-				 * Combine the patches into a single array
-				 */
-				double[] flatSourceAndTargetPatches = ArrayUtils.addAll(flatSourcePatch, flatTargetPatch);
-
-				/*
-				 * Grab the shift as the ground truth between the central pixel
-				 * from both the x and y warp files
-				 */
-				double[] groundTruth = new double[] { xWarp[y][x], yWarp[y][x] };
-
-				/*
-				 * Add a new piece of training data to the artificial neural
-				 * network consisting of the flattened patches of both the
-				 * target and the source image as the input, and the output
-				 * being the ground truth shift between the central pixel in
-				 * both the x and y.
-				 */
-				trainingData.add(new DataSetRow(flatSourceAndTargetPatches, groundTruth));
+				reservoir = new PatchSampler.Reservoir(rowBudget, random);
 			}
+			reservoir.offer(sampler);
+			trainingData = reservoir.getDataSet();
+		} else
+		{
+			trainingData = sampler.asDataSet(samplingStrategy, rowBudget, random);
 		}
 
-		/*
-		 * Normalise the data so it's values are between 0 - 1 so it can be used
-		 * in the neural network.
-		 */
-		Normalizer warpImgNormaliser = new ImageWarpNormalizer();
-		warpImgNormaliser.normalize(trainingData);
-
-		LOGGER.info("About to learn convolution layer");
+		LOGGER.info("About to learn convolution layer from " + trainingData.size() + " patches");
 
 		/*
 		 * Once all of the patch data has been added, start leaning
@@ -185,11 +184,14 @@ class ConvolutionLayer extends FullyConnectedLayer
 	 */
 	public double[][][] calculate(@NonNull final BufferedImage source, @NonNull final BufferedImage target)
 	{
+		int width = source.getWidth();
+		int height = source.getHeight();
+
 		/*
 		 * Create an x and y warp the size of the images
 		 */
-		double[][] xWarp = new double[source.getHeight()][source.getWidth()];
-		double[][] yWarp = new double[source.getHeight()][source.getWidth()];
+		double[][] xWarp = new double[height][width];
+		double[][] yWarp = new double[height][width];
 
 		/*
 		 * Create a patched image objects from the target and source image from
@@ -199,44 +201,30 @@ class ConvolutionLayer extends FullyConnectedLayer
 		PatchedImage patchedTargetImage = new PatchedImage(target);
 
 		/*
-		 * Create the patch size we're going to be getting from the images.
+		 * The flattened patches of a band of pixels at a time, so the matrix
+		 * stays small however large the images are.
 		 */
-		Dimension patchSize = new Dimension(7, 7);
+		int bandPixels = Math.min(PATCH_MATRIX_BAND_PIXELS, width * height);
+		double[] patchMatrix = new double[bandPixels * CNN_INPUT_SIZE];
+		double[] bothFlattenedPatches = new double[CNN_INPUT_SIZE];
 
-		/*
-		 * Loop through every pixel creating a patch from the source and target
-		 * images
-		 */
-		for (int y = 0; y < source.getHeight(); y++)
+		for (int firstPixel = 0; firstPixel < width * height; firstPixel += bandPixels)
 		{
-			for (int x = 0; x < source.getWidth(); x++)
-			{
-				/*
-				 * Create a point for this current position
-				 */
-				Point currentPoint = new Point(x, y);
+			int pixelCount = Math.min(bandPixels, width * height - firstPixel);
 
-				/*
-				 * Get a patch from the central point from both images.
-				 */
-				BufferedImage sourcePatch = patchedSourceImage.getImagePatchFromCentralPixel(currentPoint, patchSize);
-				BufferedImage targetPatch = patchedTargetImage.getImagePatchFromCentralPixel(currentPoint, patchSize);
-
-				/*
-				 * Flatten both the source patch and target patch into flat
-				 * arrays.
-				 */
-				double[] flatSourcePatch = new ImageReader(sourcePatch).getAsFlatArray();
-				double[] flatTargetPatch = new ImageReader(targetPatch).getAsFlatArray();
-
-				/*
-				 * Combine both the flattened patches into a single array
-				 */
-				double[] bothFlattenedPatches = ArrayUtils.addAll(flatSourcePatch, flatTargetPatch);
+			/*
+			 * Flatten the source and target patches of every pixel in the band
+			 * in one pass
+			 */
+			PatchedImage.fillPatchMatrix(patchedSourceImage, patchedTargetImage, PATCH_SIZE, firstPixel, pixelCount,
+					patchMatrix);
 
+			for (int i = 0; i < pixelCount; i++)
+			{
 				/*
-				 * Set the input as the test data and calculate
+				 * Set the pixel's row of the matrix as the input and calculate
 				 */
+				System.arraycopy(patchMatrix, i * CNN_INPUT_SIZE, bothFlattenedPatches, 0, CNN_INPUT_SIZE);
 				mlp.setInput(bothFlattenedPatches);
 				mlp.calculate();
 
@@ -249,6 +237,8 @@ class ConvolutionLayer extends FullyConnectedLayer
 				 * Set the x warp and the y warp at this position to the output
 				 * from the neural network
 				 */
+				int x = (firstPixel + i) % width;
+				int y = (firstPixel + i) / width;
 				xWarp[y][x] = cnnLayerOutput[0];
 				yWarp[y][x] = cnnLayerOutput[1];
 			}
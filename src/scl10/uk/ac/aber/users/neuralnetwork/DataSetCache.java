@@ -0,0 +1,441 @@
+package scl10.uk.ac.aber.users.neuralnetwork;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.neuroph.core.data.DataSet;
+import org.neuroph.core.data.DataSetRow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lombok.Getter;
+import lombok.NonNull;
+import scl10.uk.ac.aber.users.readers.ImageReader;
+
+/**
+ * A cache of normalised training data sets on the disk, so the training data
+ * does not need to be read, flattened and normalised again on every run.
+ * <p>
+ * Each data set is stored in its own file named after its key. The key is a
+ * SHA-256 hash of the contents of every training file, in the order they are
+ * listed, the pyramid level, the {@link ImageWarpNormalizer} parameters and
+ * the version of the way images are flattened,
+ * {@link ImageReader#FLAT_ARRAY_VERSION}. Changing any of them gives a new
+ * key, so a stale data set is never loaded.
+ * <p>
+ * The layout of a cached data set file is:
+ *
+ * <pre>
+ * int    magic       "DSET"
+ * int    version     The version of the cache format
+ * byte[] key         The 32 byte key of the data set
+ * int    rows        The number of rows
+ * int    inputSize   The size of each row's input
+ * int    outputSize  The size of each row's output
+ * double[]           Each row's input followed by its output, little endian
+ * </pre>
+ *
+ * @author Scott Lockett
+ */
+public final class DataSetCache
+{
+
+	/**
+	 * Create the logger for logging messages
+	 */
+	private static Logger LOGGER = LoggerFactory.getLogger(DataSetCache.class);
+
+	/**
+	 * The folder data sets are cached in when no folder is given
+	 */
+	public static final File DEFAULT_CACHE_FOLDER = new File("dataset-cache");
+
+	/**
+	 * The extension given to cached data set files
+	 */
+	public static final String EXTENSION = ".dataset";
+
+	/**
+	 * The first four bytes of every cached data set. "DSET" in ASCII.
+	 */
+	private static final int MAGIC = 0x44534554;
+
+	/**
+	 * The current version of the cache format. Part of the key, so changing
+	 * the format invalidates old caches.
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * The length of a key in bytes
+	 */
+	private static final int KEY_SIZE = 32;
+
+	/**
+	 * The size of the header in bytes
+	 */
+	private static final int HEADER_SIZE = 4 + 4 + KEY_SIZE + 4 + 4 + 4;
+
+	/**
+	 * The algorithm used to hash the files and the key
+	 */
+	private static final String HASH_ALGORITHM = "SHA-256";
+
+	/**
+	 * The folder the data sets are cached in
+	 */
+	@Getter
+	private final File cacheFolder;
+
+	/**
+	 * Creates a new data set cache in the default folder.
+	 */
+	public DataSetCache()
+	{
+		this(DEFAULT_CACHE_FOLDER);
+	}
+
+	/**
+	 * Creates a new data set cache.
+	 *
+	 * @param cacheFolder
+	 *            The folder the data sets are cached in. It is created when the
+	 *            first data set is stored. cannot be null.
+	 */
+	public DataSetCache(@NonNull final File cacheFolder)
+	{
+		this.cacheFolder = cacheFolder;
+	}
+
+	/**
+	 * Works out the key of a data set built from the given training files.
+	 *
+	 * @param imageFiles
+	 *            The image files of the training data. cannot be null.
+	 * @param warpFiles
+	 *            The warp files of the training data. cannot be null.
+	 * @param level
+	 *            The pyramid level the warps are normalised for.
+	 * @return The key of the data set.
+	 * @throws IOException
+	 *             If any of the training files can not be read.
+	 */
+	public byte[] computeKey(@NonNull final File[] imageFiles, @NonNull final File[] warpFiles, final int level)
+			throws IOException
+	{
+		return computeKey(imageFiles, warpFiles, level, new double[] { ImageWarpNormalizer.MAX_PIXEL_VALUE,
+				ImageWarpNormalizer.MAX_WARP_SHIFT, ImageWarpNormalizer.WARP_RANGE }, ImageReader.FLAT_ARRAY_VERSION);
+	}
+
+	/**
+	 * Works out the key of a data set built from the given training files with
+	 * the given normaliser parameters and way of flattening images.
+	 *
+	 * @param imageFiles
+	 *            The image files of the training data. cannot be null.
+	 * @param warpFiles
+	 *            The warp files of the training data. cannot be null.
+	 * @param level
+	 *            The pyramid level the warps are normalised for.
+	 * @param normaliserParameters
+	 *            The maximum pixel value, maximum warp shift and warp range the
+	 *            data is normalised with. cannot be null.
+	 * @param flatArrayVersion
+	 *            The version of the way images are flattened.
+	 * @return The key of the data set.
+	 * @throws IOException
+	 *             If any of the training files can not be read.
+	 */
+	byte[] computeKey(@NonNull final File[] imageFiles, @NonNull final File[] warpFiles, final int level,
+			@NonNull final double[] normaliserParameters, final int flatArrayVersion) throws IOException
+	{
+		MessageDigest keyDigest = newDigest();
+
+		/*
+		 * Hash the things that change how the training files are turned into
+		 * the data set.
+		 */
+		ByteBuffer parameters = ByteBuffer.allocate(4 + 4 + 4 + normaliserParameters.length * 8 + 4 + 4)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		parameters.putInt(VERSION);
+		parameters.putInt(flatArrayVersion);
+		parameters.putInt(level);
+		for (double parameter : normaliserParameters)
+		{
+			parameters.putDouble(parameter);
+		}
+		parameters.putInt(imageFiles.length);
+		parameters.putInt(warpFiles.length);
+		keyDigest.update(parameters.array());
+
+		/*
+		 * Hash the contents of each file in the order they are listed. Files
+		 * listed more than once are only read once.
+		 */
+		Map<File, byte[]> fileHashes = new HashMap<>();
+		for (File[] files : new File[][] { imageFiles, warpFiles })
+		{
+			for (File file : files)
+			{
+				File canonicalFile = file.getCanonicalFile();
+				byte[] fileHash = fileHashes.get(canonicalFile);
+				if (fileHash == null)
+				{
+					fileHash = hashFile(canonicalFile);
+					fileHashes.put(canonicalFile, fileHash);
+				}
+				keyDigest.update(fileHash);
+			}
+		}
+
+		return keyDigest.digest();
+	}
+
+	/**
+	 * Loads a cached data set by memory mapping its file.
+	 *
+	 * @param key
+	 *            The key of the data set. cannot be null.
+	 * @param inputSize
+	 *            The expected size of each row's input.
+	 * @param outputSize
+	 *            The expected size of each row's output.
+	 * @return The cached data set, or null if there is no usable data set for
+	 *         the key.
+	 */
+	public DataSet load(@NonNull final byte[] key, final int inputSize, final int outputSize)
+	{
+		File cacheFile = getCacheFile(key);
+		if (!cacheFile.isFile())
+		{
+			LOGGER.info("No cached data set " + cacheFile.getPath());
+			return null;
+		}
+
+		try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ))
+		{
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+			if (channel.size() < HEADER_SIZE || mapped.getInt() != MAGIC || mapped.getInt() != VERSION)
+			{
+				throw new IOException("Not a cached data set.");
+			}
+
+			byte[] storedKey = new byte[KEY_SIZE];
+			mapped.get(storedKey);
+			int rows = mapped.getInt();
+			int storedInputSize = mapped.getInt();
+			int storedOutputSize = mapped.getInt();
+
+			if (!Arrays.equals(key, storedKey) || storedInputSize != inputSize || storedOutputSize != outputSize
+					|| rows < 0)
+			{
+				throw new IOException("The cached data set does not match. " + rows + " rows of " + storedInputSize
+						+ " inputs and " + storedOutputSize + " outputs.");
+			}
+
+			long expectedSize = HEADER_SIZE + (long) rows * (inputSize + outputSize) * Double.BYTES;
+			if (channel.size() != expectedSize)
+			{
+				throw new IOException("The cached data set is " + channel.size() + " bytes, expected " + expectedSize);
+			}
+
+			/*
+			 * Copy each row straight out of the mapped file
+			 */
+			DoubleBuffer values = mapped.asDoubleBuffer();
+			DataSet dataSet = new DataSet(inputSize, outputSize);
+			for (int i = 0; i < rows; i++)
+			{
+				double[] input = new double[inputSize];
+				double[] output = new double[outputSize];
+				values.get(input);
+				values.get(output);
+				dataSet.addRow(new DataSetRow(input, output));
+			}
+
+			LOGGER.info("Loaded " + rows + " rows from cached data set " + cacheFile.getPath());
+			return dataSet;
+		} catch (IOException e)
+		{
+			LOGGER.warn("Cached data set has failed to load: " + cacheFile.getPath(), e);
+		}
+		return null;
+	}
+
+	/**
+	 * Stores a normalised data set in the cache. The data set is written to a
+	 * temporary file first so a half written file is never loaded.
+	 *
+	 * @param key
+	 *            The key of the data set. cannot be null.
+	 * @param dataSet
+	 *            The normalised data set. cannot be null.
+	 * @return true if the data set was stored, false if not.
+	 */
+	public boolean store(@NonNull final byte[] key, @NonNull final DataSet dataSet)
+	{
+		if (key.length != KEY_SIZE)
+		{
+			throw new IllegalArgumentException("A data set key must be " + KEY_SIZE + " bytes. " + key.length);
+		}
+
+		File cacheFile = getCacheFile(key);
+		File tempFile = new File(cacheFolder, cacheFile.getName() + ".tmp");
+
+		if (!cacheFolder.isDirectory() && !cacheFolder.mkdirs())
+		{
+			LOGGER.warn("Data set cache folder could not be created: " + cacheFolder.getPath());
+			return false;
+		}
+
+		int inputSize = dataSet.getInputSize();
+		int outputSize = dataSet.getOutputSize();
+
+		try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.put(key);
+			header.putInt(dataSet.size());
+			header.putInt(inputSize);
+			header.putInt(outputSize);
+			header.flip();
+			writeFully(channel, header);
+
+			/*
+			 * Write each row through a reused direct buffer
+			 */
+			ByteBuffer rowBuffer = ByteBuffer.allocateDirect((inputSize + outputSize) * Double.BYTES)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			for (DataSetRow row : dataSet.getRows())
+			{
+				rowBuffer.clear();
+				rowBuffer.asDoubleBuffer().put(row.getInput()).put(row.getDesiredOutput());
+				writeFully(channel, rowBuffer);
+			}
+		} catch (IOException e)
+		{
+			LOGGER.warn("Data set has failed to be cached: " + cacheFile.getPath(), e);
+			tempFile.delete();
+			return false;
+		}
+
+		try
+		{
+			Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e)
+		{
+			LOGGER.warn("Data set has failed to be cached: " + cacheFile.getPath(), e);
+			tempFile.delete();
+			return false;
+		}
+
+		LOGGER.info("Cached " + dataSet.size() + " rows in " + cacheFile.getPath());
+		return true;
+	}
+
+	/**
+	 * Get the file a data set with the given key is cached in.
+	 *
+	 * @param key
+	 *            The key of the data set. cannot be null.
+	 * @return The cache file for the key.
+	 */
+	public File getCacheFile(@NonNull final byte[] key)
+	{
+		StringBuilder name = new StringBuilder(key.length * 2 + EXTENSION.length());
+		for (byte b : key)
+		{
+			name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return new File(cacheFolder, name.append(EXTENSION).toString());
+	}
+
+	/**
+	 * Hashes the contents of a file.
+	 *
+	 * @param file
+	 *            The file to be hashed.
+	 * @return The hash of the file's contents.
+	 * @throws IOException
+	 *             If the file can not be read.
+	 */
+	private static byte[] hashFile(final File file) throws IOException
+	{
+		MessageDigest fileDigest = newDigest();
+
+		/*
+		 * Hash the file's length and contents so two files can not run into
+		 * each other.
+		 */
+		fileDigest.update(Long.toString(file.length()).getBytes(StandardCharsets.US_ASCII));
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+			while (channel.read(buffer) != -1)
+			{
+				buffer.flip();
+				fileDigest.update(buffer);
+				buffer.clear();
+			}
+		}
+		return fileDigest.digest();
+	}
+
+	/**
+	 * Creates a new digest for hashing.
+	 *
+	 * @return A new SHA-256 digest.
+	 */
+	private static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance(HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e)
+		{
+			/*
+			 * Every Java platform has to support SHA-256
+			 */
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Writes all of the remaining bytes of a buffer to a channel.
+	 *
+	 * @param channel
+	 *            The channel to write to.
+	 * @param buffer
+	 *            The buffer to write.
+	 * @throws IOException
+	 *             If the write fails.
+	 */
+	private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+}
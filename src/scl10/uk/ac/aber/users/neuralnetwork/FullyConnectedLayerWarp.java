@@ -2,6 +2,8 @@ package scl10.uk.ac.aber.users.neuralnetwork;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.neuroph.core.data.DataSet;
@@ -13,9 +15,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import lombok.NonNull;
+import lombok.Setter;
 import scl10.uk.ac.aber.users.readers.ImageReader;
+import scl10.uk.ac.aber.users.readers.LoadedTrainingSample;
 import scl10.uk.ac.aber.users.readers.TrainingDataReader;
+import scl10.uk.ac.aber.users.readers.TrainingManifestReader;
+import scl10.uk.ac.aber.users.readers.WarpFileHeader;
 import scl10.uk.ac.aber.users.readers.WarpReader;
+import scl10.uk.ac.aber.users.registration.RegistrationApplication;
 
 /**
  * A fully connected layer neural network used for predicted the warp between
@@ -42,6 +49,19 @@ public class FullyConnectedLayerWarp extends FullyConnectedLayer
 	 */
 	private final File[] warpFiles;
 
+	/**
+	 * The manifest the training data was declared in, or null if the training
+	 * data was declared in separate paths files.
+	 */
+	private final TrainingManifestReader manifest;
+
+	/**
+	 * The cache of normalised training data. Set to null to always read the
+	 * training data from the training files.
+	 */
+	@Setter
+	private DataSetCache dataSetCache = new DataSetCache();
+
 	/**
 	 * 
 	 * @param inputSize
@@ -62,19 +82,76 @@ public class FullyConnectedLayerWarp extends FullyConnectedLayer
 	public FullyConnectedLayerWarp(final int inputSize, final int hiddenLayerSize, final int outputSize,
 			@NonNull final File imageTrainingDataFile, @NonNull final File warpTrainingDataFile)
 	{
-
 		/*
 		 * Read from the files which contain the paths of the training images
 		 * data and the training warp data.
 		 */
-		TrainingDataReader imageDataReader = new TrainingDataReader(imageTrainingDataFile);
-		TrainingDataReader warpDataReader = new TrainingDataReader(warpTrainingDataFile);
+		this(inputSize, hiddenLayerSize, outputSize,
+				new TrainingDataReader(imageTrainingDataFile).getFilesOfTrainingData(),
+				new TrainingDataReader(warpTrainingDataFile).getFilesOfTrainingData(), null);
+	}
 
-		/*
-		 * Get the files for the the images and the warps training data
-		 */
-		imagesFiles = imageDataReader.getFilesOfTrainingData();
-		warpFiles = warpDataReader.getFilesOfTrainingData();
+	/**
+	 * 
+	 * @param inputSize
+	 *            The size of the input for fully connected layer
+	 * @param hiddenLayerSize
+	 *            The size of the hidden layer for the fully connected layer
+	 * @param outputSize
+	 *            The size of the output for the fully connected layer
+	 * @param trainingManifestFile
+	 *            The manifest that declares every sample of the training data
+	 *            for the training of the artificial neural network. cannot be
+	 *            null.
+	 * @see TrainingManifestReader
+	 */
+	public FullyConnectedLayerWarp(final int inputSize, final int hiddenLayerSize, final int outputSize,
+			@NonNull final File trainingManifestFile)
+	{
+		this(inputSize, hiddenLayerSize, outputSize, new TrainingManifestReader(trainingManifestFile));
+	}
+
+	/**
+	 * Creates the layer from the samples of a training manifest.
+	 * 
+	 * @param inputSize
+	 *            The size of the input for fully connected layer
+	 * @param hiddenLayerSize
+	 *            The size of the hidden layer for the fully connected layer
+	 * @param outputSize
+	 *            The size of the output for the fully connected layer
+	 * @param manifest
+	 *            The read training manifest.
+	 */
+	private FullyConnectedLayerWarp(final int inputSize, final int hiddenLayerSize, final int outputSize,
+			final TrainingManifestReader manifest)
+	{
+		this(inputSize, hiddenLayerSize, outputSize, manifest.getImageFiles(), manifest.getWarpFiles(), manifest);
+	}
+
+	/**
+	 * Creates the layer from the training data files.
+	 * 
+	 * @param inputSize
+	 *            The size of the input for fully connected layer
+	 * @param hiddenLayerSize
+	 *            The size of the hidden layer for the fully connected layer
+	 * @param outputSize
+	 *            The size of the output for the fully connected layer
+	 * @param imagesFiles
+	 *            The training images, two per sample.
+	 * @param warpFiles
+	 *            The training warps, two per sample.
+	 * @param manifest
+	 *            The training manifest the files came from, or null if they
+	 *            came from separate paths files.
+	 */
+	private FullyConnectedLayerWarp(final int inputSize, final int hiddenLayerSize, final int outputSize,
+			final File[] imagesFiles, final File[] warpFiles, final TrainingManifestReader manifest)
+	{
+		this.imagesFiles = imagesFiles;
+		this.warpFiles = warpFiles;
+		this.manifest = manifest;
 
 		/*
 		 * Do some super rudimentary validation on the data. Prevents null
@@ -94,15 +171,16 @@ public class FullyConnectedLayerWarp extends FullyConnectedLayer
 		}
 
 		/*
-		 * BUG - same as before, just because it ends with .txt doesn't mean it
-		 * really is a text file. Prevents null pointers also.
+		 * BUG - same as before, just because it ends with .txt or .warp
+		 * doesn't mean it really is a warp file. Prevents null pointers also.
 		 */
 		for (File warpFile : warpFiles)
 		{
-			if (!warpFile.getPath().endsWith(".txt"))
+			if (!warpFile.getPath().endsWith(WarpFileHeader.TEXT_EXTENSION)
+					&& !warpFile.getPath().endsWith(WarpFileHeader.BINARY_EXTENSION))
 			{
 				throw new IllegalArgumentException(
-						"One or more of the data within your warp training data file does not contain text files. Such as "
+						"One or more of the data within your warp training data file does not contain warp files. Such as "
 								+ warpFile.getName());
 			}
 		}
@@ -126,46 +204,67 @@ public class FullyConnectedLayerWarp extends FullyConnectedLayer
 	public void trainNetwork()
 	{
 		/*
-		 * Read all of the images and the warps and the images as part of the
-		 * training data for the artificial neural network and add them all to
-		 * the training data dataset.
+		 * Work out the key of the normalised training data so a data set
+		 * cached by an earlier run can be used instead of reading it again.
 		 */
-		for (int i = 0; i < imagesFiles.length; i = i + 2)
+		byte[] cacheKey = null;
+		if (dataSetCache != null)
 		{
-			/*
-			 * Read the images from the files using the ImageReader and get them
-			 * as flat pixel arrays.
-			 */
-			double[] flatImg1 = new ImageReader(imagesFiles[i]).getAsFlatArray();
-			double[] flatImg2 = new ImageReader(imagesFiles[i + 1]).getAsFlatArray();
+			try
+			{
+				cacheKey = dataSetCache.computeKey(imagesFiles, warpFiles, RegistrationApplication.PYRAMID_LEVELS);
+			} catch (IOException e)
+			{
+				LOGGER.warn("The training data could not be hashed, the data set will not be cached.", e);
+			}
+		}
 
-			/*
-			 * Read the warp from the files using the WarpReader and get them as
-			 * flat warp arrays.
-			 */
-			double[] flatXWarp = new WarpReader(warpFiles[i]).getAsFlatArray();
-			double[] flatYWarp = new WarpReader(warpFiles[i + 1]).getAsFlatArray();
+		DataSet cachedData = cacheKey == null ? null
+				: dataSetCache.load(cacheKey, trainingData.getInputSize(), trainingData.getOutputSize());
 
-			/*
-			 * Combine the the flat images together and combine the flat warps
-			 * together
-			 */
-			double[] bothImages = ArrayUtils.addAll(flatImg1, flatImg2);
-			double[] bothWarps = ArrayUtils.addAll(flatXWarp, flatYWarp);
+		if (cachedData != null)
+		{
+			trainingData = cachedData;
+		} else
+		{
+			if (manifest != null)
+			{
+				addManifestSamplesToTrainingData();
+			} else
+			{
+				/*
+				 * Read all of the images and the warps as part of the training
+				 * data for the artificial neural network and add them all to
+				 * the training data dataset. Each distinct file is only read
+				 * once, and the reading is spread over the available
+				 * processors.
+				 */
+				TrainingDataLoader loader = new TrainingDataLoader(imagesFiles, warpFiles);
+				try
+				{
+					for (DataSetRow row : loader.loadRows())
+					{
+						trainingData.addRow(row);
+					}
+				} catch (IOException e)
+				{
+					LOGGER.error("The training data has failed to load. Failed files: " + loader.getFailedFiles(), e);
+					throw new IllegalStateException("The training data has failed to load.", e);
+				}
+			}
 
 			/*
-			 * Add it to the training data dataset. The images as the input and
-			 * the warps as the output.
+			 * Normalise the data so it's values are between 0 - 1 so it can be
+			 * used in the neural network.
 			 */
-			trainingData.addRow(new DataSetRow(bothImages, bothWarps));
-		}
+			Normalizer warpImgNormaliser = new ImageWarpNormalizer();
+			warpImgNormaliser.normalize(trainingData);
 
-		/*
-		 * Normalise the data so it's values are between 0 - 1 so it can be used
-		 * in the neural network.
-		 */
-		Normalizer warpImgNormaliser = new ImageWarpNormalizer();
-		warpImgNormaliser.normalize(trainingData);
+			if (cacheKey != null)
+			{
+				dataSetCache.store(cacheKey, trainingData);
+			}
+		}
 
 		LOGGER.info("Learning....");
 
@@ -173,6 +272,37 @@ public class FullyConnectedLayerWarp extends FullyConnectedLayer
 
 	}
 
+	/**
+	 * Adds a row to the training data for every sample of the manifest. The
+	 * next samples are read and checked on a background thread while the
+	 * current sample is flattened.
+	 */
+	private void addManifestSamplesToTrainingData()
+	{
+		try (TrainingManifestReader.PrefetchingIterator samples = manifest.iterator())
+		{
+			while (samples.hasNext())
+			{
+				LoadedTrainingSample sample = samples.next();
+
+				/*
+				 * Combine the the flat images together and combine the flat
+				 * warps together
+				 */
+				double[] bothImages = ArrayUtils.addAll(new ImageReader(sample.getSourceImage()).getAsFlatArray(),
+						new ImageReader(sample.getTargetImage()).getAsFlatArray());
+				double[] bothWarps = ArrayUtils.addAll(new WarpReader(sample.getXWarp()).getAsFlatArray(),
+						new WarpReader(sample.getYWarp()).getAsFlatArray());
+
+				trainingData.addRow(new DataSetRow(bothImages, bothWarps));
+			}
+		} catch (UncheckedIOException e)
+		{
+			LOGGER.error("The training data has failed to load.", e.getCause());
+			throw new IllegalStateException("The training data has failed to load.", e.getCause());
+		}
+	}
+
 	/**
 	 * Use the input images as testing data for the fully connected layer which
 	 * will predict the x and y warp between the two images.
@@ -32,6 +32,23 @@ public class ImageWarpNormalizer implements Normalizer
 	 * (original[i]+50.0/32.0)/(100.0/32.0).
 	 */
 
+	/**
+	 * The largest value a pixel can have. Pixels are divided by this.
+	 */
+	public static final double MAX_PIXEL_VALUE = 255.0D;
+
+	/**
+	 * The largest shift, in pixels at the original image size, a warp is
+	 * assumed to have in either direction.
+	 */
+	public static final double MAX_WARP_SHIFT = 50.0D;
+
+	/**
+	 * The range of shifts a warp is assumed to cover, from -
+	 * {@link #MAX_WARP_SHIFT} to + {@link #MAX_WARP_SHIFT}.
+	 */
+	public static final double WARP_RANGE = 2.0D * MAX_WARP_SHIFT;
+
 	/**
 	 * Provides a method of un-normalising the output from an artificial neural
 	 * network that was normalised using the class.
@@ -51,7 +68,7 @@ public class ImageWarpNormalizer implements Normalizer
 		{
 			for (int j = 0; j < inputWarp[0].length; j++)
 			{
-				inputWarp[i][j] = ((inputWarp[i][j] * 100.0D) - 50.0D)
+				inputWarp[i][j] = ((inputWarp[i][j] * WARP_RANGE) - MAX_WARP_SHIFT)
 						/ Math.pow(2, RegistrationApplication.PYRAMID_LEVELS);
 			}
 		}
@@ -67,30 +84,42 @@ public class ImageWarpNormalizer implements Normalizer
 	{
 		for (DataSetRow row : dataSet.getRows())
 		{
-			double[] rowInput = row.getInput();
-			double[] rowOutput = row.getDesiredOutput();
+			normalize(row);
+		}
+	}
 
-			/*
-			 * Divide the image pixel values by 255
-			 */
-			for (int i = 0; i < rowInput.length; i++)
-			{
-				double currentInput = rowInput[i];
-				double normalized = currentInput / 255.0D;
-				rowInput[i] = normalized;
-			}
+	/**
+	 * Normalises the input pixel values and the output warp of a single row,
+	 * for rows which are not held in a data set.
+	 * 
+	 * @param row
+	 *            The row to be normalised in place. cannot be null.
+	 */
+	public void normalize(@NonNull final DataSetRow row)
+	{
+		double[] rowInput = row.getInput();
+		double[] rowOutput = row.getDesiredOutput();
 
-			/*
-			 * Assume the warp has a maximum shift of +/- 50 so add 50 to the
-			 * output and divide by 100.
-			 */
-			for (int j = 0; j < rowOutput.length; j++)
-			{
-				double desiredOutput = rowOutput[j];
-				double factor = Math.pow(2, RegistrationApplication.PYRAMID_LEVELS);
-				double normalized = (desiredOutput + 50.0D / factor) / (100.0D / factor);
-				rowOutput[j] = normalized;
-			}
+		/*
+		 * Divide the image pixel values by 255
+		 */
+		for (int i = 0; i < rowInput.length; i++)
+		{
+			double currentInput = rowInput[i];
+			double normalized = currentInput / MAX_PIXEL_VALUE;
+			rowInput[i] = normalized;
+		}
+
+		/*
+		 * Assume the warp has a maximum shift of +/- 50 so add 50 to the
+		 * output and divide by 100.
+		 */
+		for (int j = 0; j < rowOutput.length; j++)
+		{
+			double desiredOutput = rowOutput[j];
+			double factor = Math.pow(2, RegistrationApplication.PYRAMID_LEVELS);
+			double normalized = (desiredOutput + MAX_WARP_SHIFT / factor) / (WARP_RANGE / factor);
+			rowOutput[j] = normalized;
 		}
 	}
 }
@@ -0,0 +1,632 @@
+package scl10.uk.ac.aber.users.neuralnetwork;
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.neuroph.core.data.DataSet;
+import org.neuroph.core.data.DataSetRow;
+
+import lombok.Getter;
+import lombok.NonNull;
+import scl10.uk.ac.aber.users.manipulators.PatchedImage;
+
+/**
+ * Generates the convolution layer's training rows from a source and target
+ * image pair as they are needed, instead of holding a row for every pixel in
+ * memory.
+ * <p>
+ * Each row is the same as the one built from {@link PatchedImage} patches: a
+ * 7 x 7 patch of the source image and the same patch of the target image
+ * around a pixel, with the edges reflected, flattened column by column, as the
+ * input, and the x and y shift of that pixel as the output. Rows are
+ * normalised by the {@link ImageWarpNormalizer} as they are generated.
+ * <p>
+ * Which pixels are used is decided by a {@link Strategy} and a row budget,
+ * which bounds the number of rows used per pass over the pair.
+ *
+ * @author Scott Lockett
+ */
+public final class PatchSampler
+{
+
+	/**
+	 * The ways the pixels rows are generated for are chosen.
+	 */
+	public enum Strategy
+	{
+		/**
+		 * Every pixel, row by row. The row budget is ignored.
+		 */
+		ALL,
+
+		/**
+		 * A different random set of pixels each pass, each pixel equally
+		 * likely to be chosen.
+		 */
+		UNIFORM,
+
+		/**
+		 * The image is split into a grid of cells and a different random
+		 * pixel is chosen from each cell each pass, so the whole image is
+		 * always covered.
+		 */
+		STRATIFIED,
+
+		/**
+		 * A random set of pixels kept in memory, chosen with reservoir
+		 * sampling. A {@link Reservoir} can be shared between pairs so the
+		 * rows kept are a random sample of every pair seen.
+		 */
+		RESERVOIR
+	}
+
+	/**
+	 * The width and height of each patch
+	 */
+	public static final int PATCH_SIZE = 7;
+
+	/**
+	 * The number of values of each row's input, a source and a target patch
+	 */
+	public static final int INPUT_SIZE = PATCH_SIZE * PATCH_SIZE * 2;
+
+	/**
+	 * The number of values of each row's output, an x and a y shift
+	 */
+	public static final int OUTPUT_SIZE = 2;
+
+	/**
+	 * The source image patches are taken from
+	 */
+	private final PatchedImage patchedSource;
+
+	/**
+	 * The target image patches are taken from
+	 */
+	private final PatchedImage patchedTarget;
+
+	/**
+	 * The x warp between the source and the target
+	 */
+	private final double[][] xWarp;
+
+	/**
+	 * The y warp between the source and the target
+	 */
+	private final double[][] yWarp;
+
+	/**
+	 * The width of the images
+	 */
+	@Getter
+	private final int width;
+
+	/**
+	 * The height of the images
+	 */
+	@Getter
+	private final int height;
+
+	/**
+	 * The normaliser applied to each row
+	 */
+	private final ImageWarpNormalizer normaliser = new ImageWarpNormalizer();
+
+	/**
+	 * Creates a new patch sampler for a training pair.
+	 *
+	 * @param source
+	 *            The source image. cannot be null.
+	 * @param target
+	 *            The target image. cannot be null.
+	 * @param xWarp
+	 *            The ground truth x warp between the target and source image.
+	 *            cannot be null.
+	 * @param yWarp
+	 *            The ground truth y warp between the target and source image.
+	 *            cannot be null.
+	 */
+	public PatchSampler(@NonNull final BufferedImage source, @NonNull final BufferedImage target,
+			@NonNull final double[][] xWarp, @NonNull final double[][] yWarp)
+	{
+		width = source.getWidth();
+		height = source.getHeight();
+
+		if (target.getWidth() != width || target.getHeight() != height || xWarp.length != height
+				|| yWarp.length != height || xWarp[0].length != width || yWarp[0].length != width)
+		{
+			throw new IllegalArgumentException("The images and warps of a training pair must be the same size.");
+		}
+
+		patchedSource = new PatchedImage(source);
+		patchedTarget = new PatchedImage(target);
+		this.xWarp = xWarp;
+		this.yWarp = yWarp;
+	}
+
+	/**
+	 * Creates the normalised training row of a single pixel.
+	 *
+	 * @param x
+	 *            The column of the pixel.
+	 * @param y
+	 *            The row of the pixel.
+	 * @return The normalised training row.
+	 */
+	public DataSetRow createRow(final int x, final int y)
+	{
+		double[] input = new double[INPUT_SIZE];
+		PatchedImage.fillPatchMatrix(patchedSource, patchedTarget, PATCH_SIZE, y * width + x, 1, input);
+
+		DataSetRow row = new DataSetRow(input, new double[] { xWarp[y][x], yWarp[y][x] });
+		normaliser.normalize(row);
+		return row;
+	}
+
+	/**
+	 * Get an iterator over the training rows chosen by a strategy. Rows are
+	 * generated as they are iterated, except for {@link Strategy#RESERVOIR}
+	 * which has to see every pixel before the first row is returned.
+	 *
+	 * @param strategy
+	 *            How the pixels are chosen. cannot be null.
+	 * @param rowBudget
+	 *            The most rows returned. Must be greater than 0.
+	 * @param random
+	 *            The source of randomness. cannot be null.
+	 * @return An iterator over the chosen training rows.
+	 */
+	public Iterator<DataSetRow> iterator(@NonNull final Strategy strategy, final int rowBudget,
+			@NonNull final Random random)
+	{
+		if (rowBudget <= 0)
+		{
+			throw new IllegalArgumentException("The row budget must be greater than 0. " + rowBudget);
+		}
+
+		switch (strategy)
+		{
+		case ALL:
+			return new PixelIterator(PixelSelection.all(width, height));
+		case UNIFORM:
+			return new PixelIterator(PixelSelection.uniform(width, height, rowBudget, random));
+		case STRATIFIED:
+			return new PixelIterator(PixelSelection.stratified(width, height, rowBudget, random));
+		case RESERVOIR:
+			Reservoir reservoir = new Reservoir(rowBudget, random);
+			reservoir.offer(this);
+			return reservoir.getDataSet().iterator();
+		default:
+			throw new IllegalArgumentException("Unknown sampling strategy " + strategy);
+		}
+	}
+
+	/**
+	 * Get a data set which generates its rows each time it is iterated, so a
+	 * neural network can learn from it without the rows ever being held in
+	 * memory together. Each pass chooses new pixels for the random
+	 * strategies.
+	 * <p>
+	 * Only iterating over the data set and its size are supported. The rows
+	 * can not be got by index.
+	 *
+	 * @param strategy
+	 *            How the pixels are chosen. cannot be null.
+	 * @param rowBudget
+	 *            The most rows used per pass. Must be greater than 0.
+	 * @param random
+	 *            The source of randomness. cannot be null.
+	 * @return The streaming data set.
+	 */
+	public DataSet asDataSet(@NonNull final Strategy strategy, final int rowBudget, @NonNull final Random random)
+	{
+		if (strategy == Strategy.RESERVOIR)
+		{
+			Reservoir reservoir = new Reservoir(rowBudget, random);
+			reservoir.offer(this);
+			return reservoir.getDataSet();
+		}
+
+		/*
+		 * Check the budget up front rather than on the first pass
+		 */
+		iterator(strategy, rowBudget, random);
+
+		return new StreamingDataSet(this, strategy, rowBudget, random);
+	}
+
+	/**
+	 * Get the number of rows a strategy produces per pass.
+	 *
+	 * @param strategy
+	 *            How the pixels are chosen. cannot be null.
+	 * @param rowBudget
+	 *            The most rows used per pass. Must be greater than 0.
+	 * @return The number of rows per pass.
+	 */
+	public int countRows(@NonNull final Strategy strategy, final int rowBudget)
+	{
+		long pixels = (long) width * height;
+		switch (strategy)
+		{
+		case ALL:
+			return (int) pixels;
+		case STRATIFIED:
+			return PixelSelection.countCells(width, height, PixelSelection.cellSize(width, height, rowBudget));
+		default:
+			return (int) Math.min(pixels, rowBudget);
+		}
+	}
+
+	/**
+	 * A bounded, random sample of training rows kept in memory. Every row
+	 * offered to the reservoir is equally likely to be kept, however many rows
+	 * are offered, so a reservoir shared between training pairs holds an even
+	 * sample of all of them.
+	 */
+	public static final class Reservoir
+	{
+
+		/**
+		 * The rows kept
+		 */
+		@Getter
+		private final DataSet dataSet = new DataSet(INPUT_SIZE, OUTPUT_SIZE);
+
+		/**
+		 * The most rows kept
+		 */
+		@Getter
+		private final int rowBudget;
+
+		/**
+		 * The source of randomness
+		 */
+		private final Random random;
+
+		/**
+		 * The number of rows offered so far
+		 */
+		@Getter
+		private long rowsSeen;
+
+		/**
+		 * Creates a new empty reservoir.
+		 *
+		 * @param rowBudget
+		 *            The most rows kept. Must be greater than 0.
+		 * @param random
+		 *            The source of randomness. cannot be null.
+		 */
+		public Reservoir(final int rowBudget, @NonNull final Random random)
+		{
+			if (rowBudget <= 0)
+			{
+				throw new IllegalArgumentException("The row budget must be greater than 0. " + rowBudget);
+			}
+
+			this.rowBudget = rowBudget;
+			this.random = random;
+		}
+
+		/**
+		 * Offers every pixel of a training pair to the reservoir. Rows are
+		 * only generated for the pixels that are kept.
+		 *
+		 * @param sampler
+		 *            The sampler of the training pair. cannot be null.
+		 */
+		public void offer(@NonNull final PatchSampler sampler)
+		{
+			for (int y = 0; y < sampler.height; y++)
+			{
+				for (int x = 0; x < sampler.width; x++)
+				{
+					if (dataSet.size() < rowBudget)
+					{
+						dataSet.add(sampler.createRow(x, y));
+					} else
+					{
+						/*
+						 * Replace a random kept row with a chance of budget /
+						 * rows seen
+						 */
+						long slot = (long) (random.nextDouble() * (rowsSeen + 1));
+						if (slot < rowBudget)
+						{
+							dataSet.getRows().set((int) slot, sampler.createRow(x, y));
+						}
+					}
+					rowsSeen++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The pixels chosen for a single pass over a training pair, in the order
+	 * they are used.
+	 */
+	private interface PixelSelection
+	{
+
+		/**
+		 * Moves to the next chosen pixel.
+		 *
+		 * @param pixel
+		 *            Set to the column and row of the next pixel.
+		 * @return false if there are no more pixels.
+		 */
+		boolean next(int[] pixel);
+
+		/**
+		 * Chooses every pixel, row by row.
+		 *
+		 * @param width
+		 *            The width of the images.
+		 * @param height
+		 *            The height of the images.
+		 * @return The selection.
+		 */
+		static PixelSelection all(final int width, final int height)
+		{
+			long[] index = new long[] { 0 };
+			long pixels = (long) width * height;
+
+			return pixel ->
+			{
+				if (index[0] >= pixels)
+				{
+					return false;
+				}
+				pixel[0] = (int) (index[0] % width);
+				pixel[1] = (int) (index[0] / width);
+				index[0]++;
+				return true;
+			};
+		}
+
+		/**
+		 * Chooses a random set of pixels, row by row, with selection sampling
+		 * so nothing but the current position is held.
+		 *
+		 * @param width
+		 *            The width of the images.
+		 * @param height
+		 *            The height of the images.
+		 * @param rowBudget
+		 *            The number of pixels to choose.
+		 * @param random
+		 *            The source of randomness.
+		 * @return The selection.
+		 */
+		static PixelSelection uniform(final int width, final int height, final int rowBudget, final Random random)
+		{
+			long pixels = (long) width * height;
+			long[] state = new long[] { 0, Math.min(pixels, rowBudget) };
+
+			return pixel ->
+			{
+				/*
+				 * Choose each pixel with a chance of still needed / still left
+				 */
+				while (state[1] > 0)
+				{
+					long index = state[0]++;
+					if (random.nextDouble() * (pixels - index) < state[1])
+					{
+						state[1]--;
+						pixel[0] = (int) (index % width);
+						pixel[1] = (int) (index / width);
+						return true;
+					}
+				}
+				return false;
+			};
+		}
+
+		/**
+		 * Chooses a random pixel from each cell of a grid covering the image.
+		 *
+		 * @param width
+		 *            The width of the images.
+		 * @param height
+		 *            The height of the images.
+		 * @param rowBudget
+		 *            The most cells.
+		 * @param random
+		 *            The source of randomness.
+		 * @return The selection.
+		 */
+		static PixelSelection stratified(final int width, final int height, final int rowBudget,
+				final Random random)
+		{
+			int cellSize = cellSize(width, height, rowBudget);
+			int cellsAcross = (width + cellSize - 1) / cellSize;
+			int cells = countCells(width, height, cellSize);
+			int[] cell = new int[] { 0 };
+
+			return pixel ->
+			{
+				if (cell[0] >= cells)
+				{
+					return false;
+				}
+				int cellX = (cell[0] % cellsAcross) * cellSize;
+				int cellY = (cell[0] / cellsAcross) * cellSize;
+				pixel[0] = cellX + random.nextInt(Math.min(cellSize, width - cellX));
+				pixel[1] = cellY + random.nextInt(Math.min(cellSize, height - cellY));
+				cell[0]++;
+				return true;
+			};
+		}
+
+		/**
+		 * Works out the smallest square cell size which splits the image into
+		 * no more cells than the budget.
+		 *
+		 * @param width
+		 *            The width of the images.
+		 * @param height
+		 *            The height of the images.
+		 * @param rowBudget
+		 *            The most cells.
+		 * @return The width and height of each cell.
+		 */
+		static int cellSize(final int width, final int height, final int rowBudget)
+		{
+			int cellSize = Math.max(1, (int) Math.sqrt((double) width * height / rowBudget));
+			while (countCells(width, height, cellSize) > rowBudget)
+			{
+				cellSize++;
+			}
+			return cellSize;
+		}
+
+		/**
+		 * Counts the cells of a grid covering the image.
+		 *
+		 * @param width
+		 *            The width of the images.
+		 * @param height
+		 *            The height of the images.
+		 * @param cellSize
+		 *            The width and height of each cell.
+		 * @return The number of cells.
+		 */
+		static int countCells(final int width, final int height, final int cellSize)
+		{
+			return (int) Math.min(Integer.MAX_VALUE,
+					(long) ((width + cellSize - 1) / cellSize) * ((height + cellSize - 1) / cellSize));
+		}
+	}
+
+	/**
+	 * An iterator which generates the rows of the chosen pixels as they are
+	 * needed.
+	 */
+	private final class PixelIterator implements Iterator<DataSetRow>
+	{
+
+		/**
+		 * The chosen pixels
+		 */
+		private final PixelSelection selection;
+
+		/**
+		 * The column and row of the next pixel
+		 */
+		private final int[] pixel = new int[2];
+
+		/**
+		 * Whether there is a next pixel
+		 */
+		private boolean hasNext;
+
+		/**
+		 * Creates a new iterator over the chosen pixels.
+		 *
+		 * @param selection
+		 *            The chosen pixels.
+		 */
+		PixelIterator(final PixelSelection selection)
+		{
+			this.selection = selection;
+			this.hasNext = selection.next(pixel);
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return hasNext;
+		}
+
+		@Override
+		public DataSetRow next()
+		{
+			if (!hasNext)
+			{
+				throw new NoSuchElementException();
+			}
+			DataSetRow row = createRow(pixel[0], pixel[1]);
+			hasNext = selection.next(pixel);
+			return row;
+		}
+	}
+
+	/**
+	 * A data set which generates its rows each time it is iterated. Neuroph's
+	 * supervised learning only ever iterates over the training set, so this is
+	 * enough for a network to learn from.
+	 */
+	private static final class StreamingDataSet extends DataSet
+	{
+
+		/**
+		 * Generated data sets are never serialised
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The sampler the rows are generated by
+		 */
+		private final transient PatchSampler sampler;
+
+		/**
+		 * How the pixels are chosen
+		 */
+		private final Strategy strategy;
+
+		/**
+		 * The most rows used per pass
+		 */
+		private final int rowBudget;
+
+		/**
+		 * The source of randomness
+		 */
+		private final transient Random random;
+
+		/**
+		 * Creates a new streaming data set.
+		 *
+		 * @param sampler
+		 *            The sampler the rows are generated by.
+		 * @param strategy
+		 *            How the pixels are chosen.
+		 * @param rowBudget
+		 *            The most rows used per pass.
+		 * @param random
+		 *            The source of randomness.
+		 */
+		StreamingDataSet(final PatchSampler sampler, final Strategy strategy, final int rowBudget,
+				final Random random)
+		{
+			super(INPUT_SIZE, OUTPUT_SIZE);
+			this.sampler = sampler;
+			this.strategy = strategy;
+			this.rowBudget = rowBudget;
+			this.random = random;
+		}
+
+		@Override
+		public Iterator<DataSetRow> iterator()
+		{
+			return sampler.iterator(strategy, rowBudget, random);
+		}
+
+		@Override
+		public int size()
+		{
+			return sampler.countRows(strategy, rowBudget);
+		}
+
+		@Override
+		public boolean isEmpty()
+		{
+			return size() == 0;
+		}
+	}
+}
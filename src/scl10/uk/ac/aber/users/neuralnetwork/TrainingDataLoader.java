@@ -0,0 +1,367 @@
+package scl10.uk.ac.aber.users.neuralnetwork;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.neuroph.core.data.DataSetRow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lombok.Getter;
+import lombok.NonNull;
+import scl10.uk.ac.aber.users.readers.ImageReader;
+import scl10.uk.ac.aber.users.readers.WarpReader;
+
+/**
+ * Loads the training data for the {@link FullyConnectedLayerWarp}. The
+ * training data lists pairs of images and pairs of warps, with the same image
+ * appearing in many pairs. Each distinct file is only read once, into a cache
+ * of flat arrays, and the files are read and the rows built on a bounded pool
+ * of threads.
+ * <p>
+ * If any file fails to be read, every failure is logged and the load fails,
+ * rather than training on a partial data set.
+ *
+ * @author Scott Lockett
+ */
+public final class TrainingDataLoader
+{
+
+	/**
+	 * Create the logger for logging messages
+	 */
+	private static Logger LOGGER = LoggerFactory.getLogger(TrainingDataLoader.class);
+
+	/**
+	 * The images used in the training, two per row
+	 */
+	private final File[] imageFiles;
+
+	/**
+	 * The warps used in the training, two per row
+	 */
+	private final File[] warpFiles;
+
+	/**
+	 * The number of threads used to read the files and build the rows
+	 */
+	@Getter
+	private final int threads;
+
+	/**
+	 * The files that failed to be read during the last load
+	 */
+	private final List<File> failedFiles = Collections.synchronizedList(new ArrayList<File>());
+
+	/**
+	 * Creates a new training data loader that uses a thread for each available
+	 * processor.
+	 *
+	 * @param imageFiles
+	 *            The image files, in pairs of source and target. cannot be
+	 *            null.
+	 * @param warpFiles
+	 *            The warp files, in pairs of x warp and y warp. cannot be null.
+	 */
+	public TrainingDataLoader(@NonNull final File[] imageFiles, @NonNull final File[] warpFiles)
+	{
+		this(imageFiles, warpFiles, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Creates a new training data loader.
+	 *
+	 * @param imageFiles
+	 *            The image files, in pairs of source and target. cannot be
+	 *            null.
+	 * @param warpFiles
+	 *            The warp files, in pairs of x warp and y warp. cannot be null.
+	 * @param threads
+	 *            The most threads to read the files with. Must be greater than
+	 *            0.
+	 */
+	public TrainingDataLoader(@NonNull final File[] imageFiles, @NonNull final File[] warpFiles, final int threads)
+	{
+		if (imageFiles.length % 2 != 0 || imageFiles.length != warpFiles.length)
+		{
+			throw new IllegalArgumentException("The training data must be pairs of images and pairs of warps. "
+					+ imageFiles.length + " images, " + warpFiles.length + " warps.");
+		}
+
+		if (threads <= 0)
+		{
+			throw new IllegalArgumentException("The number of threads must be greater than 0. " + threads);
+		}
+
+		this.imageFiles = imageFiles;
+		this.warpFiles = warpFiles;
+		this.threads = threads;
+	}
+
+	/**
+	 * Reads all of the training data and builds a row for each pair, with both
+	 * images as the input and both warps as the output. The rows are in the
+	 * same order as the pairs, and pairs which are listed more than once get a
+	 * row each time.
+	 *
+	 * @return The rows of the training data.
+	 * @throws IOException
+	 *             If any of the files fail to be read. Every failed file is
+	 *             logged and listed in the message.
+	 */
+	public List<DataSetRow> loadRows() throws IOException
+	{
+		failedFiles.clear();
+
+		/*
+		 * Find each distinct file once. Files are keyed on their canonical
+		 * path so the same file written two different ways is still only read
+		 * once.
+		 */
+		Map<File, double[]> images = distinctFiles(imageFiles);
+		Map<File, double[]> warps = distinctFiles(warpFiles);
+
+		LOGGER.info("Reading " + images.size() + " distinct images and " + warps.size() + " distinct warps for "
+				+ imageFiles.length / 2 + " training pairs");
+
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(threads, images.size() + warps.size())));
+		try
+		{
+			/*
+			 * Read every distinct file into the caches
+			 */
+			List<Callable<Void>> reads = new ArrayList<>();
+			for (File imageFile : images.keySet())
+			{
+				reads.add(() -> readImage(imageFile, images));
+			}
+			for (File warpFile : warps.keySet())
+			{
+				reads.add(() -> readWarp(warpFile, warps));
+			}
+			waitForAll(executor.invokeAll(reads));
+
+			if (!failedFiles.isEmpty())
+			{
+				throw new IOException("Failed to read " + failedFiles.size() + " training files: " + failedFiles);
+			}
+
+			/*
+			 * Build the rows from the cached arrays. Each row gets its own
+			 * arrays as the normaliser changes the rows in place.
+			 */
+			List<Callable<DataSetRow>> rows = new ArrayList<>();
+			for (int i = 0; i < imageFiles.length; i = i + 2)
+			{
+				double[] flatImg1 = images.get(canonical(imageFiles[i]));
+				double[] flatImg2 = images.get(canonical(imageFiles[i + 1]));
+				double[] flatXWarp = warps.get(canonical(warpFiles[i]));
+				double[] flatYWarp = warps.get(canonical(warpFiles[i + 1]));
+
+				rows.add(() -> new DataSetRow(concatenate(flatImg1, flatImg2), concatenate(flatXWarp, flatYWarp)));
+			}
+
+			return waitForAll(executor.invokeAll(rows));
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading the training data", e);
+		} finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Get the files that failed to be read during the last load.
+	 *
+	 * @return The failed files, empty if every file was read.
+	 */
+	public List<File> getFailedFiles()
+	{
+		synchronized (failedFiles)
+		{
+			return new ArrayList<>(failedFiles);
+		}
+	}
+
+	/**
+	 * Reads an image and puts its flat array into the cache.
+	 *
+	 * @param imageFile
+	 *            The image to be read.
+	 * @param cache
+	 *            The cache the flat image is put into.
+	 * @return Nothing.
+	 */
+	private Void readImage(final File imageFile, final Map<File, double[]> cache)
+	{
+		try
+		{
+			BufferedImage image = ImageReader.readImageFile(imageFile);
+			if (image == null)
+			{
+				fail(imageFile, null);
+				return null;
+			}
+
+			store(cache, imageFile, new ImageReader(image).getAsFlatArray());
+		} catch (RuntimeException e)
+		{
+			fail(imageFile, e);
+		}
+		return null;
+	}
+
+	/**
+	 * Reads a warp and puts its flat array into the cache.
+	 *
+	 * @param warpFile
+	 *            The warp to be read.
+	 * @param cache
+	 *            The cache the flat warp is put into.
+	 * @return Nothing.
+	 */
+	private Void readWarp(final File warpFile, final Map<File, double[]> cache)
+	{
+		try
+		{
+			double[][] warp = WarpReader.readWarpFile(warpFile);
+			if (warp == null || warp.length == 0)
+			{
+				fail(warpFile, null);
+				return null;
+			}
+
+			store(cache, warpFile, new WarpReader(warp).getAsFlatArray());
+		} catch (RuntimeException e)
+		{
+			fail(warpFile, e);
+		}
+		return null;
+	}
+
+	/**
+	 * Records a file that failed to be read.
+	 *
+	 * @param file
+	 *            The file that failed.
+	 * @param cause
+	 *            Why it failed, can be null if the reader has already logged
+	 *            the cause.
+	 */
+	private void fail(final File file, final Throwable cause)
+	{
+		LOGGER.error("Training file has failed to be read: " + file.getPath(), cause);
+		failedFiles.add(file);
+	}
+
+	/**
+	 * Creates a cache entry for each distinct file, in the order the files are
+	 * first listed.
+	 *
+	 * @param files
+	 *            The files, which may contain duplicates.
+	 * @return A map with a key for each distinct file.
+	 * @throws IOException
+	 *             If a file's canonical path can not be found.
+	 */
+	private static Map<File, double[]> distinctFiles(final File[] files) throws IOException
+	{
+		Map<File, double[]> distinct = new LinkedHashMap<>();
+		for (File file : files)
+		{
+			distinct.put(canonical(file), null);
+		}
+		return distinct;
+	}
+
+	/**
+	 * Puts a value into one of the caches. The caches' keys are all added
+	 * before the reading starts, so only the values are set here.
+	 *
+	 * @param cache
+	 *            The cache to put the value in.
+	 * @param file
+	 *            The key of the value.
+	 * @param value
+	 *            The value.
+	 */
+	private static void store(final Map<File, double[]> cache, final File file, final double[] value)
+	{
+		synchronized (cache)
+		{
+			cache.put(file, value);
+		}
+	}
+
+	/**
+	 * Get the canonical form of a file so duplicate paths map to one key.
+	 *
+	 * @param file
+	 *            The file.
+	 * @return The canonical file.
+	 * @throws IOException
+	 *             If the canonical path can not be found.
+	 */
+	private static File canonical(final File file) throws IOException
+	{
+		return file.getCanonicalFile();
+	}
+
+	/**
+	 * Joins two arrays into a new array.
+	 *
+	 * @param first
+	 *            The first array.
+	 * @param second
+	 *            The second array.
+	 * @return A new array of the first array followed by the second.
+	 */
+	private static double[] concatenate(final double[] first, final double[] second)
+	{
+		double[] both = new double[first.length + second.length];
+		System.arraycopy(first, 0, both, 0, first.length);
+		System.arraycopy(second, 0, both, first.length, second.length);
+		return both;
+	}
+
+	/**
+	 * Waits for every task and collects the results in order.
+	 *
+	 * @param futures
+	 *            The futures of the tasks.
+	 * @return The results of the tasks.
+	 * @throws IOException
+	 *             If any of the tasks threw an exception.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting.
+	 */
+	private static <T> List<T> waitForAll(final List<Future<T>> futures) throws IOException, InterruptedException
+	{
+		List<T> results = new ArrayList<>(futures.size());
+		for (Future<T> future : futures)
+		{
+			try
+			{
+				results.add(future.get());
+			} catch (ExecutionException e)
+			{
+				throw new IOException("Failed to load the training data", e.getCause());
+			}
+		}
+		return results;
+	}
+}
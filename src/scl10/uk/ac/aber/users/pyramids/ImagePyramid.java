@@ -1,18 +1,44 @@
 package scl10.uk.ac.aber.users.pyramids;
 
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
 import org.opencv.core.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import lombok.Getter;
 import lombok.NonNull;
 import scl10.uk.ac.aber.users.manipulators.ImageManipulator;
+import scl10.uk.ac.aber.users.manipulators.MatPool;
 
 /**
  * A class to represent an image pyramid created by downsampling an image a
  * series of times.
+ * <p>
+ * The levels are only downsampled the first time they're asked for, and kept
+ * until they are evicted or the pyramid is released. A level is downsampled
+ * from the nearest level below it that is being kept, and the levels in
+ * between are kept on the way. The matrix of the original image is only
+ * created if it is asked for, as the original image is already at hand.
+ * <p>
+ * A coarse-to-fine loop can {@link #prefetch(int)} the next level while it is
+ * working on the current one, and {@link #evict(int)} each level once it's
+ * finished with so only the levels it is working on are held.
+ * <p>
+ * A pyramid shared through an {@link ImagePyramidCache} is there so its levels
+ * are not downsampled again, so its levels must not be evicted. Getting the
+ * smallest level downsamples the matrix of every level on the way, so the loop
+ * instead uses {@link #evictMatrix(int)} to hand back each level's matrix once
+ * its image has been got. The images are kept until the cache drops the
+ * pyramid, and are at most half of {@link #getMaximumBytes()}.
+ * <p>
+ * A pyramid can also be read from an {@link ImagePyramidFile}, in which case
+ * each level is read from the file rather than downsampled.
  * 
  * @author Scott Lockett
  *
@@ -20,21 +46,63 @@ import scl10.uk.ac.aber.users.manipulators.ImageManipulator;
 public final class ImagePyramid
 {
 
+	/**
+	 * Create a logger to log messages.
+	 */
+	private static final Logger LOGGER = LoggerFactory.getLogger(ImagePyramid.class);
+
+	/**
+	 * The background thread levels are prefetched on, shared by every pyramid
+	 */
+	private static final ExecutorService PREFETCHER = Executors.newSingleThreadExecutor(runnable ->
+	{
+		Thread thread = new Thread(runnable, "image-pyramid-prefetch");
+		thread.setDaemon(true);
+		return thread;
+	});
+
 	/**
 	 * The number of the time the image is going to be sampled.
 	 */
 	private final int PYRAMID_LEVELS;
 
 	/**
-	 * The original image which the pyramid is formed from
+	 * The pyramid file the levels are read from, or null if the levels are
+	 * downsampled from the original image
+	 */
+	private final ImagePyramidFile storedLevels;
+
+	/**
+	 * The OpenCV type of the matrix at each level
+	 */
+	private final int matrixType;
+
+	/**
+	 * The matrix at each level, null until the level is downsampled or after
+	 * it has been evicted.
 	 */
-	@Getter
-	private final BufferedImage originalImage;
+	private final Mat[] matrixPyramid;
 
 	/**
-	 * The pyramid of the images at each level
+	 * Whether the matrices have been handed back to the pool
 	 */
-	private final List<BufferedImage> imagePyramidList = new ArrayList<>();
+	private boolean released;
+
+	/**
+	 * The images at each level, converted from the matrices the first time
+	 * they're asked for.
+	 */
+	private final BufferedImage[] imagePyramid;
+
+	/**
+	 * The width of the image at each level
+	 */
+	private final int[] widths;
+
+	/**
+	 * The height of the image at each level
+	 */
+	private final int[] heights;
 
 	/**
 	 * The size of each of the sampled images at each layer of the pyramid
@@ -42,109 +110,535 @@ public final class ImagePyramid
 	private final ArrayList<Size> sizePyramid = new ArrayList<>();
 
 	/**
-	 * Creates a new image pyramid from the input image.
+	 * Creates a new image pyramid from the input image. No levels are
+	 * downsampled until they're asked for.
 	 * 
 	 * @param img
 	 *            The image which the pyramid is going to be formed from. Can
 	 *            not be null.
 	 * @param levels
-	 *            The number of levels within the pyramid
+	 *            The number of levels within the pyramid. Can not be negative.
 	 */
 	public ImagePyramid(@NonNull final BufferedImage img, final int levels)
 	{
+		if (levels < 0)
+		{
+			throw new IllegalArgumentException("The number of pyramid levels can not be negative. " + levels);
+		}
+
+		storedLevels = null;
+		matrixType = ImageManipulator.getMatrixType(img);
+
+		/*
+		 * Set the number of levels within the pyramid
+		 */
+		PYRAMID_LEVELS = levels;
+
+		matrixPyramid = new Mat[levels + 1];
+		imagePyramid = new BufferedImage[levels + 1];
+
 		/*
 		 * Set the original image
 		 */
-		originalImage = img;
+		imagePyramid[0] = img;
+
+		/*
+		 * Work out the size of each level. Each level halves the one below it,
+		 * rounding down, the same as the downsampling does.
+		 */
+		widths = new int[levels + 1];
+		heights = new int[levels + 1];
+		widths[0] = img.getWidth();
+		heights[0] = img.getHeight();
+		sizePyramid.add(new Size(widths[0], heights[0]));
+
+		for (int i = 1; i <= levels; i++)
+		{
+			widths[i] = widths[i - 1] / 2;
+			heights[i] = heights[i - 1] / 2;
+			sizePyramid.add(new Size(widths[i], heights[i]));
+		}
+	}
+
+	/**
+	 * Creates an image pyramid whose levels are read from a pyramid file rather
+	 * than downsampled. The file is closed when the pyramid is released.
+	 * 
+	 * @param storedLevels
+	 *            The opened pyramid file. cannot be null.
+	 * @param levels
+	 *            The number of levels within the pyramid. Can not be negative,
+	 *            and the file must have at least this many levels below its
+	 *            original size.
+	 */
+	public ImagePyramid(@NonNull final ImagePyramidFile storedLevels, final int levels)
+	{
+		if (levels < 0 || levels >= storedLevels.getLevels())
+		{
+			throw new IllegalArgumentException("The pyramid file has " + (storedLevels.getLevels() - 1)
+					+ " levels below its original size, not " + levels);
+		}
+
+		this.storedLevels = storedLevels;
+		matrixType = storedLevels.getMatrixType();
 
 		/*
 		 * Set the number of levels within the pyramid
 		 */
 		PYRAMID_LEVELS = levels;
 
+		matrixPyramid = new Mat[levels + 1];
+		imagePyramid = new BufferedImage[levels + 1];
+
 		/*
-		 * Create the pyramid
+		 * The sizes of the levels are stored in the file
 		 */
-		createImagePyramid();
+		widths = new int[levels + 1];
+		heights = new int[levels + 1];
+		for (int i = 0; i <= levels; i++)
+		{
+			widths[i] = storedLevels.getWidth(i);
+			heights[i] = storedLevels.getHeight(i);
+			sizePyramid.add(new Size(widths[i], heights[i]));
+		}
 	}
 
 	/**
-	 * Creates the image pyramid by downsampeling the original input image
-	 * {@link ImagePyramid#PYRAMID_LEVELS} times.
+	 * Downsamples a level from the nearest level below it that is being kept,
+	 * keeping each level on the way.
+	 * 
+	 * @param index
+	 *            The level to be downsampled. Must be greater than 0.
 	 */
-	private void createImagePyramid()
+	private void createLevel(final int index)
 	{
-		/*
-		 * Add the original image to the bottom level of the pyramid and also
-		 * add the image size to the size pyramid
-		 */
-		imagePyramidList.add(originalImage);
-		sizePyramid.add(new Size(originalImage.getWidth(), originalImage.getHeight()));
+		MatPool pool = MatPool.getShared();
 
 		/*
-		 * Loop through each image and down sample and add it the image pyramid
-		 * and also create a pyramid for the size of each of the images.
+		 * Find the nearest level below that's being kept. The original image's
+		 * matrix is only borrowed for the downsampling if it isn't kept.
 		 */
-		for (int i = 0; i < PYRAMID_LEVELS; i++)
+		int below = index - 1;
+		while (below > 0 && matrixPyramid[below] == null)
+		{
+			below--;
+		}
+
+		Mat currentMatrix = matrixPyramid[below];
+		Mat borrowedMatrix = null;
+		if (currentMatrix == null)
+		{
+			borrowedMatrix = ImageManipulator.convertImageToMatrix(imagePyramid[0],
+					pool.acquire(heights[0], widths[0], matrixType));
+			currentMatrix = borrowedMatrix;
+		}
+
+		try
 		{
 			/*
-			 * Get the current image from the pyramid
+			 * Downsample each level up to the one asked for using the image
+			 * operator.
 			 */
-			BufferedImage currentImage = imagePyramidList.get(i);
+			for (int i = below + 1; i <= index; i++)
+			{
+				matrixPyramid[i] = downsampleLevel(currentMatrix, i);
+				currentMatrix = matrixPyramid[i];
+			}
+		} finally
+		{
+			if (borrowedMatrix != null)
+			{
+				pool.release(borrowedMatrix);
+			}
+		}
+	}
+
+	/**
+	 * Downsamples the matrix of the level below a level into a matrix borrowed
+	 * from the shared {@link MatPool}.
+	 * 
+	 * @param matrix
+	 *            The matrix of the level below. cannot be null.
+	 * @param index
+	 *            The level to be downsampled to.
+	 * @return The matrix of the level.
+	 */
+	private Mat downsampleLevel(@NonNull final Mat matrix, final int index)
+	{
+		return ImageManipulator.downsample(matrix, new Size(widths[index], heights[index]),
+				MatPool.getShared().acquire(heights[index], widths[index], matrix.type()));
+	}
+
+	/**
+	 * Get all of the sizes of each of the images within the pyramid
+	 * 
+	 * @return a copy of the sizes of each image in the pyramid, so it can be
+	 *         changed without changing the pyramid.
+	 */
+	public ArrayList<Size> getImageSizes()
+	{
+		return new ArrayList<>(sizePyramid);
+	}
+
+	/**
+	 * Get the original image which the pyramid is formed from.
+	 * 
+	 * @return The largest image in the pyramid.
+	 */
+	public BufferedImage getOriginalImage()
+	{
+		return getImageAtIndex(0);
+	}
+
+	/**
+	 * Get the number of bytes of each pixel.
+	 * 
+	 * @return 1 for grey pyramids or 3 for colour pyramids.
+	 */
+	public int getChannels()
+	{
+		return CvType.channels(matrixType);
+	}
+
+	/**
+	 * Get the most bytes the pyramid holds, when the matrix and the image of
+	 * every level is kept. The original image is counted as it is held by the
+	 * pyramid.
+	 * 
+	 * @return The most bytes of the pyramid.
+	 */
+	public long getMaximumBytes()
+	{
+		long channels = getChannels();
+
+		long bytes = 0;
+		for (int i = 0; i <= PYRAMID_LEVELS; i++)
+		{
+			bytes += 2L * widths[i] * heights[i] * channels;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Getter for the matrix at a given index within the image pyramid. The
+	 * matrix is downsampled the first time it's asked for. The matrix is
+	 * shared with the pyramid so must not be changed or released, and must not
+	 * be used after its level is evicted.
+	 * 
+	 * @param index
+	 *            The position of the matrix in the pyramid which is required
+	 * @return The matrix at the position within the image pyramid.
+	 */
+	public synchronized Mat getMatAtIndex(final int index)
+	{
+		checkLevel(index);
+		checkNotReleased();
+
+		if (matrixPyramid[index] == null)
+		{
+			/*
+			 * The original image and levels read from a file are already
+			 * images, so are just converted.
+			 */
+			if (index == 0 || storedLevels != null)
+			{
+				matrixPyramid[index] = ImageManipulator.convertImageToMatrix(getImageAtIndex(index),
+						MatPool.getShared().acquire(heights[index], widths[index], matrixType));
+			} else
+			{
+				createLevel(index);
+			}
+		}
+
+		return matrixPyramid[index];
+	}
+
+	/**
+	 * Getter for the image at a given index within the image pyramid. The
+	 * image is downsampled the first time it's asked for.
+	 * 
+	 * @param index
+	 *            The position of the image in the pyramid which is required
+	 * @return The image at the position within the image pyramid.
+	 */
+	public synchronized BufferedImage getImageAtIndex(final int index)
+	{
+		checkLevel(index);
+		BufferedImage image = imagePyramid[index];
+
+		/*
+		 * Read the level from the file or convert the matrix the first time
+		 * its image is asked for
+		 */
+		if (image == null)
+		{
+			if (storedLevels != null)
+			{
+				checkNotReleased();
+				image = storedLevels.readLevel(index);
+			} else
+			{
+				image = ImageManipulator.convertMatrixToImage(getMatAtIndex(index));
+			}
+			imagePyramid[index] = image;
+		}
+
+		return image;
+	}
+
+	/**
+	 * Getter to return the smallest image of the pyramid
+	 * 
+	 * @return the smallest image in the pyramid
+	 */
+	public BufferedImage getLowestLevelImage()
+	{
+		return getImageAtIndex(PYRAMID_LEVELS);
+	}
+
+	/**
+	 * Starts downsampling a level and converting it to an image in the
+	 * background, so it's ready by the time it's asked for. Does nothing if
+	 * the level is already kept or the pyramid has been released. The level is
+	 * downsampled without holding the pyramid's lock, so the other levels can
+	 * still be got in the meantime.
+	 * 
+	 * @param index
+	 *            The position of the level in the pyramid.
+	 */
+	public void prefetch(final int index)
+	{
+		checkLevel(index);
+
+		PREFETCHER.execute(() ->
+		{
+			try
+			{
+				prefetchLevel(index);
+			} catch (RuntimeException e)
+			{
+				LOGGER.error("Level " + index + " of the image pyramid has failed to be prefetched", e);
+			}
+		});
+	}
+
+	/**
+	 * Downsamples a level and converts it to an image on the prefetching
+	 * thread. The pyramid is only locked to find the level to downsample from
+	 * and to keep the new levels. Any level that was made by someone else in
+	 * the meantime is kept instead, and the prefetched one handed back.
+	 * 
+	 * @param index
+	 *            The position of the level in the pyramid.
+	 */
+	private void prefetchLevel(final int index)
+	{
+		MatPool pool = MatPool.getShared();
+
+		/*
+		 * The matrix of the nearest level kept at or below the level, followed
+		 * by the matrix of each level up to it
+		 */
+		Mat[] levels;
+		int below;
+
+		synchronized (this)
+		{
+			if (released || imagePyramid[index] != null)
+			{
+				return;
+			}
 
 			/*
-			 * Downsample the image using the image operator
+			 * Levels read from a file are not downsampled so are just read
 			 */
-			BufferedImage smallerImg = ImageManipulator.downsample(currentImage);
+			if (storedLevels != null)
+			{
+				getImageAtIndex(index);
+				return;
+			}
+
+			below = index;
+			while (below > 0 && matrixPyramid[below] == null)
+			{
+				below--;
+			}
 
 			/*
-			 * Add the smaller image to the image pyramid
+			 * A kept matrix can be evicted as soon as the lock is let go, so it
+			 * is copied. The original image is always kept, so is converted
+			 * once the lock is let go.
 			 */
-			imagePyramidList.add(smallerImg);
+			levels = new Mat[index - below + 1];
+			if (matrixPyramid[below] != null)
+			{
+				levels[0] = pool.acquire(heights[below], widths[below], matrixType);
+				matrixPyramid[below].copyTo(levels[0]);
+			}
+		}
+
+		try
+		{
+			if (levels[0] == null)
+			{
+				levels[0] = ImageManipulator.convertImageToMatrix(imagePyramid[0],
+						pool.acquire(heights[0], widths[0], matrixType));
+			}
+
+			for (int i = 1; i < levels.length; i++)
+			{
+				levels[i] = downsampleLevel(levels[i - 1], below + i);
+			}
+			BufferedImage image = ImageManipulator.convertMatrixToImage(levels[levels.length - 1]);
 
 			/*
-			 * Create a new size object which is the size of the recently
-			 * downsampled image.
+			 * Keep the levels no one else has made while they were being
+			 * downsampled
 			 */
-			Size smallerImageSize = new Size(smallerImg.getWidth(), smallerImg.getHeight());
+			synchronized (this)
+			{
+				if (released)
+				{
+					return;
+				}
+
+				for (int i = 1; i < levels.length; i++)
+				{
+					if (matrixPyramid[below + i] == null)
+					{
+						matrixPyramid[below + i] = levels[i];
+						levels[i] = null;
+					}
+				}
 
+				if (imagePyramid[index] == null)
+				{
+					imagePyramid[index] = image;
+				}
+			}
+		} finally
+		{
 			/*
-			 * Add the size of the smaller image to the image sizes pyramid.
+			 * Hand back the copied level and any levels that were not kept
 			 */
-			sizePyramid.add(smallerImageSize);
+			for (Mat level : levels)
+			{
+				if (level != null)
+				{
+					pool.release(level);
+				}
+			}
 		}
 	}
 
 	/**
-	 * Get all of the sizes of each of the images within the pyramid
+	 * Stops keeping a level, handing its matrix back to the shared
+	 * {@link MatPool}. The level is downsampled again if it's asked for later.
+	 * Images already got from the level can still be used. The original image
+	 * is always kept, unless it was read from a file.
 	 * 
-	 * @return an arraylist of sizes of each image in the pyramid.
+	 * @param index
+	 *            The position of the level in the pyramid.
 	 */
-	public ArrayList<Size> getImageSizes()
+	public synchronized void evict(final int index)
 	{
-		return sizePyramid;
+		checkLevel(index);
+
+		if (matrixPyramid[index] != null)
+		{
+			MatPool.getShared().release(matrixPyramid[index]);
+			matrixPyramid[index] = null;
+		}
+
+		if (index > 0 || storedLevels != null)
+		{
+			imagePyramid[index] = null;
+		}
 	}
 
 	/**
-	 * Getter for the image at a given index within the image pyramid.
+	 * Stops keeping a level's matrix, handing it back to the shared
+	 * {@link MatPool}, but keeps its image. The image is converted first if it
+	 * hasn't been got yet, so the level is never downsampled again. Does
+	 * nothing if the pyramid has been released.
 	 * 
 	 * @param index
-	 *            The position of the image in the pyramid which is required
-	 * @return The image at the position within the image pyramid.
+	 *            The position of the level in the pyramid.
+	 */
+	public synchronized void evictMatrix(final int index)
+	{
+		checkLevel(index);
+
+		if (released || matrixPyramid[index] == null)
+		{
+			return;
+		}
+
+		getImageAtIndex(index);
+		MatPool.getShared().release(matrixPyramid[index]);
+		matrixPyramid[index] = null;
+	}
+
+	/**
+	 * Hands the matrices of every kept level back to the shared
+	 * {@link MatPool} once the pyramid is finished with, and closes the pyramid
+	 * file it was read from. Images already got from the pyramid can still be
+	 * used, but no more matrices or images can be got from it.
 	 */
-	public BufferedImage getImageAtIndex(final int index)
+	public synchronized void release()
 	{
-		return imagePyramidList.get(index);
+		if (!released)
+		{
+			for (int i = 0; i < matrixPyramid.length; i++)
+			{
+				if (matrixPyramid[i] != null)
+				{
+					MatPool.getShared().release(matrixPyramid[i]);
+					matrixPyramid[i] = null;
+				}
+			}
+			released = true;
+
+			if (storedLevels != null)
+			{
+				try
+				{
+					storedLevels.close();
+				} catch (IOException e)
+				{
+					LOGGER.warn("The pyramid file has failed to be closed", e);
+				}
+			}
+		}
 	}
 
 	/**
-	 * Getter to return the smallest image of the pyramid
+	 * Ensures an index is a level of the pyramid.
 	 * 
-	 * @return the smallest image in the pyramid
+	 * @param index
+	 *            The position of the level in the pyramid.
 	 */
-	public BufferedImage getLowestLevelImage()
+	private void checkLevel(final int index)
+	{
+		if (index < 0 || index > PYRAMID_LEVELS)
+		{
+			throw new IndexOutOfBoundsException(
+					"The pyramid has levels 0 to " + PYRAMID_LEVELS + ", not level " + index);
+		}
+	}
+
+	/**
+	 * Ensures the pyramid's matrices have not been released.
+	 * 
+	 * @throws IllegalStateException
+	 *             If the pyramid has been released.
+	 */
+	private void checkNotReleased()
 	{
-		return imagePyramidList.get(imagePyramidList.size() - 1);
+		if (released)
+		{
+			throw new IllegalStateException("The image pyramid has been released.");
+		}
 	}
 
 }
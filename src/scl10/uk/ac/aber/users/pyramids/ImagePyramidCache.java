@@ -0,0 +1,470 @@
+package scl10.uk.ac.aber.users.pyramids;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import lombok.Getter;
+import lombok.NonNull;
+import scl10.uk.ac.aber.users.manipulators.ImageManipulator;
+
+/**
+ * A cache of image pyramids, so an image registered against many others only
+ * has its pyramid built once. Pyramids are recognised by a hash of the
+ * image's pixels along with its size, type and number of levels, so an image
+ * read from the same file twice still finds the same pyramid. A sample of the
+ * pixels is compared as well, so two different images whose hashes happen to
+ * be the same don't share a pyramid.
+ * <p>
+ * Pyramids are acquired from the cache and handed back once they are
+ * finished with, rather than released. The cache is bounded by the most
+ * bytes its pyramids can hold, see {@link ImagePyramid#getMaximumBytes()}.
+ * When it's full the least recently used pyramids are dropped, and released
+ * as soon as nobody is using them. The cache can be used from many threads at
+ * once.
+ *
+ * @author Scott Lockett
+ */
+public final class ImagePyramidCache
+{
+
+	/**
+	 * The most bytes of pyramids the shared cache keeps, 512MB.
+	 */
+	public static final long DEFAULT_MAX_CACHED_BYTES = 512L * 1024 * 1024;
+
+	/**
+	 * The number of pixels compared along with the hash when a pyramid is
+	 * looked up
+	 */
+	static final int SAMPLED_PIXELS = 64;
+
+	/**
+	 * The cache used by the registration
+	 */
+	private static final ImagePyramidCache SHARED = new ImagePyramidCache(DEFAULT_MAX_CACHED_BYTES);
+
+	/**
+	 * The most bytes of pyramids kept
+	 */
+	@Getter
+	private final long maxCachedBytes;
+
+	/**
+	 * The cached pyramids by their key, least recently used first
+	 */
+	private final LinkedHashMap<Key, Entry> cached = new LinkedHashMap<>(16, 0.75F, true);
+
+	/**
+	 * Every pyramid that is cached or being used
+	 */
+	private final Map<ImagePyramid, Entry> entries = new IdentityHashMap<>();
+
+	/**
+	 * The bytes of the cached pyramids
+	 */
+	private long cachedBytes;
+
+	/**
+	 * The number of pyramids found in the cache
+	 */
+	private long hits;
+
+	/**
+	 * The number of pyramids that had to be built
+	 */
+	private long misses;
+
+	/**
+	 * The number of pyramids dropped to make room
+	 */
+	private long evictions;
+
+	/**
+	 * Creates a new, empty cache.
+	 *
+	 * @param maxCachedBytes
+	 *            The most bytes of pyramids kept. 0 keeps none, so every
+	 *            pyramid is released as soon as it's handed back.
+	 */
+	public ImagePyramidCache(final long maxCachedBytes)
+	{
+		if (maxCachedBytes < 0)
+		{
+			throw new IllegalArgumentException("The cached bytes can not be negative. " + maxCachedBytes);
+		}
+
+		this.maxCachedBytes = maxCachedBytes;
+	}
+
+	/**
+	 * Get the cache shared by the registration.
+	 *
+	 * @return The shared cache.
+	 */
+	public static ImagePyramidCache getShared()
+	{
+		return SHARED;
+	}
+
+	/**
+	 * Get the pyramid of an image, building it if the cache doesn't have it.
+	 * The pyramid may be shared with other users so must be handed back with
+	 * {@link #release(ImagePyramid)} rather than released, and its levels
+	 * should only be got as images.
+	 *
+	 * @param img
+	 *            The image the pyramid is formed from. cannot be null.
+	 * @param levels
+	 *            The number of levels within the pyramid. Can not be negative.
+	 * @return The pyramid of the image.
+	 */
+	public ImagePyramid acquire(@NonNull final BufferedImage img, final int levels)
+	{
+		/*
+		 * Hash the pixels before taking the lock so other threads aren't held
+		 * up by it.
+		 */
+		return acquire(img, levels, ImageManipulator.hashPixels(img));
+	}
+
+	/**
+	 * Get the pyramid of an image whose pixels have already been hashed. See
+	 * {@link #acquire(BufferedImage, int)}.
+	 *
+	 * @param img
+	 *            The image the pyramid is formed from. cannot be null.
+	 * @param levels
+	 *            The number of levels within the pyramid. Can not be negative.
+	 * @param pixelHash
+	 *            The hash of the image's pixels.
+	 * @return The pyramid of the image.
+	 */
+	ImagePyramid acquire(@NonNull final BufferedImage img, final int levels, final long pixelHash)
+	{
+		Key key = new Key(img, levels, pixelHash);
+
+		synchronized (this)
+		{
+			Entry entry = cached.get(key);
+
+			if (entry != null)
+			{
+				hits++;
+			} else
+			{
+				misses++;
+
+				ImagePyramid pyramid = new ImagePyramid(img, levels);
+				entry = new Entry(pyramid, pyramid.getMaximumBytes());
+
+				cached.put(key, entry);
+				entries.put(pyramid, entry);
+				cachedBytes += entry.bytes;
+			}
+
+			entry.users++;
+			makeRoom();
+			return entry.pyramid;
+		}
+	}
+
+	/**
+	 * Gets the pyramid of an image in the background and downsamples it down
+	 * to its smallest level, so several pyramids can be built at the same
+	 * time. The matrix of every level is downsampled on the way, which can be
+	 * handed back level by level with {@link ImagePyramid#evictMatrix(int)}.
+	 * See {@link #acquire(BufferedImage, int)}.
+	 *
+	 * @param img
+	 *            The image the pyramid is formed from. cannot be null.
+	 * @param levels
+	 *            The number of levels within the pyramid. Can not be negative.
+	 * @param executor
+	 *            The executor the pyramid is built on. cannot be null.
+	 * @return The pyramid once every level has been downsampled.
+	 */
+	public CompletableFuture<ImagePyramid> acquireAsync(@NonNull final BufferedImage img, final int levels,
+			@NonNull final Executor executor)
+	{
+		return CompletableFuture.supplyAsync(() ->
+		{
+			ImagePyramid pyramid = acquire(img, levels);
+			pyramid.getLowestLevelImage();
+			return pyramid;
+		}, executor);
+	}
+
+	/**
+	 * Hands a pyramid back to the cache. It's released if it has been dropped
+	 * from the cache and nobody else is using it. The pyramid must not be
+	 * used after it's handed back.
+	 *
+	 * @param pyramid
+	 *            A pyramid acquired from this cache. cannot be null.
+	 */
+	public synchronized void release(@NonNull final ImagePyramid pyramid)
+	{
+		Entry entry = entries.get(pyramid);
+		if (entry == null || entry.users == 0)
+		{
+			throw new IllegalArgumentException("The pyramid was not acquired from this cache.");
+		}
+
+		entry.users--;
+		if (entry.users == 0 && entry.dropped)
+		{
+			entries.remove(pyramid);
+			pyramid.release();
+		}
+	}
+
+	/**
+	 * Drops every cached pyramid. Pyramids being used are released once
+	 * they're handed back.
+	 */
+	public synchronized void clear()
+	{
+		Iterator<Entry> iterator = cached.values().iterator();
+		while (iterator.hasNext())
+		{
+			drop(iterator.next());
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Drops the least recently used pyramids until the cache is within its
+	 * bytes.
+	 */
+	private void makeRoom()
+	{
+		Iterator<Entry> iterator = cached.values().iterator();
+		while (cachedBytes > maxCachedBytes && iterator.hasNext())
+		{
+			drop(iterator.next());
+			iterator.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Stops counting a pyramid as cached and releases it if nobody is using
+	 * it. The caller removes it from the cached pyramids.
+	 *
+	 * @param entry
+	 *            The entry of the pyramid.
+	 */
+	private void drop(final Entry entry)
+	{
+		cachedBytes -= entry.bytes;
+		entry.dropped = true;
+
+		if (entry.users == 0)
+		{
+			entries.remove(entry.pyramid);
+			entry.pyramid.release();
+		}
+	}
+
+	/**
+	 * Get the most bytes the cached pyramids can hold.
+	 *
+	 * @return The cached bytes.
+	 */
+	public synchronized long getCachedBytes()
+	{
+		return cachedBytes;
+	}
+
+	/**
+	 * Get the number of pyramids cached.
+	 *
+	 * @return The number of cached pyramids.
+	 */
+	public synchronized int getSize()
+	{
+		return cached.size();
+	}
+
+	/**
+	 * Get the number of times a pyramid was found in the cache.
+	 *
+	 * @return The number of hits.
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * Get the number of times a pyramid had to be built.
+	 *
+	 * @return The number of misses.
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * Get the number of pyramids dropped to make room.
+	 *
+	 * @return The number of evictions.
+	 */
+	public synchronized long getEvictions()
+	{
+		return evictions;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format("%d pyramids, %.1fMB of %.1fMB, %d hits, %d misses, %d evicted", cached.size(),
+				cachedBytes / 1048576.0D, maxCachedBytes / 1048576.0D, hits, misses, evictions);
+	}
+
+	/**
+	 * A pyramid in the cache and how many are using it.
+	 */
+	private static final class Entry
+	{
+
+		/**
+		 * The pyramid
+		 */
+		private final ImagePyramid pyramid;
+
+		/**
+		 * The most bytes the pyramid can hold
+		 */
+		private final long bytes;
+
+		/**
+		 * The number of users that have acquired the pyramid and not handed it
+		 * back
+		 */
+		private int users;
+
+		/**
+		 * Whether the pyramid has been dropped from the cache
+		 */
+		private boolean dropped;
+
+		/**
+		 * Creates a new entry.
+		 *
+		 * @param pyramid
+		 *            The pyramid.
+		 * @param bytes
+		 *            The most bytes the pyramid can hold.
+		 */
+		Entry(final ImagePyramid pyramid, final long bytes)
+		{
+			this.pyramid = pyramid;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * What a pyramid is recognised by, the hash and a sample of its image's
+	 * pixels, the image's size and type, and the number of levels.
+	 */
+	private static final class Key
+	{
+
+		/**
+		 * The width of the image
+		 */
+		private final int width;
+
+		/**
+		 * The height of the image
+		 */
+		private final int height;
+
+		/**
+		 * The matrix type the image is converted into
+		 */
+		private final int type;
+
+		/**
+		 * The number of levels
+		 */
+		private final int levels;
+
+		/**
+		 * The hash of the image's pixels
+		 */
+		private final long pixelHash;
+
+		/**
+		 * The colours of pixels spread evenly through the image
+		 */
+		private final int[] sampledPixels;
+
+		/**
+		 * Creates a new key.
+		 *
+		 * @param img
+		 *            The image.
+		 * @param levels
+		 *            The number of levels.
+		 * @param pixelHash
+		 *            The hash of the image's pixels.
+		 */
+		Key(final BufferedImage img, final int levels, final long pixelHash)
+		{
+			this.width = img.getWidth();
+			this.height = img.getHeight();
+			this.type = ImageManipulator.getMatrixType(img);
+			this.levels = levels;
+			this.pixelHash = pixelHash;
+			this.sampledPixels = samplePixels(img);
+		}
+
+		/**
+		 * Get the colours of up to {@link ImagePyramidCache#SAMPLED_PIXELS}
+		 * pixels spread evenly through an image, including the first and last.
+		 *
+		 * @param img
+		 *            The image.
+		 * @return The sampled colours.
+		 */
+		private static int[] samplePixels(final BufferedImage img)
+		{
+			long pixels = (long) img.getWidth() * img.getHeight();
+			int[] samples = new int[(int) Math.min(SAMPLED_PIXELS, pixels)];
+
+			for (int i = 0; i < samples.length; i++)
+			{
+				long index = samples.length == 1 ? 0 : i * (pixels - 1) / (samples.length - 1);
+				samples[i] = img.getRGB((int) (index % img.getWidth()), (int) (index / img.getWidth()));
+			}
+			return samples;
+		}
+
+		@Override
+		public boolean equals(final Object other)
+		{
+			if (!(other instanceof Key))
+			{
+				return false;
+			}
+			Key key = (Key) other;
+			return width == key.width && height == key.height && type == key.type && levels == key.levels
+					&& pixelHash == key.pixelHash && Arrays.equals(sampledPixels, key.sampledPixels);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Long.hashCode(pixelHash) * 31 + levels;
+		}
+	}
+}
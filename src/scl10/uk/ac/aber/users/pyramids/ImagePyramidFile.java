@@ -0,0 +1,493 @@
+package scl10.uk.ac.aber.users.pyramids;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lombok.Getter;
+import lombok.NonNull;
+import scl10.uk.ac.aber.users.readers.ImageReader;
+
+/**
+ * Every level of an {@link ImagePyramid} stored one after another in a single
+ * file, so an image that's registered again and again only has its pyramid
+ * built once. The file is memory mapped, a level at a time when it is first
+ * read, so a level is read straight from the file without being decoded or
+ * downsampled.
+ * <p>
+ * Each level is stored as raw bytes, a row of pixels after another, in the
+ * same channel order as a {@link BufferedImage#TYPE_3BYTE_BGR} or
+ * {@link BufferedImage#TYPE_BYTE_GRAY} image. Unlike the
+ * {@link TiledImageStore} the levels are not tiled, so a whole level is read
+ * with a single copy but each level must fit on the heap.
+ * <p>
+ * The file is kept next to the image it was made from, see
+ * {@link #fileFor(File)}. The layout of the file, in little endian order, is:
+ *
+ * <pre>
+ * int  magic      "PYRM"
+ * int  version    The version of the file format
+ * int  channels   1 for grey images, 3 for colour images
+ * int  levels     The number of levels including the original size
+ * per level:
+ *   int  width    The width of the level
+ *   int  height   The height of the level
+ *   long offset   Where the level's pixels start in the file
+ * pixels          Each level's pixels, original size first
+ * </pre>
+ *
+ * @author Scott Lockett
+ */
+public final class ImagePyramidFile implements AutoCloseable
+{
+
+	/**
+	 * Create the logger for logging messages
+	 */
+	private static final Logger LOGGER = LoggerFactory.getLogger(ImagePyramidFile.class);
+
+	/**
+	 * The extension added to an image's file name for its pyramid file
+	 */
+	public static final String EXTENSION = ".pyramid";
+
+	/**
+	 * The first four bytes of every pyramid file. "PYRM" in ASCII.
+	 */
+	private static final int MAGIC = 0x5059524D;
+
+	/**
+	 * The current version of the file format
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * The size of the fixed part of the header
+	 */
+	private static final int HEADER_SIZE = 4 * Integer.BYTES;
+
+	/**
+	 * The size of each level's entry in the header
+	 */
+	private static final int LEVEL_ENTRY_SIZE = 2 * Integer.BYTES + Long.BYTES;
+
+	/**
+	 * The order the file is written in
+	 */
+	private static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	/**
+	 * The file backing the pyramid
+	 */
+	private final RandomAccessFile file;
+
+	/**
+	 * The number of bytes of each pixel, 1 for grey or 3 for colour
+	 */
+	@Getter
+	private final int channels;
+
+	/**
+	 * The width of each level
+	 */
+	private final int[] widths;
+
+	/**
+	 * The height of each level
+	 */
+	private final int[] heights;
+
+	/**
+	 * Where each level's pixels start in the file
+	 */
+	private final long[] offsets;
+
+	/**
+	 * The mapped pixels of each level, mapped when first read
+	 */
+	private final MappedByteBuffer[] mappedLevels;
+
+	/**
+	 * Creates a pyramid file over an open file.
+	 *
+	 * @param file
+	 *            The file backing the pyramid.
+	 * @param channels
+	 *            The number of bytes of each pixel.
+	 * @param widths
+	 *            The width of each level.
+	 * @param heights
+	 *            The height of each level.
+	 * @param offsets
+	 *            Where each level's pixels start in the file.
+	 */
+	private ImagePyramidFile(final RandomAccessFile file, final int channels, final int[] widths,
+			final int[] heights, final long[] offsets)
+	{
+		this.file = file;
+		this.channels = channels;
+		this.widths = widths;
+		this.heights = heights;
+		this.offsets = offsets;
+		this.mappedLevels = new MappedByteBuffer[widths.length];
+	}
+
+	/**
+	 * Get the pyramid file kept next to an image file, which is the image's
+	 * file name with {@link #EXTENSION} added.
+	 *
+	 * @param imageFile
+	 *            The image file. cannot be null.
+	 * @return The pyramid file of the image. It may not exist.
+	 */
+	public static File fileFor(@NonNull final File imageFile)
+	{
+		return new File(imageFile.getParentFile(), imageFile.getName() + EXTENSION);
+	}
+
+	/**
+	 * Writes every level of an image pyramid to a file. Levels that haven't
+	 * been downsampled yet are downsampled, and kept by the pyramid. The levels
+	 * are written to a temporary file which then replaces the file, so a
+	 * pyramid file that is being read is never changed underneath the reader,
+	 * and a failed write leaves the old file as it was.
+	 *
+	 * @param pyramid
+	 *            The pyramid to be written. cannot be null.
+	 * @param pyramidFile
+	 *            The file the pyramid is written to. It is overwritten if it
+	 *            already exists. cannot be null.
+	 * @throws IOException
+	 *             If the file can not be written.
+	 */
+	public static void write(@NonNull final ImagePyramid pyramid, @NonNull final File pyramidFile)
+			throws IOException
+	{
+		ArrayList<Size> sizes = pyramid.getImageSizes();
+		int levels = sizes.size();
+		int channels = pyramid.getChannels();
+
+		/*
+		 * Lay out the header, with each level's pixels straight after the
+		 * last.
+		 */
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + levels * LEVEL_ENTRY_SIZE).order(BYTE_ORDER);
+		header.putInt(MAGIC).putInt(VERSION).putInt(channels).putInt(levels);
+
+		long offset = header.capacity();
+		for (Size size : sizes)
+		{
+			header.putInt((int) size.width).putInt((int) size.height).putLong(offset);
+			offset += (long) size.width * (long) size.height * channels;
+		}
+		header.flip();
+
+		File tempFile = new File(pyramidFile.getParentFile(), pyramidFile.getName() + ".tmp");
+
+		try
+		{
+			try (RandomAccessFile file = new RandomAccessFile(tempFile, "rw"))
+			{
+				file.setLength(0);
+				FileChannel channel = file.getChannel();
+				writeFully(channel, header);
+
+				for (int level = 0; level < levels; level++)
+				{
+					Mat matrix = pyramid.getMatAtIndex(level);
+					byte[] pixels = new byte[(int) (matrix.total() * matrix.channels())];
+					matrix.get(0, 0, pixels);
+					writeFully(channel, ByteBuffer.wrap(pixels));
+				}
+			}
+
+			Files.move(tempFile.toPath(), pyramidFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e)
+		{
+			tempFile.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens an existing pyramid file to be read from.
+	 *
+	 * @param pyramidFile
+	 *            The pyramid file. cannot be null.
+	 * @return The opened pyramid file.
+	 * @throws IOException
+	 *             If the file is not a valid pyramid file.
+	 */
+	public static ImagePyramidFile open(@NonNull final File pyramidFile) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(pyramidFile, "r");
+		try
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(BYTE_ORDER);
+			readFully(file.getChannel(), header, 0);
+
+			if (header.getInt() != MAGIC || header.getInt() != VERSION)
+			{
+				throw new IOException(pyramidFile.getPath() + " is not a pyramid file.");
+			}
+
+			int channels = header.getInt();
+			int levels = header.getInt();
+
+			if ((channels != 1 && channels != 3) || levels <= 0)
+			{
+				throw new IOException(pyramidFile.getPath() + " has an invalid header.");
+			}
+
+			/*
+			 * Don't trust the number of levels further than the file could
+			 * hold their entries.
+			 */
+			if (levels > (file.length() - HEADER_SIZE) / LEVEL_ENTRY_SIZE)
+			{
+				throw new IOException(pyramidFile.getPath() + " has more levels than it can hold. " + levels);
+			}
+
+			ByteBuffer levelEntries = ByteBuffer.allocate(levels * LEVEL_ENTRY_SIZE).order(BYTE_ORDER);
+			readFully(file.getChannel(), levelEntries, HEADER_SIZE);
+
+			int[] widths = new int[levels];
+			int[] heights = new int[levels];
+			long[] offsets = new long[levels];
+			for (int level = 0; level < levels; level++)
+			{
+				widths[level] = levelEntries.getInt();
+				heights[level] = levelEntries.getInt();
+				offsets[level] = levelEntries.getLong();
+
+				long levelBytes = (long) widths[level] * heights[level] * channels;
+				if (widths[level] <= 0 || heights[level] <= 0 || levelBytes > Integer.MAX_VALUE)
+				{
+					throw new IOException(pyramidFile.getPath() + " has an invalid size for level " + level);
+				}
+
+				if (offsets[level] < 0 || file.length() < offsets[level] + levelBytes)
+				{
+					throw new IOException(pyramidFile.getPath() + " is truncated.");
+				}
+			}
+
+			return new ImagePyramidFile(file, channels, widths, heights, offsets);
+		} catch (IOException | RuntimeException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the image pyramid of an image file from the pyramid file kept next to
+	 * it. If there isn't one, or it's older than the image or has too few
+	 * levels, the image is decoded and its pyramid is built and written next
+	 * to the image for next time.
+	 *
+	 * @param imageFile
+	 *            The image file. cannot be null.
+	 * @param levels
+	 *            The number of levels within the pyramid. Can not be negative.
+	 * @return The image pyramid, or null if the image could not be read.
+	 */
+	public static ImagePyramid loadOrCreate(@NonNull final File imageFile, final int levels)
+	{
+		File pyramidFile = fileFor(imageFile);
+
+		if (pyramidFile.isFile() && pyramidFile.lastModified() >= imageFile.lastModified())
+		{
+			try
+			{
+				ImagePyramidFile storedLevels = open(pyramidFile);
+				if (storedLevels.getLevels() > levels)
+				{
+					return new ImagePyramid(storedLevels, levels);
+				}
+				storedLevels.close();
+			} catch (IOException e)
+			{
+				LOGGER.warn(pyramidFile.getPath() + " can not be read, so the pyramid is being built again.", e);
+			}
+		}
+
+		BufferedImage image = ImageReader.readImageFile(imageFile);
+		if (image == null)
+		{
+			return null;
+		}
+
+		ImagePyramid pyramid = new ImagePyramid(image, levels);
+		try
+		{
+			write(pyramid, pyramidFile);
+		} catch (IOException e)
+		{
+			LOGGER.warn(pyramidFile.getPath() + " has failed to be written.", e);
+		}
+		return pyramid;
+	}
+
+	/**
+	 * Get the number of levels of the pyramid, including the original size.
+	 *
+	 * @return The number of levels.
+	 */
+	public int getLevels()
+	{
+		return widths.length;
+	}
+
+	/**
+	 * Get the width of a level.
+	 *
+	 * @param level
+	 *            The level. 0 is the original size.
+	 * @return The width of the level.
+	 */
+	public int getWidth(final int level)
+	{
+		return widths[level];
+	}
+
+	/**
+	 * Get the height of a level.
+	 *
+	 * @param level
+	 *            The level. 0 is the original size.
+	 * @return The height of the level.
+	 */
+	public int getHeight(final int level)
+	{
+		return heights[level];
+	}
+
+	/**
+	 * Get the type of matrix the levels are read into.
+	 *
+	 * @return Either CvType.CV_8UC1 or CvType.CV_8UC3.
+	 */
+	public int getMatrixType()
+	{
+		return channels == 1 ? CvType.CV_8UC1 : CvType.CV_8UC3;
+	}
+
+	/**
+	 * Get the mapped pixels of a level. The level is mapped the first time
+	 * it's read.
+	 *
+	 * @param level
+	 *            The level. 0 is the original size.
+	 * @return A read only view of the level's pixels, a row after another.
+	 */
+	public ByteBuffer getLevelBuffer(final int level)
+	{
+		MappedByteBuffer mapped;
+		synchronized (mappedLevels)
+		{
+			mapped = mappedLevels[level];
+			if (mapped == null)
+			{
+				try
+				{
+					mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, offsets[level],
+							(long) widths[level] * heights[level] * channels);
+				} catch (IOException e)
+				{
+					throw new IllegalStateException("Level " + level + " of the pyramid file can not be mapped.", e);
+				}
+				mappedLevels[level] = mapped;
+			}
+		}
+		return mapped.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Reads a level into a new image.
+	 *
+	 * @param level
+	 *            The level. 0 is the original size.
+	 * @return A {@link BufferedImage#TYPE_3BYTE_BGR} image of the level, or a
+	 *         {@link BufferedImage#TYPE_BYTE_GRAY} image for grey pyramids.
+	 */
+	public BufferedImage readLevel(final int level)
+	{
+		BufferedImage image = new BufferedImage(widths[level], heights[level],
+				channels == 1 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR);
+		getLevelBuffer(level).get(((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+		return image;
+	}
+
+	/**
+	 * Closes the file backing the pyramid. The mapped levels are released once
+	 * they are garbage collected.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		file.close();
+	}
+
+	/**
+	 * Writes the whole of a buffer to a channel.
+	 *
+	 * @param channel
+	 *            The channel.
+	 * @param buffer
+	 *            The buffer to be written.
+	 * @throws IOException
+	 *             If the channel can not be written to.
+	 */
+	private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Reads from a channel until a buffer is full.
+	 *
+	 * @param channel
+	 *            The channel.
+	 * @param buffer
+	 *            The buffer to be filled.
+	 * @param position
+	 *            Where in the channel to start reading.
+	 * @throws IOException
+	 *             If the channel ends before the buffer is full.
+	 */
+	private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+			throws IOException
+	{
+		long readPosition = position;
+		while (buffer.hasRemaining())
+		{
+			int read = channel.read(buffer, readPosition);
+			if (read < 0)
+			{
+				throw new IOException("The pyramid file is truncated.");
+			}
+			readPosition += read;
+		}
+		buffer.flip();
+	}
+}
@@ -0,0 +1,967 @@
+package scl10.uk.ac.aber.users.pyramids;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.stream.ImageInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * A tiled image pyramid stored in a memory mapped file, for images too large
+ * to hold on the heap as a {@link BufferedImage}.
+ * <p>
+ * Every level of the pyramid is cut into square tiles of a fixed size. Each
+ * tile is stored as raw bytes, a row of pixels after another, in the same
+ * channel order as a {@link BufferedImage#TYPE_3BYTE_BGR} or
+ * {@link BufferedImage#TYPE_BYTE_GRAY} image. The file is mapped a block of
+ * tile rows at a time, and only when a block is first touched, so reading the
+ * pixels of a region of a level only pages in the tiles that cover the region.
+ * <p>
+ * Each level is half the width and height of the level below, rounding down,
+ * smoothed the same way as {@link scl10.uk.ac.aber.users.manipulators.
+ * ImageManipulator#downsample(BufferedImage)} does. A region of a level can be
+ * warped with {@link scl10.uk.ac.aber.users.manipulators.
+ * ImageManipulator#applyWarpFunctionToRegion(TiledImageStore, int, Rectangle, double[][], double[][])}
+ * without the rest of the level being paged in.
+ * <p>
+ * The layout of the file, in little endian order, is:
+ *
+ * <pre>
+ * int  magic      "TILE"
+ * int  version    The version of the store format
+ * int  tileSize   The width and height of every tile
+ * int  channels   1 for grey images, 3 for colour images
+ * int  levels     The number of levels including the original size
+ * per level:
+ *   int  width    The width of the level
+ *   int  height   The height of the level
+ *   int  average  The average colour of the level as packed RGB
+ *   long offset   Where the level's tiles start in the file
+ * tiles           Each level's tiles a row of tiles at a time
+ * </pre>
+ *
+ * @author Scott Lockett
+ */
+public final class TiledImageStore implements AutoCloseable
+{
+
+	/**
+	 * Create the logger for logging messages
+	 */
+	private static final Logger LOGGER = LoggerFactory.getLogger(TiledImageStore.class);
+
+	/**
+	 * The tile size used when no tile size is given
+	 */
+	public static final int DEFAULT_TILE_SIZE = 256;
+
+	/**
+	 * The first four bytes of every tiled image store. "TILE" in ASCII.
+	 */
+	private static final int MAGIC = 0x54494C45;
+
+	/**
+	 * The current version of the store format
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * The size of the fixed part of the header
+	 */
+	private static final int HEADER_SIZE = 5 * Integer.BYTES;
+
+	/**
+	 * The size of each level's entry in the header
+	 */
+	private static final int LEVEL_ENTRY_SIZE = 3 * Integer.BYTES + Long.BYTES;
+
+	/**
+	 * The largest block of the file mapped at once. A single mapping can not
+	 * be larger than 2GB.
+	 */
+	private static final long MAX_BLOCK_SIZE = 1L << 30;
+
+	/**
+	 * The most bytes of the source image decoded at once while creating a
+	 * store
+	 */
+	private static final long STRIP_BUDGET = 64L * 1024 * 1024;
+
+	/**
+	 * The order the file is written in
+	 */
+	private static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	/**
+	 * The file backing the store
+	 */
+	private final RandomAccessFile file;
+
+	/**
+	 * The channel of the file backing the store
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * How the store is mapped, read only or read and write while it is being
+	 * created
+	 */
+	private final FileChannel.MapMode mapMode;
+
+	/**
+	 * The width and height of every tile
+	 */
+	@Getter
+	private final int tileSize;
+
+	/**
+	 * The number of bytes of each pixel, 1 for grey or 3 for colour
+	 */
+	@Getter
+	private final int channels;
+
+	/**
+	 * The width of each level
+	 */
+	private final int[] widths;
+
+	/**
+	 * The height of each level
+	 */
+	private final int[] heights;
+
+	/**
+	 * The average colour of each level as packed RGB
+	 */
+	private final int[] averages;
+
+	/**
+	 * Where each level's tiles start in the file
+	 */
+	private final long[] offsets;
+
+	/**
+	 * The number of tile rows mapped together in each block of each level
+	 */
+	private final int[] tileRowsPerBlock;
+
+	/**
+	 * The mapped blocks of each level, mapped when first touched
+	 */
+	private final MappedByteBuffer[][] blocks;
+
+	/**
+	 * Creates a store over an open file and reads or lays out the header.
+	 *
+	 * @param file
+	 *            The file backing the store.
+	 * @param mapMode
+	 *            How the file is to be mapped.
+	 * @param tileSize
+	 *            The width and height of every tile.
+	 * @param channels
+	 *            The number of bytes of each pixel.
+	 * @param widths
+	 *            The width of each level.
+	 * @param heights
+	 *            The height of each level.
+	 * @param averages
+	 *            The average colour of each level.
+	 */
+	private TiledImageStore(final RandomAccessFile file, final FileChannel.MapMode mapMode, final int tileSize,
+			final int channels, final int[] widths, final int[] heights, final int[] averages)
+	{
+		this.file = file;
+		this.channel = file.getChannel();
+		this.mapMode = mapMode;
+		this.tileSize = tileSize;
+		this.channels = channels;
+		this.widths = widths;
+		this.heights = heights;
+		this.averages = averages;
+
+		int levels = widths.length;
+		offsets = new long[levels];
+		tileRowsPerBlock = new int[levels];
+		blocks = new MappedByteBuffer[levels][];
+
+		long offset = HEADER_SIZE + (long) levels * LEVEL_ENTRY_SIZE;
+		for (int level = 0; level < levels; level++)
+		{
+			offsets[level] = offset;
+			long tileRowBytes = getTileRowBytes(level);
+			tileRowsPerBlock[level] = (int) Math.max(1, MAX_BLOCK_SIZE / tileRowBytes);
+			int tileRows = getTilesDown(level);
+			blocks[level] = new MappedByteBuffer[(tileRows + tileRowsPerBlock[level] - 1) / tileRowsPerBlock[level]];
+			offset += tileRowBytes * tileRows;
+		}
+	}
+
+	/**
+	 * Creates a store from an image file. The image is decoded a strip of rows
+	 * at a time straight into the store, so the whole image is never held on
+	 * the heap. How cheaply a strip can be decoded depends on the image format.
+	 *
+	 * @param imageFile
+	 *            The image to be stored. cannot be null.
+	 * @param storeFile
+	 *            The file the store is written to. It is overwritten if it
+	 *            already exists. cannot be null.
+	 * @param tileSize
+	 *            The width and height of every tile. Must be greater than 0.
+	 * @param levels
+	 *            The number of times the image is halved. Can not be negative.
+	 * @return The created store, ready to be read from.
+	 * @throws IOException
+	 *             If the image can not be read or the store can not be
+	 *             written.
+	 */
+	public static TiledImageStore create(@NonNull final File imageFile, @NonNull final File storeFile,
+			final int tileSize, final int levels) throws IOException
+	{
+		try (ImageInputStream input = ImageIO.createImageInputStream(imageFile))
+		{
+			if (input == null)
+			{
+				throw new IOException("Can not open " + imageFile.getPath());
+			}
+
+			Iterator<javax.imageio.ImageReader> decoders = ImageIO.getImageReaders(input);
+			if (!decoders.hasNext())
+			{
+				throw new IOException("No decoder can read " + imageFile.getPath());
+			}
+
+			javax.imageio.ImageReader decoder = decoders.next();
+			try
+			{
+				decoder.setInput(input, false, true);
+				int width = decoder.getWidth(0);
+				int height = decoder.getHeight(0);
+
+				/*
+				 * Decode as many whole tile rows at a time as fit the budget
+				 */
+				long tileRowBytes = (long) width * tileSize * 3;
+				int stripHeight = tileSize * (int) Math.max(1, STRIP_BUDGET / Math.max(tileRowBytes, 1));
+
+				ImageReadParam readParam = decoder.getDefaultReadParam();
+				TiledImageStore store = null;
+				try
+				{
+					for (int y = 0; y < height; y = y + stripHeight)
+					{
+						readParam.setSourceRegion(new Rectangle(0, y, width, Math.min(stripHeight, height - y)));
+						BufferedImage strip = decoder.read(0, readParam);
+
+						if (store == null)
+						{
+							store = allocate(storeFile, width, height, tileSize, levels, channelsOf(strip));
+						}
+						store.writeStrip(strip, y);
+					}
+
+					store.buildLevels();
+					return store;
+				} catch (IOException | RuntimeException e)
+				{
+					if (store != null)
+					{
+						store.close();
+					}
+					throw e;
+				}
+			} finally
+			{
+				decoder.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Opens an existing store to be read from.
+	 *
+	 * @param storeFile
+	 *            The file of the store. cannot be null.
+	 * @return The opened store.
+	 * @throws IOException
+	 *             If the file is not a valid store.
+	 */
+	public static TiledImageStore open(@NonNull final File storeFile) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(storeFile, "r");
+		try
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(BYTE_ORDER);
+			readFully(file.getChannel(), header, 0);
+
+			if (header.getInt() != MAGIC || header.getInt() != VERSION)
+			{
+				throw new IOException(storeFile.getPath() + " is not a tiled image store.");
+			}
+
+			int tileSize = header.getInt();
+			int channels = header.getInt();
+			int levels = header.getInt();
+
+			/*
+			 * Check the number of levels against the size of the file before
+			 * it's used to size anything
+			 */
+			if (tileSize <= 0 || (channels != 1 && channels != 3) || levels <= 0
+					|| levels > (file.length() - HEADER_SIZE) / LEVEL_ENTRY_SIZE)
+			{
+				throw new IOException(storeFile.getPath() + " has an invalid header.");
+			}
+
+			ByteBuffer levelEntries = ByteBuffer.allocate(levels * LEVEL_ENTRY_SIZE).order(BYTE_ORDER);
+			readFully(file.getChannel(), levelEntries, HEADER_SIZE);
+
+			int[] widths = new int[levels];
+			int[] heights = new int[levels];
+			int[] averages = new int[levels];
+			for (int level = 0; level < levels; level++)
+			{
+				widths[level] = levelEntries.getInt();
+				heights[level] = levelEntries.getInt();
+				averages[level] = levelEntries.getInt();
+				levelEntries.getLong();
+			}
+
+			TiledImageStore store = new TiledImageStore(file, FileChannel.MapMode.READ_ONLY, tileSize, channels,
+					widths, heights, averages);
+
+			long expectedSize = store.offsets[levels - 1] + store.getTileRowBytes(levels - 1) * store.getTilesDown(
+					levels - 1);
+			if (file.length() < expectedSize)
+			{
+				throw new IOException(storeFile.getPath() + " is truncated.");
+			}
+			return store;
+		} catch (IOException | RuntimeException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the number of levels of the store, including the original size.
+	 *
+	 * @return The number of levels.
+	 */
+	public int getLevels()
+	{
+		return widths.length;
+	}
+
+	/**
+	 * Get the width of a level.
+	 *
+	 * @param level
+	 *            The level. 0 is the original size.
+	 * @return The width of the level.
+	 */
+	public int getWidth(final int level)
+	{
+		return widths[level];
+	}
+
+	/**
+	 * Get the height of a level.
+	 *
+	 * @param level
+	 *            The level. 0 is the original size.
+	 * @return The height of the level.
+	 */
+	public int getHeight(final int level)
+	{
+		return heights[level];
+	}
+
+	/**
+	 * Get the average colour of a level.
+	 *
+	 * @param level
+	 *            The level. 0 is the original size.
+	 * @return The average colour as packed RGB with an opaque alpha.
+	 */
+	public int getAverageRGB(final int level)
+	{
+		return averages[level] | 0xFF000000;
+	}
+
+	/**
+	 * Get the colour of a single pixel. Only the tile holding the pixel is
+	 * paged in.
+	 *
+	 * @param level
+	 *            The level. 0 is the original size.
+	 * @param x
+	 *            The column of the pixel.
+	 * @param y
+	 *            The row of the pixel.
+	 * @return The colour as packed RGB with an opaque alpha.
+	 */
+	public int getRGB(final int level, final int x, final int y)
+	{
+		checkBounds(level, x, y, 1, 1);
+
+		MappedByteBuffer block = getBlock(level, y / tileSize);
+		int index = offsetInBlock(level, x, y);
+
+		if (channels == 1)
+		{
+			int grey = block.get(index) & 0xFF;
+			return 0xFF000000 | grey << 16 | grey << 8 | grey;
+		}
+		return 0xFF000000 | (block.get(index + 2) & 0xFF) << 16 | (block.get(index + 1) & 0xFF) << 8
+				| block.get(index) & 0xFF;
+	}
+
+	/**
+	 * Closes the file backing the store. Nothing can be read from the store
+	 * once it's closed.
+	 * <p>
+	 * Java has no way to unmap a file, so the blocks already mapped stay
+	 * mapped until they are garbage collected, and until then the file can not
+	 * be deleted on Windows. The store drops its own references to them here
+	 * so they can be collected.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		for (MappedByteBuffer[] levelBlocks : blocks)
+		{
+			synchronized (levelBlocks)
+			{
+				Arrays.fill(levelBlocks, null);
+			}
+		}
+		file.close();
+	}
+
+	/**
+	 * Creates a new store file with the header written and room for every
+	 * tile.
+	 *
+	 * @param storeFile
+	 *            The file the store is written to.
+	 * @param width
+	 *            The width of the original image.
+	 * @param height
+	 *            The height of the original image.
+	 * @param tileSize
+	 *            The width and height of every tile.
+	 * @param levels
+	 *            The number of times the image is halved.
+	 * @param channels
+	 *            The number of bytes of each pixel.
+	 * @return The new store, mapped for writing.
+	 * @throws IOException
+	 *             If the file can not be created.
+	 */
+	private static TiledImageStore allocate(final File storeFile, final int width, final int height,
+			final int tileSize, final int levels, final int channels) throws IOException
+	{
+		if (tileSize <= 0)
+		{
+			throw new IllegalArgumentException("The tile size must be greater than 0. " + tileSize);
+		}
+
+		if (levels < 0 || (width >> levels) == 0 || (height >> levels) == 0)
+		{
+			throw new IllegalArgumentException(
+					"A " + width + "x" + height + " image can not be halved " + levels + " times.");
+		}
+
+		int[] widths = new int[levels + 1];
+		int[] heights = new int[levels + 1];
+		for (int level = 0; level <= levels; level++)
+		{
+			widths[level] = width >> level;
+			heights[level] = height >> level;
+		}
+
+		RandomAccessFile file = new RandomAccessFile(storeFile, "rw");
+		try
+		{
+			file.setLength(0);
+			TiledImageStore store = new TiledImageStore(file, FileChannel.MapMode.READ_WRITE, tileSize, channels,
+					widths, heights, new int[levels + 1]);
+			file.setLength(store.offsets[levels] + store.getTileRowBytes(levels) * store.getTilesDown(levels));
+			store.writeHeader();
+			return store;
+		} catch (IOException | RuntimeException e)
+		{
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes the header, including the average colour of each level.
+	 *
+	 * @throws IOException
+	 *             If the header can not be written.
+	 */
+	private void writeHeader() throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + getLevels() * LEVEL_ENTRY_SIZE).order(BYTE_ORDER);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(tileSize);
+		header.putInt(channels);
+		header.putInt(getLevels());
+		for (int level = 0; level < getLevels(); level++)
+		{
+			header.putInt(widths[level]);
+			header.putInt(heights[level]);
+			header.putInt(averages[level]);
+			header.putLong(offsets[level]);
+		}
+		header.flip();
+
+		long position = 0;
+		while (header.hasRemaining())
+		{
+			position += channel.write(header, position);
+		}
+	}
+
+	/**
+	 * Writes a strip of rows of the original image into level 0.
+	 *
+	 * @param strip
+	 *            The strip of the image.
+	 * @param y
+	 *            The row of the original image the strip starts at.
+	 */
+	private void writeStrip(final BufferedImage strip, final int y)
+	{
+		int width = widths[0];
+		byte[] rowBytes = new byte[width * channels];
+		int[] rgbRow = new int[width];
+		Raster raster = strip.getRaster();
+
+		for (int row = 0; row < strip.getHeight(); row++)
+		{
+			if (channels == 1)
+			{
+				for (int x = 0; x < width; x++)
+				{
+					rowBytes[x] = (byte) raster.getSample(x, row, 0);
+				}
+			} else
+			{
+				strip.getRGB(0, row, width, 1, rgbRow, 0, width);
+				for (int x = 0, i = 0; x < width; x++, i += 3)
+				{
+					int rgb = rgbRow[x];
+					rowBytes[i] = (byte) rgb;
+					rowBytes[i + 1] = (byte) (rgb >> 8);
+					rowBytes[i + 2] = (byte) (rgb >> 16);
+				}
+			}
+			writeRow(0, y + row, rowBytes);
+		}
+	}
+
+	/**
+	 * Builds every level above level 0 from the level below, then works out
+	 * the average colour of every level and writes the header.
+	 *
+	 * @throws IOException
+	 *             If the header can not be written.
+	 */
+	private void buildLevels() throws IOException
+	{
+		for (int level = 1; level < getLevels(); level++)
+		{
+			buildLevel(level);
+		}
+
+		for (int level = 0; level < getLevels(); level++)
+		{
+			averages[level] = computeAverage(level);
+		}
+		writeHeader();
+
+		LOGGER.info("Created a " + getLevels() + " level tiled image store of " + widths[0] + "x" + heights[0]
+				+ " pixels in " + tileSize + " pixel tiles");
+	}
+
+	/**
+	 * Builds a level from the level below. Each pixel is the 5x5 Gaussian
+	 * weighted sum around the matching pixel of the level below, with the
+	 * borders reflected, the same as OpenCV's pyramid downsampling.
+	 *
+	 * @param level
+	 *            The level to be built.
+	 */
+	private void buildLevel(final int level)
+	{
+		int sourceWidth = widths[level - 1];
+		int sourceHeight = heights[level - 1];
+		int width = widths[level];
+
+		/*
+		 * A small cache of source rows, as each source row is used by up to
+		 * three output rows.
+		 */
+		byte[][] cachedRows = new byte[8][sourceWidth * channels];
+		int[] cachedRowNumbers = new int[] { -1, -1, -1, -1, -1, -1, -1, -1 };
+
+		int[] columnSums = new int[sourceWidth * channels];
+		byte[] outputRow = new byte[width * channels];
+		byte[][] sourceRows = new byte[5][];
+
+		for (int y = 0; y < heights[level]; y++)
+		{
+			/*
+			 * Get the five source rows around this row
+			 */
+			for (int k = 0; k < 5; k++)
+			{
+				int sourceY = reflect(2 * y + k - 2, sourceHeight);
+				int slot = sourceY & 7;
+				if (cachedRowNumbers[slot] != sourceY)
+				{
+					readRow(level - 1, sourceY, 0, sourceWidth, cachedRows[slot], 0);
+					cachedRowNumbers[slot] = sourceY;
+				}
+				sourceRows[k] = cachedRows[slot];
+			}
+
+			/*
+			 * Vertical pass
+			 */
+			for (int i = 0; i < columnSums.length; i++)
+			{
+				columnSums[i] = (sourceRows[0][i] & 0xFF) + 4 * (sourceRows[1][i] & 0xFF)
+						+ 6 * (sourceRows[2][i] & 0xFF) + 4 * (sourceRows[3][i] & 0xFF) + (sourceRows[4][i] & 0xFF);
+			}
+
+			/*
+			 * Horizontal pass, only at the columns that are kept
+			 */
+			for (int x = 0; x < width; x++)
+			{
+				int left2 = reflect(2 * x - 2, sourceWidth) * channels;
+				int left1 = reflect(2 * x - 1, sourceWidth) * channels;
+				int centre = 2 * x * channels;
+				int right1 = reflect(2 * x + 1, sourceWidth) * channels;
+				int right2 = reflect(2 * x + 2, sourceWidth) * channels;
+
+				for (int c = 0; c < channels; c++)
+				{
+					int sum = columnSums[left2 + c] + 4 * columnSums[left1 + c] + 6 * columnSums[centre + c]
+							+ 4 * columnSums[right1 + c] + columnSums[right2 + c];
+					outputRow[x * channels + c] = (byte) ((sum + 128) >> 8);
+				}
+			}
+
+			writeRow(level, y, outputRow);
+		}
+	}
+
+	/**
+	 * Works out the average colour of a level.
+	 *
+	 * @param level
+	 *            The level.
+	 * @return The average colour as packed RGB.
+	 */
+	private int computeAverage(final int level)
+	{
+		long[] sums = new long[channels];
+		byte[] row = new byte[widths[level] * channels];
+
+		for (int y = 0; y < heights[level]; y++)
+		{
+			readRow(level, y, 0, widths[level], row, 0);
+			for (int i = 0; i < row.length; i++)
+			{
+				sums[i % channels] += row[i] & 0xFF;
+			}
+		}
+
+		long pixels = (long) widths[level] * heights[level];
+		if (channels == 1)
+		{
+			int grey = (int) (sums[0] / pixels);
+			return grey << 16 | grey << 8 | grey;
+		}
+		return (int) (sums[2] / pixels) << 16 | (int) (sums[1] / pixels) << 8 | (int) (sums[0] / pixels);
+	}
+
+	/**
+	 * Reads part of a row of a level.
+	 *
+	 * @param level
+	 *            The level.
+	 * @param y
+	 *            The row.
+	 * @param x
+	 *            The first column to read.
+	 * @param width
+	 *            The number of pixels to read.
+	 * @param destination
+	 *            The array the pixels are read into.
+	 * @param destinationOffset
+	 *            Where in the array the first pixel goes.
+	 */
+	private void readRow(final int level, final int y, final int x, final int width, final byte[] destination,
+			final int destinationOffset)
+	{
+		ByteBuffer block = getBlock(level, y / tileSize).duplicate();
+		int column = x;
+		int offset = destinationOffset;
+
+		/*
+		 * Copy the part of the row within each tile the row crosses
+		 */
+		while (column < x + width)
+		{
+			int pixelsInTile = Math.min(tileSize - column % tileSize, x + width - column);
+			block.position(offsetInBlock(level, column, y));
+			block.get(destination, offset, pixelsInTile * channels);
+			column += pixelsInTile;
+			offset += pixelsInTile * channels;
+		}
+	}
+
+	/**
+	 * Writes a whole row of a level.
+	 *
+	 * @param level
+	 *            The level.
+	 * @param y
+	 *            The row.
+	 * @param source
+	 *            The pixels of the row.
+	 */
+	private void writeRow(final int level, final int y, final byte[] source)
+	{
+		ByteBuffer block = getBlock(level, y / tileSize).duplicate();
+		int width = widths[level];
+
+		for (int column = 0; column < width; column = column + tileSize)
+		{
+			int pixelsInTile = Math.min(tileSize, width - column);
+			block.position(offsetInBlock(level, column, y));
+			block.put(source, column * channels, pixelsInTile * channels);
+		}
+	}
+
+	/**
+	 * Get the block holding a row of tiles, mapping it if it has not been
+	 * touched yet.
+	 *
+	 * @param level
+	 *            The level.
+	 * @param tileRow
+	 *            The row of tiles.
+	 * @return The mapped block.
+	 */
+	private MappedByteBuffer getBlock(final int level, final int tileRow)
+	{
+		int blockIndex = tileRow / tileRowsPerBlock[level];
+
+		/*
+		 * The blocks are only ever looked at with the level's lock held, as
+		 * the elements of an array aren't safely published to other threads
+		 * without it.
+		 */
+		synchronized (blocks[level])
+		{
+			MappedByteBuffer block = blocks[level][blockIndex];
+			if (block == null)
+			{
+				int firstTileRow = blockIndex * tileRowsPerBlock[level];
+				int tileRows = Math.min(tileRowsPerBlock[level], getTilesDown(level) - firstTileRow);
+				long tileRowBytes = getTileRowBytes(level);
+				try
+				{
+					block = channel.map(mapMode, offsets[level] + firstTileRow * tileRowBytes, tileRows * tileRowBytes);
+				} catch (IOException e)
+				{
+					throw new IllegalStateException("Tiles of level " + level + " can not be mapped.", e);
+				}
+				blocks[level][blockIndex] = block;
+			}
+			return block;
+		}
+	}
+
+	/**
+	 * Get where a pixel is within the block holding its tile.
+	 *
+	 * @param level
+	 *            The level.
+	 * @param x
+	 *            The column of the pixel.
+	 * @param y
+	 *            The row of the pixel.
+	 * @return The index of the pixel's first byte within the block.
+	 */
+	private int offsetInBlock(final int level, final int x, final int y)
+	{
+		int tileRowInBlock = (y / tileSize) % tileRowsPerBlock[level];
+		long offset = tileRowInBlock * getTileRowBytes(level) + (long) (x / tileSize) * getTileBytes()
+				+ ((y % tileSize) * tileSize + x % tileSize) * channels;
+		return (int) offset;
+	}
+
+	/**
+	 * Get the number of bytes of each tile.
+	 *
+	 * @return The bytes of each tile.
+	 */
+	private long getTileBytes()
+	{
+		return (long) tileSize * tileSize * channels;
+	}
+
+	/**
+	 * Get the number of bytes of a row of tiles of a level.
+	 *
+	 * @param level
+	 *            The level.
+	 * @return The bytes of a row of tiles.
+	 */
+	private long getTileRowBytes(final int level)
+	{
+		return getTilesAcross(level) * getTileBytes();
+	}
+
+	/**
+	 * Get the number of tiles across a level.
+	 *
+	 * @param level
+	 *            The level.
+	 * @return The number of tiles across.
+	 */
+	private int getTilesAcross(final int level)
+	{
+		return (widths[level] + tileSize - 1) / tileSize;
+	}
+
+	/**
+	 * Get the number of tiles down a level.
+	 *
+	 * @param level
+	 *            The level.
+	 * @return The number of tiles down.
+	 */
+	private int getTilesDown(final int level)
+	{
+		return (heights[level] + tileSize - 1) / tileSize;
+	}
+
+	/**
+	 * Checks a region lies within a level.
+	 *
+	 * @param level
+	 *            The level.
+	 * @param x
+	 *            The first column of the region.
+	 * @param y
+	 *            The first row of the region.
+	 * @param width
+	 *            The width of the region.
+	 * @param height
+	 *            The height of the region.
+	 */
+	private void checkBounds(final int level, final int x, final int y, final int width, final int height)
+	{
+		if (level < 0 || level >= getLevels() || x < 0 || y < 0 || width <= 0 || height <= 0
+				|| (long) x + width > widths[level] || (long) y + height > heights[level])
+		{
+			throw new IndexOutOfBoundsException("Region (" + x + ", " + y + ", " + width + ", " + height
+					+ ") is not within level " + level);
+		}
+	}
+
+	/**
+	 * Reflects an index back inside 0 to length - 1 without repeating the edge
+	 * value, the same as OpenCV's default border.
+	 *
+	 * @param index
+	 *            The index, which may be outside of the range.
+	 * @param length
+	 *            The length of the range.
+	 * @return The reflected index.
+	 */
+	private static int reflect(final int index, final int length)
+	{
+		if (length == 1)
+		{
+			return 0;
+		}
+
+		int reflected = index;
+		while (reflected < 0 || reflected >= length)
+		{
+			reflected = reflected < 0 ? -reflected : 2 * length - 2 - reflected;
+		}
+		return reflected;
+	}
+
+	/**
+	 * Get the number of channels an image is stored with.
+	 *
+	 * @param image
+	 *            The image.
+	 * @return 1 for grey images, 3 for any other image.
+	 */
+	private static int channelsOf(final BufferedImage image)
+	{
+		return image.getType() == BufferedImage.TYPE_BYTE_GRAY ? 1 : 3;
+	}
+
+	/**
+	 * Reads from a channel until a buffer is full.
+	 *
+	 * @param channel
+	 *            The channel.
+	 * @param buffer
+	 *            The buffer to be filled.
+	 * @param position
+	 *            Where in the channel to start reading.
+	 * @throws IOException
+	 *             If the channel ends before the buffer is full.
+	 */
+	private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position)
+			throws IOException
+	{
+		long readPosition = position;
+		while (buffer.hasRemaining())
+		{
+			int read = channel.read(buffer, readPosition);
+			if (read < 0)
+			{
+				throw new IOException("The tiled image store is truncated.");
+			}
+			readPosition += read;
+		}
+		buffer.flip();
+	}
+}
@@ -4,9 +4,12 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
 import org.opencv.core.Size;
 
 import lombok.NonNull;
+import scl10.uk.ac.aber.users.manipulators.MatPool;
 import scl10.uk.ac.aber.users.manipulators.WarpManipulator;
 import scl10.uk.ac.aber.users.neuralnetwork.ImageWarpNormalizer;
 
@@ -68,14 +71,115 @@ public final class WarpPyramid
 		 * 
 		 * Bad design here - there's not really high cohesion and low coupling.
 		 * Come back to this if there's time.
+		 * 
+		 * The sizes are copied as they're reversed below, and the image
+		 * pyramid's sizes can be shared by other warp pyramids being built at
+		 * the same time.
 		 */
-		warpSizes = (ArrayList<Size>) imageSizes;
+		warpSizes = new ArrayList<>(imageSizes);
 
 		PYRAMID_LEVELS = imageSizes.size() - 1;
 
 		createWarpPyramid();
 	}
 
+	/**
+	 * Creates a warp pyramid from warps that have already been upsampled.
+	 * 
+	 * @param warp
+	 *            The original warp that is the first level of the pyramid
+	 * @param warps
+	 *            The warp at each level, largest first
+	 * @param sizes
+	 *            The sizes of the warps, smallest first
+	 */
+	private WarpPyramid(final double[][] warp, final List<double[][]> warps, final ArrayList<Size> sizes)
+	{
+		originalWarp = warp;
+		warpSizes = sizes;
+		PYRAMID_LEVELS = sizes.size() - 1;
+		warpPyramidList.addAll(warps);
+	}
+
+	/**
+	 * Creates an up sampled x warp pyramid and y warp pyramid together. The
+	 * two warps are held as the two channels of a single matrix, so each level
+	 * is upsampled for both warps with one native pass and only converted
+	 * back into arrays once. The pyramids are the same as creating each with
+	 * {@link #WarpPyramid(double[][], List)}.
+	 * 
+	 * @param xwarp
+	 *            The original x warp that is to be the first level of the x
+	 *            pyramid
+	 * @param ywarp
+	 *            The original y warp that is to be the first level of the y
+	 *            pyramid. Must be the same size as the x warp.
+	 * @param imageSizes
+	 *            The associated sizes of the images which relate to each warp
+	 * @return The x warp pyramid at [0] and the y warp pyramid at [1].
+	 */
+	public static WarpPyramid[] createPair(@NonNull final double[][] xwarp, @NonNull final double[][] ywarp,
+			@NonNull final List<Size> imageSizes)
+	{
+		if (xwarp.length != ywarp.length || xwarp[0].length != ywarp[0].length)
+		{
+			throw new IllegalArgumentException("The x and y warps must be the same size. " + xwarp[0].length + " x "
+					+ xwarp.length + " and " + ywarp[0].length + " x " + ywarp.length);
+		}
+
+		/*
+		 * The sizes go from smallest to largest, the same as a single warp
+		 * pyramid.
+		 */
+		ArrayList<Size> sizes = new ArrayList<>(imageSizes);
+		Collections.reverse(sizes);
+
+		/*
+		 * Un-normalise the output from the artificial neural network and add
+		 * the warps to the lowest level.
+		 */
+		List<double[][]> xWarps = new ArrayList<>();
+		List<double[][]> yWarps = new ArrayList<>();
+		xWarps.add(ImageWarpNormalizer.unnormalize(xwarp));
+		yWarps.add(ImageWarpNormalizer.unnormalize(ywarp));
+
+		MatPool pool = MatPool.getShared();
+		Mat currentWarps = WarpManipulator.convertWarpsToMatrix(xWarps.get(0), yWarps.get(0),
+				pool.acquire(xwarp.length, xwarp[0].length, CvType.CV_64FC2));
+		try
+		{
+			/*
+			 * Upsample both warps from the level below, only keeping the
+			 * matrix of the level below until the level is upsampled.
+			 */
+			for (int i = 1; i < sizes.size(); i++)
+			{
+				Size size = sizes.get(i);
+				Mat biggerWarps = pool.acquire((int) size.height, (int) size.width, CvType.CV_64FC2);
+				try
+				{
+					WarpManipulator.upsample(currentWarps, size, biggerWarps);
+				} finally
+				{
+					pool.release(currentWarps);
+					currentWarps = biggerWarps;
+				}
+
+				double[][][] xAndYWarp = WarpManipulator.convertMatrixToWarps(currentWarps);
+				xWarps.add(xAndYWarp[0]);
+				yWarps.add(xAndYWarp[1]);
+			}
+		} finally
+		{
+			pool.release(currentWarps);
+		}
+
+		Collections.reverse(xWarps);
+		Collections.reverse(yWarps);
+
+		return new WarpPyramid[] { new WarpPyramid(xwarp, xWarps, sizes), new WarpPyramid(ywarp, yWarps, sizes) };
+	}
+
 	/**
 	 * Creates a new warp pyramid. Loops through each of the associated images
 	 * sizes and upsamples the warp to image sizes size.
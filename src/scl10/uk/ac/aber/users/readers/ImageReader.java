@@ -1,21 +1,32 @@
 package scl10.uk.ac.aber.users.readers;
 
-import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.FlowLayout;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 
+import org.opencv.core.Size;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import lombok.Getter;
 import lombok.NonNull;
+import scl10.uk.ac.aber.users.manipulators.ImageManipulator;
 
 /**
  * An immutable class for the reading images and parsing the pixel values of
@@ -32,16 +43,30 @@ public final class ImageReader
 	private static final Logger LOGGER = LoggerFactory.getLogger(ImageReader.class);
 
 	/**
-	 * The associated image as a 2 dimensional array of pixel values
+	 * The version of the way {@link #getAsFlatArray()} turns pixels into
+	 * values. Must be increased whenever the values change, so data sets cached
+	 * from the old values are not used. Version 1 was the average of the blue,
+	 * green and red values, version 2 is the luminance.
 	 */
-	@Getter
-	private final double[][] as2DArray;
+	public static final int FLAT_ARRAY_VERSION = 2;
 
 	/**
-	 * The associated image as a flat/ single array of pixel values
+	 * The associated image as a 2 dimensional array of pixel values. Only
+	 * created the first time it is asked for.
 	 */
-	@Getter
-	private final double[] asFlatArray;
+	private volatile double[][] as2DArray;
+
+	/**
+	 * The associated image as a flat/ single array of pixel values. Only
+	 * created the first time it is asked for.
+	 */
+	private volatile double[] asFlatArray;
+
+	/**
+	 * The associated image as a flat array of luminance values. Only created
+	 * the first time it is asked for.
+	 */
+	private volatile float[] asLuminanceArray;
 
 	/**
 	 * The image that has been read in from a file
@@ -50,7 +75,8 @@ public final class ImageReader
 	private final BufferedImage img;
 
 	/**
-	 * Creates a new reader based on an already read buffered image.
+	 * Creates a new reader based on an already read buffered image. None of the
+	 * pixel arrays are created until they are asked for.
 	 * 
 	 * @param image
 	 *            The Buffered image which is to be associated with this reader
@@ -59,8 +85,6 @@ public final class ImageReader
 	public ImageReader(@NonNull final BufferedImage image)
 	{
 		img = image;
-		as2DArray = convertImageTo2DArray();
-		asFlatArray = convertToFlatArray();
 	}
 
 	/**
@@ -102,6 +126,152 @@ public final class ImageReader
 		return null;
 	}
 
+	/**
+	 * Creates a new image reader for an image decoded straight to a level of an
+	 * image pyramid.
+	 * 
+	 * @param imageFile
+	 *            The file of the image which is to be read. cannot be null.
+	 * @param level
+	 *            The pyramid level to decode to. 0 is the original size.
+	 * @see #readImageFileAtLevel(File, int)
+	 */
+	public ImageReader(@NonNull final File imageFile, final int level)
+	{
+		this(readImageFileAtLevel(imageFile, level));
+	}
+
+	/**
+	 * Load an image from a given file at a level of an image pyramid, as if it
+	 * had been downsampled with {@link ImageManipulator#downsample} the given
+	 * number of times.
+	 * <p>
+	 * The image is never decoded at its full size. The decoder skips pixels as
+	 * it reads (source subsampling) to get within one level of the requested
+	 * level, and a single finishing pyramid downsample smooths the result and
+	 * brings it to exactly the size the repeated downsampling would have
+	 * produced.
+	 * 
+	 * @param imageFile
+	 *            The file of the image to be loaded. cannot be null.
+	 * @param level
+	 *            The pyramid level to decode to. 0 is the original size. Can
+	 *            not be negative.
+	 * @return The image at the given pyramid level, or null if the image could
+	 *         not be read.
+	 */
+	public static BufferedImage readImageFileAtLevel(@NonNull final File imageFile, final int level)
+	{
+		if (level < 0)
+		{
+			throw new IllegalArgumentException("The pyramid level can not be negative. " + level);
+		}
+
+		if (level == 0)
+		{
+			return readImageFile(imageFile);
+		}
+
+		try (ImageInputStream input = ImageIO.createImageInputStream(imageFile))
+		{
+			javax.imageio.ImageReader decoder = findDecoder(input, imageFile);
+
+			try
+			{
+				decoder.setInput(input, true, true);
+				Dimension levelSize = sizeAtLevel(new Dimension(decoder.getWidth(0), decoder.getHeight(0)), level);
+
+				/*
+				 * Skip pixels while decoding to land one level above the
+				 * requested level. The finishing downsample does the rest.
+				 */
+				int subsampling = 1 << (level - 1);
+				ImageReadParam readParam = decoder.getDefaultReadParam();
+				readParam.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				BufferedImage nearlyThere = decoder.read(0, readParam);
+
+				return ImageManipulator.downsample(nearlyThere, new Size(levelSize.width, levelSize.height));
+			} finally
+			{
+				decoder.dispose();
+			}
+		} catch (IOException e)
+		{
+			LOGGER.error(imageFile.getAbsolutePath() + " has failed to load at level " + level, e);
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the width and height of an image without decoding its pixels.
+	 * 
+	 * @param imageFile
+	 *            The file of the image. cannot be null.
+	 * @return The size of the image, or null if the image could not be read.
+	 */
+	public static Dimension readImageDimension(@NonNull final File imageFile)
+	{
+		try (ImageInputStream input = ImageIO.createImageInputStream(imageFile))
+		{
+			javax.imageio.ImageReader decoder = findDecoder(input, imageFile);
+			try
+			{
+				decoder.setInput(input, true, true);
+				return new Dimension(decoder.getWidth(0), decoder.getHeight(0));
+			} finally
+			{
+				decoder.dispose();
+			}
+		} catch (IOException e)
+		{
+			LOGGER.error(imageFile.getAbsolutePath() + " has failed to load", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Works out the size of an image at a level of an image pyramid. Each level
+	 * halves the previous level's width and height, rounding down.
+	 * 
+	 * @param originalSize
+	 *            The size of the image at level 0. cannot be null.
+	 * @param level
+	 *            The level of the pyramid. Can not be negative.
+	 * @return The size of the image at the level.
+	 */
+	public static Dimension sizeAtLevel(@NonNull final Dimension originalSize, final int level)
+	{
+		return new Dimension(originalSize.width >> level, originalSize.height >> level);
+	}
+
+	/**
+	 * Finds an ImageIO decoder for an image stream.
+	 * 
+	 * @param input
+	 *            The stream of the image. Can be null if the file could not be
+	 *            opened.
+	 * @param imageFile
+	 *            The file the stream was opened from, used for error messages.
+	 * @return A decoder that can read the stream.
+	 * @throws IOException
+	 *             If the file could not be opened or no decoder can read it.
+	 */
+	private static javax.imageio.ImageReader findDecoder(final ImageInputStream input,
+			@NonNull final File imageFile) throws IOException
+	{
+		if (input == null)
+		{
+			throw new IOException("Can not open " + imageFile.getPath());
+		}
+
+		Iterator<javax.imageio.ImageReader> decoders = ImageIO.getImageReaders(input);
+		if (!decoders.hasNext())
+		{
+			throw new IOException("No decoder can read " + imageFile.getPath());
+		}
+		return decoders.next();
+	}
+
 	/**
 	 * Given a file, load said file and display the file as an image within a
 	 * JFrame.
@@ -168,6 +338,59 @@ public final class ImageReader
 		frame.pack();
 	}
 
+	/**
+	 * Get the associated image as a 2D array of packed ARGB pixel values, as
+	 * returned by {@link BufferedImage#getRGB(int, int)}. The array is indexed
+	 * [y][x].
+	 * 
+	 * @return The image as a 2D array of pixel values
+	 */
+	public double[][] getAs2DArray()
+	{
+		double[][] array = as2DArray;
+		if (array == null)
+		{
+			array = convertImageTo2DArray();
+			as2DArray = array;
+		}
+		return array;
+	}
+
+	/**
+	 * Get the associated image as a flat array of luminance values between 0 -
+	 * 255, see {@link ImageManipulator#convertToLuminance(BufferedImage)}. The
+	 * array is ordered column by column.
+	 * 
+	 * @return A flat array of pixel values
+	 */
+	public double[] getAsFlatArray()
+	{
+		double[] array = asFlatArray;
+		if (array == null)
+		{
+			array = convertToFlatArray();
+			asFlatArray = array;
+		}
+		return array;
+	}
+
+	/**
+	 * Get the associated image as a flat array of luminance values between 0 -
+	 * 255. The array is ordered row by row.
+	 * 
+	 * @return A flat array of luminance values
+	 */
+	public float[] getAsLuminanceArray()
+	{
+		float[] array = asLuminanceArray;
+		if (array == null)
+		{
+			array = ImageManipulator.convertToLuminance(img);
+			asLuminanceArray = array;
+		}
+		return array;
+	}
+
 	/**
 	 * Converts the associated buffered image of this reader into a 2D array of
 	 * pixel values
@@ -176,21 +399,21 @@ public final class ImageReader
 	 */
 	private double[][] convertImageTo2DArray()
 	{
-		double[][] imagePixels = new double[img.getHeight()][img.getWidth()];
+		int width = img.getWidth();
+		double[][] imagePixels = new double[img.getHeight()][width];
 
-		for (int x = 0; x < img.getHeight(); x++)
+		/*
+		 * A single row of packed pixels is reused for every row of the image
+		 */
+		int[] row = new int[width];
+		PackedRowReader rowReader = new PackedRowReader(img);
+
+		for (int y = 0; y < imagePixels.length; y++)
 		{
-			for (int y = 0; y < img.getWidth(); y++)
+			rowReader.readRow(y, row);
+			for (int x = 0; x < width; x++)
 			{
-				/*
-				 * Get the current colour of the pixel
-				 */
-				Color currentColor = new Color(img.getRGB(y, x));
-
-				/*
-				 * Get the pixel's RGB and set it within the array
-				 */
-				imagePixels[x][y] = currentColor.getRGB();
+				imagePixels[y][x] = row[x];
 			}
 		}
 
@@ -199,42 +422,211 @@ public final class ImageReader
 
 	/**
 	 * Converts the associated buffered image of this reader into a flat array
-	 * of pixel values
+	 * of luminance values
 	 * 
-	 * @return A flat array of pixel values
+	 * @return A flat array of luminance values
 	 */
 	private double[] convertToFlatArray()
 	{
-		double[] pixelsFlatArray = new double[img.getHeight() * img.getWidth()];
-
-		int flatArrayPosition = 0;
+		int width = img.getWidth();
+		int height = img.getHeight();
+		double[] pixelsFlatArray = new double[height * width];
 
 		/*
-		 * Loop through the whole of the image and get the colour of each pixel
+		 * Reuse the luminance array, which is ordered row by row, and write it
+		 * out column by column, which is the order the flat array has always
+		 * been in.
 		 */
-		for (int x = 0; x < img.getWidth(); x++)
+		float[] luminance = getAsLuminanceArray();
+
+		for (int y = 0; y < height; y++)
 		{
-			for (int y = 0; y < img.getHeight(); y++)
+			for (int x = 0; x < width; x++)
 			{
+				pixelsFlatArray[x * height + y] = luminance[y * width + x];
+			}
+		}
+
+		return pixelsFlatArray;
+	}
+
+	/**
+	 * Reads rows of opaque packed ARGB pixels from an image. Byte backed images are
+	 * read straight out of the raster's byte array. Any other image is read
+	 * with a single bulk {@link BufferedImage#getRGB} call per row.
+	 */
+	private static final class PackedRowReader
+	{
+		/**
+		 * The image being read
+		 */
+		private final BufferedImage image;
+
+		/**
+		 * The raster's bytes, or null if the image can not be read directly
+		 */
+		private final byte[] data;
+
+		/**
+		 * The position of pixel (0, 0) within the data
+		 */
+		private final int origin;
+
+		/**
+		 * The distance between the start of two rows within the data
+		 */
+		private final int scanlineStride;
+
+		/**
+		 * The distance between two pixels within the data
+		 */
+		private final int pixelStride;
+
+		/**
+		 * The offsets of the red, green and blue bytes within a pixel. All the
+		 * same for single band images.
+		 */
+		private final int redOffset;
+
+		/**
+		 * The offset of the green byte within a pixel
+		 */
+		private final int greenOffset;
+
+		/**
+		 * The offset of the blue byte within a pixel
+		 */
+		private final int blueOffset;
+
+		/**
+		 * For single band images, the packed colour of each of the 256 grey
+		 * levels. Null for colour images.
+		 */
+		private final int[] greyLookup;
+
+		/**
+		 * Works out how the image can be read.
+		 * 
+		 * @param image
+		 *            The image to be read. Cannot be null.
+		 */
+		PackedRowReader(@NonNull final BufferedImage image)
+		{
+			this.image = image;
+
+			WritableRaster raster = image.getRaster();
+			ColorModel colorModel = image.getColorModel();
+
+			boolean byteBacked = raster.getDataBuffer() instanceof DataBufferByte
+					&& raster.getSampleModel() instanceof ComponentSampleModel
+					&& colorModel instanceof ComponentColorModel && raster.getDataBuffer().getNumBanks() == 1;
+
+			int bands = raster.getNumBands();
+			int colorSpaceType = colorModel.getColorSpace().getType();
+
+			/*
+			 * Only 8 bit sRGB or grey images can be read directly. Anything
+			 * else goes through the colour model.
+			 */
+			boolean readable = byteBacked && colorModel.getComponentSize(0) == 8
+					&& ((bands == 3 && colorModel.getColorSpace().isCS_sRGB() && !colorModel.hasAlpha())
+							|| (bands == 1 && colorSpaceType == ColorSpace.TYPE_GRAY));
+
+			if (!readable)
+			{
+				data = null;
+				origin = 0;
+				scanlineStride = 0;
+				pixelStride = 0;
+				redOffset = 0;
+				greenOffset = 0;
+				blueOffset = 0;
+				greyLookup = null;
+				return;
+			}
+
+			ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+			int[] bandOffsets = sampleModel.getBandOffsets();
+
+			data = ((DataBufferByte) raster.getDataBuffer()).getData();
+			scanlineStride = sampleModel.getScanlineStride();
+			pixelStride = sampleModel.getPixelStride();
+
+			/*
+			 * Sub images share the parent's data so take the raster's
+			 * translation into account.
+			 */
+			origin = raster.getDataBuffer().getOffset()
+					- raster.getSampleModelTranslateY() * scanlineStride
+					- raster.getSampleModelTranslateX() * pixelStride;
+
+			if (bands == 1)
+			{
+				redOffset = bandOffsets[0];
+				greenOffset = bandOffsets[0];
+				blueOffset = bandOffsets[0];
+
 				/*
-				 * Get the current colour of the pixel
-				 */
-				Color currentColor = new Color(img.getRGB(x, y));
-				/*
-				 * Convert the pixel into a grey scale pixel value and set it
-				 * within the new flat array.
+				 * Grey values are converted through the colour model, the same
+				 * as getRGB does, but only once for each of the 256 levels.
 				 */
-				pixelsFlatArray[flatArrayPosition] = currentColor.getBlue() + currentColor.getGreen()
-						+ currentColor.getRed() / 3.0D;
+				greyLookup = new int[256];
+				for (int level = 0; level < greyLookup.length; level++)
+				{
+					greyLookup[level] = colorModel.getRGB(new byte[] { (byte) level });
+				}
+			} else
+			{
+				redOffset = bandOffsets[0];
+				greenOffset = bandOffsets[1];
+				blueOffset = bandOffsets[2];
+				greyLookup = null;
+			}
+		}
+
+		/**
+		 * Reads a row of the image as opaque packed ARGB pixels.
+		 * 
+		 * @param y
+		 *            The row to be read.
+		 * @param row
+		 *            Where the row is written to. Must be at least the width of
+		 *            the image.
+		 */
+		void readRow(final int y, final int[] row)
+		{
+			int width = image.getWidth();
 
+			if (data == null)
+			{
 				/*
-				 * Move the pointer by 1
+				 * Pixels have always been read as opaque, so drop any alpha.
 				 */
-				flatArrayPosition++;
+				image.getRGB(0, y, width, 1, row, 0, width);
+				for (int x = 0; x < width; x++)
+				{
+					row[x] |= 0xFF000000;
+				}
+				return;
 			}
-		}
 
-		return pixelsFlatArray;
+			int position = origin + y * scanlineStride;
+
+			if (greyLookup != null)
+			{
+				for (int x = 0; x < width; x++, position += pixelStride)
+				{
+					row[x] = greyLookup[data[position + redOffset] & 0xFF];
+				}
+				return;
+			}
+
+			for (int x = 0; x < width; x++, position += pixelStride)
+			{
+				row[x] = 0xFF000000 | (data[position + redOffset] & 0xFF) << 16
+						| (data[position + greenOffset] & 0xFF) << 8 | (data[position + blueOffset] & 0xFF);
+			}
+		}
 	}
 
 }
@@ -0,0 +1,72 @@
+package scl10.uk.ac.aber.users.readers;
+
+import java.awt.image.BufferedImage;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * A training sample whose images and warps have been read into memory.
+ *
+ * @author Scott Lockett
+ * @see TrainingSample#load()
+ */
+public final class LoadedTrainingSample
+{
+
+	/**
+	 * The sample the images and warps were read from
+	 */
+	@Getter
+	private final TrainingSample sample;
+
+	/**
+	 * The source image
+	 */
+	@Getter
+	private final BufferedImage sourceImage;
+
+	/**
+	 * The target image
+	 */
+	@Getter
+	private final BufferedImage targetImage;
+
+	/**
+	 * The x warp between the source and the target
+	 */
+	@Getter
+	private final double[][] xWarp;
+
+	/**
+	 * The y warp between the source and the target
+	 */
+	@Getter
+	private final double[][] yWarp;
+
+	/**
+	 * Creates a new loaded training sample.
+	 *
+	 * @param sample
+	 *            The sample the images and warps were read from. cannot be
+	 *            null.
+	 * @param sourceImage
+	 *            The source image. cannot be null.
+	 * @param targetImage
+	 *            The target image. cannot be null.
+	 * @param xWarp
+	 *            The x warp. cannot be null.
+	 * @param yWarp
+	 *            The y warp. cannot be null.
+	 */
+	LoadedTrainingSample(@NonNull final TrainingSample sample, @NonNull final BufferedImage sourceImage,
+			@NonNull final BufferedImage targetImage, @NonNull final double[][] xWarp,
+			@NonNull final double[][] yWarp)
+	{
+		this.sample = sample;
+		this.sourceImage = sourceImage;
+		this.targetImage = targetImage;
+		this.xWarp = xWarp;
+		this.yWarp = yWarp;
+	}
+}
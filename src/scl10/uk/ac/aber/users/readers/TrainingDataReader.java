@@ -100,7 +100,7 @@ public final class TrainingDataReader
 			 * The first line will be the path of where the folder where the
 			 * training data is held
 			 */
-			File topLevelFolder = new File(trainingDataReader.readLine());
+			File topLevelFolder = new File(toLocalSeparators(trainingDataReader.readLine().trim()));
 
 			/*
 			 * The current read line will be read into this String
@@ -128,7 +128,7 @@ public final class TrainingDataReader
 				 */
 				if (!EMPTY_STRING.equals(currentLine) && currentLine != null)
 				{
-					filesArrayList.add(new File(topLevelFolder.getAbsolutePath() + "\\" + currentLine));
+					filesArrayList.add(resolvePath(topLevelFolder, currentLine));
 				}
 			} while (currentLine != null);
 
@@ -148,4 +148,40 @@ public final class TrainingDataReader
 		return filesArrayList.toArray(new File[filesArrayList.size()]);
 	}
 
+	/**
+	 * Resolves a path read from a training data file against a folder. Paths
+	 * may be written with either '\' or '/' separators, whichever system the
+	 * file was written on.
+	 * 
+	 * @param folder
+	 *            The folder relative paths are resolved against. cannot be
+	 *            null.
+	 * @param path
+	 *            The path read from the file. cannot be null.
+	 * @return The file the path refers to. Absolute paths are not resolved
+	 *         against the folder.
+	 */
+	public static File resolvePath(@NonNull final File folder, @NonNull final String path)
+	{
+		File file = new File(toLocalSeparators(path));
+		if (file.isAbsolute())
+		{
+			return file;
+		}
+		return new File(folder.getAbsoluteFile(), file.getPath());
+	}
+
+	/**
+	 * Replaces both '\' and '/' separators within a path with the separator of
+	 * the system the application is running on.
+	 * 
+	 * @param path
+	 *            The path to be converted. cannot be null.
+	 * @return The path with the system's separators.
+	 */
+	private static String toLocalSeparators(@NonNull final String path)
+	{
+		return path.replace('\\', File.separatorChar).replace('/', File.separatorChar);
+	}
+
 }
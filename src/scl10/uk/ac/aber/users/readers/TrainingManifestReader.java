@@ -0,0 +1,464 @@
+package scl10.uk.ac.aber.users.readers;
+
+import java.awt.Dimension;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * Reads a training manifest, a single file which declares every sample of
+ * training data as a source image, a target image and the x and y warps
+ * between them. This replaces pairing up the paths of two separate files by
+ * their position.
+ * <p>
+ * Each line of a manifest is one sample:
+ *
+ * <pre>
+ * # source     target       x warp     y warp     [size=WxH] [sha256=checksum]
+ * female1.jpg  female2.jpg  f1f2X.txt  f1f2Y.txt  size=25x18
+ * </pre>
+ *
+ * Values are separated by spaces or tabs, and can be wrapped in double quotes
+ * if they contain spaces. Relative paths are relative to the folder the
+ * manifest is in, and can use either '\' or '/' separators. Blank lines and
+ * lines starting with '#' are ignored. The checksum is described by
+ * {@link TrainingSample#computeChecksum()}.
+ *
+ * @author Scott Lockett
+ */
+public final class TrainingManifestReader implements Iterable<LoadedTrainingSample>
+{
+
+	/**
+	 * Logger for logging information
+	 */
+	private static Logger LOGGER = LoggerFactory.getLogger(TrainingManifestReader.class);
+
+	/**
+	 * The number of samples loaded ahead when no number is given
+	 */
+	public static final int DEFAULT_PREFETCH = 2;
+
+	/**
+	 * The start of a comment line
+	 */
+	private static final String COMMENT = "#";
+
+	/**
+	 * The start of the optional size value
+	 */
+	private static final String SIZE_PREFIX = "size=";
+
+	/**
+	 * The start of the optional checksum value
+	 */
+	private static final String CHECKSUM_PREFIX = "sha256=";
+
+	/**
+	 * The manifest file
+	 */
+	private final File manifestFile;
+
+	/**
+	 * The samples declared in the manifest, in the order they are declared
+	 */
+	@Getter
+	private final List<TrainingSample> samples;
+
+	/**
+	 * Creates a new reader which reads the samples declared in a manifest.
+	 *
+	 * @param manifestFile
+	 *            The manifest file. cannot be null.
+	 * @throws IllegalArgumentException
+	 *             If a line of the manifest is not a valid sample, or the
+	 *             manifest declares no samples.
+	 * @throws UncheckedIOException
+	 *             If the manifest can not be read.
+	 */
+	public TrainingManifestReader(@NonNull final File manifestFile)
+	{
+		this.manifestFile = manifestFile;
+		this.samples = Collections.unmodifiableList(readSamples());
+	}
+
+	/**
+	 * Get the source and target image of every sample, one after the other.
+	 *
+	 * @return The image files, two per sample.
+	 */
+	public File[] getImageFiles()
+	{
+		File[] imageFiles = new File[samples.size() * 2];
+		for (int i = 0; i < samples.size(); i++)
+		{
+			imageFiles[i * 2] = samples.get(i).getSource();
+			imageFiles[i * 2 + 1] = samples.get(i).getTarget();
+		}
+		return imageFiles;
+	}
+
+	/**
+	 * Get the x and y warp of every sample, one after the other.
+	 *
+	 * @return The warp files, two per sample.
+	 */
+	public File[] getWarpFiles()
+	{
+		File[] warpFiles = new File[samples.size() * 2];
+		for (int i = 0; i < samples.size(); i++)
+		{
+			warpFiles[i * 2] = samples.get(i).getXWarp();
+			warpFiles[i * 2 + 1] = samples.get(i).getYWarp();
+		}
+		return warpFiles;
+	}
+
+	/**
+	 * Get an iterator over the loaded samples which loads the next
+	 * {@link #DEFAULT_PREFETCH} samples on a background thread.
+	 *
+	 * @return An iterator over the loaded samples.
+	 */
+	@Override
+	public PrefetchingIterator iterator()
+	{
+		return iterator(DEFAULT_PREFETCH);
+	}
+
+	/**
+	 * Get an iterator over the loaded samples which loads the next samples on
+	 * a background thread, so the loading of the next samples overlaps with
+	 * the use of the current one.
+	 *
+	 * @param prefetch
+	 *            The number of samples to load ahead. Must be greater than 0.
+	 * @return An iterator over the loaded samples.
+	 */
+	public PrefetchingIterator iterator(final int prefetch)
+	{
+		return new PrefetchingIterator(samples, prefetch);
+	}
+
+	/**
+	 * Reads the samples declared in the manifest.
+	 *
+	 * @return The samples in the order they are declared. Never empty.
+	 */
+	private List<TrainingSample> readSamples()
+	{
+		List<TrainingSample> readSamples = new ArrayList<>();
+		File manifestFolder = manifestFile.getAbsoluteFile().getParentFile();
+
+		try (BufferedReader manifestReader = new BufferedReader(new FileReader(manifestFile)))
+		{
+			String currentLine;
+			int lineNumber = 0;
+
+			while ((currentLine = manifestReader.readLine()) != null)
+			{
+				lineNumber++;
+				currentLine = currentLine.trim();
+
+				if (currentLine.isEmpty() || currentLine.startsWith(COMMENT))
+				{
+					continue;
+				}
+
+				readSamples.add(parseSample(currentLine, lineNumber, manifestFolder));
+			}
+
+		} catch (IOException e)
+		{
+			LOGGER.error(manifestFile + " has failed to be read. ", e);
+			throw new UncheckedIOException(
+					"The training manifest " + manifestFile.getPath() + " has failed to be read.", e);
+		}
+
+		if (readSamples.isEmpty())
+		{
+			throw new IllegalArgumentException(
+					"The training manifest " + manifestFile.getPath() + " does not declare any samples.");
+		}
+
+		return readSamples;
+	}
+
+	/**
+	 * Parses a single sample line of the manifest.
+	 *
+	 * @param line
+	 *            The trimmed line.
+	 * @param lineNumber
+	 *            The number of the line, for error messages.
+	 * @param manifestFolder
+	 *            The folder relative paths are resolved against.
+	 * @return The sample declared by the line.
+	 */
+	private TrainingSample parseSample(final String line, final int lineNumber, final File manifestFolder)
+	{
+		List<String> values = splitValues(line, lineNumber);
+
+		if (values.size() < 4)
+		{
+			throw invalidLine(lineNumber, "a sample needs a source, target, x warp and y warp");
+		}
+
+		Dimension size = null;
+		String checksum = null;
+
+		for (String option : values.subList(4, values.size()))
+		{
+			if (option.startsWith(SIZE_PREFIX) && size == null)
+			{
+				size = parseSize(option.substring(SIZE_PREFIX.length()), lineNumber);
+			} else if (option.startsWith(CHECKSUM_PREFIX) && checksum == null)
+			{
+				checksum = option.substring(CHECKSUM_PREFIX.length()).toLowerCase();
+			} else
+			{
+				throw invalidLine(lineNumber, "unexpected value " + option);
+			}
+		}
+
+		return new TrainingSample(TrainingDataReader.resolvePath(manifestFolder, values.get(0)),
+				TrainingDataReader.resolvePath(manifestFolder, values.get(1)),
+				TrainingDataReader.resolvePath(manifestFolder, values.get(2)),
+				TrainingDataReader.resolvePath(manifestFolder, values.get(3)), size, checksum);
+	}
+
+	/**
+	 * Creates the exception thrown for an invalid line of the manifest.
+	 *
+	 * @param lineNumber
+	 *            The number of the invalid line.
+	 * @param reason
+	 *            Why the line is invalid.
+	 * @return The exception to be thrown.
+	 */
+	private IllegalArgumentException invalidLine(final int lineNumber, final String reason)
+	{
+		return new IllegalArgumentException(
+				"Line " + lineNumber + " of the manifest " + manifestFile.getPath() + " is invalid, " + reason);
+	}
+
+	/**
+	 * Parses a size written as WxH.
+	 *
+	 * @param value
+	 *            The size.
+	 * @param lineNumber
+	 *            The number of the line, for error messages.
+	 * @return The size.
+	 */
+	private Dimension parseSize(final String value, final int lineNumber)
+	{
+		int separator = value.indexOf('x');
+		try
+		{
+			int width = Integer.parseInt(value.substring(0, Math.max(separator, 0)));
+			int height = Integer.parseInt(value.substring(separator + 1));
+			if (width > 0 && height > 0)
+			{
+				return new Dimension(width, height);
+			}
+		} catch (NumberFormatException e)
+		{
+			/*
+			 * Fall through to the invalid line exception
+			 */
+		}
+		throw invalidLine(lineNumber, "the size must be written as WIDTHxHEIGHT, not " + value);
+	}
+
+	/**
+	 * Splits a line into its values. Values are separated by spaces or tabs
+	 * and may be wrapped in double quotes.
+	 *
+	 * @param line
+	 *            The line.
+	 * @param lineNumber
+	 *            The number of the line, for error messages.
+	 * @return The values of the line.
+	 */
+	private List<String> splitValues(final String line, final int lineNumber)
+	{
+		List<String> values = new ArrayList<>();
+		int i = 0;
+
+		while (i < line.length())
+		{
+			char c = line.charAt(i);
+			if (c == ' ' || c == '\t')
+			{
+				i++;
+			} else if (c == '"')
+			{
+				int end = line.indexOf('"', i + 1);
+				if (end < 0)
+				{
+					throw invalidLine(lineNumber, "a quote is not closed");
+				}
+				values.add(line.substring(i + 1, end));
+				i = end + 1;
+			} else
+			{
+				int end = i;
+				while (end < line.length() && line.charAt(end) != ' ' && line.charAt(end) != '\t')
+				{
+					end++;
+				}
+				values.add(line.substring(i, end));
+				i = end;
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * An iterator over loaded training samples which loads the next samples on
+	 * a single background thread while the current sample is being used.
+	 * <p>
+	 * If a sample fails to load, {@link #next()} throws an
+	 * {@link UncheckedIOException} for that sample. The background thread is
+	 * stopped once the last sample has been returned, or when the iterator is
+	 * closed.
+	 */
+	public static final class PrefetchingIterator implements Iterator<LoadedTrainingSample>, AutoCloseable
+	{
+
+		/**
+		 * The samples to be loaded
+		 */
+		private final List<TrainingSample> samples;
+
+		/**
+		 * The background thread the samples are loaded on
+		 */
+		private final ExecutorService loader;
+
+		/**
+		 * The samples that are loading or loaded, in order
+		 */
+		private final ArrayDeque<Future<LoadedTrainingSample>> loading = new ArrayDeque<>();
+
+		/**
+		 * The index of the next sample to start loading
+		 */
+		private int nextToLoad;
+
+		/**
+		 * Creates a new prefetching iterator and starts loading the first
+		 * samples.
+		 *
+		 * @param samples
+		 *            The samples to be loaded. cannot be null.
+		 * @param prefetch
+		 *            The number of samples to load ahead. Must be greater than
+		 *            0.
+		 */
+		PrefetchingIterator(@NonNull final List<TrainingSample> samples, final int prefetch)
+		{
+			if (prefetch <= 0)
+			{
+				throw new IllegalArgumentException("The number of samples to prefetch must be greater than 0.");
+			}
+
+			this.samples = samples;
+			this.loader = Executors.newSingleThreadExecutor(runnable ->
+			{
+				Thread thread = new Thread(runnable, "training-sample-prefetch");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+			while (nextToLoad < samples.size() && loading.size() < prefetch)
+			{
+				startLoadingNext();
+			}
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return !loading.isEmpty();
+		}
+
+		@Override
+		public LoadedTrainingSample next()
+		{
+			if (loading.isEmpty())
+			{
+				throw new NoSuchElementException();
+			}
+
+			Future<LoadedTrainingSample> loaded = loading.removeFirst();
+
+			/*
+			 * Keep the same number of samples loading ahead
+			 */
+			if (nextToLoad < samples.size())
+			{
+				startLoadingNext();
+			} else if (loading.isEmpty())
+			{
+				loader.shutdown();
+			}
+
+			try
+			{
+				return loaded.get();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				close();
+				throw new IllegalStateException("Interrupted while loading a training sample", e);
+			} catch (ExecutionException e)
+			{
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+				{
+					throw new UncheckedIOException((IOException) cause);
+				}
+				throw new IllegalStateException("A training sample has failed to load.", cause);
+			}
+		}
+
+		/**
+		 * Stops loading any more samples.
+		 */
+		@Override
+		public void close()
+		{
+			loading.clear();
+			loader.shutdownNow();
+		}
+
+		/**
+		 * Starts loading the next sample on the background thread.
+		 */
+		private void startLoadingNext()
+		{
+			TrainingSample sample = samples.get(nextToLoad++);
+			loading.addLast(loader.submit(sample::load));
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package scl10.uk.ac.aber.users.readers;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * A single sample of training data declared in a training manifest. A sample
+ * is a source image, a target image and the x and y warps between them, with
+ * an optional size and checksum used to check the files when they are loaded.
+ *
+ * @author Scott Lockett
+ * @see TrainingManifestReader
+ */
+public final class TrainingSample
+{
+
+	/**
+	 * The algorithm used for the checksums of samples
+	 */
+	public static final String CHECKSUM_ALGORITHM = "SHA-256";
+
+	/**
+	 * The source image of the sample
+	 */
+	@Getter
+	private final File source;
+
+	/**
+	 * The target image of the sample
+	 */
+	@Getter
+	private final File target;
+
+	/**
+	 * The x warp between the source and the target
+	 */
+	@Getter
+	private final File xWarp;
+
+	/**
+	 * The y warp between the source and the target
+	 */
+	@Getter
+	private final File yWarp;
+
+	/**
+	 * The size of the images and warps, or null if the manifest did not declare
+	 * one.
+	 */
+	@Getter
+	private final Dimension size;
+
+	/**
+	 * The checksum of the sample's files, or null if the manifest did not
+	 * declare one.
+	 *
+	 * @see #computeChecksum()
+	 */
+	@Getter
+	private final String checksum;
+
+	/**
+	 * Creates a new training sample.
+	 *
+	 * @param source
+	 *            The source image. cannot be null.
+	 * @param target
+	 *            The target image. cannot be null.
+	 * @param xWarp
+	 *            The x warp between the images. cannot be null.
+	 * @param yWarp
+	 *            The y warp between the images. cannot be null.
+	 * @param size
+	 *            The size of the images and warps. Can be null if unknown.
+	 * @param checksum
+	 *            The lower case hexadecimal checksum of the files. Can be null
+	 *            if unknown.
+	 */
+	public TrainingSample(@NonNull final File source, @NonNull final File target, @NonNull final File xWarp,
+			@NonNull final File yWarp, final Dimension size, final String checksum)
+	{
+		this.source = source;
+		this.target = target;
+		this.xWarp = xWarp;
+		this.yWarp = yWarp;
+		this.size = size;
+		this.checksum = checksum;
+	}
+
+	/**
+	 * Reads the sample's images and warps, checking them against the declared
+	 * size and checksum.
+	 *
+	 * @return The loaded sample.
+	 * @throws IOException
+	 *             If any of the files can not be read, or they do not match the
+	 *             declared size or checksum.
+	 */
+	public LoadedTrainingSample load() throws IOException
+	{
+		if (checksum != null)
+		{
+			String actualChecksum = computeChecksum();
+			if (!checksum.equals(actualChecksum))
+			{
+				throw new IOException("Checksum of " + this + " is " + actualChecksum + ", expected " + checksum);
+			}
+		}
+
+		BufferedImage sourceImage = ImageReader.readImageFile(source);
+		BufferedImage targetImage = ImageReader.readImageFile(target);
+		double[][] xWarpArray = WarpReader.readWarpFile(xWarp);
+		double[][] yWarpArray = WarpReader.readWarpFile(yWarp);
+
+		if (sourceImage == null || targetImage == null || xWarpArray == null || yWarpArray == null)
+		{
+			throw new IOException("One or more of the files of " + this + " has failed to be read.");
+		}
+
+		if (size != null)
+		{
+			checkSize(source, new Dimension(sourceImage.getWidth(), sourceImage.getHeight()));
+			checkSize(target, new Dimension(targetImage.getWidth(), targetImage.getHeight()));
+			checkSize(xWarp, new Dimension(xWarpArray[0].length, xWarpArray.length));
+			checkSize(yWarp, new Dimension(yWarpArray[0].length, yWarpArray.length));
+		}
+
+		return new LoadedTrainingSample(this, sourceImage, targetImage, xWarpArray, yWarpArray);
+	}
+
+	/**
+	 * Works out the checksum of the sample, the SHA-256 hash of the contents of
+	 * the source, target, x warp and y warp files one after another.
+	 *
+	 * @return The lower case hexadecimal checksum.
+	 * @throws IOException
+	 *             If any of the files can not be read.
+	 */
+	public String computeChecksum() throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance(CHECKSUM_ALGORITHM);
+		} catch (NoSuchAlgorithmException e)
+		{
+			/*
+			 * Every Java platform has to support SHA-256
+			 */
+			throw new IllegalStateException(e);
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+		for (File file : new File[] { source, target, xWarp, yWarp })
+		{
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+			{
+				while (channel.read(buffer) != -1)
+				{
+					buffer.flip();
+					digest.update(buffer);
+					buffer.clear();
+				}
+			}
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest())
+		{
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Checks a file's size matches the declared size.
+	 *
+	 * @param file
+	 *            The file that was read.
+	 * @param actualSize
+	 *            The size of what was read from the file.
+	 * @throws IOException
+	 *             If the sizes do not match.
+	 */
+	private void checkSize(final File file, final Dimension actualSize) throws IOException
+	{
+		if (!size.equals(actualSize))
+		{
+			throw new IOException(file.getPath() + " is " + actualSize.width + "x" + actualSize.height + ", expected "
+					+ size.width + "x" + size.height);
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "sample (" + source.getName() + ", " + target.getName() + ", " + xWarp.getName() + ", "
+				+ yWarp.getName() + ")";
+	}
+}
@@ -0,0 +1,409 @@
+package scl10.uk.ac.aber.users.readers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import lombok.NonNull;
+
+/**
+ * The compressed codec for binary warp files,
+ * {@link WarpFileHeader#CODEC_DELTA_DEFLATE}.
+ * <p>
+ * Warps are smooth, so each value is predicted by the value directly above it
+ * in the previous row. Only the difference between the bits of the value and
+ * the bits of its prediction is stored, which for a smooth warp is mostly zero
+ * in the sign, exponent and high mantissa bits. The bytes of each row's
+ * differences are then grouped by significance, so all of the mostly zero high
+ * bytes sit next to each other, and the whole warp is deflated.
+ * <p>
+ * The prediction and the deflate are both lossless. For a smaller, lossy file
+ * the values can first be stored as {@link WarpFileHeader#DATA_TYPE_FLOAT16}
+ * half precision floats, see {@link #fitsFloat16(double[][], double)}.
+ *
+ * @author Scott Lockett
+ */
+public final class WarpCodec
+{
+
+	/**
+	 * The default largest error allowed when storing a warp as half precision
+	 * floats. 1/32 of a pixel.
+	 */
+	public static final double DEFAULT_FLOAT16_TOLERANCE = 1.0D / 32.0D;
+
+	/**
+	 * The size of the buffers used while deflating and inflating
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The value of every half precision float, for decoding them quickly.
+	 */
+	private static final float[] FLOAT16_VALUES = new float[1 << 16];
+
+	static
+	{
+		for (int i = 0; i < FLOAT16_VALUES.length; i++)
+		{
+			FLOAT16_VALUES[i] = decodeFloat16((short) i);
+		}
+	}
+
+	/**
+	 * Private constructor as all of the methods are static
+	 */
+	private WarpCodec()
+	{
+
+	}
+
+	/**
+	 * Encodes the values of a warp and writes them to a channel. The header is
+	 * not written.
+	 *
+	 * @param warp
+	 *            The warp to be encoded. cannot be null.
+	 * @param header
+	 *            The header of the file the values are written after. Decides
+	 *            the type the values are stored as. cannot be null.
+	 * @param channel
+	 *            The channel the encoded values are written to. cannot be null.
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 *             If the values fail to be written.
+	 */
+	public static long encode(@NonNull final double[][] warp, @NonNull final WarpFileHeader header,
+			@NonNull final WritableByteChannel channel) throws IOException
+	{
+		int width = header.getWidth();
+		int bytesPerValue = header.getBytesPerValue();
+
+		long[] previousRow = new long[width];
+		byte[] rowBytes = new byte[width * bytesPerValue];
+
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		ByteBuffer compressed = ByteBuffer.allocate(BUFFER_SIZE);
+		long written = 0;
+
+		try
+		{
+			for (double[] row : warp)
+			{
+				if (row.length != width)
+				{
+					throw new IllegalArgumentException("Every row of the warp must be the same width.");
+				}
+
+				/*
+				 * Store the difference from the row above, with each byte plane
+				 * of the row stored one after another.
+				 */
+				for (int j = 0; j < width; j++)
+				{
+					long bits = toBits(row[j], header.getDataType());
+					long difference = bits ^ previousRow[j];
+					previousRow[j] = bits;
+
+					for (int plane = 0; plane < bytesPerValue; plane++)
+					{
+						rowBytes[plane * width + j] = (byte) (difference >>> (plane * Byte.SIZE));
+					}
+				}
+
+				deflater.setInput(rowBytes);
+				while (!deflater.needsInput())
+				{
+					written += drain(deflater, compressed, channel);
+				}
+			}
+
+			deflater.finish();
+			while (!deflater.finished())
+			{
+				written += drain(deflater, compressed, channel);
+			}
+		} finally
+		{
+			deflater.end();
+		}
+
+		return written;
+	}
+
+	/**
+	 * Decodes the values following a binary warp header that were written by
+	 * {@link #encode(double[][], WarpFileHeader, WritableByteChannel)}.
+	 *
+	 * @param values
+	 *            The buffer positioned at the first encoded byte. cannot be
+	 *            null.
+	 * @param header
+	 *            The header describing the values. cannot be null.
+	 * @return The values as a 2D array of doubles.
+	 * @throws IOException
+	 *             If the values are corrupt or truncated.
+	 */
+	public static double[][] decode(@NonNull final ByteBuffer values, @NonNull final WarpFileHeader header)
+			throws IOException
+	{
+		int width = header.getWidth();
+		int bytesPerValue = header.getBytesPerValue();
+		byte dataType = header.getDataType();
+
+		double[][] warpArray = new double[header.getHeight()][width];
+		long[] previousRow = new long[width];
+		byte[] rowBytes = new byte[width * bytesPerValue];
+		byte[] input = new byte[BUFFER_SIZE];
+
+		Inflater inflater = new Inflater();
+		try
+		{
+			for (double[] row : warpArray)
+			{
+				/*
+				 * Inflate exactly one row, feeding in more of the file
+				 * whenever the inflater runs out.
+				 */
+				int filled = 0;
+				while (filled < rowBytes.length)
+				{
+					if (inflater.needsInput())
+					{
+						if (!values.hasRemaining())
+						{
+							throw new IOException("Compressed warp file is truncated.");
+						}
+						int length = Math.min(input.length, values.remaining());
+						values.get(input, 0, length);
+						inflater.setInput(input, 0, length);
+					}
+
+					int inflated = inflater.inflate(rowBytes, filled, rowBytes.length - filled);
+					if (inflated == 0 && (inflater.finished() || inflater.needsDictionary()))
+					{
+						throw new IOException("Compressed warp file is truncated.");
+					}
+					filled += inflated;
+				}
+
+				/*
+				 * Put the byte planes back together and undo the prediction
+				 */
+				for (int j = 0; j < width; j++)
+				{
+					long difference = 0;
+					for (int plane = 0; plane < bytesPerValue; plane++)
+					{
+						difference |= (rowBytes[plane * width + j] & 0xFFL) << (plane * Byte.SIZE);
+					}
+
+					long bits = difference ^ previousRow[j];
+					previousRow[j] = bits;
+					row[j] = fromBits(bits, dataType);
+				}
+			}
+		} catch (DataFormatException e)
+		{
+			throw new IOException("Compressed warp file is corrupt.", e);
+		} finally
+		{
+			inflater.end();
+		}
+
+		return warpArray;
+	}
+
+	/**
+	 * Checks whether every value of a warp can be stored as a half precision
+	 * float without moving by more than the tolerance.
+	 *
+	 * @param warp
+	 *            The warp to be checked. cannot be null.
+	 * @param tolerance
+	 *            The largest error allowed for any value.
+	 * @return true if every value is within the tolerance once stored as half
+	 *         precision.
+	 */
+	public static boolean fitsFloat16(@NonNull final double[][] warp, final double tolerance)
+	{
+		for (double[] row : warp)
+		{
+			for (double value : row)
+			{
+				double stored = FLOAT16_VALUES[encodeFloat16((float) value) & 0xFFFF];
+				if (!(Math.abs(stored - value) <= tolerance))
+				{
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Converts a value to a half precision float, rounding to the nearest half
+	 * precision value. Values too large for half precision become infinite.
+	 *
+	 * @param value
+	 *            The value to be converted.
+	 * @return The bits of the half precision float.
+	 */
+	public static short encodeFloat16(final float value)
+	{
+		int bits = Float.floatToRawIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int magnitude = bits & 0x7FFFFFFF;
+
+		/*
+		 * Infinity and NaN. NaN keeps a mantissa bit so it stays NaN.
+		 */
+		if (magnitude >= 0x7F800000)
+		{
+			return (short) (sign | 0x7C00 | (magnitude > 0x7F800000 ? 0x200 : 0));
+		}
+
+		/*
+		 * Too large for half precision once rounded
+		 */
+		if (magnitude >= 0x477FF000)
+		{
+			return (short) (sign | 0x7C00);
+		}
+
+		/*
+		 * Normal half precision values. Rebias the exponent and round the
+		 * mantissa, letting any carry run into the exponent.
+		 */
+		if (magnitude >= 0x38800000)
+		{
+			return (short) (sign | ((magnitude - 0x38000000 + 0x1000) >>> 13));
+		}
+
+		/*
+		 * Subnormal half precision values, or zero.
+		 */
+		if (magnitude < 0x33000000)
+		{
+			return (short) sign;
+		}
+		int exponent = magnitude >>> 23;
+		int mantissa = (magnitude & 0x7FFFFF) | 0x800000;
+		int shift = 126 - exponent;
+		return (short) (sign | ((mantissa + (1 << (shift - 1))) >>> shift));
+	}
+
+	/**
+	 * Converts a half precision float back to a float.
+	 *
+	 * @param value
+	 *            The bits of the half precision float.
+	 * @return The value of the half precision float.
+	 */
+	public static float decodeFloat16(final short value)
+	{
+		int bits = value & 0xFFFF;
+		int sign = (bits & 0x8000) << 16;
+		int exponent = (bits >>> 10) & 0x1F;
+		int mantissa = bits & 0x3FF;
+
+		if (exponent == 0x1F)
+		{
+			return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+		}
+
+		if (exponent == 0)
+		{
+			float subnormal = mantissa * 0x1p-24F;
+			return sign == 0 ? subnormal : -subnormal;
+		}
+
+		return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+	}
+
+	/**
+	 * Get the value of a half precision float from a lookup table.
+	 *
+	 * @param value
+	 *            The bits of the half precision float.
+	 * @return The value of the half precision float.
+	 */
+	static float float16Value(final short value)
+	{
+		return FLOAT16_VALUES[value & 0xFFFF];
+	}
+
+	/**
+	 * Get the bits a value is stored as for a data type.
+	 *
+	 * @param value
+	 *            The value to be stored.
+	 * @param dataType
+	 *            The type the value is stored as.
+	 * @return The bits of the stored value.
+	 */
+	private static long toBits(final double value, final byte dataType)
+	{
+		switch (dataType)
+		{
+			case WarpFileHeader.DATA_TYPE_FLOAT64:
+				return Double.doubleToRawLongBits(value);
+			case WarpFileHeader.DATA_TYPE_FLOAT32:
+				return Float.floatToRawIntBits((float) value) & 0xFFFFFFFFL;
+			default:
+				return encodeFloat16((float) value) & 0xFFFFL;
+		}
+	}
+
+	/**
+	 * Get the value from the bits it was stored as.
+	 *
+	 * @param bits
+	 *            The stored bits.
+	 * @param dataType
+	 *            The type the value was stored as.
+	 * @return The stored value.
+	 */
+	private static double fromBits(final long bits, final byte dataType)
+	{
+		switch (dataType)
+		{
+			case WarpFileHeader.DATA_TYPE_FLOAT64:
+				return Double.longBitsToDouble(bits);
+			case WarpFileHeader.DATA_TYPE_FLOAT32:
+				return Float.intBitsToFloat((int) bits);
+			default:
+				return FLOAT16_VALUES[(int) bits];
+		}
+	}
+
+	/**
+	 * Takes whatever compressed output the deflater has and writes it to the
+	 * channel.
+	 *
+	 * @param deflater
+	 *            The deflater to take the output from.
+	 * @param compressed
+	 *            A buffer to hold the output while it is written.
+	 * @param channel
+	 *            The channel to write to.
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 *             If the write fails.
+	 */
+	private static int drain(final Deflater deflater, final ByteBuffer compressed,
+			final WritableByteChannel channel) throws IOException
+	{
+		int length = deflater.deflate(compressed.array(), 0, compressed.capacity());
+		compressed.clear();
+		compressed.limit(length);
+		while (compressed.hasRemaining())
+		{
+			channel.write(compressed);
+		}
+		return length;
+	}
+}
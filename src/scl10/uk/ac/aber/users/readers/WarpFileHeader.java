@@ -0,0 +1,293 @@
+package scl10.uk.ac.aber.users.readers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import lombok.Getter;
+import lombok.NonNull;
+
+/**
+ * An immutable class representing the header of a binary warp file. A binary
+ * warp file is made up of this fixed size header followed by the warp values
+ * stored row by row in little endian order. The magic number is the only
+ * value written big endian, so the file starts with the characters "WARP".
+ * <p>
+ * The layout of the header is:
+ *
+ * <pre>
+ * int  magic       "WARP"
+ * byte version     The version of the binary format
+ * byte dataType    The type of each of the stored values e.g. float64
+ * byte codec       How the values are stored after the header
+ * byte reserved    Unused, always 0
+ * int  level       The pyramid level the warp belongs to
+ * int  width       The width of the warp
+ * int  height      The height of the warp
+ * </pre>
+ *
+ * @author Scott Lockett
+ */
+public final class WarpFileHeader
+{
+
+	/**
+	 * The first four bytes of every binary warp file. "WARP" in ASCII when
+	 * written big endian.
+	 */
+	public static final int MAGIC = 0x57415250;
+
+	/**
+	 * The current version of the binary warp format.
+	 */
+	public static final byte VERSION = 1;
+
+	/**
+	 * The size of the header in bytes. The warp values start directly after.
+	 */
+	public static final int HEADER_SIZE = 20;
+
+	/**
+	 * The byte order that all binary warp files are written in.
+	 */
+	public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	/**
+	 * Data type for values stored as 8 byte doubles.
+	 */
+	public static final byte DATA_TYPE_FLOAT64 = 1;
+
+	/**
+	 * Data type for values stored as 4 byte floats.
+	 */
+	public static final byte DATA_TYPE_FLOAT32 = 2;
+
+	/**
+	 * Data type for values stored as 2 byte half precision floats. Lossy.
+	 */
+	public static final byte DATA_TYPE_FLOAT16 = 3;
+
+	/**
+	 * Codec for values that are stored raw, one after another.
+	 */
+	public static final byte CODEC_RAW = 0;
+
+	/**
+	 * Codec for values that are predicted from the row above and deflated.
+	 * 
+	 * @see WarpCodec
+	 */
+	public static final byte CODEC_DELTA_DEFLATE = 1;
+
+	/**
+	 * The extension given to binary warp files.
+	 */
+	public static final String BINARY_EXTENSION = ".warp";
+
+	/**
+	 * The extension given to text warp files. Text warps are only kept for
+	 * importing and exporting.
+	 */
+	public static final String TEXT_EXTENSION = ".txt";
+
+	/**
+	 * The type of each of the values stored after the header
+	 */
+	@Getter
+	private final byte dataType;
+
+	/**
+	 * The way the values after the header are stored
+	 */
+	@Getter
+	private final byte codec;
+
+	/**
+	 * The pyramid level the warp belongs to. 0 is the original size.
+	 */
+	@Getter
+	private final int level;
+
+	/**
+	 * The width of the warp
+	 */
+	@Getter
+	private final int width;
+
+	/**
+	 * The height of the warp
+	 */
+	@Getter
+	private final int height;
+
+	/**
+	 * Creates a new header for a binary warp file.
+	 *
+	 * @param dataType
+	 *            The type of the values stored after the header. Either
+	 *            {@link #DATA_TYPE_FLOAT64}, {@link #DATA_TYPE_FLOAT32} or
+	 *            {@link #DATA_TYPE_FLOAT16}.
+	 * @param codec
+	 *            The way the values are stored after the header. Either
+	 *            {@link #CODEC_RAW} or {@link #CODEC_DELTA_DEFLATE}.
+	 * @param level
+	 *            The pyramid level the warp belongs to. Can not be negative.
+	 * @param width
+	 *            The width of the warp. Must be greater than 0.
+	 * @param height
+	 *            The height of the warp. Must be greater than 0.
+	 */
+	public WarpFileHeader(final byte dataType, final byte codec, final int level, final int width, final int height)
+	{
+		if (dataType != DATA_TYPE_FLOAT64 && dataType != DATA_TYPE_FLOAT32 && dataType != DATA_TYPE_FLOAT16)
+		{
+			throw new IllegalArgumentException("Unknown warp data type " + dataType);
+		}
+
+		if (codec != CODEC_RAW && codec != CODEC_DELTA_DEFLATE)
+		{
+			throw new IllegalArgumentException("Unknown warp codec " + codec);
+		}
+
+		if (level < 0 || width <= 0 || height <= 0)
+		{
+			throw new IllegalArgumentException(
+					"Invalid warp header. Level " + level + ", width " + width + ", height " + height);
+		}
+
+		this.dataType = dataType;
+		this.codec = codec;
+		this.level = level;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Get the number of bytes each stored value takes up.
+	 *
+	 * @return 8 for float64 values, 4 for float32 values or 2 for float16
+	 *         values.
+	 */
+	public int getBytesPerValue()
+	{
+		switch (dataType)
+		{
+			case DATA_TYPE_FLOAT64:
+				return Double.BYTES;
+			case DATA_TYPE_FLOAT32:
+				return Float.BYTES;
+			default:
+				return Short.BYTES;
+		}
+	}
+
+	/**
+	 * Get the number of bytes taken up by raw values after the header. This is
+	 * also the size of the decoded values of a compressed warp.
+	 *
+	 * @return width * height * bytes per value.
+	 */
+	public long getRawPayloadSize()
+	{
+		return (long) width * height * getBytesPerValue();
+	}
+
+	/**
+	 * Writes this header into the buffer at its current position. The buffer
+	 * must be in {@link #BYTE_ORDER}.
+	 *
+	 * @param buffer
+	 *            The buffer the header is to be written into. Cannot be null.
+	 */
+	public void write(@NonNull final ByteBuffer buffer)
+	{
+		buffer.order(ByteOrder.BIG_ENDIAN).putInt(MAGIC);
+		buffer.order(BYTE_ORDER);
+		buffer.put(VERSION);
+		buffer.put(dataType);
+		buffer.put(codec);
+		buffer.put((byte) 0);
+		buffer.putInt(level);
+		buffer.putInt(width);
+		buffer.putInt(height);
+	}
+
+	/**
+	 * Reads a header from the buffer's current position. The buffer must be in
+	 * {@link #BYTE_ORDER}. Once read, the buffer is positioned at the start of
+	 * the warp values.
+	 *
+	 * @param buffer
+	 *            The buffer containing the header. Cannot be null.
+	 * @return The header read from the buffer.
+	 * @throws IOException
+	 *             If the buffer does not contain a valid header.
+	 */
+	public static WarpFileHeader read(@NonNull final ByteBuffer buffer) throws IOException
+	{
+		if (buffer.remaining() < HEADER_SIZE)
+		{
+			throw new IOException("Not a binary warp file.");
+		}
+
+		int magic = buffer.order(ByteOrder.BIG_ENDIAN).getInt();
+		buffer.order(BYTE_ORDER);
+		if (magic != MAGIC)
+		{
+			throw new IOException("Not a binary warp file.");
+		}
+
+		byte version = buffer.get();
+		if (version != VERSION)
+		{
+			throw new IOException("Unsupported binary warp version " + version);
+		}
+
+		byte dataType = buffer.get();
+		byte codec = buffer.get();
+
+		/*
+		 * Skip the reserved byte
+		 */
+		buffer.get();
+
+		int level = buffer.getInt();
+		int width = buffer.getInt();
+		int height = buffer.getInt();
+
+		try
+		{
+			return new WarpFileHeader(dataType, codec, level, width, height);
+		} catch (IllegalArgumentException e)
+		{
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Checks whether a file is a binary warp file by looking for the magic
+	 * number at the start of the file. The extension is not trusted.
+	 *
+	 * @param file
+	 *            The file to be checked. Cannot be null.
+	 * @return true if the file starts with the binary warp magic number, false
+	 *         if not or if it can not be read.
+	 */
+	public static boolean isBinaryWarpFile(@NonNull final File file)
+	{
+		if (file.length() < HEADER_SIZE)
+		{
+			return false;
+		}
+
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r"))
+		{
+			return randomAccessFile.readInt() == MAGIC;
+		} catch (IOException e)
+		{
+			return false;
+		}
+	}
+}
@@ -1,10 +1,17 @@
 package scl10.uk.ac.aber.users.readers;
 
 import java.awt.Dimension;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -73,7 +80,9 @@ public final class WarpReader
 
 	/**
 	 * Reads in a warp file's path and the values from the file and returns a 2D
-	 * array of the values within the file
+	 * array of the values within the file. Both binary warp files and text
+	 * warp files can be read. The file's contents are checked to determine
+	 * which format the warp is in.
 	 * 
 	 * This method is static as it does not feel like it would be an instance
 	 * specific method.
@@ -81,95 +90,163 @@ public final class WarpReader
 	 * @param warpPath
 	 *            The path of the file which holds the warp values
 	 * @return The values from the read warp file in a 2D array of doubles
+	 * @see WarpFileHeader
 	 */
 	public static double[][] readWarpFile(@NonNull final File warpPath)
 	{
-		/*
-		 * The 2d array which will hold the warp values
-		 */
-		double[][] warpArray = null;
+		if (WarpFileHeader.isBinaryWarpFile(warpPath))
+		{
+			return readBinaryWarpFile(warpPath);
+		}
+		return readTextWarpFile(warpPath);
+	}
 
-		/*
-		 * We need to know the width and height of the warp file
-		 */
-		int width = 0;
-		int height = 0;
+	/**
+	 * Reads a binary warp file by memory mapping the file and copying the
+	 * values straight out of the mapped buffer into a 2D array.
+	 * 
+	 * @param warpPath
+	 *            The path of the binary warp file. Cannot be null.
+	 * @return The values from the binary warp file in a 2D array of doubles, or
+	 *         null if the file could not be read.
+	 */
+	public static double[][] readBinaryWarpFile(@NonNull final File warpPath)
+	{
+		try (FileChannel channel = FileChannel.open(warpPath.toPath(), StandardOpenOption.READ))
+		{
+			/*
+			 * Map the whole file in one go. The OS pages the values in as they
+			 * are copied out rather than them being read through a stream.
+			 */
+			MappedByteBuffer mappedFile = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			mappedFile.order(WarpFileHeader.BYTE_ORDER);
 
-		/*
-		 * This can definitely be improved. No need to create all of these
-		 * readers.
-		 */
-		FileReader widthFileReader = null;
-		BufferedReader widthReader = null;
+			WarpFileHeader header = WarpFileHeader.read(mappedFile);
 
-		FileReader heightFileReader = null;
-		BufferedReader heightReader = null;
+			if (header.getCodec() == WarpFileHeader.CODEC_DELTA_DEFLATE)
+			{
+				return readCompressedValues(mappedFile, header, warpPath);
+			}
 
-		FileReader warpFileReader = null;
-		BufferedReader warpReader = null;
+			if (mappedFile.remaining() < header.getRawPayloadSize())
+			{
+				throw new IOException("Binary warp file is truncated.");
+			}
+
+			return copyRawValues(mappedFile, header);
 
-		try
+		} catch (IOException e)
 		{
-			widthFileReader = new FileReader(warpPath);
-			widthReader = new BufferedReader(widthFileReader);
+			LOGGER.error("Binary warp has failed to read. " + warpPath.getPath(), e);
+		}
+		return null;
+	}
 
-			heightFileReader = new FileReader(warpPath);
-			heightReader = new BufferedReader(heightFileReader);
+	/**
+	 * Decodes the compressed values following a binary warp header and reports
+	 * how quickly they were decoded and how well they were compressed.
+	 * 
+	 * @param values
+	 *            The buffer positioned at the first compressed byte. Cannot be
+	 *            null.
+	 * @param header
+	 *            The header describing the values. Cannot be null.
+	 * @param warpPath
+	 *            The path of the file, for the report. Cannot be null.
+	 * @return The values as a 2D array of doubles.
+	 * @throws IOException
+	 *             If the values are corrupt or truncated.
+	 * @see WarpCodec
+	 */
+	private static double[][] readCompressedValues(@NonNull final ByteBuffer values,
+			@NonNull final WarpFileHeader header, @NonNull final File warpPath) throws IOException
+	{
+		int compressedSize = values.remaining();
+		long start = System.nanoTime();
 
-			/*
-			 * The width will be the number of elements in the first line of the
-			 * warp file
-			 */
-			String[] firstLine = widthReader.readLine().trim().split(" ");
-			width = firstLine.length;
+		double[][] warpArray = WarpCodec.decode(values, header);
 
-			/*
-			 * The height will be the number of non-null lines in the file
-			 */
-			while (heightReader.readLine() != null)
-			{
-				height++;
-			}
+		double seconds = Math.max(System.nanoTime() - start, 1L) / 1.0E9D;
+		long decodedSize = (long) header.getWidth() * header.getHeight() * Double.BYTES;
+		LOGGER.info(String.format("Read compressed warp %s. %.1fx smaller than doubles, decoded at %.1f MB/s",
+				warpPath.getName(), decodedSize / (double) Math.max(compressedSize, 1),
+				decodedSize / seconds / (1024.0D * 1024.0D)));
 
-			/*
-			 * Set the size once the warp's measurements have been discovered
-			 */
-			warpArray = new double[height][width];
+		return warpArray;
+	}
 
-			/*
-			 * Create a reader for parsing the values in the warp file
-			 */
-			warpFileReader = new FileReader(warpPath);
-			warpReader = new BufferedReader(warpFileReader);
+	/**
+	 * Copies the raw values following a binary warp header into a 2D array,
+	 * one row at a time.
+	 * 
+	 * @param values
+	 *            The buffer positioned at the first value. Cannot be null.
+	 * @param header
+	 *            The header describing the values. Cannot be null.
+	 * @return The values as a 2D array of doubles.
+	 */
+	private static double[][] copyRawValues(@NonNull final ByteBuffer values, @NonNull final WarpFileHeader header)
+	{
+		double[][] warpArray = new double[header.getHeight()][header.getWidth()];
 
-			/*
-			 * Finally read in the warp values and add them to the array
-			 */
-			for (int i = 0; i < height; i++)
+		if (header.getDataType() == WarpFileHeader.DATA_TYPE_FLOAT64)
+		{
+			DoubleBuffer doubles = values.asDoubleBuffer();
+			for (double[] row : warpArray)
+			{
+				doubles.get(row);
+			}
+		} else if (header.getDataType() == WarpFileHeader.DATA_TYPE_FLOAT16)
+		{
+			ShortBuffer halfFloats = values.asShortBuffer();
+			short[] halfFloatRow = new short[header.getWidth()];
+			for (double[] row : warpArray)
 			{
-				String[] currentLine = warpReader.readLine().trim().split(" ");
-				for (int j = 0; j < width; j++)
+				halfFloats.get(halfFloatRow);
+				for (int j = 0; j < halfFloatRow.length; j++)
 				{
-					warpArray[i][j] = Double.parseDouble(currentLine[j]);
+					row[j] = WarpCodec.float16Value(halfFloatRow[j]);
 				}
 			}
+		} else
+		{
+			FloatBuffer floats = values.asFloatBuffer();
+			float[] floatRow = new float[header.getWidth()];
+			for (double[] row : warpArray)
+			{
+				floats.get(floatRow);
+				for (int j = 0; j < floatRow.length; j++)
+				{
+					row[j] = floatRow[j];
+				}
+			}
+		}
 
-			/*
-			 * Close all of the readers to prevent data leaks
-			 */
-			warpFileReader.close();
-			widthFileReader.close();
-			heightFileReader.close();
-
-			widthReader.close();
-			heightReader.close();
-			warpReader.close();
+		return warpArray;
+	}
 
+	/**
+	 * Reads a text warp file where each line of the file is a row of space
+	 * separated values.
+	 * 
+	 * @param warpPath
+	 *            The path of the file which holds the warp values
+	 * @return The values from the read warp file in a 2D array of doubles
+	 */
+	public static double[][] readTextWarpFile(@NonNull final File warpPath)
+	{
+		/*
+		 * The file is opened once and parsed in a single pass. The width is
+		 * taken from the first row and the height from the number of rows.
+		 */
+		try (InputStream warpStream = new FileInputStream(warpPath))
+		{
+			return new WarpTextParser(warpStream).parse();
 		} catch (IOException e)
 		{
 			LOGGER.error("Warp has failed to read. ", e);
 		}
-		return warpArray;
+		return null;
 	}
 
 	/**
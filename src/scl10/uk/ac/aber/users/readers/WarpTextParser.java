@@ -0,0 +1,518 @@
+package scl10.uk.ac.aber.users.readers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import lombok.NonNull;
+
+/**
+ * A single pass parser for text warp files. Each line of a text warp file is a
+ * row of space separated values. The stream is read once through a reusable
+ * buffer and the values are parsed by hand straight into a growing primitive
+ * array, so no lines, tokens or split arrays are created per value.
+ * <p>
+ * Values are parsed exactly as {@link Double#parseDouble(String)} would parse
+ * them. Values that can be parsed with a couple of exact floating point
+ * operations are parsed here, anything else (such as "NaN" or very large
+ * exponents) falls back to {@link Double#parseDouble(String)}.
+ *
+ * @author Scott Lockett
+ */
+final class WarpTextParser
+{
+
+	/**
+	 * The size of the buffer the stream is read through.
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * The most significant digits a mantissa can hold while staying well
+	 * within a long.
+	 */
+	private static final int MAX_MANTISSA_DIGITS = 18;
+
+	/**
+	 * The largest mantissa that can be held exactly within a double (2^53).
+	 */
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+	/**
+	 * The largest power of ten that can be held exactly within a double.
+	 */
+	private static final int MAX_EXACT_POWER_OF_TEN = 22;
+
+	/**
+	 * Used to split a double into two halves for exact multiplication (2^27 +
+	 * 1).
+	 */
+	private static final double SPLITTER = 134217729.0D;
+
+	/**
+	 * The powers of ten that can be held exactly within a double.
+	 */
+	private static final double[] POWERS_OF_TEN = new double[MAX_EXACT_POWER_OF_TEN + 1];
+
+	static
+	{
+		POWERS_OF_TEN[0] = 1.0D;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+		{
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0D;
+		}
+	}
+
+	/**
+	 * The stream the warp is read from
+	 */
+	private final InputStream input;
+
+	/**
+	 * The reusable buffer the stream is read through
+	 */
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+
+	/**
+	 * The current position within the buffer
+	 */
+	private int position;
+
+	/**
+	 * The number of valid bytes within the buffer
+	 */
+	private int limit;
+
+	/**
+	 * The characters of the value currently being read. Grows if a value is
+	 * unusually long.
+	 */
+	private byte[] token = new byte[64];
+
+	/**
+	 * The number of characters within the current token
+	 */
+	private int tokenLength;
+
+	/**
+	 * All of the values read so far, row after row
+	 */
+	private double[] values = new double[BUFFER_SIZE];
+
+	/**
+	 * The number of values read so far
+	 */
+	private int valueCount;
+
+	/**
+	 * The width of the warp, taken from the first row. -1 until the first row
+	 * has been read.
+	 */
+	private int width = -1;
+
+	/**
+	 * The number of non blank rows read so far
+	 */
+	private int height;
+
+	/**
+	 * Creates a new parser for the stream. The stream is not closed by the
+	 * parser.
+	 *
+	 * @param input
+	 *            The stream containing the text warp. Cannot be null.
+	 */
+	WarpTextParser(@NonNull final InputStream input)
+	{
+		this.input = input;
+	}
+
+	/**
+	 * Parses the whole of the stream into a 2D array of values.
+	 *
+	 * @return The warp values with a row for each non blank line.
+	 * @throws IOException
+	 *             If the stream can not be read, a value is not a number or
+	 *             the rows are not all the same width.
+	 */
+	double[][] parse() throws IOException
+	{
+		int rowStart = 0;
+
+		while (fillBuffer())
+		{
+			for (; position < limit; position++)
+			{
+				byte current = buffer[position];
+
+				if (current == ' ' || current == '\t')
+				{
+					endToken();
+				} else if (current == '\n' || current == '\r')
+				{
+					endToken();
+					rowStart = endRow(rowStart);
+				} else
+				{
+					appendToToken(current);
+				}
+			}
+		}
+
+		/*
+		 * The last line might not end with a new line
+		 */
+		endToken();
+		endRow(rowStart);
+
+		if (height == 0)
+		{
+			throw new IOException("The warp file does not contain any values.");
+		}
+
+		double[][] warpArray = new double[height][width];
+		for (int i = 0; i < height; i++)
+		{
+			System.arraycopy(values, i * width, warpArray[i], 0, width);
+		}
+
+		return warpArray;
+	}
+
+	/**
+	 * Reads the next chunk of the stream into the buffer.
+	 *
+	 * @return true if there is more to be read, false at the end of the stream
+	 * @throws IOException
+	 *             If the stream can not be read
+	 */
+	private boolean fillBuffer() throws IOException
+	{
+		int read;
+		do
+		{
+			read = input.read(buffer, 0, buffer.length);
+		} while (read == 0);
+
+		position = 0;
+		limit = Math.max(read, 0);
+		return read > 0;
+	}
+
+	/**
+	 * Adds a character onto the current token.
+	 *
+	 * @param character
+	 *            The character to be added
+	 */
+	private void appendToToken(final byte character)
+	{
+		if (tokenLength == token.length)
+		{
+			byte[] largerToken = new byte[token.length * 2];
+			System.arraycopy(token, 0, largerToken, 0, tokenLength);
+			token = largerToken;
+		}
+		token[tokenLength++] = character;
+	}
+
+	/**
+	 * Finishes the current token, if there is one, and stores its value.
+	 *
+	 * @throws IOException
+	 *             If the token is not a number
+	 */
+	private void endToken() throws IOException
+	{
+		if (tokenLength == 0)
+		{
+			return;
+		}
+
+		if (valueCount == values.length)
+		{
+			double[] largerValues = new double[values.length * 2];
+			System.arraycopy(values, 0, largerValues, 0, valueCount);
+			values = largerValues;
+		}
+
+		values[valueCount++] = parseToken();
+		tokenLength = 0;
+	}
+
+	/**
+	 * Finishes the current row. Blank rows are ignored.
+	 *
+	 * @param rowStart
+	 *            The position within the values where the row started
+	 * @return The position within the values where the next row starts
+	 * @throws IOException
+	 *             If the row is not the same width as the first row
+	 */
+	private int endRow(final int rowStart) throws IOException
+	{
+		int rowWidth = valueCount - rowStart;
+
+		if (rowWidth == 0)
+		{
+			return rowStart;
+		}
+
+		if (width == -1)
+		{
+			width = rowWidth;
+		} else if (rowWidth != width)
+		{
+			throw new IOException(
+					"Row " + (height + 1) + " of the warp has " + rowWidth + " values but should have " + width);
+		}
+
+		height++;
+		return valueCount;
+	}
+
+	/**
+	 * Parses the current token into a double.
+	 *
+	 * @return The value of the token
+	 * @throws IOException
+	 *             If the token is not a number
+	 */
+	private double parseToken() throws IOException
+	{
+		int i = 0;
+		boolean negative = false;
+
+		if (token[0] == '-' || token[0] == '+')
+		{
+			negative = token[0] == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int significantDigits = 0;
+		int exponent = 0;
+		boolean anyDigits = false;
+		boolean truncated = false;
+
+		/*
+		 * Digits before the decimal point
+		 */
+		for (; i < tokenLength && isDigit(token[i]); i++)
+		{
+			anyDigits = true;
+			if (significantDigits < MAX_MANTISSA_DIGITS)
+			{
+				mantissa = mantissa * 10 + (token[i] - '0');
+				if (mantissa != 0)
+				{
+					significantDigits++;
+				}
+			} else
+			{
+				truncated |= token[i] != '0';
+				exponent++;
+			}
+		}
+
+		/*
+		 * Digits after the decimal point
+		 */
+		if (i < tokenLength && token[i] == '.')
+		{
+			for (i++; i < tokenLength && isDigit(token[i]); i++)
+			{
+				anyDigits = true;
+				if (significantDigits < MAX_MANTISSA_DIGITS)
+				{
+					mantissa = mantissa * 10 + (token[i] - '0');
+					exponent--;
+					if (mantissa != 0)
+					{
+						significantDigits++;
+					}
+				} else
+				{
+					truncated |= token[i] != '0';
+				}
+			}
+		}
+
+		/*
+		 * An optional exponent such as E-5
+		 */
+		if (anyDigits && i < tokenLength && (token[i] == 'e' || token[i] == 'E'))
+		{
+			i++;
+			boolean negativeExponent = false;
+			if (i < tokenLength && (token[i] == '-' || token[i] == '+'))
+			{
+				negativeExponent = token[i] == '-';
+				i++;
+			}
+
+			int explicitExponent = 0;
+			boolean anyExponentDigits = false;
+			for (; i < tokenLength && isDigit(token[i]); i++)
+			{
+				anyExponentDigits = true;
+				if (explicitExponent < 100000)
+				{
+					explicitExponent = explicitExponent * 10 + (token[i] - '0');
+				}
+			}
+
+			if (!anyExponentDigits)
+			{
+				return parseTokenWithFallback();
+			}
+			exponent += negativeExponent ? -explicitExponent : explicitExponent;
+		}
+
+		/*
+		 * Anything left over (NaN, Infinity, a trailing 'd') or digits that
+		 * did not fit are left to the JDK.
+		 */
+		if (!anyDigits || i != tokenLength || truncated || Math.abs(exponent) > MAX_EXACT_POWER_OF_TEN)
+		{
+			return parseTokenWithFallback();
+		}
+
+		double value;
+		if (mantissa == 0)
+		{
+			value = 0.0D;
+		} else if (mantissa <= MAX_EXACT_MANTISSA)
+		{
+			/*
+			 * Both the mantissa and the power of ten are exact so a single
+			 * correctly rounded operation gives the correctly rounded value.
+			 */
+			value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+		} else
+		{
+			value = scaleLongMantissa(mantissa, exponent);
+			if (Double.isNaN(value))
+			{
+				return parseTokenWithFallback();
+			}
+		}
+
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Scales a mantissa too large to be held exactly within a double by a power
+	 * of ten using double-double arithmetic. The result is checked to make sure
+	 * it is not too close to half way between two doubles to be certain of the
+	 * rounding.
+	 *
+	 * @param mantissa
+	 *            The mantissa of the value, greater than 2^53.
+	 * @param exponent
+	 *            The power of ten, between -22 and 22.
+	 * @return The correctly rounded value, or NaN if the rounding could not be
+	 *         decided.
+	 */
+	private static double scaleLongMantissa(final long mantissa, final int exponent)
+	{
+		/*
+		 * Split the mantissa into two doubles that sum to it exactly.
+		 */
+		double mantissaHigh = mantissa;
+		double mantissaLow = mantissa - (long) mantissaHigh;
+		double powerOfTen = POWERS_OF_TEN[Math.abs(exponent)];
+
+		double high;
+		double low;
+
+		if (exponent < 0)
+		{
+			double quotient = mantissaHigh / powerOfTen;
+			double product = quotient * powerOfTen;
+			double productError = productError(quotient, powerOfTen, product);
+			double remainder = ((mantissaHigh - product) - productError) + mantissaLow;
+			double correction = remainder / powerOfTen;
+			high = quotient + correction;
+			low = correction - (high - quotient);
+		} else
+		{
+			double product = mantissaHigh * powerOfTen;
+			double tail = productError(mantissaHigh, powerOfTen, product) + mantissaLow * powerOfTen;
+			high = product + tail;
+			low = tail - (high - product);
+		}
+
+		/*
+		 * high is the nearest double to (high + low). That is only certainly
+		 * the nearest double to the exact value if (high + low) is not within
+		 * the calculation's error of a half way point.
+		 */
+		double gap = low > 0 ? Math.nextUp(high) - high : high - Math.nextDown(high);
+		double margin = Math.abs(high) * 0x1.0p-96;
+
+		if (Math.abs(Math.abs(low) - gap / 2.0D) <= margin || Double.isInfinite(high))
+		{
+			return Double.NaN;
+		}
+
+		return high;
+	}
+
+	/**
+	 * Works out the rounding error of multiplying two doubles, so that the
+	 * product plus the error is exactly a * b.
+	 *
+	 * @param a
+	 *            The first value
+	 * @param b
+	 *            The second value
+	 * @param product
+	 *            The rounded product of a and b
+	 * @return The error of the rounded product
+	 */
+	private static double productError(final double a, final double b, final double product)
+	{
+		double aSplit = SPLITTER * a;
+		double aHigh = aSplit - (aSplit - a);
+		double aLow = a - aHigh;
+
+		double bSplit = SPLITTER * b;
+		double bHigh = bSplit - (bSplit - b);
+		double bLow = b - bHigh;
+
+		return ((aHigh * bHigh - product) + aHigh * bLow + aLow * bHigh) + aLow * bLow;
+	}
+
+	/**
+	 * Parses the current token with the JDK.
+	 *
+	 * @return The value of the token
+	 * @throws IOException
+	 *             If the token is not a number
+	 */
+	private double parseTokenWithFallback() throws IOException
+	{
+		String value = new String(token, 0, tokenLength, StandardCharsets.US_ASCII);
+		try
+		{
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e)
+		{
+			throw new IOException("Row " + (height + 1) + " of the warp contains a value that is not a number: "
+					+ value, e);
+		}
+	}
+
+	/**
+	 * Checks whether a character is a digit between 0 and 9.
+	 *
+	 * @param character
+	 *            The character to be checked
+	 * @return true if the character is a digit
+	 */
+	private static boolean isDigit(final byte character)
+	{
+		return character >= '0' && character <= '9';
+	}
+}
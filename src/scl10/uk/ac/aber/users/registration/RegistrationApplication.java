@@ -4,14 +4,22 @@ import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.opencv.core.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import lombok.NonNull;
-import scl10.uk.ac.aber.users.manipulators.ImageManipulator;
+import scl10.uk.ac.aber.users.manipulators.JavaWarpBackend;
+import scl10.uk.ac.aber.users.manipulators.MatPool;
+import scl10.uk.ac.aber.users.manipulators.WarpBackend;
 import scl10.uk.ac.aber.users.neuralnetwork.ConvolutionLayerPyramid;
 import scl10.uk.ac.aber.users.neuralnetwork.FullyConnectedLayerWarp;
 import scl10.uk.ac.aber.users.pyramids.ImagePyramid;
+import scl10.uk.ac.aber.users.pyramids.ImagePyramidCache;
 import scl10.uk.ac.aber.users.pyramids.WarpPyramid;
 import scl10.uk.ac.aber.users.readers.ImageReader;
 
@@ -25,6 +33,11 @@ import scl10.uk.ac.aber.users.readers.ImageReader;
 public class RegistrationApplication
 {
 
+	/**
+	 * Logger for logging user information
+	 */
+	private static final Logger LOGGER = LoggerFactory.getLogger(RegistrationApplication.class);
+
 	/**
 	 * The levels within the pyramid.
 	 * 
@@ -35,6 +48,25 @@ public class RegistrationApplication
 	 */
 	public static int PYRAMID_LEVELS = 0;
 
+	/**
+	 * How the predicted warps are applied to the images at each level of the
+	 * pyramid. Static for the same reason as the pyramid levels, but only
+	 * replaced through {@link #setWarpBackend(WarpBackend)} so the backend
+	 * being replaced is closed.
+	 */
+	private static WarpBackend warpBackend = new JavaWarpBackend();
+
+	/**
+	 * The background threads the source and target image pyramids are
+	 * downsampled on while the network is trained, one for each.
+	 */
+	private static final ExecutorService PREPROCESSOR = Executors.newFixedThreadPool(2, runnable ->
+	{
+		Thread thread = new Thread(runnable, "registration-pyramids");
+		thread.setDaemon(true);
+		return thread;
+	});
+
 	/**
 	 * Private constructor to hide the implicit public one.
 	 */
@@ -43,6 +75,32 @@ public class RegistrationApplication
 
 	}
 
+	/**
+	 * Get how the predicted warps are applied to the images.
+	 * 
+	 * @return The warp backend.
+	 */
+	public static synchronized WarpBackend getWarpBackend()
+	{
+		return warpBackend;
+	}
+
+	/**
+	 * Set how the predicted warps are applied to the images. The backend being
+	 * replaced is closed, handing back any native memory it holds.
+	 * 
+	 * @param backend
+	 *            The new warp backend. cannot be null.
+	 */
+	public static synchronized void setWarpBackend(@NonNull final WarpBackend backend)
+	{
+		if (backend != warpBackend)
+		{
+			warpBackend.close();
+			warpBackend = backend;
+		}
+	}
+
 	/**
 	 * The registration method. This is the central method where the
 	 * registration takes place.
@@ -59,10 +117,23 @@ public class RegistrationApplication
 	 *            The file that holds the paths to the training warps
 	 * @param levels
 	 *            The number of levels within the image and warp pyramid
+	 * @throws IllegalArgumentException
+	 *             If the source and target images are not the same size.
 	 */
 	static void autoWarp(@NonNull final BufferedImage sourceImage, @NonNull final BufferedImage targetImage,
 			@NonNull final File trainingImagesFile, @NonNull final File trainingWarpFile, final int levels)
 	{
+		/*
+		 * The warp pyramids are sized from the source image's pyramid alone,
+		 * so the target image has to match it.
+		 */
+		if (sourceImage.getWidth() != targetImage.getWidth() || sourceImage.getHeight() != targetImage.getHeight())
+		{
+			throw new IllegalArgumentException("The source and target images must be the same size. "
+					+ sourceImage.getWidth() + " x " + sourceImage.getHeight() + " and " + targetImage.getWidth()
+					+ " x " + targetImage.getHeight());
+		}
+
 		/*
 		 * Set number of levels in the pyramid.
 		 */
@@ -70,189 +141,263 @@ public class RegistrationApplication
 
 		/*
 		 * We create the downsampled version of the images needed for the fully
-		 * connected layer by creating an image pyramid
+		 * connected layer by creating an image pyramid. Only the levels that
+		 * are asked for are downsampled, when they are asked for. The
+		 * pyramids come from the shared cache so an image registered against
+		 * many others only has its levels downsampled once.
+		 * 
+		 * Both pyramids are downsampled at the same time in the background
+		 * while the network is trained.
 		 */
-		ImagePyramid sourceImagePyramid = new ImagePyramid(sourceImage, levels);
-		ImagePyramid targetImagePyramid = new ImagePyramid(targetImage, levels);
+		ImagePyramidCache pyramidCache = ImagePyramidCache.getShared();
+		CompletableFuture<ImagePyramid> sourcePyramidFuture = pyramidCache.acquireAsync(sourceImage, levels,
+				PREPROCESSOR);
+		CompletableFuture<ImagePyramid> targetPyramidFuture = pyramidCache.acquireAsync(targetImage, levels,
+				PREPROCESSOR);
 
 		/*
-		 * Size of the input to the neural network is equal to the lowest level
-		 * of the pyramids * 2.
+		 * Get the warp backend once, so the one that is closed at the end is
+		 * the one that was used.
 		 */
-		int nnInputSize = (sourceImagePyramid.getLowestLevelImage().getHeight()
-				* sourceImagePyramid.getLowestLevelImage().getWidth()) * 2;
+		WarpBackend backend = getWarpBackend();
 
-		/*
-		 * Size of the hidden layer is the same as the input size
-		 */
-		int nnHiddenLayerSize = nnInputSize;
+		try
+		{
+			/*
+			 * Size of the input to the neural network is equal to the lowest level
+			 * of the pyramids * 2. The size is worked out from the source image so
+			 * the network doesn't wait for the pyramids.
+			 */
+			Dimension lowestLevelSize = ImageReader
+					.sizeAtLevel(new Dimension(sourceImage.getWidth(), sourceImage.getHeight()), levels);
+			int nnInputSize = (lowestLevelSize.height * lowestLevelSize.width) * 2;
 
-		/*
-		 * The output is the x y shift between each of the pixel. This is also
-		 * the same as the input size.
-		 */
-		int nnOutputSize = nnInputSize;
+			/*
+			 * Size of the hidden layer is the same as the input size
+			 */
+			int nnHiddenLayerSize = nnInputSize;
 
-		/*
-		 * This fully connected layer warp is used to predict the shift between
-		 * two images at a very downsampled version of the images.
-		 */
-		FullyConnectedLayerWarp fullyConnectedLayer = new FullyConnectedLayerWarp(nnInputSize, nnHiddenLayerSize,
-				nnOutputSize, trainingImagesFile, trainingWarpFile);
+			/*
+			 * The output is the x y shift between each of the pixel. This is also
+			 * the same as the input size.
+			 */
+			int nnOutputSize = nnInputSize;
 
-		/*
-		 * Setup the basic neural network parameters and train the network
-		 */
-		fullyConnectedLayer.setUpNeuralNetwork(0.05, 0.7, 500);
-		fullyConnectedLayer.trainNetwork();
+			/*
+			 * This fully connected layer warp is used to predict the shift between
+			 * two images at a very downsampled version of the images.
+			 */
+			FullyConnectedLayerWarp fullyConnectedLayer = new FullyConnectedLayerWarp(nnInputSize, nnHiddenLayerSize,
+					nnOutputSize, trainingImagesFile, trainingWarpFile);
 
-		/*
-		 * Predict the warp from the input images at the lowest level for
-		 * performance.
-		 */
-		double[][][] xAndYPredictedWarp = fullyConnectedLayer.generateWarp(sourceImagePyramid.getLowestLevelImage(),
-				targetImagePyramid.getLowestLevelImage());
+			/*
+			 * Setup the basic neural network parameters and train the network
+			 */
+			fullyConnectedLayer.setUpNeuralNetwork(0.05, 0.7, 500);
+			fullyConnectedLayer.trainNetwork();
 
-		/*
-		 * Separate out the x and the y warp into their own 2D arrays.
-		 */
-		double[][] predictedXWarp = xAndYPredictedWarp[0];
-		double[][] predictedYWarp = xAndYPredictedWarp[1];
+			ImagePyramid sourceImagePyramid = sourcePyramidFuture.join();
+			ImagePyramid targetImagePyramid = targetPyramidFuture.join();
 
-		/*
-		 * Create a warp pyramid based from the output from the artificial
-		 * neural network for both the x shift and the y shift.
-		 */
-		WarpPyramid xWarpPyramid = new WarpPyramid(predictedXWarp, sourceImagePyramid.getImageSizes());
-		WarpPyramid yWarpPyramid = new WarpPyramid(predictedYWarp, targetImagePyramid.getImageSizes());
+			/*
+			 * Predict the warp from the input images at the lowest level for
+			 * performance.
+			 */
+			double[][][] xAndYPredictedWarp = fullyConnectedLayer.generateWarp(sourceImagePyramid.getLowestLevelImage(),
+					targetImagePyramid.getLowestLevelImage());
 
-		/*
-		 * Now that we have an initial x and y warp pyramid, we can apply it to
-		 * each level of the image pyramids but it probably wont be very good!
-		 * 
-		 * The next part is to create an artificial neural network pyramid that
-		 * corresponds to the sizes of the warp and image pyramid. This neural
-		 * network pyramid will be trained using a series of image patches
-		 * derived from the warped image, and the ground truth from out training
-		 * data. The aim of the neural network pyramid is to determine how far
-		 * away a pixel is from its desired warp location and take the
-		 * difference away. This will create an updated warp that should be
-		 * closer to the desired warp. We can then recursively train and update
-		 * each level of the pyramid with an updated warp till we reach the
-		 * original sized image, and should hopefully produce a reasonably
-		 * registered image.
-		 */
+			/*
+			 * Separate out the x and the y warp into their own 2D arrays.
+			 */
+			double[][] predictedXWarp = xAndYPredictedWarp[0];
+			double[][] predictedYWarp = xAndYPredictedWarp[1];
 
-		/*
-		 * Start by creating an ideal patch size which is 7 x 7 pixels.
-		 */
-		Dimension patchSize = new Dimension(7, 7);
+			/*
+			 * Create a warp pyramid based from the output from the artificial
+			 * neural network for both the x shift and the y shift. Both are
+			 * upsampled together, with one native pass for each level. The images
+			 * were checked to be the same size so either pyramid's sizes will do.
+			 */
+			WarpPyramid[] warpPyramids = WarpPyramid.createPair(predictedXWarp, predictedYWarp,
+					sourceImagePyramid.getImageSizes());
+			WarpPyramid xWarpPyramid = warpPyramids[0];
+			WarpPyramid yWarpPyramid = warpPyramids[1];
 
-		/*
-		 * Some of the images in the pyramid might be downsampled too much to
-		 * create patches 7 x 7 pixels if the images are only 6 x 4 say. In
-		 * order to avoid this we can find out which images at which level are
-		 * less than 49 pixels and start the patch generation at a higher level.
-		 * 
-		 * Start this by getting the image sizes from one of the pyramids.
-		 */
-		ArrayList<Size> sizes = targetImagePyramid.getImageSizes();
+			/*
+			 * Now that we have an initial x and y warp pyramid, we can apply it to
+			 * each level of the image pyramids but it probably wont be very good!
+			 * 
+			 * The next part is to create an artificial neural network pyramid that
+			 * corresponds to the sizes of the warp and image pyramid. This neural
+			 * network pyramid will be trained using a series of image patches
+			 * derived from the warped image, and the ground truth from out training
+			 * data. The aim of the neural network pyramid is to determine how far
+			 * away a pixel is from its desired warp location and take the
+			 * difference away. This will create an updated warp that should be
+			 * closer to the desired warp. We can then recursively train and update
+			 * each level of the pyramid with an updated warp till we reach the
+			 * original sized image, and should hopefully produce a reasonably
+			 * registered image.
+			 */
 
-		/*
-		 * numberOfLevelsUnsutiableForPatches will be used to indicate how many
-		 * levels of the pyramids are too small for 7 x 7 patches to be derived
-		 * from.
-		 */
-		int numberOfLevelsUnsutiableForPatches = 0;
+			/*
+			 * Start by creating an ideal patch size which is 7 x 7 pixels.
+			 */
+			Dimension patchSize = new Dimension(7, 7);
 
-		/*
-		 * Loop through each of the sizes and count how many sizes are too small
-		 * for 7 x 7 patches to be derived from.
-		 */
-		for (Size currentSize : sizes)
-		{
-			if (currentSize.height <= patchSize.getHeight() || currentSize.width <= patchSize.getWidth())
-			{
-				numberOfLevelsUnsutiableForPatches++;
-			}
-		}
+			/*
+			 * Some of the images in the pyramid might be downsampled too much to
+			 * create patches 7 x 7 pixels if the images are only 6 x 4 say. In
+			 * order to avoid this we can find out which images at which level are
+			 * less than 49 pixels and start the patch generation at a higher level.
+			 * 
+			 * Start this by getting the image sizes from one of the pyramids.
+			 */
+			ArrayList<Size> sizes = targetImagePyramid.getImageSizes();
 
-		/*
-		 * The number of suitable levels for training the convolutional layers
-		 * pyramid is the (total level - the number of unsuitable levels)
-		 */
-		int suitableLevels = levels - numberOfLevelsUnsutiableForPatches;
+			/*
+			 * numberOfLevelsUnsutiableForPatches will be used to indicate how many
+			 * levels of the pyramids are too small for 7 x 7 patches to be derived
+			 * from.
+			 */
+			int numberOfLevelsUnsutiableForPatches = 0;
 
-		/*
-		 * Create the convolutional neural network pyramid with the number of
-		 * suitable levels as the number of levels in the pyramid.
-		 */
-		ConvolutionLayerPyramid convolutionalNeuralNetworkPyramid = new ConvolutionLayerPyramid(suitableLevels + 1);
+			/*
+			 * Loop through each of the sizes and count how many sizes are too small
+			 * for 7 x 7 patches to be derived from.
+			 */
+			for (Size currentSize : sizes)
+			{
+				if (currentSize.height <= patchSize.getHeight() || currentSize.width <= patchSize.getWidth())
+				{
+					numberOfLevelsUnsutiableForPatches++;
+				}
+			}
 
-		/*
-		 * Work backwards from the smallest to the largest in each of the
-		 * pyramids. Only use levels that are suitable so that patches are NOT
-		 * derived for unsuitable levels (those that have images that are less
-		 * than 7 x 7 pixels large)
-		 */
-		for (int i = suitableLevels; i >= 0; i--)
-		{
 			/*
-			 * On the image pyramid and warp pyramid, the largest image is at
-			 * position 0 and the smallest is at 7. We're starting from the
-			 * smallest and working our way up to the largest.
+			 * The number of suitable levels for training the convolutional layers
+			 * pyramid is the (total level - the number of unsuitable levels)
 			 */
-			BufferedImage currentSourceImage = sourceImagePyramid.getImageAtIndex(i);
-			BufferedImage currentTargetImage = targetImagePyramid.getImageAtIndex(i);
-			double[][] warpY = xWarpPyramid.getWarpAtIndex(i);
-			double[][] warpX = yWarpPyramid.getWarpAtIndex(i);
+			int suitableLevels = levels - numberOfLevelsUnsutiableForPatches;
 
 			/*
-			 * Apply the warp function to the source image
+			 * Create the convolutional neural network pyramid with the number of
+			 * suitable levels as the number of levels in the pyramid.
 			 */
-			BufferedImage warpedSource = ImageManipulator.applyWarpFunctionToImage(currentSourceImage, warpX, warpY);
+			ConvolutionLayerPyramid convolutionalNeuralNetworkPyramid = new ConvolutionLayerPyramid(suitableLevels + 1);
 
 			/*
-			 * Display the image
+			 * The levels too small for patches are finished with, so their
+			 * matrices are handed back.
 			 */
-			ImageReader.displayImage(warpedSource, "Registed image at index " + i);
+			for (int i = levels; i > suitableLevels; i--)
+			{
+				sourceImagePyramid.evictMatrix(i);
+				targetImagePyramid.evictMatrix(i);
+			}
 
 			/*
-			 * This area of this project is still incomplete. But a lot of the
-			 * project does work as we can see from displayed registered image.
-			 * See above.
-			 * 
-			 * A nice analogy is that a car works, even with its wheels missing.
-			 * This section is my car's missing wheels.
-			 * 
-			 * But this section would go something like this.
+			 * Work backwards from the smallest to the largest in each of the
+			 * pyramids. Only use levels that are suitable so that patches are NOT
+			 * derived for unsuitable levels (those that have images that are less
+			 * than 7 x 7 pixels large)
 			 */
+			for (int i = suitableLevels; i >= 0; i--)
+			{
+				/*
+				 * On the image pyramid and warp pyramid, the largest image is at
+				 * position 0 and the smallest is at 7. We're starting from the
+				 * smallest and working our way up to the largest.
+				 */
+				BufferedImage currentSourceImage = sourceImagePyramid.getImageAtIndex(i);
+				BufferedImage currentTargetImage = targetImagePyramid.getImageAtIndex(i);
 
+				/*
+				 * Get the next larger level ready in the background while this
+				 * level is worked on.
+				 */
+				if (i > 0)
+				{
+					sourceImagePyramid.prefetch(i - 1);
+					targetImagePyramid.prefetch(i - 1);
+				}
+				double[][] warpY = xWarpPyramid.getWarpAtIndex(i);
+				double[][] warpX = yWarpPyramid.getWarpAtIndex(i);
+
+				/*
+				 * Apply the warp function to the source image
+				 */
+				BufferedImage warpedSource = backend.applyWarp(currentSourceImage, warpX, warpY);
+
+				/*
+				 * Display the image
+				 */
+				ImageReader.displayImage(warpedSource, "Registed image at index " + i);
+
+				/*
+				 * This area of this project is still incomplete. But a lot of the
+				 * project does work as we can see from displayed registered image.
+				 * See above.
+				 * 
+				 * A nice analogy is that a car works, even with its wheels missing.
+				 * This section is my car's missing wheels.
+				 * 
+				 * But this section would go something like this.
+				 */
+
+				/*
+				 * The convolutional neural networks need training with a series of
+				 * image patches. The code at moment only works for a single image.
+				 * 
+				 * convolutionalNeuralNetworkPyramid.
+				 * trainConvolutionalLayerFromLevel(i, source [], target [], )
+				 */
+
+				/*
+				 * Use the convolutional neural network pyramid at this level to
+				 * update the current warp to move closer to the target.
+				 * 
+				 * double[][][] updatedXAndYWarp =
+				 * convolutionalNeuralNetworkPyramid.calculateWarpFromLevel(i,
+				 * warpedSource, targetImagePyramid.getImageAtIndex(i));
+				 * 
+				 * double[][] updatedXWarp = updatedXAndYWarp[0]; NEW LINE
+				 * double[][] updatedYWarp = updatedXAndYWarp[1];
+				 * 
+				 * Apply updated warp to image in order to move closer to the target
+				 * and create a closer registered image.
+				 * 
+				 * ImageManipulator.applyWarpFunctionToImage(currentTargetImage,
+				 * updatedXWarp, updatedYWarp);
+				 */
+
+				/*
+				 * The pyramids are shared through the cache so the levels are
+				 * kept, but their matrices are only needed to get the images.
+				 */
+				sourceImagePyramid.evictMatrix(i);
+				targetImagePyramid.evictMatrix(i);
+			}
+		} finally
+		{
 			/*
-			 * The convolutional neural networks need training with a series of
-			 * image patches. The code at moment only works for a single image.
-			 * 
-			 * convolutionalNeuralNetworkPyramid.
-			 * trainConvolutionalLayerFromLevel(i, source [], target [], )
+			 * Hand the pyramids back to the cache, even if the registration
+			 * failed. Any the cache has dropped have their native memory handed
+			 * back now rather than whenever the garbage collector gets to it. A
+			 * pyramid still being built is handed back once it is built, and one
+			 * that failed to build was never held.
 			 */
+			sourcePyramidFuture.thenAccept(pyramidCache::release);
+			targetPyramidFuture.thenAccept(pyramidCache::release);
 
 			/*
-			 * Use the convolutional neural network pyramid at this level to
-			 * update the current warp to move closer to the target.
-			 * 
-			 * double[][][] updatedXAndYWarp =
-			 * convolutionalNeuralNetworkPyramid.calculateWarpFromLevel(i,
-			 * warpedSource, targetImagePyramid.getImageAtIndex(i));
-			 * 
-			 * double[][] updatedXWarp = updatedXAndYWarp[0]; NEW LINE
-			 * double[][] updatedYWarp = updatedXAndYWarp[1];
-			 * 
-			 * Apply updated warp to image in order to move closer to the target
-			 * and create a closer registered image.
-			 * 
-			 * ImageManipulator.applyWarpFunctionToImage(currentTargetImage,
-			 * updatedXWarp, updatedYWarp);
+			 * The backend is kept for the next registration, but the native
+			 * memory it holds for these warps isn't.
 			 */
+			backend.close();
 		}
+
+		LOGGER.info("Image pyramids after registration: " + pyramidCache);
+		LOGGER.info("OpenCV matrices after registration: " + MatPool.getShared());
 	}
 }
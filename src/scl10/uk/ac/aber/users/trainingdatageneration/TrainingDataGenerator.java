@@ -2,6 +2,14 @@ package scl10.uk.ac.aber.users.trainingdatageneration;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,6 +19,7 @@ import scl10.uk.ac.aber.users.manipulators.ImageManipulator;
 import scl10.uk.ac.aber.users.manipulators.WarpManipulator;
 import scl10.uk.ac.aber.users.readers.ImageReader;
 import scl10.uk.ac.aber.users.readers.TrainingDataReader;
+import scl10.uk.ac.aber.users.readers.WarpFileHeader;
 import scl10.uk.ac.aber.users.readers.WarpReader;
 
 /**
@@ -32,6 +41,22 @@ public final class TrainingDataGenerator
 	 */
 	private static int TIMES_TO_DOWNSAMPLE;
 
+	/**
+	 * The optional parameter that asks for every level to be written.
+	 */
+	private static final String ALL_LEVELS_PARAMETER = "all";
+
+	/**
+	 * If every level from 1 to TIMES_TO_DOWNSAMPLE is to be written, each into
+	 * its own level-k folder, rather than just the final level.
+	 */
+	private static boolean ALL_LEVELS;
+
+	/**
+	 * The number of files that are processed at the same time.
+	 */
+	private static int THREADS;
+
 	/**
 	 * private constructor to hide the public implicit one
 	 */
@@ -43,6 +68,8 @@ public final class TrainingDataGenerator
 	/*
 	 * Example parameters for the main method.
 	 * ".\\pathsOfWarpsToDownsample.txt", ".\\new_downsampled_warps", "7"
+	 * or to write every level on 4 threads
+	 * ".\\pathsOfWarpsToDownsample.txt", ".\\new_downsampled_warps", "7", "all", "4"
 	 */
 
 	/**
@@ -54,7 +81,12 @@ public final class TrainingDataGenerator
 	 *            args [1] The folder where your downsampled files are to be
 	 *            written to. If the folder does not exist yet, it wil be
 	 *            created. args [2] The number of times the data is to be
-	 *            downsampled between 1 - 10.
+	 *            downsampled between 1 - 10. args [3] Optional. "all" to write
+	 *            every level from 1 to args [2] into its own level-k folder
+	 *            within args [1], or "final" to only write the final level.
+	 *            Defaults to "final". args [4] Optional. The number of files
+	 *            processed at the same time. Defaults to the number of
+	 *            processors.
 	 */
 	public static void main(final String[] args)
 	{
@@ -66,7 +98,9 @@ public final class TrainingDataGenerator
 		{
 			LOGGER.info("1. The path of the file that contains the paths to all of the training data paths \n"
 					+ "2. The folder where your downsamples files are to be written to. If the folder does not exist yet, it wil be created.\n"
-					+ "3. The number of times the data is to be downsampled between 1 - 10 ");
+					+ "3. The number of times the data is to be downsampled between 1 - 10 \n"
+					+ "4. Optional. \"all\" to write every level into its own level-k folder, or \"final\" for just the final level\n"
+					+ "5. Optional. The number of files to process at the same time");
 			return;
 		}
 
@@ -96,13 +130,14 @@ public final class TrainingDataGenerator
 			if ((trainingFiles[0].getName().contains(".jpg")) || (trainingFiles[0].getName().contains(".JPG")))
 			{
 				createDownsampledImageTrainingDataAndWriteToFolder(trainingFiles, trainingFolder);
-			} else if (trainingFiles[0].getName().contains(".txt"))
+			} else if (trainingFiles[0].getName().contains(WarpFileHeader.TEXT_EXTENSION)
+					|| trainingFiles[0].getName().contains(WarpFileHeader.BINARY_EXTENSION))
 			{
 				createDownsampledWarpTrainingDataAndWriteToFolder(trainingFiles, trainingFolder);
 			} else
 			{
 				throw new IllegalArgumentException(
-						"Can not recognise file type. Images should be .jpg and warp file .txt");
+						"Can not recognise file type. Images should be .jpg and warp file .txt or .warp");
 			}
 		} else
 		{
@@ -126,33 +161,56 @@ public final class TrainingDataGenerator
 			@NonNull final File folderToWriteTo)
 	{
 
-		checkFolderExistsAndCreateIfNot(folderToWriteTo);
+		File[] levelFolders = createLevelFolders(folderToWriteTo);
+
+		processConcurrently(trainingImageFiles, imageFile -> downsampleImageAndWrite(imageFile, levelFolders));
+	}
 
-		for (File imageFile : trainingImageFiles)
+	/**
+	 * Downsamples a single training image and writes out each level that is
+	 * wanted.
+	 * 
+	 * @param imageFile
+	 *            The training image to be downsampled.
+	 * @param levelFolders
+	 *            The folder each level is written to, indexed by level. Levels
+	 *            that are not written are null.
+	 * @return True if every level has been written, false otherwise.
+	 */
+	private static boolean downsampleImageAndWrite(final File imageFile, final File[] levelFolders)
+	{
+		/*
+		 * When only the final level is wanted, load the image already
+		 * downsampled however many times the image needs halving. The full
+		 * sized image is never decoded. Otherwise decode the image once at the
+		 * first level and halve it for each level after that.
+		 */
+		int firstLevel = ALL_LEVELS ? 1 : TIMES_TO_DOWNSAMPLE;
+		BufferedImage smallerImage = ImageReader.readImageFileAtLevel(imageFile, firstLevel);
+		if (smallerImage == null)
 		{
-			/*
-			 * Load the image to be downsampled.
-			 */
-			BufferedImage currentImage = ImageReader.readImageFile(imageFile);
-			BufferedImage smallerImage = currentImage;
+			LOGGER.warn("Image file has failed to be read: " + imageFile.getPath());
+			return false;
+		}
 
-			/*
-			 * Downsample however many times the image needs halving
-			 */
-			for (int i = 0; i < TIMES_TO_DOWNSAMPLE; i++)
+		boolean written = true;
+		for (int level = firstLevel; level <= TIMES_TO_DOWNSAMPLE; level++)
+		{
+			if (level > firstLevel)
 			{
 				smallerImage = ImageManipulator.downsample(smallerImage);
 			}
 
 			/*
-			 * Create output file from the destination folder and the current
-			 * files names
+			 * Create output file from the level's folder and the current files
+			 * names
 			 */
-			File outputFile = new File(folderToWriteTo + "\\" + imageFile.getName());
+			File outputFile = new File(levelFolders[level], imageFile.getName());
 
 			/*
 			 * Convert the image to grey scale to save training time on the
-			 * artificial neural network
+			 * artificial neural network. The colour image is kept for the next
+			 * level so every level is the same as downsampling on its own.
 			 */
 			BufferedImage smallerGreyImage = ImageManipulator.convertColorImageToGreyscale(smallerImage);
 
@@ -160,14 +218,13 @@ public final class TrainingDataGenerator
 			 * Write the image to the output file. Ensure that it has correctly
 			 * been written to and log the result.
 			 */
-			if (ImageManipulator.writeImageFile(outputFile, smallerGreyImage))
-			{
-				LOGGER.info("Image file has been written: " + folderToWriteTo + "\\" + imageFile.getName());
-			} else
+			if (!ImageManipulator.writeImageFile(outputFile, smallerGreyImage))
 			{
-				LOGGER.warn("Image file has failed to be written: " + folderToWriteTo + "\\" + imageFile.getName());
+				LOGGER.warn("Image file has failed to be written: " + outputFile.getPath());
+				written = false;
 			}
 		}
+		return written;
 	}
 
 	/**
@@ -185,41 +242,201 @@ public final class TrainingDataGenerator
 			@NonNull final File folderToWriteTo)
 	{
 
-		checkFolderExistsAndCreateIfNot(folderToWriteTo);
+		File[] levelFolders = createLevelFolders(folderToWriteTo);
 
-		for (File warpFile : trainingWarpFiles)
+		processConcurrently(trainingWarpFiles, warpFile -> downsampleWarpAndWrite(warpFile, levelFolders));
+	}
+
+	/**
+	 * Downsamples a single training warp and writes out each level that is
+	 * wanted.
+	 * 
+	 * @param warpFile
+	 *            The training warp to be downsampled.
+	 * @param levelFolders
+	 *            The folder each level is written to, indexed by level. Levels
+	 *            that are not written are null.
+	 * @return True if every level has been written, false otherwise.
+	 */
+	private static boolean downsampleWarpAndWrite(final File warpFile, final File[] levelFolders)
+	{
+		/*
+		 * Load the warp to be downsampled.
+		 */
+		double[][] smallerWarp = WarpReader.readWarpFile(warpFile);
+		if (smallerWarp == null || smallerWarp.length == 0)
 		{
-			/*
-			 * Load the image to be downsampled.
-			 */
-			double[][] currentWarp = WarpReader.readWarpFile(warpFile);
-			double[][] smallerWarp = currentWarp;
+			LOGGER.warn("Warp file has failed to be read: " + warpFile.getPath());
+			return false;
+		}
 
-			/*
-			 * Downsample however many times the image needs halving
-			 */
-			for (int i = 0; i < TIMES_TO_DOWNSAMPLE; i++)
+		/*
+		 * Downsample however many times the warp needs halving, writing out
+		 * each level on the way that is wanted.
+		 */
+		boolean written = true;
+		for (int level = 0; level <= TIMES_TO_DOWNSAMPLE; level++)
+		{
+			if (level > 0)
 			{
 				smallerWarp = WarpManipulator.downsample(smallerWarp);
 			}
 
+			if (levelFolders[level] == null)
+			{
+				continue;
+			}
+
 			/*
-			 * Create output file from the destination folder and the current
-			 * files names
+			 * Create output file from the level's folder and the current files
+			 * names. The downsampled warps are written in the binary format so
+			 * they can be memory mapped when training.
 			 */
-			File outputFile = new File(folderToWriteTo + "\\" + warpFile.getName());
+			File outputFile = new File(levelFolders[level], toBinaryWarpFileName(warpFile));
 
 			/*
-			 * Write the warp to the output file.
+			 * Write the warp to the output file along with the level it has
+			 * been downsampled to.
 			 */
-			if (WarpManipulator.writeWarpFile(outputFile, smallerWarp))
+			if (!WarpManipulator.writeBinaryWarpFile(outputFile, smallerWarp, level))
 			{
-				LOGGER.info("Warp file has been written: " + folderToWriteTo + "\\" + warpFile.getName());
-			} else
+				LOGGER.warn("Warp file has failed to be written: " + outputFile.getPath());
+				written = false;
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Works out the folder each level is written to and creates them. When
+	 * every level is wanted, each level k is written to its own level-k folder
+	 * within the given folder. Otherwise just the final level is written
+	 * straight into the given folder.
+	 * 
+	 * @param folderToWriteTo
+	 *            The folder the training data is written to. If the folder
+	 *            does not exist, then it will be created.
+	 * @return The folder of each level, indexed by level. Levels that are not
+	 *         written are null.
+	 */
+	private static File[] createLevelFolders(@NonNull final File folderToWriteTo)
+	{
+		checkFolderExistsAndCreateIfNot(folderToWriteTo);
+
+		File[] levelFolders = new File[TIMES_TO_DOWNSAMPLE + 1];
+		if (!ALL_LEVELS)
+		{
+			levelFolders[TIMES_TO_DOWNSAMPLE] = folderToWriteTo;
+			return levelFolders;
+		}
+
+		for (int level = 1; level <= TIMES_TO_DOWNSAMPLE; level++)
+		{
+			levelFolders[level] = new File(folderToWriteTo, "level-" + level);
+			checkFolderExistsAndCreateIfNot(levelFolders[level]);
+		}
+		return levelFolders;
+	}
+
+	/**
+	 * A task that downsamples a single training file and writes it out.
+	 */
+	@FunctionalInterface
+	private interface FileTask
+	{
+		/**
+		 * Downsamples the file and writes out its levels.
+		 * 
+		 * @param file
+		 *            The training file.
+		 * @return True if every level has been written, false otherwise.
+		 */
+		boolean process(File file);
+	}
+
+	/**
+	 * Runs a task for each of the training files on a pool of THREADS workers,
+	 * logging the progress as each file is finished.
+	 * 
+	 * @param trainingFiles
+	 *            The training files to be processed.
+	 * @param task
+	 *            The task that downsamples and writes a single file.
+	 */
+	private static void processConcurrently(@NonNull final File[] trainingFiles, @NonNull final FileTask task)
+	{
+		AtomicInteger finished = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (File file : trainingFiles)
+		{
+			tasks.add(() ->
 			{
-				LOGGER.warn("Warp file has failed to be written: " + folderToWriteTo + "\\" + warpFile.getName());
+				boolean written = false;
+				try
+				{
+					written = task.process(file);
+				} catch (RuntimeException e)
+				{
+					LOGGER.error("Training file has failed to be downsampled: " + file.getPath(), e);
+				}
+
+				if (!written)
+				{
+					failed.incrementAndGet();
+				}
+
+				LOGGER.info("[" + finished.incrementAndGet() + "/" + trainingFiles.length + "] "
+						+ (written ? "Written " : "Failed ") + file.getPath());
+				return null;
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(THREADS, tasks.size())));
+		try
+		{
+			for (Future<Void> result : executor.invokeAll(tasks))
+			{
+				result.get();
 			}
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			LOGGER.error("Interrupted while downsampling the training data", e);
+		} catch (ExecutionException e)
+		{
+			LOGGER.error("Training data has failed to be downsampled", e.getCause());
+		} finally
+		{
+			executor.shutdownNow();
+		}
+
+		LOGGER.info((finished.get() - failed.get()) + " of " + trainingFiles.length + " training files written, "
+				+ failed.get() + " failed.");
+	}
+
+	/**
+	 * Creates the name of the binary warp file that a warp file is written out
+	 * as. Any text extension is replaced with the binary extension.
+	 * 
+	 * @param warpFile
+	 *            The warp file that has been read. Cannot be null.
+	 * @return The file name with a binary warp extension.
+	 */
+	private static String toBinaryWarpFileName(@NonNull final File warpFile)
+	{
+		String name = warpFile.getName();
+
+		if (name.endsWith(WarpFileHeader.TEXT_EXTENSION))
+		{
+			name = name.substring(0, name.length() - WarpFileHeader.TEXT_EXTENSION.length());
+		} else if (name.endsWith(WarpFileHeader.BINARY_EXTENSION))
+		{
+			return name;
 		}
+
+		return name + WarpFileHeader.BINARY_EXTENSION;
 	}
 
 	/**
@@ -237,9 +454,9 @@ public final class TrainingDataGenerator
 		/*
 		 * Make sure the parameter numbers are correct.
 		 */
-		if (usersInput.length != 3)
+		if (usersInput.length < 3 || usersInput.length > 5)
 		{
-			LOGGER.error("The number of parameters are incorrect. You should have 3 parameters. ");
+			LOGGER.error("The number of parameters are incorrect. You should have between 3 and 5 parameters. ");
 			return false;
 		}
 
@@ -260,10 +477,54 @@ public final class TrainingDataGenerator
 			}
 		} catch (NumberFormatException e)
 		{
-			LOGGER.error("Your final parameter does not appear to be a number. Check and try again.");
+			LOGGER.error("Your third parameter does not appear to be a number. Check and try again.");
 			return false;
 		}
 
+		/*
+		 * Find out if every level is to be written or just the final level.
+		 */
+		ALL_LEVELS = false;
+		if (usersInput.length > 3)
+		{
+			if (ALL_LEVELS_PARAMETER.equalsIgnoreCase(usersInput[3]))
+			{
+				ALL_LEVELS = true;
+			} else if (!"final".equalsIgnoreCase(usersInput[3]))
+			{
+				LOGGER.error("Your fourth parameter should be \"all\" or \"final\". Check and try again.");
+				return false;
+			}
+		}
+
+		if (ALL_LEVELS && TIMES_TO_DOWNSAMPLE == 0)
+		{
+			LOGGER.error("Every level can only be written when the data is downsampled at least once.");
+			return false;
+		}
+
+		/*
+		 * Try and parse the number of files processed at the same time.
+		 */
+		THREADS = Runtime.getRuntime().availableProcessors();
+		if (usersInput.length > 4)
+		{
+			try
+			{
+				THREADS = Integer.parseInt(usersInput[4]);
+			} catch (NumberFormatException e)
+			{
+				LOGGER.error("Your final parameter does not appear to be a number. Check and try again.");
+				return false;
+			}
+
+			if (THREADS <= 0)
+			{
+				LOGGER.error("The number of files processed at the same time should be greater than 0.");
+				return false;
+			}
+		}
+
 		File trainingFile = new File(usersInput[0]);
 
 		/*
@@ -0,0 +1,107 @@
+package scl10.uk.ac.aber.users.manipulators;
+
+import static scl10.uk.ac.aber.users.sikuli.TestImageUtils.createImage;
+import static scl10.uk.ac.aber.users.sikuli.TestImageUtils.pixels;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A class used for testing the grey and luminance conversions of the
+ * {@link ImageManipulator} class against Java2D.
+ * 
+ * @author Scott Lockett
+ */
+public class GreyscaleConversionTest
+{
+
+	/**
+	 * A colour image with every level of red and a range of greens and blues,
+	 * with black, white and saturated pixels in the first row.
+	 */
+	private static final BufferedImage colourImage = createColourImage();
+
+	/**
+	 * Tests that the grey image of a colour image is within one grey level of
+	 * drawing the image into a grey image with Java2D, for both byte and int
+	 * packed colour images.
+	 */
+	@Test
+	public void greyscaleMatchesJava2DTest()
+	{
+		byte[] expected = pixels(drawInto(colourImage, BufferedImage.TYPE_BYTE_GRAY));
+		BufferedImage intRGBImage = drawInto(colourImage, BufferedImage.TYPE_INT_RGB);
+
+		for (BufferedImage image : new BufferedImage[] { colourImage, intRGBImage })
+		{
+			BufferedImage greyImage = ImageManipulator.convertColorImageToGreyscale(image);
+			Assert.assertEquals(BufferedImage.TYPE_BYTE_GRAY, greyImage.getType());
+
+			byte[] actual = pixels(greyImage);
+			for (int i = 0; i < expected.length; i++)
+			{
+				Assert.assertEquals(expected[i] & 0xFF, actual[i] & 0xFF, 1);
+			}
+		}
+	}
+
+	/**
+	 * Tests that the luminance of a colour image is within one grey level of
+	 * drawing it into a grey image with Java2D, and that the pixels of a grey
+	 * image are used as they are.
+	 */
+	@Test
+	public void luminanceMatchesJava2DTest()
+	{
+		BufferedImage java2DGreyImage = drawInto(colourImage, BufferedImage.TYPE_BYTE_GRAY);
+		byte[] greyPixels = pixels(java2DGreyImage);
+
+		float[] luminance = ImageManipulator.convertToLuminance(colourImage);
+		float[] greyLuminance = ImageManipulator.convertToLuminance(java2DGreyImage);
+
+		Assert.assertEquals(greyPixels.length, luminance.length);
+		for (int i = 0; i < greyPixels.length; i++)
+		{
+			Assert.assertEquals(greyPixels[i] & 0xFF, luminance[i], 1.0F);
+			Assert.assertEquals(greyPixels[i] & 0xFF, greyLuminance[i], 0.0F);
+		}
+	}
+
+	/**
+	 * Creates the colour image the conversions are tested on.
+	 * 
+	 * @return A 256 x 90 {@link BufferedImage#TYPE_3BYTE_BGR} image.
+	 */
+	private static BufferedImage createColourImage()
+	{
+		BufferedImage image = createImage(256, 90);
+
+		int[] extremes = { 0x000000, 0xFFFFFF, 0xFF0000, 0x00FF00, 0x0000FF, 0xFFFF00, 0x00FFFF, 0xFF00FF };
+		for (int x = 0; x < extremes.length; x++)
+		{
+			image.setRGB(x, 0, extremes[x]);
+		}
+		return image;
+	}
+
+	/**
+	 * Draws an image into a new image of a given type with Java2D.
+	 * 
+	 * @param image
+	 *            The image to be drawn
+	 * @param type
+	 *            The type of the new image
+	 * @return The new image
+	 */
+	private static BufferedImage drawInto(final BufferedImage image, final int type)
+	{
+		BufferedImage drawnImage = new BufferedImage(image.getWidth(), image.getHeight(), type);
+		Graphics graphics = drawnImage.getGraphics();
+		graphics.drawImage(image, 0, 0, null);
+		graphics.dispose();
+		return drawnImage;
+	}
+}
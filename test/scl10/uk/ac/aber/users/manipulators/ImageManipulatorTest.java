@@ -176,6 +176,51 @@ public class ImageManipulatorTest
 		assertImages(upsampledTestImage, upsampledImage);
 	}
 
+	/**
+	 * Tests that decoding an image straight to a pyramid level gives an image
+	 * the same size as downsampling the full sized image that many times, and
+	 * that its pixels are close to the downsampled image's.
+	 */
+	@Test
+	public void testReadingImageAtPyramidLevel()
+	{
+		BufferedImage downsampledTestImage = imageFemaleOne;
+
+		for (int level = 1; level <= 4; level++)
+		{
+			downsampledTestImage = ImageManipulator.downsample(downsampledTestImage);
+
+			/*
+			 * Read the image at the level without decoding it at full size
+			 */
+			BufferedImage levelImage = ImageReader.readImageFileAtLevel(fileFemaleOne, level);
+
+			Assert.assertEquals(downsampledTestImage.getWidth(), levelImage.getWidth());
+			Assert.assertEquals(downsampledTestImage.getHeight(), levelImage.getHeight());
+
+			/*
+			 * Skipping pixels while decoding smooths the image slightly
+			 * differently, so only compare the average difference of each
+			 * colour
+			 */
+			long totalDifference = 0;
+			for (int y = 0; y < levelImage.getHeight(); y++)
+			{
+				for (int x = 0; x < levelImage.getWidth(); x++)
+				{
+					int expected = downsampledTestImage.getRGB(x, y);
+					int actual = levelImage.getRGB(x, y);
+					for (int shift = 0; shift < 24; shift += 8)
+					{
+						totalDifference += Math.abs((expected >> shift & 0xFF) - (actual >> shift & 0xFF));
+					}
+				}
+			}
+			double averageDifference = totalDifference / (3.0D * levelImage.getWidth() * levelImage.getHeight());
+			Assert.assertTrue("Level " + level + " differs by " + averageDifference, averageDifference < 2.0D);
+		}
+	}
+
 	/**
 	 * Tests that an image can be correctly flipped/ reflected.
 	 */
@@ -336,6 +381,52 @@ public class ImageManipulatorTest
 		SikuliUtils.assertImages(hopefulImageRegisteredFemale1To2, imageRegisteredFemale1To2);
 	}
 
+	/**
+	 * Tests that warping into a reused destination image gives the same image
+	 * as warping into a new one, whatever type the source image is.
+	 */
+	@Test
+	public void applyWarpFunctionToImageIntoDestination()
+	{
+		BufferedImage destination = new BufferedImage(imageFemaleOne.getWidth(), imageFemaleOne.getHeight(),
+				BufferedImage.TYPE_3BYTE_BGR);
+
+		BufferedImage intRGBImage = new BufferedImage(imageFemaleOne.getWidth(), imageFemaleOne.getHeight(),
+				BufferedImage.TYPE_INT_RGB);
+		intRGBImage.getGraphics().drawImage(imageFemaleOne, 0, 0, null);
+
+		/*
+		 * A synthetic warp which shifts some pixels from outside of the image
+		 */
+		double[][] syntheticXWarp = new double[imageFemaleOne.getHeight()][imageFemaleOne.getWidth()];
+		double[][] syntheticYWarp = new double[imageFemaleOne.getHeight()][imageFemaleOne.getWidth()];
+		for (int i = 0; i < syntheticXWarp.length; i++)
+		{
+			for (int j = 0; j < syntheticXWarp[i].length; j++)
+			{
+				syntheticXWarp[i][j] = (i * 7 + j * 3) % 21 - 10.5;
+				syntheticYWarp[i][j] = (i * 5 + j * 11) % 17 - 8.25;
+			}
+		}
+
+		for (BufferedImage image : new BufferedImage[] { imageFemaleOne, intRGBImage })
+		{
+			BufferedImage expectedImage = ImageManipulator.applyWarpFunctionToImage(image, syntheticXWarp,
+					syntheticYWarp);
+
+			Assert.assertSame(destination,
+					ImageManipulator.applyWarpFunctionToImage(image, syntheticXWarp, syntheticYWarp, destination));
+
+			for (int i = 0; i < expectedImage.getHeight(); i++)
+			{
+				for (int j = 0; j < expectedImage.getWidth(); j++)
+				{
+					Assert.assertEquals(expectedImage.getRGB(j, i), destination.getRGB(j, i));
+				}
+			}
+		}
+	}
+
 	/**
 	 * Test to ensure that if the sizes of each of the warps and the image are
 	 * not the same, then an illegal argument exception is thrown
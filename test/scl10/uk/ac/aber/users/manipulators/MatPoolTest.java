@@ -0,0 +1,104 @@
+package scl10.uk.ac.aber.users.manipulators;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * A class for testing the functionality of the {@link MatPool} class.
+ *
+ * @author Scott Lockett
+ */
+public class MatPoolTest
+{
+
+	/**
+	 * Tests that a matrix handed back is reused for the next matrix of the
+	 * same shape and that the live and pooled bytes are counted.
+	 */
+	@Test
+	public void reuseMatrixOfSameShapeTest()
+	{
+		MatPool pool = new MatPool(MatPool.DEFAULT_MAX_POOLED_BYTES);
+
+		Mat first = pool.acquire(10, 20, CvType.CV_8UC3);
+		Assert.assertEquals(10 * 20 * 3, pool.getLiveBytes());
+
+		pool.release(first);
+		Assert.assertEquals(0, pool.getLiveBytes());
+		Assert.assertEquals(10 * 20 * 3, pool.getPooledBytes());
+
+		Mat second = pool.acquire(10, 20, CvType.CV_8UC3);
+		Assert.assertSame(first, second);
+		Assert.assertEquals(1, pool.getAllocations());
+		Assert.assertEquals(1, pool.getReuses());
+
+		Mat differentType = pool.acquire(10, 20, CvType.CV_64FC1);
+		Assert.assertNotSame(first, differentType);
+		Assert.assertEquals(10 * 20 * 3 + 10 * 20 * 8, pool.getPeakLiveBytes());
+
+		pool.release(second);
+		pool.release(differentType);
+		pool.clear();
+		Assert.assertEquals(0, pool.getPooledBytes());
+	}
+
+	/**
+	 * Tests that a scope hands back its matrices when it is closed and that a
+	 * pool with no room releases them instead of keeping them.
+	 */
+	@Test
+	public void scopeHandsBackMatricesTest()
+	{
+		MatPool pool = new MatPool(0);
+		Mat matrix;
+
+		try (MatPool.Scope scope = pool.openScope())
+		{
+			matrix = scope.acquire(4, 4, CvType.CV_32FC1);
+			scope.acquire(2, 2, CvType.CV_32FC1);
+			Assert.assertEquals((4 * 4 + 2 * 2) * 4, pool.getLiveBytes());
+		}
+
+		Assert.assertEquals(0, pool.getLiveBytes());
+		Assert.assertEquals(0, pool.getPooledBytes());
+		Assert.assertTrue(matrix.empty());
+	}
+
+	/**
+	 * Tests that the pool does not keep a matrix alive which was never handed
+	 * back, and stops counting its bytes once it has been collected.
+	 *
+	 * @throws InterruptedException
+	 *             If the test is interrupted while waiting for the collector.
+	 */
+	@Test
+	public void unreleasedMatrixIsNotKeptTest() throws InterruptedException
+	{
+		MatPool pool = new MatPool(0);
+		pool.acquire(100, 100, CvType.CV_8UC3);
+		Assert.assertEquals(100 * 100 * 3, pool.getLiveBytes());
+
+		/*
+		 * The collector is only asked to run, so give it a few goes
+		 */
+		for (int i = 0; i < 50 && pool.getLiveBytes() != 0; i++)
+		{
+			System.gc();
+			Thread.sleep(20);
+		}
+
+		Assert.assertEquals(0, pool.getLiveBytes());
+	}
+
+	/**
+	 * Tests that a matrix which did not come from the pool can not be handed
+	 * back to it.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void releaseUnknownMatrixTest()
+	{
+		new MatPool(0).release(new Mat(1, 1, CvType.CV_8UC1));
+	}
+}
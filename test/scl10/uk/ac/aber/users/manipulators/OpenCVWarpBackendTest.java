@@ -0,0 +1,123 @@
+package scl10.uk.ac.aber.users.manipulators;
+
+import static scl10.uk.ac.aber.users.sikuli.TestImageUtils.createImage;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A class for testing the functionality of the {@link OpenCVWarpBackend}
+ * class against the {@link JavaWarpBackend}.
+ *
+ * @author Scott Lockett
+ */
+public class OpenCVWarpBackendTest
+{
+
+	/**
+	 * Tests that with nearest interpolation and the average colour border the
+	 * OpenCV backend gives exactly the same image as the Java backend for whole
+	 * pixel shifts, including the first and last rows and columns and the
+	 * pixels shifted from outside of the image.
+	 */
+	@Test
+	public void nearestConstantMatchesJavaBackendTest()
+	{
+		BufferedImage image = createImage(61, 47);
+		double[][] xwarp = new double[47][61];
+		double[][] ywarp = new double[47][61];
+		for (int i = 0; i < 47; i++)
+		{
+			for (int j = 0; j < 61; j++)
+			{
+				xwarp[i][j] = (i * 7 + j * 3) % 9 - 4;
+				ywarp[i][j] = (i * 5 + j * 11) % 7 - 3;
+			}
+		}
+
+		BufferedImage javaImage = new JavaWarpBackend().applyWarp(image, xwarp, ywarp);
+
+		try (OpenCVWarpBackend backend = new OpenCVWarpBackend(OpenCVWarpBackend.Interpolation.NEAREST,
+				OpenCVWarpBackend.Border.CONSTANT))
+		{
+			assertSameImages(javaImage, backend.applyWarp(image, xwarp, ywarp));
+		}
+	}
+
+	/**
+	 * Tests that a warp with no shift leaves every pixel of the image where it
+	 * is with either backend, whatever the interpolation and border.
+	 */
+	@Test
+	public void noShiftLeavesImageUnchangedTest()
+	{
+		BufferedImage image = createImage(33, 21, 7);
+		double[][] noShift = new double[21][33];
+
+		assertSameImages(image, new JavaWarpBackend().applyWarp(image, noShift, noShift));
+
+		for (OpenCVWarpBackend.Interpolation interpolation : OpenCVWarpBackend.Interpolation.values())
+		{
+			for (OpenCVWarpBackend.Border border : OpenCVWarpBackend.Border.values())
+			{
+				try (OpenCVWarpBackend backend = new OpenCVWarpBackend(interpolation, border))
+				{
+					assertSameImages(image, backend.applyWarp(image, noShift, noShift));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tests that the maps kept between warps are handed back to the pool when
+	 * the backend is closed, and made again if it is used after that.
+	 */
+	@Test
+	public void closeHandsBackMapsTest()
+	{
+		BufferedImage image = createImage(33, 21, 3);
+		double[][] xwarp = new double[21][33];
+		double[][] ywarp = new double[21][33];
+		ywarp[4][5] = 2.0D;
+
+		MatPool pool = MatPool.getShared();
+		long liveBytes = pool.getLiveBytes();
+
+		OpenCVWarpBackend backend = new OpenCVWarpBackend(OpenCVWarpBackend.Interpolation.NEAREST,
+				OpenCVWarpBackend.Border.CONSTANT);
+		BufferedImage warped = backend.applyWarp(image, xwarp, ywarp);
+		Assert.assertEquals(liveBytes + 2 * 33 * 21 * 4, pool.getLiveBytes());
+
+		backend.close();
+		Assert.assertEquals(liveBytes, pool.getLiveBytes());
+
+		assertSameImages(warped, backend.applyWarp(image, xwarp, ywarp));
+		backend.close();
+		backend.close();
+		Assert.assertEquals(liveBytes, pool.getLiveBytes());
+	}
+
+	/**
+	 * Asserts every pixel of two images of the same size is the same.
+	 *
+	 * @param expected
+	 *            The expected image
+	 * @param actual
+	 *            The image being tested
+	 */
+	private static void assertSameImages(final BufferedImage expected, final BufferedImage actual)
+	{
+		Assert.assertEquals(expected.getWidth(), actual.getWidth());
+		Assert.assertEquals(expected.getHeight(), actual.getHeight());
+
+		for (int y = 0; y < expected.getHeight(); y++)
+		{
+			for (int x = 0; x < expected.getWidth(); x++)
+			{
+				Assert.assertEquals("Pixel (" + x + ", " + y + ")", expected.getRGB(x, y), actual.getRGB(x, y));
+			}
+		}
+	}
+}
@@ -0,0 +1,177 @@
+package scl10.uk.ac.aber.users.manipulators;
+
+import static scl10.uk.ac.aber.users.sikuli.TestImageUtils.createImage;
+import static scl10.uk.ac.aber.users.sikuli.TestImageUtils.pixels;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import scl10.uk.ac.aber.users.readers.ImageReader;
+
+/**
+ * A class for testing the patch matrix (im2col) of the {@link PatchedImage}
+ * class on small images made in the tests.
+ *
+ * @author Scott Lockett
+ */
+public class PatchMatrixTest
+{
+
+	/**
+	 * The width and height of the patches
+	 */
+	private static final int PATCH_SIZE = 7;
+
+	/**
+	 * Tests that every row of the patch matrix of a grey image holds the
+	 * pixels around its pixel, column by column, with the positions off the
+	 * image reflected back onto it at every edge and corner.
+	 */
+	@Test
+	public void everyRowHoldsReflectedPatchTest()
+	{
+		int width = 11;
+		int height = 9;
+
+		/*
+		 * Each pixel's grey level gives away its position, and the target is
+		 * the source turned upside down
+		 */
+		BufferedImage source = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		BufferedImage target = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		for (int y = 0; y < height; y++)
+		{
+			for (int x = 0; x < width; x++)
+			{
+				pixels(source)[y * width + x] = (byte) greyAt(x, y);
+				pixels(target)[y * width + x] = (byte) greyAt(x, height - 1 - y);
+			}
+		}
+
+		int rowLength = PatchedImage.getPatchMatrixRowLength(PATCH_SIZE);
+		double[] matrix = PatchedImage.createPatchMatrix(new PatchedImage(source), new PatchedImage(target),
+				PATCH_SIZE);
+		Assert.assertEquals(width * height * rowLength, matrix.length);
+
+		/*
+		 * The patch starts half of its size, rounded up, above and left of the
+		 * pixel
+		 */
+		int start = (PATCH_SIZE + 1) / 2;
+		int half = PATCH_SIZE * PATCH_SIZE;
+
+		for (int y = 0; y < height; y++)
+		{
+			for (int x = 0; x < width; x++)
+			{
+				int row = (y * width + x) * rowLength;
+				for (int column = 0; column < PATCH_SIZE; column++)
+				{
+					for (int i = 0; i < PATCH_SIZE; i++)
+					{
+						int patchX = reflect(x - start + column, width);
+						int patchY = reflect(y - start + i, height);
+						int index = row + column * PATCH_SIZE + i;
+
+						Assert.assertEquals(greyAt(patchX, patchY), matrix[index], 0.0D);
+						Assert.assertEquals(greyAt(patchX, height - 1 - patchY), matrix[index + half], 0.0D);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tests that the rows of the patch matrix of a colour image are the
+	 * flattened patches got one at a time, whether the rows are filled all at
+	 * once or a run of pixels at a time.
+	 */
+	@Test
+	public void rowsMatchFlattenedPatchesTest()
+	{
+		BufferedImage sourceImage = createImage(10, 8, 0);
+		BufferedImage targetImage = createImage(10, 8, 50);
+		PatchedImage source = new PatchedImage(sourceImage);
+		PatchedImage target = new PatchedImage(targetImage);
+
+		int rowLength = PatchedImage.getPatchMatrixRowLength(PATCH_SIZE);
+		double[] matrix = PatchedImage.createPatchMatrix(source, target, PATCH_SIZE);
+
+		/*
+		 * Fill a run of pixels across the end of one row of the image and the
+		 * start of the next
+		 */
+		double[] run = new double[5 * rowLength];
+		PatchedImage.fillPatchMatrix(source, target, PATCH_SIZE, 18, 5, run);
+		Assert.assertArrayEquals(Arrays.copyOfRange(matrix, 18 * rowLength, 23 * rowLength), run, 0.0D);
+
+		Dimension patchSize = new Dimension(PATCH_SIZE, PATCH_SIZE);
+		for (int y = 0; y < 8; y++)
+		{
+			for (int x = 0; x < 10; x++)
+			{
+				Point position = new Point(x, y);
+				double[] sourcePatch = new ImageReader(source.getImagePatchFromCentralPixel(position, patchSize))
+						.getAsFlatArray();
+				double[] targetPatch = new ImageReader(target.getImagePatchFromCentralPixel(position, patchSize))
+						.getAsFlatArray();
+
+				int row = (y * 10 + x) * rowLength;
+				Assert.assertArrayEquals(sourcePatch, Arrays.copyOfRange(matrix, row, row + sourcePatch.length),
+						0.0D);
+				Assert.assertArrayEquals(targetPatch,
+						Arrays.copyOfRange(matrix, row + sourcePatch.length, row + rowLength), 0.0D);
+			}
+		}
+	}
+
+	/**
+	 * Tests that a run of pixels going past the end of the image can not be
+	 * flattened.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void runPastImageTest()
+	{
+		PatchedImage image = new PatchedImage(createImage(4, 4));
+		PatchedImage.fillPatchMatrix(image, image, 3, 10, 7,
+				new double[7 * PatchedImage.getPatchMatrixRowLength(3)]);
+	}
+
+	/**
+	 * Get the grey level given to a pixel of the grey test image.
+	 *
+	 * @param x
+	 *            The column of the pixel.
+	 * @param y
+	 *            The row of the pixel.
+	 * @return The grey level.
+	 */
+	private static int greyAt(final int x, final int y)
+	{
+		return y * 16 + x;
+	}
+
+	/**
+	 * Reflects a position off one side of the image back onto it, as a flipped
+	 * copy of the image placed next to it would.
+	 *
+	 * @param index
+	 *            The position, no further off the image than its length.
+	 * @param length
+	 *            The width or height of the image.
+	 * @return The reflected position.
+	 */
+	private static int reflect(final int index, final int length)
+	{
+		if (index < 0)
+		{
+			return -1 - index;
+		}
+		return index >= length ? 2 * length - 1 - index : index;
+	}
+}
@@ -0,0 +1,100 @@
+package scl10.uk.ac.aber.users.manipulators;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Benchmarks each {@link WarpBackend} against each other by warping a
+ * generated image with a generated smooth warp.
+ * 
+ * @author Scott Lockett
+ */
+public final class WarpBackendBenchmark
+{
+
+	/**
+	 * Logger for logging the results
+	 */
+	private static final Logger LOGGER = LoggerFactory.getLogger(WarpBackendBenchmark.class);
+
+	/**
+	 * Private constructor to hide the implicit one ensure the class can not be
+	 * instantiated.
+	 */
+	private WarpBackendBenchmark()
+	{
+
+	}
+
+	/**
+	 * Runs the benchmark.
+	 * 
+	 * @param args
+	 *            args [0] optional - The width of the image. 3200 if not given.
+	 *            args [1] optional - The height of the image. 2304 if not
+	 *            given. args [2] optional - The number of times each backend
+	 *            warps the image. 10 if not given.
+	 */
+	public static void main(final String[] args)
+	{
+		int width = args.length > 0 ? Integer.parseInt(args[0]) : 3200;
+		int height = args.length > 1 ? Integer.parseInt(args[1]) : 2304;
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+		/*
+		 * Generate a noisy image and a smooth warp of up to 20 pixels
+		 */
+		Random random = new Random(1);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		double[][] xwarp = new double[height][width];
+		double[][] ywarp = new double[height][width];
+
+		for (int i = 0; i < height; i++)
+		{
+			for (int j = 0; j < width; j++)
+			{
+				image.setRGB(j, i, random.nextInt());
+				xwarp[i][j] = 20 * Math.sin(j * 2 * Math.PI / width);
+				ywarp[i][j] = 20 * Math.cos(i * 2 * Math.PI / height);
+			}
+		}
+
+		List<WarpBackend> backends = new ArrayList<>();
+		backends.add(new JavaWarpBackend());
+		for (OpenCVWarpBackend.Interpolation interpolation : OpenCVWarpBackend.Interpolation.values())
+		{
+			for (OpenCVWarpBackend.Border border : OpenCVWarpBackend.Border.values())
+			{
+				backends.add(new OpenCVWarpBackend(interpolation, border));
+			}
+		}
+
+		for (WarpBackend backend : backends)
+		{
+			/*
+			 * The first warp includes any conversion of the warps, so time it
+			 * separately.
+			 */
+			long start = System.nanoTime();
+			backend.applyWarp(image, xwarp, ywarp);
+			long first = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+			{
+				backend.applyWarp(image, xwarp, ywarp);
+			}
+			long average = (System.nanoTime() - start) / iterations;
+
+			LOGGER.info(String.format("%-24s first %8.2f ms, average %8.2f ms over %d %dx%d warps", backend,
+					first / 1e6, average / 1e6, iterations, width, height));
+
+			backend.close();
+		}
+	}
+}
@@ -6,6 +6,8 @@ import org.junit.Assert;
 import org.junit.Test;
 import org.opencv.core.Size;
 
+import scl10.uk.ac.aber.users.readers.WarpCodec;
+import scl10.uk.ac.aber.users.readers.WarpFileHeader;
 import scl10.uk.ac.aber.users.readers.WarpReader;
 
 /**
@@ -68,6 +70,33 @@ public class WarpManipulatorTest
 		Assert.assertArrayEquals(groundTruthWarp, largerTestWarp);
 	}
 
+	/**
+	 * Tests that upsampling an x and y warp together is the same as upsampling
+	 * each of them on their own
+	 */
+	@Test
+	public void upsampleWarpPairTest()
+	{
+		Size doubleSize = new Size(testWarp[0].length * 2.0D, testWarp.length * 2.0D);
+
+		/*
+		 * Make a y warp which is different to the x warp
+		 */
+		double[][] yWarp = new double[testWarp.length][testWarp[0].length];
+		for (int i = 0; i < testWarp.length; i++)
+		{
+			for (int j = 0; j < testWarp[i].length; j++)
+			{
+				yWarp[i][j] = -0.5D * testWarp[i][j] + j;
+			}
+		}
+
+		double[][][] largerWarps = WarpManipulator.upsample(testWarp, yWarp, doubleSize);
+
+		Assert.assertArrayEquals(WarpManipulator.upsample(testWarp, doubleSize), largerWarps[0]);
+		Assert.assertArrayEquals(WarpManipulator.upsample(yWarp, doubleSize), largerWarps[1]);
+	}
+
 	/**
 	 * Tests the writing of a warp to the disk
 	 */
@@ -106,6 +135,76 @@ public class WarpManipulatorTest
 		Assert.assertTrue(fileToWriteTo.delete() && tempFolder.delete());
 	}
 
+	/**
+	 * Tests that a warp written in the binary format is read back with exactly
+	 * the same values.
+	 */
+	@Test
+	public void writingAndReadingBinaryWarpTest()
+	{
+		File tempFolder = new File(".\\resources\\temp\\");
+
+		if (!tempFolder.exists())
+		{
+			tempFolder.mkdir();
+		}
+
+		File fileToWriteTo = new File(tempFolder + "\\testWarp" + WarpFileHeader.BINARY_EXTENSION);
+		Assert.assertTrue(WarpManipulator.writeBinaryWarpFile(fileToWriteTo, testWarp, 3));
+
+		/*
+		 * The reader should recognise the file as binary from its contents
+		 */
+		Assert.assertTrue(WarpFileHeader.isBinaryWarpFile(fileToWriteTo));
+		Assert.assertArrayEquals(testWarp, WarpReader.readWarpFile(fileToWriteTo));
+
+		/*
+		 * Clean up, and ensure deleted correctly
+		 */
+		Assert.assertTrue(fileToWriteTo.delete() && tempFolder.delete());
+	}
+
+	/**
+	 * Tests that a warp written in the compressed format is read back with
+	 * exactly the same values, and that a half precision warp is read back
+	 * within the tolerance.
+	 */
+	@Test
+	public void writingAndReadingCompressedWarpTest()
+	{
+		File tempFolder = new File(".\\resources\\temp\\");
+
+		if (!tempFolder.exists())
+		{
+			tempFolder.mkdir();
+		}
+
+		File fileToWriteTo = new File(tempFolder + "\\testWarp" + WarpFileHeader.BINARY_EXTENSION);
+
+		/*
+		 * Lossless
+		 */
+		Assert.assertTrue(WarpManipulator.writeCompressedWarpFile(fileToWriteTo, testWarp, 3));
+		Assert.assertTrue(WarpFileHeader.isBinaryWarpFile(fileToWriteTo));
+		Assert.assertArrayEquals(testWarp, WarpReader.readWarpFile(fileToWriteTo));
+
+		/*
+		 * Lossy, within the tolerance
+		 */
+		double tolerance = WarpCodec.DEFAULT_FLOAT16_TOLERANCE;
+		Assert.assertTrue(WarpManipulator.writeCompressedWarpFile(fileToWriteTo, testWarp, 3, tolerance));
+		double[][] readWarp = WarpReader.readWarpFile(fileToWriteTo);
+		for (int i = 0; i < testWarp.length; i++)
+		{
+			Assert.assertArrayEquals(testWarp[i], readWarp[i], tolerance);
+		}
+
+		/*
+		 * Clean up, and ensure deleted correctly
+		 */
+		Assert.assertTrue(fileToWriteTo.delete() && tempFolder.delete());
+	}
+
 	/**
 	 * Tests the functionality of the downsampling of a warp
 	 */
@@ -0,0 +1,118 @@
+package scl10.uk.ac.aber.users.neuralnetwork;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neuroph.core.data.DataSet;
+import org.neuroph.core.data.DataSetRow;
+
+import scl10.uk.ac.aber.users.readers.ImageReader;
+
+/**
+ * A class for testing the functionality of the {@link DataSetCache} class.
+ *
+ * @author Scott Lockett
+ */
+public class DataSetCacheTest
+{
+
+	/**
+	 * A temporary folder for the training files and the cache
+	 */
+	@Rule
+	public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+	/**
+	 * Tests that a stored data set is loaded back with exactly the same rows,
+	 * and that it is not loaded for a different key or a different row size.
+	 *
+	 * @throws IOException
+	 *             If the training files can not be written
+	 */
+	@Test
+	public void storedDataSetIsLoadedBackTest() throws IOException
+	{
+		DataSetCache cache = new DataSetCache(tempFolder.newFolder("cache"));
+		File[] imageFiles = new File[] { writeFile("image.jpg", "image") };
+		File[] warpFiles = new File[] { writeFile("warp.txt", "0.5 0.25") };
+		byte[] key = cache.computeKey(imageFiles, warpFiles, 1);
+
+		DataSet dataSet = new DataSet(3, 2);
+		dataSet.addRow(new DataSetRow(new double[] { 0.1, 0.2, 0.3 }, new double[] { -1.0, 1.0 }));
+		dataSet.addRow(new DataSetRow(new double[] { 4.0, Double.MIN_VALUE, -0.0 }, new double[] { 0.5, 0.25 }));
+		Assert.assertTrue(cache.store(key, dataSet));
+
+		DataSet loaded = cache.load(key, 3, 2);
+		Assert.assertEquals(dataSet.size(), loaded.size());
+		for (int i = 0; i < dataSet.size(); i++)
+		{
+			Assert.assertArrayEquals(dataSet.getRowAt(i).getInput(), loaded.getRowAt(i).getInput(), 0.0D);
+			Assert.assertArrayEquals(dataSet.getRowAt(i).getDesiredOutput(), loaded.getRowAt(i).getDesiredOutput(),
+					0.0D);
+		}
+
+		Assert.assertNull(cache.load(key, 2, 3));
+		Assert.assertNull(cache.load(cache.computeKey(imageFiles, warpFiles, 2), 3, 2));
+	}
+
+	/**
+	 * Tests that changing a training file, the level, the normaliser
+	 * parameters or the way images are flattened gives a different key, and
+	 * that nothing else does.
+	 *
+	 * @throws IOException
+	 *             If the training files can not be written
+	 */
+	@Test
+	public void keyChangesWithEveryInputTest() throws IOException
+	{
+		DataSetCache cache = new DataSetCache(tempFolder.newFolder("cache"));
+		File imageFile = writeFile("image.jpg", "image");
+		File[] imageFiles = new File[] { imageFile };
+		File[] warpFiles = new File[] { writeFile("warp.txt", "0.5 0.25") };
+		double[] normaliserParameters = new double[] { ImageWarpNormalizer.MAX_PIXEL_VALUE,
+				ImageWarpNormalizer.MAX_WARP_SHIFT, ImageWarpNormalizer.WARP_RANGE };
+
+		byte[] key = cache.computeKey(imageFiles, warpFiles, 1);
+		Assert.assertArrayEquals(key, cache.computeKey(imageFiles, warpFiles, 1, normaliserParameters,
+				ImageReader.FLAT_ARRAY_VERSION));
+
+		Assert.assertFalse(Arrays.equals(key, cache.computeKey(imageFiles, warpFiles, 2)));
+		Assert.assertFalse(Arrays.equals(key, cache.computeKey(imageFiles, warpFiles, 1,
+				new double[] { 1.0, ImageWarpNormalizer.MAX_WARP_SHIFT, ImageWarpNormalizer.WARP_RANGE },
+				ImageReader.FLAT_ARRAY_VERSION)));
+		Assert.assertFalse(Arrays.equals(key, cache.computeKey(imageFiles, warpFiles, 1, normaliserParameters,
+				ImageReader.FLAT_ARRAY_VERSION - 1)));
+
+		/*
+		 * A file with the same length but different contents
+		 */
+		Files.write(imageFile.toPath(), "imagf".getBytes(StandardCharsets.US_ASCII));
+		Assert.assertFalse(Arrays.equals(key, cache.computeKey(imageFiles, warpFiles, 1)));
+	}
+
+	/**
+	 * Writes a file into the temporary folder.
+	 *
+	 * @param name
+	 *            The name of the file
+	 * @param contents
+	 *            The contents of the file
+	 * @return The written file
+	 * @throws IOException
+	 *             If the file can not be written
+	 */
+	private File writeFile(final String name, final String contents) throws IOException
+	{
+		File file = tempFolder.newFile(name);
+		Files.write(file.toPath(), contents.getBytes(StandardCharsets.US_ASCII));
+		return file;
+	}
+}
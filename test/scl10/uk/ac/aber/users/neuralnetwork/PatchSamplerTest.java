@@ -0,0 +1,176 @@
+package scl10.uk.ac.aber.users.neuralnetwork;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.neuroph.core.data.DataSet;
+import org.neuroph.core.data.DataSetRow;
+
+import scl10.uk.ac.aber.users.manipulators.ImageManipulator;
+
+/**
+ * A class for testing the functionality of the {@link PatchSampler} class.
+ *
+ * @author Scott Lockett
+ */
+public class PatchSamplerTest
+{
+
+	/**
+	 * The width of the test images
+	 */
+	private static final int WIDTH = 20;
+
+	/**
+	 * The height of the test images
+	 */
+	private static final int HEIGHT = 12;
+
+	/**
+	 * Tests that a row holds the reflected patches around its pixel and the
+	 * normalised shift of the pixel.
+	 */
+	@Test
+	public void testCreatingRowReflectsPatchAtEdges()
+	{
+		PatchSampler sampler = createSampler(1);
+
+		DataSetRow row = sampler.createRow(0, 0);
+
+		Assert.assertEquals(PatchSampler.INPUT_SIZE, row.getInput().length);
+
+		/*
+		 * The patch starts four pixels before the corner, which reflects back
+		 * to pixel (3, 3). The second value is one row further down.
+		 */
+		Assert.assertEquals(luminance(3, 3) / ImageWarpNormalizer.MAX_PIXEL_VALUE, row.getInput()[0], 0.0D);
+		Assert.assertEquals(luminance(3, 2) / ImageWarpNormalizer.MAX_PIXEL_VALUE, row.getInput()[1], 0.0D);
+
+		/*
+		 * The target image is the same, so the target patch is the same
+		 */
+		Assert.assertEquals(row.getInput()[0], row.getInput()[PatchSampler.INPUT_SIZE / 2], 0.0D);
+
+		double normalisedShift = (1 + ImageWarpNormalizer.MAX_WARP_SHIFT) / ImageWarpNormalizer.WARP_RANGE;
+		Assert.assertEquals(normalisedShift, row.getDesiredOutput()[0], 1e-12);
+	}
+
+	/**
+	 * Tests that each strategy keeps to the row budget and that uniform
+	 * sampling never repeats a pixel within a pass.
+	 */
+	@Test
+	public void testStrategiesKeepToRowBudget()
+	{
+		PatchSampler sampler = createSampler(0);
+		Random random = new Random(7);
+
+		Assert.assertEquals(WIDTH * HEIGHT, count(sampler.iterator(PatchSampler.Strategy.ALL, 10, random)));
+
+		Set<String> uniquePatches = new HashSet<>();
+		Iterator<DataSetRow> uniform = sampler.iterator(PatchSampler.Strategy.UNIFORM, 40, random);
+		while (uniform.hasNext())
+		{
+			uniquePatches.add(Arrays.toString(uniform.next().getInput()));
+		}
+		Assert.assertEquals(40, uniquePatches.size());
+
+		DataSet stratified = sampler.asDataSet(PatchSampler.Strategy.STRATIFIED, 40, random);
+		Assert.assertTrue(stratified.size() <= 40);
+		Assert.assertEquals(stratified.size(), count(stratified.iterator()));
+
+		Assert.assertEquals(40, count(sampler.iterator(PatchSampler.Strategy.RESERVOIR, 40, random)));
+	}
+
+	/**
+	 * Tests that a reservoir shared between pairs stays within its budget.
+	 */
+	@Test
+	public void testReservoirIsBoundedAcrossPairs()
+	{
+		PatchSampler.Reservoir reservoir = new PatchSampler.Reservoir(50, new Random(3));
+
+		reservoir.offer(createSampler(0));
+		reservoir.offer(createSampler(1));
+
+		Assert.assertEquals(50, reservoir.getDataSet().size());
+		Assert.assertEquals(2L * WIDTH * HEIGHT, reservoir.getRowsSeen());
+	}
+
+	/**
+	 * Creates a sampler for an image with a different blue value at every
+	 * pixel, paired with itself, and a constant shift.
+	 *
+	 * @param shift
+	 *            The x and y shift of every pixel.
+	 * @return The sampler.
+	 */
+	private static PatchSampler createSampler(final double shift)
+	{
+		BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+		double[][] warp = new double[HEIGHT][WIDTH];
+
+		for (int y = 0; y < HEIGHT; y++)
+		{
+			for (int x = 0; x < WIDTH; x++)
+			{
+				image.setRGB(x, y, blue(x, y));
+				warp[y][x] = shift;
+			}
+		}
+
+		return new PatchSampler(image, image, warp, warp);
+	}
+
+	/**
+	 * Get the blue value of a pixel of the test image.
+	 *
+	 * @param x
+	 *            The column of the pixel.
+	 * @param y
+	 *            The row of the pixel.
+	 * @return The blue value.
+	 */
+	private static int blue(final int x, final int y)
+	{
+		return y * WIDTH + x;
+	}
+
+	/**
+	 * Get the luminance of a pixel of the test image, which only has blue.
+	 *
+	 * @param x
+	 *            The column of the pixel.
+	 * @param y
+	 *            The row of the pixel.
+	 * @return The luminance.
+	 */
+	private static float luminance(final int x, final int y)
+	{
+		return ImageManipulator.BLUE_LUMINANCE_WEIGHT * blue(x, y);
+	}
+
+	/**
+	 * Counts the rows of an iterator.
+	 *
+	 * @param rows
+	 *            The iterator.
+	 * @return The number of rows.
+	 */
+	private static int count(final Iterator<DataSetRow> rows)
+	{
+		int count = 0;
+		while (rows.hasNext())
+		{
+			rows.next();
+			count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,130 @@
+package scl10.uk.ac.aber.users.neuralnetwork;
+
+import static scl10.uk.ac.aber.users.sikuli.TestImageUtils.createImage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neuroph.core.data.DataSetRow;
+
+import scl10.uk.ac.aber.users.manipulators.WarpManipulator;
+import scl10.uk.ac.aber.users.readers.ImageReader;
+import scl10.uk.ac.aber.users.readers.WarpReader;
+
+/**
+ * A class for testing the functionality of the {@link TrainingDataLoader}
+ * class.
+ *
+ * @author Scott Lockett
+ */
+public class TrainingDataLoaderTest
+{
+	/**
+	 * A temporary folder the training images and warps are written to.
+	 */
+	@Rule
+	public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+	/**
+	 * Training images with the first pair listed twice
+	 */
+	private File[] imageFiles;
+
+	/**
+	 * Training warps that match the training images
+	 */
+	private File[] warpFiles;
+
+	/**
+	 * Writes three small training images and four warps to the temporary
+	 * folder, and lists them as three pairs with the first pair repeated.
+	 *
+	 * @throws IOException
+	 *             If the training data can not be written
+	 */
+	@Before
+	public void setUp() throws IOException
+	{
+		File[] images = new File[3];
+		for (int i = 0; i < images.length; i++)
+		{
+			images[i] = new File(tempFolder.getRoot(), "image" + i + ".png");
+			ImageIO.write(createImage(12, 9, i), "png", images[i]);
+		}
+
+		File[] warps = new File[4];
+		for (int i = 0; i < warps.length; i++)
+		{
+			double[][] warp = new double[9][12];
+			for (int row = 0; row < 9; row++)
+			{
+				for (int column = 0; column < 12; column++)
+				{
+					warp[row][column] = (row * 12 + column) * 0.25D - i;
+				}
+			}
+
+			warps[i] = new File(tempFolder.getRoot(), "warp" + i + ".txt");
+			Assert.assertTrue(WarpManipulator.writeWarpFile(warps[i], warp));
+		}
+
+		imageFiles = new File[] { images[0], images[1], images[0], images[2], images[0], images[1] };
+		warpFiles = new File[] { warps[0], warps[1], warps[2], warps[3], warps[0], warps[1] };
+	}
+
+	/**
+	 * Tests that the loaded rows are the same as reading each pair one at a
+	 * time, and that repeated pairs do not share arrays.
+	 *
+	 * @throws IOException
+	 *             If the training data fails to load
+	 */
+	@Test
+	public void testLoadingRowsMatchesReadingEachPair() throws IOException
+	{
+		List<DataSetRow> rows = new TrainingDataLoader(imageFiles, warpFiles, 3).loadRows();
+
+		Assert.assertEquals(imageFiles.length / 2, rows.size());
+
+		for (int i = 0; i < imageFiles.length; i = i + 2)
+		{
+			double[] bothImages = ArrayUtils.addAll(new ImageReader(imageFiles[i]).getAsFlatArray(),
+					new ImageReader(imageFiles[i + 1]).getAsFlatArray());
+			double[] bothWarps = ArrayUtils.addAll(new WarpReader(warpFiles[i]).getAsFlatArray(),
+					new WarpReader(warpFiles[i + 1]).getAsFlatArray());
+
+			Assert.assertArrayEquals(bothImages, rows.get(i / 2).getInput(), 0.0D);
+			Assert.assertArrayEquals(bothWarps, rows.get(i / 2).getDesiredOutput(), 0.0D);
+		}
+
+		/*
+		 * The normaliser changes rows in place so repeated pairs must not share
+		 * arrays.
+		 */
+		Assert.assertNotSame(rows.get(0).getInput(), rows.get(2).getInput());
+	}
+
+	/**
+	 * Tests that a missing file fails the load and is reported.
+	 *
+	 * @throws IOException
+	 *             Expected as one of the images does not exist
+	 */
+	@Test(expected = IOException.class)
+	public void testLoadingMissingFileFails() throws IOException
+	{
+		File[] missingImageFiles = imageFiles.clone();
+		missingImageFiles[1] = new File(tempFolder.getRoot(), "missing.png");
+
+		new TrainingDataLoader(missingImageFiles, warpFiles).loadRows();
+	}
+}
@@ -0,0 +1,187 @@
+package scl10.uk.ac.aber.users.pyramids;
+
+import static scl10.uk.ac.aber.users.sikuli.TestImageUtils.createImage;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A class for testing the functionality of the {@link ImagePyramidCache}
+ * class.
+ *
+ * @author Scott Lockett
+ */
+public class ImagePyramidCacheTest
+{
+
+	/**
+	 * Tests that a second image with the same pixels finds the first image's
+	 * pyramid, and that an image with one different pixel or a different
+	 * number of levels does not.
+	 */
+	@Test
+	public void samePixelsFindSamePyramidTest()
+	{
+		ImagePyramidCache cache = new ImagePyramidCache(ImagePyramidCache.DEFAULT_MAX_CACHED_BYTES);
+
+		BufferedImage onePixelDifferent = createImage(40, 30, 0);
+		onePixelDifferent.setRGB(17, 11, ~onePixelDifferent.getRGB(17, 11));
+
+		ImagePyramid first = cache.acquire(createImage(40, 30, 0), 2);
+		ImagePyramid second = cache.acquire(createImage(40, 30, 0), 2);
+		ImagePyramid otherPixels = cache.acquire(onePixelDifferent, 2);
+		ImagePyramid otherLevels = cache.acquire(createImage(40, 30, 0), 3);
+
+		Assert.assertSame(first, second);
+		Assert.assertNotSame(first, otherPixels);
+		Assert.assertNotSame(first, otherLevels);
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals(3, cache.getMisses());
+		Assert.assertEquals(2 * first.getMaximumBytes() + otherLevels.getMaximumBytes(), cache.getCachedBytes());
+
+		cache.release(first);
+		cache.release(second);
+		cache.release(otherPixels);
+		cache.release(otherLevels);
+		cache.clear();
+		Assert.assertEquals(0, cache.getCachedBytes());
+	}
+
+	/**
+	 * Tests that two different images whose hashes are the same do not share a
+	 * pyramid, as their sampled pixels differ.
+	 */
+	@Test
+	public void sameHashDifferentPixelsTest()
+	{
+		ImagePyramidCache cache = new ImagePyramidCache(ImagePyramidCache.DEFAULT_MAX_CACHED_BYTES);
+
+		ImagePyramid first = cache.acquire(createImage(40, 30, 0), 2, 42L);
+		ImagePyramid second = cache.acquire(createImage(40, 30, 1), 2, 42L);
+
+		Assert.assertNotSame(first, second);
+		Assert.assertEquals(0, cache.getHits());
+		Assert.assertEquals(2, cache.getMisses());
+
+		cache.release(first);
+		cache.release(second);
+	}
+
+	/**
+	 * Tests that the least recently used pyramid is dropped when the cache is
+	 * full, and only released once it's handed back.
+	 */
+	@Test
+	public void leastRecentlyUsedPyramidIsDroppedTest()
+	{
+		long pyramidBytes = new ImagePyramid(createImage(40, 30, 0), 2).getMaximumBytes();
+		ImagePyramidCache cache = new ImagePyramidCache(pyramidBytes * 2);
+
+		ImagePyramid oldest = cache.acquire(createImage(40, 30, 0), 2);
+		ImagePyramid used = cache.acquire(createImage(40, 30, 1), 2);
+		cache.release(used);
+		cache.acquire(createImage(40, 30, 2), 2);
+
+		Assert.assertEquals(1, cache.getEvictions());
+		Assert.assertEquals(2, cache.getSize());
+
+		/*
+		 * The oldest pyramid was still being used when it was dropped
+		 */
+		Assert.assertNotNull(oldest.getLowestLevelImage());
+		cache.release(oldest);
+		Assert.assertNotSame(oldest, cache.acquire(createImage(40, 30, 0), 2));
+	}
+
+	/**
+	 * Tests that many threads acquiring and handing back the same image at
+	 * once all share one pyramid, which is released once the last of them has
+	 * handed it back after it was dropped.
+	 *
+	 * @throws Exception
+	 *             If one of the threads fails.
+	 */
+	@Test
+	public void concurrentAcquireAndReleaseTest() throws Exception
+	{
+		final int threads = 8;
+		final int rounds = 50;
+
+		ImagePyramidCache cache = new ImagePyramidCache(ImagePyramidCache.DEFAULT_MAX_CACHED_BYTES);
+		BufferedImage image = createImage(40, 30, 0);
+		ImagePyramid shared = cache.acquire(image, 2);
+		BufferedImage lowestLevel = shared.getLowestLevelImage();
+
+		CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<?>> results = new ArrayList<>();
+
+		try
+		{
+			for (int t = 0; t < threads; t++)
+			{
+				results.add(executor.submit(() ->
+				{
+					start.await();
+					for (int i = 0; i < rounds; i++)
+					{
+						ImagePyramid pyramid = cache.acquire(image, 2);
+						Assert.assertSame(shared, pyramid);
+						Assert.assertSame(lowestLevel, pyramid.getLowestLevelImage());
+						cache.release(pyramid);
+					}
+					return null;
+				}));
+			}
+
+			start.countDown();
+			for (Future<?> result : results)
+			{
+				result.get();
+			}
+		} finally
+		{
+			executor.shutdown();
+		}
+
+		Assert.assertEquals(threads * rounds, cache.getHits());
+		Assert.assertEquals(1, cache.getMisses());
+
+		/*
+		 * Only the first acquire is still holding the pyramid, so it's
+		 * released once that is handed back.
+		 */
+		cache.clear();
+		Assert.assertNotNull(shared.getMatAtIndex(1));
+		cache.release(shared);
+
+		try
+		{
+			shared.getMatAtIndex(1);
+			Assert.fail("The pyramid should have been released.");
+		} catch (IllegalStateException e)
+		{
+			/*
+			 * Expected
+			 */
+		}
+	}
+
+	/**
+	 * Tests that a pyramid which did not come from the cache can not be handed
+	 * back to it.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void releaseUnknownPyramidTest()
+	{
+		new ImagePyramidCache(0).release(new ImagePyramid(createImage(8, 8, 0), 1));
+	}
+}
@@ -0,0 +1,214 @@
+package scl10.uk.ac.aber.users.pyramids;
+
+import static scl10.uk.ac.aber.users.sikuli.TestImageUtils.createImage;
+import static scl10.uk.ac.aber.users.sikuli.TestImageUtils.pixels;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * A class for testing the functionality of the {@link ImagePyramidFile}
+ * class.
+ *
+ * @author Scott Lockett
+ */
+public class ImagePyramidFileTest
+{
+
+	/**
+	 * A temporary folder for any pyramid files written during the tests
+	 */
+	@Rule
+	public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+	/**
+	 * Tests that every level read back from a pyramid file is the same as the
+	 * level of the pyramid that was written.
+	 *
+	 * @throws IOException
+	 *             If the pyramid file can not be written or read
+	 */
+	@Test
+	public void writtenLevelsAreReadBackTest() throws IOException
+	{
+		ImagePyramid pyramid = new ImagePyramid(createImage(101, 67), 3);
+		File pyramidFile = tempFolder.newFile("image.jpg" + ImagePyramidFile.EXTENSION);
+		ImagePyramidFile.write(pyramid, pyramidFile);
+
+		ImagePyramid storedPyramid = new ImagePyramid(ImagePyramidFile.open(pyramidFile), 3);
+		Assert.assertEquals(pyramid.getImageSizes(), storedPyramid.getImageSizes());
+
+		for (int level = 0; level <= 3; level++)
+		{
+			Assert.assertArrayEquals(pixels(pyramid.getImageAtIndex(level)),
+					pixels(storedPyramid.getImageAtIndex(level)));
+		}
+
+		pyramid.release();
+		storedPyramid.release();
+	}
+
+	/**
+	 * Tests that the levels are stored one after another straight after the
+	 * header, and each is mapped as a read only buffer of exactly its pixels.
+	 *
+	 * @throws IOException
+	 *             If the pyramid file can not be written or read
+	 */
+	@Test
+	public void levelsAreStoredOneAfterAnotherTest() throws IOException
+	{
+		ImagePyramid pyramid = new ImagePyramid(createImage(40, 30), 2);
+		File pyramidFile = tempFolder.newFile("image.jpg" + ImagePyramidFile.EXTENSION);
+		ImagePyramidFile.write(pyramid, pyramidFile);
+		pyramid.release();
+
+		int[] levelBytes = { 40 * 30 * 3, 20 * 15 * 3, 10 * 7 * 3 };
+		Assert.assertEquals(4 * 4 + 3 * 16 + levelBytes[0] + levelBytes[1] + levelBytes[2], pyramidFile.length());
+
+		try (ImagePyramidFile storedLevels = ImagePyramidFile.open(pyramidFile))
+		{
+			Assert.assertEquals(3, storedLevels.getLevels());
+			Assert.assertEquals(3, storedLevels.getChannels());
+
+			for (int level = 0; level < 3; level++)
+			{
+				ByteBuffer levelBuffer = storedLevels.getLevelBuffer(level);
+				Assert.assertTrue(levelBuffer.isReadOnly());
+				Assert.assertEquals(levelBytes[level], levelBuffer.remaining());
+			}
+		}
+	}
+
+	/**
+	 * Tests that a failed write leaves the pyramid file that was already there
+	 * as it was, without leaving the temporary file behind.
+	 *
+	 * @throws IOException
+	 *             If the pyramid file can not be written or read
+	 */
+	@Test
+	public void failedWriteKeepsOldFileTest() throws IOException
+	{
+		File pyramidFile = tempFolder.newFile("image.jpg" + ImagePyramidFile.EXTENSION);
+		ImagePyramid pyramid = new ImagePyramid(createImage(32, 24, 0), 1);
+		ImagePyramidFile.write(pyramid, pyramidFile);
+
+		/*
+		 * A released pyramid fails part way through being written
+		 */
+		ImagePyramid released = new ImagePyramid(createImage(32, 24, 1), 1);
+		released.release();
+		try
+		{
+			ImagePyramidFile.write(released, pyramidFile);
+			Assert.fail("A released pyramid was written.");
+		} catch (IllegalStateException e)
+		{
+			/*
+			 * Expected
+			 */
+		}
+
+		Assert.assertArrayEquals(new String[] { pyramidFile.getName() }, tempFolder.getRoot().list());
+
+		ImagePyramid storedPyramid = new ImagePyramid(ImagePyramidFile.open(pyramidFile), 1);
+		Assert.assertArrayEquals(pixels(pyramid.getImageAtIndex(1)), pixels(storedPyramid.getImageAtIndex(1)));
+
+		pyramid.release();
+		storedPyramid.release();
+	}
+
+	/**
+	 * Tests that the pyramid of an image is written next to it the first time
+	 * it's loaded and read from the pyramid file after that, and built again
+	 * once the image is newer than the pyramid file.
+	 *
+	 * @throws IOException
+	 *             If the image can not be written
+	 */
+	@Test
+	public void pyramidIsKeptNextToImageTest() throws IOException
+	{
+		File imageFile = tempFolder.newFile("image.png");
+		ImageIO.write(createImage(64, 48), "png", imageFile);
+
+		ImagePyramid built = ImagePyramidFile.loadOrCreate(imageFile, 2);
+		Assert.assertTrue(ImagePyramidFile.fileFor(imageFile).isFile());
+
+		ImagePyramid loaded = ImagePyramidFile.loadOrCreate(imageFile, 1);
+		Assert.assertArrayEquals(pixels(built.getImageAtIndex(1)), pixels(loaded.getLowestLevelImage()));
+
+		built.release();
+		loaded.release();
+
+		/*
+		 * Change the image after its pyramid file was written
+		 */
+		ImageIO.write(createImage(64, 48, 1), "png", imageFile);
+		Assert.assertTrue(ImagePyramidFile.fileFor(imageFile).setLastModified(imageFile.lastModified() - 2000));
+
+		ImagePyramid rebuilt = ImagePyramidFile.loadOrCreate(imageFile, 1);
+		Assert.assertArrayEquals(pixels(createImage(64, 48, 1)), pixels(rebuilt.getOriginalImage()));
+		Assert.assertTrue(ImagePyramidFile.fileFor(imageFile).lastModified() >= imageFile.lastModified());
+		rebuilt.release();
+	}
+
+	/**
+	 * Tests that a pyramid file missing some of its pixels can not be opened.
+	 *
+	 * @throws IOException
+	 *             If the pyramid file is opened
+	 */
+	@Test(expected = IOException.class)
+	public void truncatedFileTest() throws IOException
+	{
+		File pyramidFile = tempFolder.newFile("truncated" + ImagePyramidFile.EXTENSION);
+		ImagePyramid pyramid = new ImagePyramid(createImage(32, 32), 2);
+		ImagePyramidFile.write(pyramid, pyramidFile);
+		pyramid.release();
+
+		try (RandomAccessFile file = new RandomAccessFile(pyramidFile, "rw"))
+		{
+			file.setLength(file.length() - 1);
+		}
+
+		ImagePyramidFile.open(pyramidFile);
+	}
+
+	/**
+	 * Tests that a pyramid file claiming more levels than it could hold can
+	 * not be opened, rather than its level entries being read.
+	 *
+	 * @throws IOException
+	 *             If the pyramid file is opened
+	 */
+	@Test(expected = IOException.class)
+	public void tooManyLevelsTest() throws IOException
+	{
+		File pyramidFile = tempFolder.newFile("levels" + ImagePyramidFile.EXTENSION);
+		ImagePyramid pyramid = new ImagePyramid(createImage(32, 32), 2);
+		ImagePyramidFile.write(pyramid, pyramidFile);
+		pyramid.release();
+
+		/*
+		 * The number of levels is the fourth int of the header
+		 */
+		try (RandomAccessFile file = new RandomAccessFile(pyramidFile, "rw"))
+		{
+			file.seek(3 * 4);
+			file.writeInt(Integer.reverseBytes(Integer.MAX_VALUE / 16));
+		}
+
+		ImagePyramidFile.open(pyramidFile);
+	}
+}
@@ -0,0 +1,283 @@
+package scl10.uk.ac.aber.users.pyramids;
+
+import static scl10.uk.ac.aber.users.sikuli.TestImageUtils.createImage;
+import static scl10.uk.ac.aber.users.sikuli.TestImageUtils.pixels;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import scl10.uk.ac.aber.users.manipulators.ImageManipulator;
+import scl10.uk.ac.aber.users.manipulators.MatPool;
+
+/**
+ * A class for testing the functionality of the {@link ImagePyramid} class.
+ *
+ * @author Scott Lockett
+ */
+public class ImagePyramidTest
+{
+
+	/**
+	 * Tests that a level downsampled when it's first asked for is the same as
+	 * downsampling the image that many times, and that the sizes are known
+	 * before any level is downsampled.
+	 */
+	@Test
+	public void lazyLevelMatchesRepeatedDownsamplingTest()
+	{
+		BufferedImage image = createImage(101, 67);
+		ImagePyramid pyramid = new ImagePyramid(image, 3);
+
+		Assert.assertEquals(50, pyramid.getImageSizes().get(1).width, 0.0D);
+		Assert.assertEquals(8, pyramid.getImageSizes().get(3).height, 0.0D);
+
+		BufferedImage expected = image;
+		for (int i = 0; i < 3; i++)
+		{
+			expected = ImageManipulator.downsample(expected);
+		}
+
+		Assert.assertArrayEquals(pixels(expected), pixels(pyramid.getLowestLevelImage()));
+		Assert.assertSame(image, pyramid.getImageAtIndex(0));
+
+		pyramid.release();
+	}
+
+	/**
+	 * Tests that only the levels up to the one asked for are downsampled, that
+	 * a level is downsampled from the nearest level kept below it, and that an
+	 * evicted level hands its matrix back and is downsampled again with the
+	 * same pixels.
+	 */
+	@Test
+	public void onlyLevelsAskedForAreKeptTest()
+	{
+		MatPool pool = MatPool.getShared();
+		long liveBytes = pool.getLiveBytes();
+		ImagePyramid pyramid = new ImagePyramid(createImage(64, 48), 3);
+		Assert.assertEquals(liveBytes, pool.getLiveBytes());
+
+		/*
+		 * Level 1 is kept on the way to level 2, but the original image's
+		 * matrix is only borrowed.
+		 */
+		BufferedImage level = pyramid.getImageAtIndex(2);
+		Assert.assertEquals(liveBytes + (32 * 24 + 16 * 12) * 3, pool.getLiveBytes());
+
+		pyramid.evict(1);
+		pyramid.evict(2);
+		Assert.assertEquals(liveBytes, pool.getLiveBytes());
+
+		BufferedImage recreated = pyramid.getImageAtIndex(2);
+		Assert.assertNotSame(level, recreated);
+		Assert.assertArrayEquals(pixels(level), pixels(recreated));
+
+		/*
+		 * With level 1 evicted, level 3 is downsampled from level 2 alone.
+		 */
+		pyramid.evict(1);
+		pyramid.getMatAtIndex(3);
+		Assert.assertEquals(liveBytes + (16 * 12 + 8 * 6) * 3, pool.getLiveBytes());
+
+		pyramid.release();
+		Assert.assertEquals(liveBytes, pool.getLiveBytes());
+	}
+
+	/**
+	 * Tests that evicting a level's matrix hands it back but keeps its image,
+	 * so the level is not downsampled again.
+	 */
+	@Test
+	public void evictMatrixKeepsImageTest()
+	{
+		MatPool pool = MatPool.getShared();
+		long liveBytes = pool.getLiveBytes();
+		ImagePyramid pyramid = new ImagePyramid(createImage(64, 48), 2);
+
+		BufferedImage lowest = pyramid.getLowestLevelImage();
+		Assert.assertEquals(liveBytes + (32 * 24 + 16 * 12) * 3, pool.getLiveBytes());
+
+		/*
+		 * Level 1 has not been got as an image yet, so it's converted first
+		 */
+		pyramid.evictMatrix(2);
+		pyramid.evictMatrix(1);
+		Assert.assertEquals(liveBytes, pool.getLiveBytes());
+
+		Assert.assertSame(lowest, pyramid.getLowestLevelImage());
+		Assert.assertEquals(32, pyramid.getImageAtIndex(1).getWidth());
+		Assert.assertEquals(liveBytes, pool.getLiveBytes());
+
+		pyramid.release();
+		pyramid.evictMatrix(1);
+	}
+
+	/**
+	 * Tests that a prefetched level is ready when it's asked for, and that
+	 * prefetching from a released pyramid does nothing while getting a level
+	 * from it fails.
+	 */
+	@Test
+	public void prefetchAndReleaseTest()
+	{
+		BufferedImage image = createImage(40, 30);
+		ImagePyramid pyramid = new ImagePyramid(image, 2);
+
+		pyramid.prefetch(1);
+		Assert.assertArrayEquals(pixels(ImageManipulator.downsample(image)), pixels(pyramid.getImageAtIndex(1)));
+
+		pyramid.release();
+		pyramid.prefetch(2);
+
+		try
+		{
+			pyramid.getMatAtIndex(2);
+			Assert.fail("A level was got from a released pyramid.");
+		} catch (IllegalStateException e)
+		{
+			/*
+			 * Expected, the pyramid's matrices are gone
+			 */
+		}
+
+		/*
+		 * Images already got can still be used
+		 */
+		Assert.assertNotNull(pyramid.getImageAtIndex(1));
+	}
+
+	/**
+	 * Tests that a level can be got while the next level is being prefetched,
+	 * and that a level made while it was being prefetched is kept rather than
+	 * replaced by the prefetched one.
+	 *
+	 * @throws Exception
+	 *             If getting a level fails or does not finish in time.
+	 */
+	@Test
+	public void prefetchDoesNotBlockOtherLevelsTest() throws Exception
+	{
+		MatPool pool = MatPool.getShared();
+		long liveBytes = pool.getLiveBytes();
+
+		BlockingImage image = new BlockingImage(createImage(40, 30));
+		ImagePyramid pyramid = new ImagePyramid(image, 2);
+		BufferedImage made;
+
+		ExecutorService caller = Executors.newSingleThreadExecutor();
+		try
+		{
+			/*
+			 * Hold the prefetch part way through reading the original image
+			 */
+			pyramid.prefetch(1);
+			Assert.assertTrue(image.awaitRead());
+
+			Assert.assertSame(image, caller.submit(() -> pyramid.getImageAtIndex(0)).get(5, TimeUnit.SECONDS));
+			made = caller.submit(() -> pyramid.getImageAtIndex(1)).get(5, TimeUnit.SECONDS);
+		} finally
+		{
+			image.finishRead();
+			caller.shutdown();
+		}
+
+		/*
+		 * The prefetch hands back the original image's matrix and the level it
+		 * made once it has finished, leaving only the level that was made
+		 * first
+		 */
+		long keptBytes = liveBytes + 20 * 15 * 3;
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (pool.getLiveBytes() != keptBytes && System.nanoTime() < deadline)
+		{
+			Thread.sleep(1);
+		}
+		Assert.assertEquals(keptBytes, pool.getLiveBytes());
+
+		Assert.assertSame(made, pyramid.getImageAtIndex(1));
+		Assert.assertArrayEquals(pixels(ImageManipulator.downsample(createImage(40, 30))), pixels(made));
+
+		pyramid.release();
+		Assert.assertEquals(liveBytes, pool.getLiveBytes());
+	}
+
+	/**
+	 * An image whose pixels are read once only after the test lets it, so the
+	 * test can hold a pyramid part way through downsampling.
+	 */
+	private static final class BlockingImage extends BufferedImage
+	{
+
+		/**
+		 * Whether the first read of the pixels has happened
+		 */
+		private final AtomicBoolean read = new AtomicBoolean();
+
+		/**
+		 * Counted down once the first read of the pixels has started
+		 */
+		private final CountDownLatch started = new CountDownLatch(1);
+
+		/**
+		 * Counted down once the first read of the pixels can finish
+		 */
+		private final CountDownLatch finish = new CountDownLatch(1);
+
+		/**
+		 * Creates an image with the same pixels as another image.
+		 *
+		 * @param image
+		 *            The image whose pixels are copied.
+		 */
+		BlockingImage(final BufferedImage image)
+		{
+			super(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+			getGraphics().drawImage(image, 0, 0, null);
+		}
+
+		@Override
+		public int[] getRGB(final int startX, final int startY, final int w, final int h, final int[] rgbArray,
+				final int offset, final int scansize)
+		{
+			if (read.compareAndSet(false, true))
+			{
+				started.countDown();
+				try
+				{
+					finish.await();
+				} catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+			return super.getRGB(startX, startY, w, h, rgbArray, offset, scansize);
+		}
+
+		/**
+		 * Waits for the first read of the pixels to start.
+		 *
+		 * @return True if the read started in time.
+		 * @throws InterruptedException
+		 *             If the wait is interrupted.
+		 */
+		boolean awaitRead() throws InterruptedException
+		{
+			return started.await(5, TimeUnit.SECONDS);
+		}
+
+		/**
+		 * Lets the first read of the pixels finish.
+		 */
+		void finishRead()
+		{
+			finish.countDown();
+		}
+	}
+}
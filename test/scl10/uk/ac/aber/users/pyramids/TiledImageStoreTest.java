@@ -0,0 +1,181 @@
+package scl10.uk.ac.aber.users.pyramids;
+
+import static scl10.uk.ac.aber.users.sikuli.TestImageUtils.createImage;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import scl10.uk.ac.aber.users.manipulators.ImageManipulator;
+
+/**
+ * A class for testing the functionality of the {@link TiledImageStore} class.
+ *
+ * @author Scott Lockett
+ */
+public class TiledImageStoreTest
+{
+
+	/**
+	 * A tile size which doesn't divide the test image, so the last tile of
+	 * each row and column is only partly used.
+	 */
+	private static final int TILE_SIZE = 16;
+
+	/**
+	 * A temporary folder for the test image and the stores
+	 */
+	@Rule
+	public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+	/**
+	 * Tests that every pixel of an image is read back from the tiles of a
+	 * store, both from the store that was created and once it's opened again.
+	 *
+	 * @throws IOException
+	 *             If the image or store can not be written or read
+	 */
+	@Test
+	public void tilesRoundTripTest() throws IOException
+	{
+		BufferedImage image = createImage(101, 67);
+		File storeFile = tempFolder.newFile("image.tiles");
+
+		try (TiledImageStore store = TiledImageStore.create(writeImage(image), storeFile, TILE_SIZE, 2))
+		{
+			assertPixels(image, store, 0);
+		}
+
+		try (TiledImageStore store = TiledImageStore.open(storeFile))
+		{
+			Assert.assertEquals(3, store.getLevels());
+			Assert.assertEquals(TILE_SIZE, store.getTileSize());
+			assertPixels(image, store, 0);
+		}
+	}
+
+	/**
+	 * Tests that each level of a store is the same as downsampling the image
+	 * that many times with OpenCV.
+	 *
+	 * @throws IOException
+	 *             If the image or store can not be written or read
+	 */
+	@Test
+	public void levelsMatchDownsamplingTest() throws IOException
+	{
+		BufferedImage image = createImage(101, 67);
+
+		try (TiledImageStore store = TiledImageStore.create(writeImage(image), tempFolder.newFile("image.tiles"),
+				TILE_SIZE, 3))
+		{
+			BufferedImage downsampled = image;
+			for (int level = 1; level <= 3; level++)
+			{
+				downsampled = ImageManipulator.downsample(downsampled);
+				assertPixels(downsampled, store, level);
+			}
+		}
+	}
+
+	/**
+	 * Tests that warping a region of a level gives the same pixels as warping
+	 * the whole level's image and cutting out the region, including the
+	 * pixels shifted from outside of the level.
+	 *
+	 * @throws IOException
+	 *             If the image or store can not be written or read
+	 */
+	@Test
+	public void warpedRegionMatchesWarpedImageTest() throws IOException
+	{
+		BufferedImage image = createImage(64, 48);
+		double[][] xwarp = new double[48][64];
+		double[][] ywarp = new double[48][64];
+		for (int i = 0; i < 48; i++)
+		{
+			for (int j = 0; j < 64; j++)
+			{
+				xwarp[i][j] = (i * 7 + j * 3) % 21 - 10.5;
+				ywarp[i][j] = (i * 5 + j * 11) % 17 - 8.25;
+			}
+		}
+
+		BufferedImage warpedImage = ImageManipulator.applyWarpFunctionToImage(image, xwarp, ywarp);
+		Rectangle region = new Rectangle(10, 20, 40, 25);
+		double[][] regionXWarp = new double[region.height][];
+		double[][] regionYWarp = new double[region.height][];
+		for (int row = 0; row < region.height; row++)
+		{
+			regionXWarp[row] = Arrays.copyOfRange(xwarp[region.y + row], region.x, region.x + region.width);
+			regionYWarp[row] = Arrays.copyOfRange(ywarp[region.y + row], region.x, region.x + region.width);
+		}
+
+		try (TiledImageStore store = TiledImageStore.create(writeImage(image), tempFolder.newFile("image.tiles"),
+				TILE_SIZE, 0))
+		{
+			BufferedImage warpedRegion = ImageManipulator.applyWarpFunctionToRegion(store, 0, region, regionXWarp,
+					regionYWarp);
+
+			for (int row = 0; row < region.height; row++)
+			{
+				for (int column = 0; column < region.width; column++)
+				{
+					Assert.assertEquals(warpedImage.getRGB(region.x + column, region.y + row),
+							warpedRegion.getRGB(column, row));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes an image into the temporary folder without losing any of its
+	 * pixels.
+	 *
+	 * @param image
+	 *            The image
+	 * @return The written image file
+	 * @throws IOException
+	 *             If the image can not be written
+	 */
+	private File writeImage(final BufferedImage image) throws IOException
+	{
+		File imageFile = tempFolder.newFile("image.png");
+		ImageIO.write(image, "png", imageFile);
+		return imageFile;
+	}
+
+	/**
+	 * Asserts every pixel of a level of a store is the same as an image's.
+	 *
+	 * @param expected
+	 *            The image the level should be the same as
+	 * @param store
+	 *            The store
+	 * @param level
+	 *            The level of the store
+	 */
+	private static void assertPixels(final BufferedImage expected, final TiledImageStore store, final int level)
+	{
+		Assert.assertEquals(expected.getWidth(), store.getWidth(level));
+		Assert.assertEquals(expected.getHeight(), store.getHeight(level));
+
+		for (int y = 0; y < expected.getHeight(); y++)
+		{
+			for (int x = 0; x < expected.getWidth(); x++)
+			{
+				Assert.assertEquals("Pixel (" + x + ", " + y + ") of level " + level, expected.getRGB(x, y),
+						store.getRGB(level, x, y));
+			}
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package scl10.uk.ac.aber.users.pyramids;
+
+import java.util.ArrayList;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.opencv.core.Size;
+
+import scl10.uk.ac.aber.users.manipulators.MatPool;
+
+/**
+ * A class for testing the functionality of the {@link WarpPyramid} class.
+ *
+ * @author Scott Lockett
+ */
+public class WarpPyramidTest
+{
+
+	/**
+	 * The sizes of a 101 x 67 image pyramid with 3 levels, largest first.
+	 */
+	private static final ArrayList<Size> IMAGE_SIZES = new ArrayList<>();
+
+	static
+	{
+		IMAGE_SIZES.add(new Size(101, 67));
+		IMAGE_SIZES.add(new Size(50, 33));
+		IMAGE_SIZES.add(new Size(25, 16));
+		IMAGE_SIZES.add(new Size(12, 8));
+	}
+
+	/**
+	 * Tests that creating the x and y warp pyramids together gives the same
+	 * levels as creating each on its own, and hands its matrices back.
+	 */
+	@Test
+	public void createPairMatchesSeparatePyramidsTest()
+	{
+		MatPool pool = MatPool.getShared();
+		long liveBytes = pool.getLiveBytes();
+		WarpPyramid[] pair = WarpPyramid.createPair(createWarp(7, 3), createWarp(5, 2), IMAGE_SIZES);
+		Assert.assertEquals(liveBytes, pool.getLiveBytes());
+
+		/*
+		 * The warps are un-normalised in place, so each pyramid gets its own
+		 */
+		WarpPyramid xPyramid = new WarpPyramid(createWarp(7, 3), IMAGE_SIZES);
+		WarpPyramid yPyramid = new WarpPyramid(createWarp(5, 2), IMAGE_SIZES);
+
+		Assert.assertEquals(xPyramid.getPyramidSize(), pair[0].getPyramidSize());
+		Assert.assertEquals(yPyramid.getPyramidSize(), pair[1].getPyramidSize());
+
+		for (int level = 0; level < xPyramid.getPyramidSize(); level++)
+		{
+			Assert.assertEquals((int) IMAGE_SIZES.get(level).height, pair[0].getWarpAtIndex(level).length);
+			Assert.assertEquals((int) IMAGE_SIZES.get(level).width, pair[0].getWarpAtIndex(level)[0].length);
+			Assert.assertArrayEquals(xPyramid.getWarpAtIndex(level), pair[0].getWarpAtIndex(level));
+			Assert.assertArrayEquals(yPyramid.getWarpAtIndex(level), pair[1].getWarpAtIndex(level));
+		}
+
+		/*
+		 * The sizes given are left as they were
+		 */
+		Assert.assertEquals(101, IMAGE_SIZES.get(0).width, 0.0D);
+	}
+
+	/**
+	 * Creates a normalised 12 x 8 warp, the size of the smallest level.
+	 *
+	 * @param rowFactor
+	 *            How much the values change from row to row.
+	 * @param columnFactor
+	 *            How much the values change from column to column.
+	 * @return The warp, with values between 0 and 1.
+	 */
+	private static double[][] createWarp(final int rowFactor, final int columnFactor)
+	{
+		double[][] warp = new double[8][12];
+		for (int i = 0; i < 8; i++)
+		{
+			for (int j = 0; j < 12; j++)
+			{
+				warp[i][j] = ((i * rowFactor + j * columnFactor) % 11) / 10.0D;
+			}
+		}
+		return warp;
+	}
+
+	/**
+	 * Tests that an x and y warp of different sizes can not be made into a
+	 * pair of pyramids.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void differentSizedWarpsTest()
+	{
+		WarpPyramid.createPair(new double[8][12], new double[8][11], IMAGE_SIZES);
+	}
+}
@@ -0,0 +1,164 @@
+package scl10.uk.ac.aber.users.readers;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * A class for testing the functionality of the {@link TrainingManifestReader}
+ * class.
+ *
+ * @author Scott Lockett
+ */
+public class TrainingManifestReaderTest
+{
+
+	/**
+	 * A resources folder where the training images and warps are stored.
+	 */
+	private static final File testResourcesFolder = new File(new File("resources"), "test-network")
+			.getAbsoluteFile();
+
+	/**
+	 * The images and warps of the test sample
+	 */
+	private static final File[] sampleFiles = new File[] { new File(testResourcesFolder, "female1.jpg"),
+			new File(testResourcesFolder, "female1to2.jpg"), new File(testResourcesFolder, "f1f2X.txt"),
+			new File(testResourcesFolder, "f1f2Y.txt") };
+
+	/**
+	 * A temporary folder for the manifests written during the tests
+	 */
+	@Rule
+	public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+	/**
+	 * Tests that samples, their sizes and their checksums are read from a
+	 * manifest and that the samples are loaded in order.
+	 *
+	 * @throws IOException
+	 *             If the manifest can not be written
+	 */
+	@Test
+	public void readManifestAndLoadSamplesTest() throws IOException
+	{
+		String checksum = new TrainingSample(sampleFiles[0], sampleFiles[1], sampleFiles[2], sampleFiles[3], null,
+				null).computeChecksum();
+
+		File manifestFile = writeManifest("# source target xWarp yWarp\n\n" + sampleLine() + " size=25x18 sha256="
+				+ checksum + "\n" + sampleLine() + "\n");
+
+		TrainingManifestReader manifest = new TrainingManifestReader(manifestFile);
+		List<TrainingSample> samples = manifest.getSamples();
+
+		Assert.assertEquals(2, samples.size());
+		Assert.assertEquals(25, samples.get(0).getSize().width);
+		Assert.assertEquals(18, samples.get(0).getSize().height);
+		Assert.assertEquals(checksum, samples.get(0).getChecksum());
+		Assert.assertNull(samples.get(1).getSize());
+		Assert.assertArrayEquals(new File[] { sampleFiles[0], sampleFiles[1], sampleFiles[0], sampleFiles[1] },
+				manifest.getImageFiles());
+
+		int loaded = 0;
+		try (TrainingManifestReader.PrefetchingIterator iterator = manifest.iterator(1))
+		{
+			while (iterator.hasNext())
+			{
+				LoadedTrainingSample sample = iterator.next();
+				Assert.assertSame(samples.get(loaded), sample.getSample());
+				Assert.assertEquals(18, sample.getXWarp().length);
+				loaded++;
+			}
+		}
+		Assert.assertEquals(2, loaded);
+	}
+
+	/**
+	 * Tests that a sample which does not match its checksum fails to load.
+	 *
+	 * @throws IOException
+	 *             If the manifest can not be written
+	 */
+	@Test(expected = UncheckedIOException.class)
+	public void loadSampleWithWrongChecksumTest() throws IOException
+	{
+		File manifestFile = writeManifest(sampleLine() + " sha256=0123");
+
+		new TrainingManifestReader(manifestFile).iterator().next();
+	}
+
+	/**
+	 * Tests that a line without all four files is rejected.
+	 *
+	 * @throws IOException
+	 *             If the manifest can not be written
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void readInvalidManifestTest() throws IOException
+	{
+		new TrainingManifestReader(writeManifest("female1.jpg female1to2.jpg f1f2X.txt"));
+	}
+
+	/**
+	 * Tests that a manifest which can not be read stops the reader being
+	 * created, rather than giving a reader with no samples.
+	 */
+	@Test(expected = UncheckedIOException.class)
+	public void readMissingManifestTest()
+	{
+		new TrainingManifestReader(new File(tempFolder.getRoot(), "missing.manifest"));
+	}
+
+	/**
+	 * Tests that a manifest with only comments is rejected, as there would be
+	 * nothing to train with.
+	 *
+	 * @throws IOException
+	 *             If the manifest can not be written
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void readEmptyManifestTest() throws IOException
+	{
+		new TrainingManifestReader(writeManifest("# source target x warp y warp\n\n"));
+	}
+
+	/**
+	 * Get the manifest line of the test sample without any options.
+	 *
+	 * @return The quoted paths of the test sample.
+	 */
+	private static String sampleLine()
+	{
+		StringBuilder line = new StringBuilder();
+		for (File file : sampleFiles)
+		{
+			line.append('"').append(file.getPath()).append("\" ");
+		}
+		return line.toString().trim();
+	}
+
+	/**
+	 * Writes a manifest into the temporary folder.
+	 *
+	 * @param contents
+	 *            The contents of the manifest
+	 * @return The written manifest
+	 * @throws IOException
+	 *             If the file can not be written
+	 */
+	private File writeManifest(final String contents) throws IOException
+	{
+		File manifestFile = tempFolder.newFile("training.manifest");
+		FileWriter writer = new FileWriter(manifestFile);
+		writer.write(contents);
+		writer.close();
+		return manifestFile;
+	}
+}
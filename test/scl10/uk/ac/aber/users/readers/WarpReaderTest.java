@@ -0,0 +1,156 @@
+package scl10.uk.ac.aber.users.readers;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import scl10.uk.ac.aber.users.manipulators.WarpManipulator;
+
+/**
+ * A class for testing the functionality of the {@link WarpReader} class.
+ *
+ * @author Scott Lockett
+ */
+public class WarpReaderTest
+{
+
+	/**
+	 * A temporary folder for any warps written during the tests
+	 */
+	@Rule
+	public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+	/**
+	 * Tests that the single pass parser reads exactly the same values as
+	 * splitting each line and parsing each value with the JDK, for a warp
+	 * written by the application with values of many sizes and signs.
+	 *
+	 * @throws IOException
+	 *             If the test warp can not be written or read
+	 */
+	@Test
+	public void readTextWarpMatchesJdkParsingTest() throws IOException
+	{
+		Random random = new Random(7);
+		double[][] writtenWarp = new double[23][31];
+		for (double[] writtenRow : writtenWarp)
+		{
+			for (int column = 0; column < writtenRow.length; column++)
+			{
+				writtenRow[column] = (random.nextDouble() - 0.5D) * Math.pow(10.0D, random.nextInt(14) - 7);
+			}
+		}
+
+		File testWarpFile = tempFolder.newFile("written" + WarpFileHeader.TEXT_EXTENSION);
+		Assert.assertTrue(WarpManipulator.writeWarpFile(testWarpFile, writtenWarp));
+
+		double[][] warp = WarpReader.readTextWarpFile(testWarpFile);
+		Assert.assertArrayEquals(writtenWarp, warp);
+
+		BufferedReader reader = new BufferedReader(new FileReader(testWarpFile));
+		String line;
+		int row = 0;
+
+		while ((line = reader.readLine()) != null)
+		{
+			String[] values = line.trim().split(" ");
+			for (int column = 0; column < values.length; column++)
+			{
+				Assert.assertEquals(Double.parseDouble(values[column]), warp[row][column], 0.0D);
+			}
+			row++;
+		}
+		reader.close();
+
+		Assert.assertEquals(row, warp.length);
+	}
+
+	/**
+	 * Tests that the width is taken from the first row and that values with
+	 * signs, exponents and no trailing new line are read.
+	 *
+	 * @throws IOException
+	 *             If the temporary warp can not be written
+	 */
+	@Test
+	public void readTextWarpWithExponentsTest() throws IOException
+	{
+		File warpFile = writeTextWarp("-1.5 2.0E-3 0.30000000000000004 \r\n4 -0.0 1.2345678901234567E5");
+
+		double[][] warp = WarpReader.readTextWarpFile(warpFile);
+
+		Assert.assertArrayEquals(new double[][] { { -1.5, 2.0E-3, 0.30000000000000004 },
+				{ 4.0, -0.0, 1.2345678901234567E5 } }, warp);
+	}
+
+	/**
+	 * Tests that a warp with rows of different widths is rejected rather than
+	 * partially read.
+	 *
+	 * @throws IOException
+	 *             If the temporary warp can not be written
+	 */
+	@Test
+	public void readRaggedTextWarpTest() throws IOException
+	{
+		File warpFile = writeTextWarp("1.0 2.0 3.0\n4.0 5.0\n");
+
+		Assert.assertNull(WarpReader.readTextWarpFile(warpFile));
+	}
+
+	/**
+	 * Tests that a binary warp file starts with "WARP" and is recognised as a
+	 * binary warp by its first bytes.
+	 *
+	 * @throws IOException
+	 *             If the temporary warp can not be written
+	 */
+	@Test
+	public void binaryWarpStartsWithMagicTest() throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(WarpFileHeader.HEADER_SIZE).order(WarpFileHeader.BYTE_ORDER);
+		new WarpFileHeader(WarpFileHeader.DATA_TYPE_FLOAT64, WarpFileHeader.CODEC_RAW, 2, 3, 4).write(buffer);
+
+		byte[] header = buffer.array();
+		Assert.assertEquals("WARP", new String(header, 0, 4, StandardCharsets.US_ASCII));
+
+		File warpFile = tempFolder.newFile("warp" + WarpFileHeader.BINARY_EXTENSION);
+		Files.write(warpFile.toPath(), header);
+		Assert.assertTrue(WarpFileHeader.isBinaryWarpFile(warpFile));
+
+		buffer.rewind();
+		WarpFileHeader readHeader = WarpFileHeader.read(buffer);
+		Assert.assertEquals(2, readHeader.getLevel());
+		Assert.assertEquals(3, readHeader.getWidth());
+		Assert.assertEquals(4, readHeader.getHeight());
+	}
+
+	/**
+	 * Writes a text warp into the temporary folder.
+	 *
+	 * @param contents
+	 *            The contents of the warp file
+	 * @return The written warp file
+	 * @throws IOException
+	 *             If the file can not be written
+	 */
+	private File writeTextWarp(final String contents) throws IOException
+	{
+		File warpFile = tempFolder.newFile("warp" + WarpFileHeader.TEXT_EXTENSION);
+		FileWriter writer = new FileWriter(warpFile);
+		writer.write(contents);
+		writer.close();
+		return warpFile;
+	}
+}
@@ -0,0 +1,76 @@
+package scl10.uk.ac.aber.users.sikuli;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+import lombok.NonNull;
+
+/**
+ * A class for creating and inspecting the small generated images used by the
+ * tests, so tests don't need image files on the disk.
+ * 
+ * @author Scott Lockett
+ */
+public final class TestImageUtils
+{
+
+	/**
+	 * Private constructor to hide the implicit one. Ensures class can not be
+	 * instantiated.
+	 */
+	private TestImageUtils()
+	{
+
+	}
+
+	/**
+	 * Creates a colour image with a different colour at every pixel.
+	 * 
+	 * @param width
+	 *            The width of the image.
+	 * @param height
+	 *            The height of the image.
+	 * @return The image.
+	 */
+	public static BufferedImage createImage(final int width, final int height)
+	{
+		return createImage(width, height, 0);
+	}
+
+	/**
+	 * Creates a colour image with a different colour at every pixel. Images
+	 * with different seeds have different pixels.
+	 * 
+	 * @param width
+	 *            The width of the image.
+	 * @param height
+	 *            The height of the image.
+	 * @param seed
+	 *            Changes the colours so images can be told apart.
+	 * @return The image.
+	 */
+	public static BufferedImage createImage(final int width, final int height, final int seed)
+	{
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+		for (int y = 0; y < height; y++)
+		{
+			for (int x = 0; x < width; x++)
+			{
+				image.setRGB(x, y, (x * 5 & 0xFF) << 16 | (y * 3 & 0xFF) << 8 | (x + y + seed & 0xFF));
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Get the raw pixels of a byte image.
+	 * 
+	 * @param image
+	 *            The image. cannot be null.
+	 * @return The pixels, which are shared with the image.
+	 */
+	public static byte[] pixels(@NonNull final BufferedImage image)
+	{
+		return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+	}
+}
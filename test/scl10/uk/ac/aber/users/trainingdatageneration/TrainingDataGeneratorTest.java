@@ -0,0 +1,268 @@
+package scl10.uk.ac.aber.users.trainingdatageneration;
+
+import static scl10.uk.ac.aber.users.sikuli.TestImageUtils.createImage;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import scl10.uk.ac.aber.users.manipulators.WarpManipulator;
+import scl10.uk.ac.aber.users.readers.WarpFileHeader;
+import scl10.uk.ac.aber.users.readers.WarpReader;
+
+/**
+ * A class for testing the functionality of the {@link TrainingDataGenerator}
+ * class.
+ *
+ * @author Scott Lockett
+ */
+public class TrainingDataGeneratorTest
+{
+
+	/**
+	 * The number of times the training data is downsampled in the tests
+	 */
+	private static final int LEVELS = 3;
+
+	/**
+	 * The number of training files written for each test
+	 */
+	private static final int FILES = 5;
+
+	/**
+	 * A temporary folder for the training data and everything generated from
+	 * it
+	 */
+	@Rule
+	public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+	/**
+	 * Tests that every level of the training images is written into its own
+	 * level-k folder at the size of that level, and that the same images are
+	 * written whether the files are processed one at a time or on many
+	 * threads.
+	 *
+	 * @throws IOException
+	 *             If the training images can not be written or read
+	 */
+	@Test
+	public void everyImageLevelWrittenTest() throws IOException
+	{
+		File inputFolder = tempFolder.newFolder("images");
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < FILES; i++)
+		{
+			String name = "image" + i + ".jpg";
+			ImageIO.write(createImage(44, 30, i * 20), "jpg", new File(inputFolder, name));
+			names.add(name);
+		}
+		File pathsFile = writePathsFile(inputFolder, names);
+
+		File oneThread = new File(tempFolder.getRoot(), "one-thread");
+		File manyThreads = new File(tempFolder.getRoot(), "many-threads");
+		TrainingDataGenerator.main(new String[] { pathsFile.getPath(), oneThread.getPath(), "3", "all", "1" });
+		TrainingDataGenerator.main(new String[] { pathsFile.getPath(), manyThreads.getPath(), "3", "all", "4" });
+
+		for (int level = 1; level <= LEVELS; level++)
+		{
+			File levelFolder = new File(oneThread, "level-" + level);
+			assertFolderHolds(levelFolder, names);
+
+			for (String name : names)
+			{
+				BufferedImage image = ImageIO.read(new File(levelFolder, name));
+				Assert.assertEquals(44 >> level, image.getWidth());
+				Assert.assertEquals(30 >> level, image.getHeight());
+				Assert.assertEquals(BufferedImage.TYPE_BYTE_GRAY, image.getType());
+			}
+		}
+
+		assertSameOutput(oneThread, manyThreads);
+	}
+
+	/**
+	 * Tests that every level of the training warps is written as a binary
+	 * warp into its own level-k folder, holding the warp downsampled that many
+	 * times along with its level, and that the same warps are written whether
+	 * the files are processed one at a time or on many threads.
+	 *
+	 * @throws IOException
+	 *             If the training warps can not be written or read
+	 */
+	@Test
+	public void everyWarpLevelWrittenTest() throws IOException
+	{
+		File inputFolder = tempFolder.newFolder("warps");
+		List<String> names = new ArrayList<>();
+		List<double[][]> warps = new ArrayList<>();
+		Random random = new Random(3);
+		for (int i = 0; i < FILES; i++)
+		{
+			double[][] warp = new double[26][38];
+			for (double[] row : warp)
+			{
+				for (int j = 0; j < row.length; j++)
+				{
+					row[j] = random.nextInt(2000) / 100.0D - 10.0D;
+				}
+			}
+
+			Assert.assertTrue(WarpManipulator.writeWarpFile(new File(inputFolder, "warp" + i + ".txt"), warp));
+			names.add("warp" + i + ".txt");
+			warps.add(WarpReader.readWarpFile(new File(inputFolder, "warp" + i + ".txt")));
+		}
+		File pathsFile = writePathsFile(inputFolder, names);
+
+		File oneThread = new File(tempFolder.getRoot(), "one-thread");
+		File manyThreads = new File(tempFolder.getRoot(), "many-threads");
+		TrainingDataGenerator.main(new String[] { pathsFile.getPath(), oneThread.getPath(), "3", "all", "1" });
+		TrainingDataGenerator.main(new String[] { pathsFile.getPath(), manyThreads.getPath(), "3", "all", "4" });
+
+		List<String> binaryNames = new ArrayList<>();
+		for (int i = 0; i < FILES; i++)
+		{
+			binaryNames.add("warp" + i + WarpFileHeader.BINARY_EXTENSION);
+		}
+
+		for (int level = 1; level <= LEVELS; level++)
+		{
+			File levelFolder = new File(oneThread, "level-" + level);
+			assertFolderHolds(levelFolder, binaryNames);
+
+			for (int i = 0; i < FILES; i++)
+			{
+				File warpFile = new File(levelFolder, binaryNames.get(i));
+				Assert.assertTrue(WarpFileHeader.isBinaryWarpFile(warpFile));
+
+				WarpFileHeader header = WarpFileHeader.read(
+						ByteBuffer.wrap(Files.readAllBytes(warpFile.toPath())).order(WarpFileHeader.BYTE_ORDER));
+				Assert.assertEquals(level, header.getLevel());
+				Assert.assertEquals(38 >> level, header.getWidth());
+				Assert.assertEquals(26 >> level, header.getHeight());
+
+				/*
+				 * Each level is the level before it downsampled once more
+				 */
+				double[][] expected = WarpManipulator.downsample(warps.get(i));
+				warps.set(i, expected);
+
+				double[][] written = WarpReader.readBinaryWarpFile(warpFile);
+				Assert.assertEquals(expected.length, written.length);
+				for (int row = 0; row < expected.length; row++)
+				{
+					Assert.assertArrayEquals(expected[row], written[row], 0.0D);
+				}
+			}
+		}
+
+		assertSameOutput(oneThread, manyThreads);
+	}
+
+	/**
+	 * Tests that only the final level is written, straight into the output
+	 * folder, when every level is not asked for.
+	 *
+	 * @throws IOException
+	 *             If the training images can not be written or read
+	 */
+	@Test
+	public void onlyFinalLevelWrittenTest() throws IOException
+	{
+		File inputFolder = tempFolder.newFolder("images");
+		ImageIO.write(createImage(44, 30, 0), "jpg", new File(inputFolder, "image.jpg"));
+		File pathsFile = writePathsFile(inputFolder, Arrays.asList("image.jpg"));
+
+		File output = new File(tempFolder.getRoot(), "output");
+		TrainingDataGenerator.main(new String[] { pathsFile.getPath(), output.getPath(), "3" });
+
+		assertFolderHolds(output, Arrays.asList("image.jpg"));
+		BufferedImage image = ImageIO.read(new File(output, "image.jpg"));
+		Assert.assertEquals(44 >> LEVELS, image.getWidth());
+		Assert.assertEquals(30 >> LEVELS, image.getHeight());
+	}
+
+	/**
+	 * Writes the file of training data paths read by the generator. The first
+	 * line is the folder the training data is held in, followed by each of the
+	 * files within it.
+	 *
+	 * @param folder
+	 *            The folder the training data is held in.
+	 * @param names
+	 *            The names of the training files within the folder.
+	 * @return The written file.
+	 * @throws IOException
+	 *             If the file can not be written
+	 */
+	private File writePathsFile(final File folder, final List<String> names) throws IOException
+	{
+		List<String> lines = new ArrayList<>();
+		lines.add(folder.getAbsolutePath());
+		lines.addAll(names);
+
+		File pathsFile = tempFolder.newFile("paths.txt");
+		Files.write(pathsFile.toPath(), lines, StandardCharsets.UTF_8);
+		return pathsFile;
+	}
+
+	/**
+	 * Asserts that a folder holds exactly the named files.
+	 *
+	 * @param folder
+	 *            The folder to be checked.
+	 * @param names
+	 *            The names of the files the folder should hold.
+	 */
+	private static void assertFolderHolds(final File folder, final List<String> names)
+	{
+		Assert.assertTrue(folder + " should have been created.", folder.isDirectory());
+
+		String[] expected = names.toArray(new String[names.size()]);
+		String[] actual = folder.list();
+		Arrays.sort(expected);
+		Arrays.sort(actual);
+		Assert.assertArrayEquals(expected, actual);
+	}
+
+	/**
+	 * Asserts that two output folders hold the same level-k folders, each
+	 * holding files with the same names and bytes.
+	 *
+	 * @param expected
+	 *            The output folder written on one thread.
+	 * @param actual
+	 *            The output folder written on many threads.
+	 * @throws IOException
+	 *             If a file can not be read
+	 */
+	private static void assertSameOutput(final File expected, final File actual) throws IOException
+	{
+		for (int level = 1; level <= LEVELS; level++)
+		{
+			File expectedFolder = new File(expected, "level-" + level);
+			File actualFolder = new File(actual, "level-" + level);
+			assertFolderHolds(actualFolder, Arrays.asList(expectedFolder.list()));
+
+			for (String name : expectedFolder.list())
+			{
+				Assert.assertArrayEquals(name + " at level " + level + " differs.",
+						Files.readAllBytes(new File(expectedFolder, name).toPath()),
+						Files.readAllBytes(new File(actualFolder, name).toPath()));
+			}
+		}
+	}
+}